@@ -0,0 +1,152 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import java.util.Arrays;
+
+// This class projects the total battery life of a run before the battery is empty
+// It fits a least squares line through the (time, battery level) samples taken so far
+// and extrapolates it to 0%. The confidence interval is the usual inverse prediction interval:
+//   var(T) = s^2 / b^2 * (1/n + (T - mean t)^2 / Sxx)
+// Test load comes in cycles so consecutive residuals are correlated. The variance is inflated
+// by the lag-1 autocorrelation of the residuals (effective sample size) so the interval is not too narrow
+// It has no Android dependency so it can be validated against discharge traces in JVM unit tests
+public class BatteryLifeEstimator {
+
+    static final double Z_95 = 1.96;
+    static final int MIN_SAMPLES = 10;
+    static final double MIN_LEVEL_DROP = 5.0; //percent, avoids converging on the first few steps
+
+    private double[] times = new double[128];
+    private double[] levels = new double[128];
+    private int n = 0;
+    private double sumT;
+    private double sumL;
+    private double sumTT;
+    private double sumTL;
+    private double sumLL;
+    private double firstLevel;
+    private double lastLevel;
+
+    private double lifeHours = Double.NaN;
+    private double halfWidthHours = Double.NaN;
+
+    public void reset() {
+        n = 0;
+        sumT = sumL = sumTT = sumTL = sumLL = 0;
+        lifeHours = halfWidthHours = Double.NaN;
+    }
+
+    //timeHours is measured from the start of the run, levelPct is the battery level in percent
+    public void addSample(double timeHours, double levelPct) {
+        if (n == 0)
+            firstLevel = levelPct;
+        lastLevel = levelPct;
+
+        if (n == times.length) {
+            times = Arrays.copyOf(times, n * 2);
+            levels = Arrays.copyOf(levels, n * 2);
+        }
+        times[n] = timeHours;
+        levels[n] = levelPct;
+
+        n++;
+        sumT += timeHours;
+        sumL += levelPct;
+        sumTT += timeHours * timeHours;
+        sumTL += timeHours * levelPct;
+        sumLL += levelPct * levelPct;
+
+        fit();
+    }
+
+    private void fit() {
+        lifeHours = halfWidthHours = Double.NaN;
+        if (n < 3)
+            return;
+
+        double meanT = sumT / n;
+        double meanL = sumL / n;
+        double sxx = sumTT - n * meanT * meanT;
+        double sxy = sumTL - n * meanT * meanL;
+        double syy = sumLL - n * meanL * meanL;
+        if (sxx <= 0)
+            return;
+
+        double slope = sxy / sxx;
+        if (slope >= 0)
+            return; //not discharging
+
+        double intercept = meanL - slope * meanT;
+        lifeHours = -intercept / slope;
+
+        double sse = Math.max(syy - slope * sxy, 0);
+        double s2 = sse / (n - 2);
+        double d = lifeHours - meanT;
+        double varLife = s2 / (slope * slope) * (1.0 / n + d * d / sxx);
+
+        double nEff = effectiveSampleSize(intercept, slope);
+        varLife *= n / nEff;
+        halfWidthHours = tQuantile95(nEff - 2) * Math.sqrt(varLife);
+    }
+
+    //n * (1 - r) / (1 + r) where r is the lag-1 autocorrelation of the residuals
+    private double effectiveSampleSize(double intercept, double slope) {
+        double prev = levels[0] - (intercept + slope * times[0]);
+        double sumSq = prev * prev;
+        double sumLag = 0;
+        for (int i = 1; i < n; i++) {
+            double r = levels[i] - (intercept + slope * times[i]);
+            sumSq += r * r;
+            sumLag += r * prev;
+            prev = r;
+        }
+        double rho = sumSq > 0 ? sumLag / sumSq : 0;
+        if (rho <= 0)
+            return n;
+        return Math.max(n * (1 - rho) / (1 + rho), 3);
+    }
+
+    //two sided 95% Student t quantile (Cornish-Fisher expansion around the normal quantile)
+    private static double tQuantile95(double df) {
+        df = Math.max(df, 1);
+        double z = Z_95;
+        double z3 = z * z * z;
+        double z5 = z3 * z * z;
+        return z + (z3 + z) / (4 * df) + (5 * z5 + 16 * z3 + 3 * z) / (96 * df * df);
+    }
+
+    public int getSampleCount() {
+        return n;
+    }
+
+    //projected time from the start of the run until the battery reaches 0%, NaN until it can be fitted
+    public double getLifeHours() {
+        return lifeHours;
+    }
+
+    //half width of the 95% confidence interval of getLifeHours()
+    public double getHalfWidthHours() {
+        return halfWidthHours;
+    }
+
+    //true when the confidence interval is within +/- tolerance (fraction) of the projected life
+    public boolean isConverged(double tolerance) {
+        return n >= MIN_SAMPLES
+                && firstLevel - lastLevel >= MIN_LEVEL_DROP
+                && !Double.isNaN(lifeHours)
+                && halfWidthHours <= tolerance * lifeHours;
+    }
+}
@@ -0,0 +1,123 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+// This class reports the projected battery life while the test is running
+// It listens to the battery changed broadcast, so it adds no wakeup of its own, and feeds
+// every new battery level to BatteryLifeEstimator
+// When early stop is enabled the run is stopped once the estimate is within the set tolerance
+// It is instantiated by MainService
+public class BatteryLifeMonitor extends BroadcastReceiver {
+    private static final String TAG = "verifi.BatteryLifeMonitor";
+
+    private final MainService parentService;
+    private final TestPreference testPref;
+    private final BatteryLifeEstimator estimator = new BatteryLifeEstimator();
+
+    private long startTimeMs;
+    private int lastLevel = -1;
+    private boolean converged = false;
+    private boolean charging = false;
+
+    public BatteryLifeMonitor(MainService pService) {
+        parentService = pService;
+        testPref = TestPreference.getInstance();
+    }
+
+    public void start() {
+        startTimeMs = SystemClock.elapsedRealtime();
+        parentService.registerReceiver(this, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+    }
+
+    public void stop() {
+        parentService.unregisterReceiver(this);
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+        int plugged = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0);
+
+        if (level < 0 || scale <= 0)
+            return;
+        level = level * 100 / scale;
+
+        //the discharge line is only valid while unplugged, start over after charging
+        //the broadcast is sent as soon as the charger is removed, so the clock restarts at the unplug
+        if (plugged != 0) {
+            if (!charging) {
+                charging = true;
+                estimator.reset();
+                converged = false;
+            }
+            lastLevel = level;
+            return;
+        }
+        if (charging) {
+            charging = false;
+            startTimeMs = SystemClock.elapsedRealtime();
+        }
+
+        //the broadcast is also sent for voltage and temperature changes
+        if (level == lastLevel)
+            return;
+        lastLevel = level;
+
+        double hours = (SystemClock.elapsedRealtime() - startTimeMs) / 3600000.0;
+        estimator.addSample(hours, level);
+
+        String ts = new SimpleDateFormat("MM-dd HH:mm:ss", Locale.US).format(new Date());
+        String msg = ts + " - Battery " + level + "%";
+
+        BatterySampler batterySampler = MainService.getBatterySampler();
+        if (batterySampler != null)
+            msg += String.format(Locale.US, ", drain %.2f %%/h, %.1f mA",
+                    batterySampler.getDrainPctPerHour(), batterySampler.getDrainMa());
+
+        double life = estimator.getLifeHours();
+        if (!Double.isNaN(life))
+            msg += String.format(Locale.US, ", projected life %.1f +/- %.1f h", life, estimator.getHalfWidthHours());
+
+        Log.i(TAG, msg);
+        parentService.sendStatus(msg);
+
+        if (Double.isNaN(life))
+            return;
+
+        if (!converged && estimator.isConverged(testPref.getEarlyStopTolerance() / 100.0)) {
+            converged = true;
+            parentService.sendStatus(String.format(Locale.US, "Battery life estimate converged: %.1f h (95%% CI %.1f - %.1f h)",
+                    life, life - estimator.getHalfWidthHours(), life + estimator.getHalfWidthHours()));
+
+            if (testPref.isEarlyStop()) {
+                parentService.sendStatus("Early stop - test is stopped. Click on STOP to configure a new test");
+                parentService.stopSelf();
+            }
+        }
+    }
+}
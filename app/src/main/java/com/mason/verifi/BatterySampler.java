@@ -0,0 +1,293 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+// This class samples the battery while the test is running
+// It does not set any alarm of its own. Tests call maybeSample() when they wake up and a sample is only
+// taken if the sample interval has passed since the last one
+// Samples are kept in preallocated primitive ring buffers and appended to a binary file in
+// fixed size records through a reused ByteBuffer, so sampling does not allocate
+// Voltage and temperature come from the battery changed broadcast, the rest from BatteryManager
+// It is instantiated by MainService
+public class BatterySampler extends BroadcastReceiver {
+    private static final String TAG = "verifi.BatterySampler";
+    private static final String BATTERY_SAMPLE_FILENAME = "verifi_battery.bin";
+    private static final String BATTERY_EXPORT_FILENAME = "verifi_battery.csv";
+
+    private static final int RING_SIZE = 256;
+    private static final int FLUSH_COUNT = 64;
+
+    //record = time (long, epoch ms), current now, current average (int, uA), charge counter (int, uAh),
+    //voltage (short, mV), temperature (short, 0.1 C), capacity (byte, %), plugged (byte)
+    static final int RECORD_SIZE = 8 + 4 + 4 + 4 + 2 + 2 + 1 + 1;
+
+    private final Context mContext;
+    private final BatteryManager batteryManager;
+    private long sampleIntervalMs;
+
+    private final long[] timeMs = new long[RING_SIZE];
+    private final long[] elapsedMs = new long[RING_SIZE];
+    private final int[] currentNowUa = new int[RING_SIZE];
+    private final int[] currentAvgUa = new int[RING_SIZE];
+    private final int[] chargeUah = new int[RING_SIZE];
+    private final short[] voltageMv = new short[RING_SIZE];
+    private final short[] temperature = new short[RING_SIZE];
+    private final byte[] capacity = new byte[RING_SIZE];
+    private final byte[] plugged = new byte[RING_SIZE];
+
+    private int head = 0;      //next slot to write
+    private int count = 0;     //valid samples in the ring
+    private int unsaved = 0;   //samples not yet written to the file
+    private long lastSampleMs = Long.MIN_VALUE;
+
+    //first unplugged sample of the run and the CURRENT_AVERAGE sum since then, for the drain rates
+    //the ring only spans a few minutes while a test samples fast
+    private long startElapsedMs = -1;
+    private int startCapacity;
+    private int startChargeUah;
+    private long currentAvgSumUa = 0;
+    private int drainCount = 0;
+
+    //latest values of the battery changed broadcast
+    private volatile int lastVoltageMv;
+    private volatile int lastTemperature;
+    private volatile int lastPlugged;
+
+    private final MetricsRegistry.Gauge currentGauge = MetricsRegistry.getInstance().gauge("battery.current_now_ma");
+    private final MetricsRegistry.Gauge levelGauge = MetricsRegistry.getInstance().gauge("battery.level_pct");
+    private final MetricsRegistry.Gauge temperatureGauge = MetricsRegistry.getInstance().gauge("battery.temperature_c");
+
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE * FLUSH_COUNT).order(ByteOrder.LITTLE_ENDIAN);
+    private FileChannel channel;
+
+    public BatterySampler(Context context) {
+        mContext = context;
+        batteryManager = (BatteryManager) context.getSystemService(Context.BATTERY_SERVICE);
+        sampleIntervalMs = TestPreference.getInstance().getBatterySampleInterval() * 1000L;
+    }
+
+    public void start() {
+        Intent sticky = mContext.registerReceiver(this, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (sticky != null)
+            onReceive(mContext, sticky);
+
+        try {
+            File file = new File(mContext.getExternalFilesDir(null), BATTERY_SAMPLE_FILENAME);
+            channel = new FileOutputStream(file, false).getChannel();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open battery sample file", e);
+        }
+
+        sample();
+    }
+
+    public synchronized void stop() {
+        mContext.unregisterReceiver(this);
+        sample();
+        flush();
+
+        try {
+            if (channel != null)
+                channel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close battery sample file", e);
+        }
+        channel = null;
+
+        exportCsv();
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        lastVoltageMv = intent.getIntExtra(BatteryManager.EXTRA_VOLTAGE, 0);
+        lastTemperature = intent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0);
+        lastPlugged = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0);
+    }
+
+    //Change how often samples are taken. Used to sample faster while a test is active
+    public synchronized void setSampleInterval(long intervalMs) {
+        sampleIntervalMs = intervalMs;
+    }
+
+    //Called from test wakeups. Takes a sample only if the sample interval has passed
+    public synchronized void maybeSample() {
+        if (SystemClock.elapsedRealtime() - lastSampleMs >= sampleIntervalMs)
+            sample();
+    }
+
+    public synchronized void sample() {
+        long now = SystemClock.elapsedRealtime();
+        lastSampleMs = now;
+
+        int i = head;
+        timeMs[i] = System.currentTimeMillis();
+        elapsedMs[i] = now;
+        currentNowUa[i] = batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CURRENT_NOW);
+        currentAvgUa[i] = batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CURRENT_AVERAGE);
+        chargeUah[i] = batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CHARGE_COUNTER);
+        capacity[i] = (byte) batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY);
+        voltageMv[i] = (short) lastVoltageMv;
+        temperature[i] = (short) lastTemperature;
+        plugged[i] = (byte) lastPlugged;
+
+        currentGauge.set(currentNowUa[i] / 1000.0);
+        levelGauge.set(capacity[i]);
+        temperatureGauge.set(temperature[i] / 10.0);
+
+        //the drain rates start over after charging
+        if (plugged[i] != 0) {
+            startElapsedMs = -1;
+        } else if (startElapsedMs < 0) {
+            startElapsedMs = now;
+            startCapacity = capacity[i];
+            startChargeUah = chargeUah[i];
+            currentAvgSumUa = Math.abs(currentAvgUa[i]);
+            drainCount = 1;
+        } else {
+            currentAvgSumUa += Math.abs(currentAvgUa[i]);
+            drainCount++;
+        }
+
+        head = (head + 1) % RING_SIZE;
+        if (count < RING_SIZE)
+            count++;
+        if (++unsaved >= FLUSH_COUNT)
+            flush();
+
+        TestEnergyMeter testEnergyMeter = MainService.getTestEnergyMeter();
+        if (testEnergyMeter != null)
+            testEnergyMeter.onSample(now, currentNowUa[i], chargeUah[i], plugged[i] != 0);
+
+        ResultCollector resultCollector = MainService.getResultCollector();
+        if (resultCollector != null)
+            resultCollector.addBatterySample(timeMs[i], currentNowUa[i], chargeUah[i], capacity[i], voltageMv[i],
+                    temperature[i], plugged[i]);
+    }
+
+    //append the unsaved samples to the binary file
+    private void flush() {
+        if (channel == null || unsaved == 0) {
+            unsaved = 0;
+            return;
+        }
+
+        record.clear();
+        for (int n = unsaved; n > 0; n--) {
+            int i = (head - n + RING_SIZE) % RING_SIZE;
+            record.putLong(timeMs[i]);
+            record.putInt(currentNowUa[i]);
+            record.putInt(currentAvgUa[i]);
+            record.putInt(chargeUah[i]);
+            record.putShort(voltageMv[i]);
+            record.putShort(temperature[i]);
+            record.put(capacity[i]);
+            record.put(plugged[i]);
+        }
+        record.flip();
+
+        try {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write battery samples", e);
+        }
+        unsaved = 0;
+    }
+
+    private int newest() {
+        return (head - 1 + RING_SIZE) % RING_SIZE;
+    }
+
+    //battery drain in percent per hour since the first unplugged sample of the run
+    public synchronized double getDrainPctPerHour() {
+        if (startElapsedMs < 0 || drainCount < 2)
+            return Double.NaN;
+        int last = newest();
+        long dt = elapsedMs[last] - startElapsedMs;
+        if (dt <= 0)
+            return Double.NaN;
+        return (startCapacity - capacity[last]) * 3600000.0 / dt;
+    }
+
+    //average discharge current in mA since the first unplugged sample of the run
+    //uses the charge counter when supported, otherwise the average of CURRENT_AVERAGE
+    public synchronized double getDrainMa() {
+        if (startElapsedMs < 0 || drainCount < 2)
+            return Double.NaN;
+
+        int last = newest();
+        long dt = elapsedMs[last] - startElapsedMs;
+
+        if (dt > 0 && startChargeUah > 0 && chargeUah[last] > 0 && startChargeUah != chargeUah[last])
+            return (startChargeUah - chargeUah[last]) / 1000.0 * 3600000.0 / dt;
+
+        return currentAvgSumUa / 1000.0 / drainCount;
+    }
+
+    //latest CURRENT_NOW in uA, as reported by the fuel gauge
+    public synchronized int getLastCurrentNowUa() {
+        return count > 0 ? currentNowUa[newest()] : 0;
+    }
+
+    //Convert the binary sample file to CSV for export
+    private void exportCsv() {
+        File bin = new File(mContext.getExternalFilesDir(null), BATTERY_SAMPLE_FILENAME);
+        File csv = new File(mContext.getExternalFilesDir(null), BATTERY_EXPORT_FILENAME);
+
+        try (FileChannel in = new FileInputStream(bin).getChannel();
+             Writer out = new FileWriter(csv)) {
+            out.write("time_ms,current_now_ua,current_avg_ua,charge_uah,voltage_mv,temperature_c,capacity_pct,plugged\n");
+
+            record.clear();
+            while (in.read(record) > 0) {
+                record.flip();
+                while (record.remaining() >= RECORD_SIZE) {
+                    out.write(String.format(Locale.US, "%d,%d,%d,%d,%d,%.1f,%d,%d\n",
+                            record.getLong(), record.getInt(), record.getInt(), record.getInt(),
+                            record.getShort(), record.getShort() / 10.0, record.get(), record.get()));
+                }
+                record.compact();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to export battery samples", e);
+        }
+    }
+
+    //Read a BatteryManager property without taking a sample
+    public static int getBatteryProperty(Context context, int id) {
+        BatteryManager batteryManager = (BatteryManager) context.getSystemService(Context.BATTERY_SERVICE);
+        return batteryManager.getIntProperty(id);
+    }
+}
@@ -0,0 +1,74 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+// This class creates periodic timer using Alarm service
+// to run the control step of the energy budget run mode
+public class BudgetAlarm extends BroadcastReceiver {
+    private static final String TAG = "verifi.BudgetAlarm";
+    public static final String BUDGET_ALARM_ACTION = "budget_alarm_action";
+    private AlarmManager budgetAlarmManager;
+    private PendingIntent budgetPendingIntent;
+
+    // this constructor is called by the alarm manager
+    public BudgetAlarm() {
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final String action = intent.getAction();
+        Log.d(TAG, "Budget Alarm is triggered at Current time: " + System.currentTimeMillis());
+
+        if (action.equals(BUDGET_ALARM_ACTION)) {
+            if (MainService.getBudgetTuner() != null) {
+                MainService.getBudgetTuner().onAlarm();
+
+                //set Alarm again for the next control step
+                startBudgetAlarm(context, TestPreference.getInstance().getBudgetStepInterval());
+            } else {
+                //the run is over, the alarm is not set again so it does not keep waking the device
+                Log.e(TAG, "Failed to run Energy Budget step. Null BudgetTuner reference");
+            }
+        }
+    }
+
+    public void startBudgetAlarm(Context context, int delaySec) {
+        Intent intent = new Intent(context, BudgetAlarm.class).setAction(BUDGET_ALARM_ACTION);
+
+        budgetPendingIntent = PendingIntent.getBroadcast(
+                context, 5131, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+
+        budgetAlarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+
+        long currentTime = System.currentTimeMillis();
+        long alarmTime =  currentTime + delaySec * 1000L;
+
+        budgetAlarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, alarmTime, budgetPendingIntent);
+
+        Log.d(TAG, "Current time: " + currentTime + " set Budget Alarm to: " + alarmTime);
+    }
+
+    public void stopBudgetAlarm() {
+        if (budgetAlarmManager != null)
+            budgetAlarmManager.cancel(budgetPendingIntent);
+    }
+}
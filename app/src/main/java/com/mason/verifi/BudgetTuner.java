@@ -0,0 +1,152 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import android.os.BatteryManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+// This class runs the energy budget run mode
+// Every control step it measures the battery level, lets EnergyBudgetController adjust the test intervals
+// so the battery lasts for the target lifetime, applies them to TestPreference and logs the adjustment
+// It is instantiated by MainService when the run mode is BUDGET and driven by BudgetAlarm
+public class BudgetTuner {
+    private static final String TAG = "verifi.BudgetTuner";
+    private static final String BUDGET_LOG_FILENAME = "verifi_budget_log.csv";
+    private static final double CONTROL_GAIN = 0.5;
+
+    //interval bounds of each test in sec
+    private static final int GPS_MIN_INTERVAL = 10;
+    private static final int GPS_MAX_INTERVAL = 3600;
+    private static final int SENSOR_MIN_INTERVAL = 40; //HR test reads the sensor for 30 sec
+    private static final int SENSOR_MAX_INTERVAL = 3600;
+    private static final int DATA_CONN_MIN_INTERVAL = 60;
+    private static final int DATA_CONN_MAX_INTERVAL = 7200;
+
+    private final MainService parentService;
+    private final TestPreference testPref;
+    private final BudgetAlarm budgetAlarm;
+
+    private EnergyBudgetController controller;
+    private long startTimeMs;
+    private int fullChargeUah;
+
+    public BudgetTuner(MainService pService) {
+        parentService = pService;
+        testPref = TestPreference.getInstance();
+        budgetAlarm = new BudgetAlarm();
+    }
+
+    public void start() {
+        controller = new EnergyBudgetController(testPref.getBudgetTargetHours(), CONTROL_GAIN);
+
+        if (testPref.isEnableGPS())
+            controller.addTest(EnergyBudgetController.GPS, testPref.getGpsInterval(),
+                    GPS_MIN_INTERVAL, GPS_MAX_INTERVAL, testPref.getGpsPriority());
+        if (testPref.isEnableSensor())
+            controller.addTest(EnergyBudgetController.SENSOR, testPref.getSensorInterval(),
+                    SENSOR_MIN_INTERVAL, SENSOR_MAX_INTERVAL, testPref.getSensorPriority());
+        if (testPref.isEnableDataConn())
+            controller.addTest(EnergyBudgetController.DATA_CONN, testPref.getDataConnInterval(),
+                    DATA_CONN_MIN_INTERVAL, DATA_CONN_MAX_INTERVAL, testPref.getDataConnPriority());
+
+        //full charge is derived once so the level can be computed from the finer charge counter
+        int capacity = BatterySampler.getBatteryProperty(parentService, BatteryManager.BATTERY_PROPERTY_CAPACITY);
+        int charge = BatterySampler.getBatteryProperty(parentService, BatteryManager.BATTERY_PROPERTY_CHARGE_COUNTER);
+        fullChargeUah = (charge > 0 && capacity > 0) ? (int) (charge * 100L / capacity) : 0;
+
+        startTimeMs = SystemClock.elapsedRealtime();
+        controller.start(0, getBatteryLevel());
+
+        parentService.sendStatus("Energy budget target: " + testPref.getBudgetTargetHours() + " hours");
+        writeLog("time,hours,level_pct,drain_pct_per_hour,required_pct_per_hour,gps_sec,sensor_sec,data_conn_sec", false);
+        budgetAlarm.startBudgetAlarm(parentService, testPref.getBudgetStepInterval());
+    }
+
+    public void stop() {
+        budgetAlarm.stopBudgetAlarm();
+    }
+
+    //Called by BudgetAlarm every control step
+    public void onAlarm() {
+        if (controller == null)
+            return;
+
+        double hours = (SystemClock.elapsedRealtime() - startTimeMs) / 3600000.0;
+        double level = getBatteryLevel();
+
+        if (!controller.step(hours, level))
+            return;
+
+        String ts = new SimpleDateFormat("MM-dd HH:mm:ss", Locale.US).format(new Date());
+        String msg = String.format(Locale.US, "drain %.2f %%/h, need %.2f %%/h ->",
+                controller.getDrainRate(), controller.getRequiredRate());
+
+        if (controller.isEnabled(EnergyBudgetController.GPS)) {
+            int interval = controller.getInterval(EnergyBudgetController.GPS);
+            if (interval != testPref.getGpsInterval()) {
+                testPref.setGpsInterval(interval);
+                //GPS interval is passed to the location request so the session must be restarted
+                MainService.getTestScheduler().stopGPSTest();
+                MainService.getTestScheduler().startGPSTest();
+            }
+            msg += " GPS " + interval + "s";
+        }
+        //Sensor and Data Connection alarms read the new interval when they are set again
+        if (controller.isEnabled(EnergyBudgetController.SENSOR)) {
+            testPref.setSensorInterval(controller.getInterval(EnergyBudgetController.SENSOR));
+            msg += " Sensor " + testPref.getSensorInterval() + "s";
+        }
+        if (controller.isEnabled(EnergyBudgetController.DATA_CONN)) {
+            testPref.setDataConnInterval(controller.getInterval(EnergyBudgetController.DATA_CONN));
+            msg += " Data " + testPref.getDataConnInterval() + "s";
+        }
+
+        Log.i(TAG, msg);
+        parentService.sendStatus(ts + " - Budget: " + msg);
+        writeLog(String.format(Locale.US, "%s,%.3f,%.2f,%.3f,%.3f,%d,%d,%d", ts, hours, level,
+                controller.getDrainRate(), controller.getRequiredRate(),
+                controller.getInterval(EnergyBudgetController.GPS),
+                controller.getInterval(EnergyBudgetController.SENSOR),
+                controller.getInterval(EnergyBudgetController.DATA_CONN)), true);
+    }
+
+    //battery level in percent, with sub-percent resolution when the charge counter is supported
+    private double getBatteryLevel() {
+        if (fullChargeUah > 0) {
+            int charge = BatterySampler.getBatteryProperty(parentService, BatteryManager.BATTERY_PROPERTY_CHARGE_COUNTER);
+            if (charge > 0)
+                return charge * 100.0 / fullChargeUah;
+        }
+        return BatterySampler.getBatteryProperty(parentService, BatteryManager.BATTERY_PROPERTY_CAPACITY);
+    }
+
+    private void writeLog(String line, boolean append) {
+        File file = new File(parentService.getExternalFilesDir(null), BUDGET_LOG_FILENAME);
+        try (Writer writer = new FileWriter(file, append)) {
+            writer.write(line + "\n");
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write energy budget log", e);
+        }
+    }
+}
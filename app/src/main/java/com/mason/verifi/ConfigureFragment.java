@@ -85,6 +85,9 @@ public class ConfigureFragment extends Fragment {
                 case LOCMGR:
                     binding.rbAndroidLocMgr.setChecked(true);
                     break;
+                case REPLAY:
+                    binding.rbGpsReplay.setChecked(true);
+                    break;
             }
             binding.etGPSInterval.setEnabled(true);
             binding.etGPSInterval.setFocusableInTouchMode(true);
@@ -138,6 +141,27 @@ public class ConfigureFragment extends Fragment {
         }
         binding.etDataConnectionInterval.setText(String.valueOf(testPref.getDataConnInterval()));
 
+        //init Run Mode
+        switch(testPref.getRunMode()) {
+            case NORMAL:
+                binding.rbRunNormal.setChecked(true);
+                break;
+            case MATRIX:
+                binding.rbRunMatrix.setChecked(true);
+                break;
+            case BUDGET:
+                binding.rbRunBudget.setChecked(true);
+                break;
+            case BASELINE:
+                binding.rbRunBaseline.setChecked(true);
+                break;
+        }
+        setBudgetEditable(testPref.getRunMode() == RunMode.BUDGET);
+        binding.etBudgetHours.setText(String.valueOf(testPref.getBudgetTargetHours()));
+        binding.etBudgetPriorities.setText(testPref.getGpsPriority() + "," + testPref.getSensorPriority()
+                + "," + testPref.getDataConnPriority());
+        binding.cbEarlyStop.setChecked(testPref.isEarlyStop());
+
         //Init new test here
     }
 
@@ -160,6 +184,12 @@ public class ConfigureFragment extends Fragment {
                         binding.etGPSInterval.setEnabled(true);
                         binding.etGPSInterval.setFocusableInTouchMode(true);
                         break;
+                    case R.id.rbGpsReplay:
+                        testPref.setGpsType(GPSType.REPLAY);
+                        testPref.setEnableGPS(true);
+                        binding.etGPSInterval.setEnabled(true);
+                        binding.etGPSInterval.setFocusableInTouchMode(true);
+                        break;
                     case R.id.rbGpsOff:
                         testPref.setEnableGPS(false);
                         binding.etGPSInterval.setEnabled(false);
@@ -237,6 +267,30 @@ public class ConfigureFragment extends Fragment {
             }
         });
 
+        //Run Mode radio buttons listener
+        binding.rgRunMode.setOnCheckedChangeListener(new RadioGroup.OnCheckedChangeListener() {
+            public void onCheckedChanged(RadioGroup group, int checkedId) {
+                switch(checkedId){
+                    case R.id.rbRunNormal:
+                        testPref.setRunMode(RunMode.NORMAL);
+                        setBudgetEditable(false);
+                        break;
+                    case R.id.rbRunMatrix:
+                        testPref.setRunMode(RunMode.MATRIX);
+                        setBudgetEditable(false);
+                        break;
+                    case R.id.rbRunBudget:
+                        testPref.setRunMode(RunMode.BUDGET);
+                        setBudgetEditable(true);
+                        break;
+                    case R.id.rbRunBaseline:
+                        testPref.setRunMode(RunMode.BASELINE);
+                        setBudgetEditable(false);
+                        break;
+                }
+            }
+        });
+
         //GPS interval edit text listener
         binding.etGPSInterval.addTextChangedListener(new TextWatcher() {
             @Override
@@ -285,6 +339,54 @@ public class ConfigureFragment extends Fragment {
             }
         });
 
+        //Energy budget target edit text listener
+        binding.etBudgetHours.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start,
+                                          int count, int after) {
+            }
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+                if (!s.toString().equals(""))
+                    testPref.setBudgetTargetHours(Integer.parseInt(s.toString()));
+            }
+            @Override
+            public void afterTextChanged(Editable s) {
+            }
+        });
+
+        //Energy budget priorities edit text listener, "GPS,Sensor,Data" e.g. "3,1,1"
+        binding.etBudgetPriorities.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start,
+                                          int count, int after) {
+            }
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+                String[] values = s.toString().split(",");
+                if (values.length != 3)
+                    return;
+                try {
+                    int gps = Integer.parseInt(values[0]);
+                    int sensor = Integer.parseInt(values[1]);
+                    int dataConn = Integer.parseInt(values[2]);
+                    if (gps > 0 && sensor > 0 && dataConn > 0) {
+                        testPref.setGpsPriority(gps);
+                        testPref.setSensorPriority(sensor);
+                        testPref.setDataConnPriority(dataConn);
+                    }
+                } catch (NumberFormatException e) {
+                    //incomplete entry, the previous priorities are kept
+                }
+            }
+            @Override
+            public void afterTextChanged(Editable s) {
+            }
+        });
+
+        //Early stop check box listener
+        binding.cbEarlyStop.setOnCheckedChangeListener((buttonView, isChecked) -> testPref.setEarlyStop(isChecked));
+
         //Start Test button click handler
         //The onClick listener will start the MainService
         binding.buttonStartTest.setOnClickListener(new View.OnClickListener() {
@@ -306,4 +408,12 @@ public class ConfigureFragment extends Fragment {
 
         //register new test listeners here
     }
+
+    //The energy budget settings can only be edited in BUDGET run mode
+    private void setBudgetEditable(boolean editable) {
+        binding.etBudgetHours.setEnabled(editable);
+        binding.etBudgetHours.setFocusableInTouchMode(editable);
+        binding.etBudgetPriorities.setEnabled(editable);
+        binding.etBudgetPriorities.setFocusableInTouchMode(editable);
+    }
 }
\ No newline at end of file
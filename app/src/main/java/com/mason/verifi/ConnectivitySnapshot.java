@@ -0,0 +1,150 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import java.util.Locale;
+
+// This class is the connectivity state at one time, as ConnectivityTracker last saw it
+// It holds the transport of the default network with its metered, validated and link bandwidth estimates,
+// and whether a Wi-Fi and a cellular network are up at all, default or not
+// It is immutable, so tests read the current state without a lock and a transition is a pair of snapshots
+// It has no Android dependency so it can be checked in JVM unit tests
+public final class ConnectivitySnapshot {
+    static final int NONE = 0;
+    static final int WIFI = 1;
+    static final int CELL = 2;
+    static final int OTHER = 3;
+
+    private static final String[] TRANSPORT_NAMES = {"none", "wifi", "cell", "other"};
+
+    static final ConnectivitySnapshot DISCONNECTED = new ConnectivitySnapshot(0, 0, NONE, false, false, 0, 0,
+            false, false);
+
+    private final long elapsedMs;
+    private final long wallMs;
+    private final int transport;
+    private final boolean metered;
+    private final boolean validated;
+    private final int downKbps;
+    private final int upKbps;
+    private final boolean wifiAvailable;
+    private final boolean cellAvailable;
+
+    ConnectivitySnapshot(long elapsedMs, long wallMs, int transport, boolean metered, boolean validated,
+                         int downKbps, int upKbps, boolean wifiAvailable, boolean cellAvailable) {
+        this.elapsedMs = elapsedMs;
+        this.wallMs = wallMs;
+        this.transport = transport;
+        this.metered = metered;
+        this.validated = validated;
+        this.downKbps = downKbps;
+        this.upKbps = upKbps;
+        this.wifiAvailable = wifiAvailable;
+        this.cellAvailable = cellAvailable;
+    }
+
+    //Snapshot with a new default network, NONE if it was lost
+    public ConnectivitySnapshot withDefault(long elapsedMs, long wallMs, int transport, boolean metered,
+                                            boolean validated, int downKbps, int upKbps) {
+        if (transport == NONE)
+            return new ConnectivitySnapshot(elapsedMs, wallMs, NONE, false, false, 0, 0, wifiAvailable, cellAvailable);
+        return new ConnectivitySnapshot(elapsedMs, wallMs, transport, metered, validated, downKbps, upKbps,
+                wifiAvailable, cellAvailable);
+    }
+
+    //Snapshot with new Wi-Fi and cellular availability
+    public ConnectivitySnapshot withAvailable(long elapsedMs, long wallMs, boolean wifiAvailable, boolean cellAvailable) {
+        return new ConnectivitySnapshot(elapsedMs, wallMs, transport, metered, validated, downKbps, upKbps,
+                wifiAvailable, cellAvailable);
+    }
+
+    //Same state at another time
+    public ConnectivitySnapshot withTime(long elapsedMs, long wallMs) {
+        return new ConnectivitySnapshot(elapsedMs, wallMs, transport, metered, validated, downKbps, upKbps,
+                wifiAvailable, cellAvailable);
+    }
+
+    //True if the state differs from other in more than the time and the bandwidth estimates, which change
+    //all the time and are not recorded as transitions
+    public boolean isTransitionFrom(ConnectivitySnapshot other) {
+        return transport != other.transport || metered != other.metered || validated != other.validated
+                || wifiAvailable != other.wifiAvailable || cellAvailable != other.cellAvailable;
+    }
+
+    //True if the default network uses the transport of type, which is where an upload goes
+    public boolean isConnected(DataConnType type) {
+        return transport == (type == DataConnType.CELL ? CELL : WIFI);
+    }
+
+    //True if a network of type is up, default or not
+    public boolean isAvailable(DataConnType type) {
+        return type == DataConnType.CELL ? cellAvailable : wifiAvailable;
+    }
+
+    public long getElapsedMs() {
+        return elapsedMs;
+    }
+
+    public long getWallMs() {
+        return wallMs;
+    }
+
+    public int getTransport() {
+        return transport;
+    }
+
+    public boolean isMetered() {
+        return metered;
+    }
+
+    public boolean isValidated() {
+        return validated;
+    }
+
+    public int getDownKbps() {
+        return downKbps;
+    }
+
+    public int getUpKbps() {
+        return upKbps;
+    }
+
+    public boolean isWifiAvailable() {
+        return wifiAvailable;
+    }
+
+    public boolean isCellAvailable() {
+        return cellAvailable;
+    }
+
+    static String transportName(int transport) {
+        return TRANSPORT_NAMES[transport];
+    }
+
+    //e.g. "wifi validated unmetered 50000/20000 kbps, cell up"
+    public String describe() {
+        StringBuilder sb = new StringBuilder(transportName(transport));
+        if (transport != NONE) {
+            sb.append(validated ? " validated" : " not validated");
+            sb.append(metered ? " metered" : " unmetered");
+            sb.append(String.format(Locale.US, " %d/%d kbps", downKbps, upKbps));
+        }
+        if (wifiAvailable && transport != WIFI)
+            sb.append(", wifi up");
+        if (cellAvailable && transport != CELL)
+            sb.append(", cell up");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,201 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+// This class tracks connectivity for the whole run from network callbacks, so a test reads a cached
+// ConnectivitySnapshot instead of asking ConnectivityManager on every wakeup
+// The default network callback gives the transport, metered, validated and bandwidth of the network uploads
+// go to, the Wi-Fi and cellular callbacks tell whether each transport is up even when it is not the default
+// Every transition is kept with its time and written to verifi_connectivity.csv at stop, so upload failures
+// can be matched to network changes. PowerStateTracker gets the default transport from here
+// It is instantiated by MainService
+public class ConnectivityTracker {
+    private static final String TAG = "verifi.ConnectivityTracker";
+    private static final String CONNECTIVITY_FILENAME = "verifi_connectivity.csv";
+    private static final int MAX_TRANSITIONS = 4096;
+
+    private final MainService parentService;
+    private final ConnectivityManager connectivityManager;
+
+    private volatile ConnectivitySnapshot snapshot = ConnectivitySnapshot.DISCONNECTED;
+    private final List<ConnectivitySnapshot> transitions = new ArrayList<>();
+    private final Set<Network> wifiNetworks = new HashSet<>();
+    private final Set<Network> cellNetworks = new HashSet<>();
+    private int droppedTransitions = 0;
+
+    private final MetricsRegistry.Counter transitionCounter = MetricsRegistry.getInstance().counter("net.transitions");
+    private static final int TRACE_TRANSITION = TraceRecorder.register("net.transition");
+
+    private final ConnectivityManager.NetworkCallback defaultCallback = new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onCapabilitiesChanged(@NonNull Network net, @NonNull NetworkCapabilities caps) {
+            int transport = ConnectivitySnapshot.OTHER;
+            if (caps.hasTransport(NetworkCapabilities.TRANSPORT_WIFI))
+                transport = ConnectivitySnapshot.WIFI;
+            else if (caps.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR))
+                transport = ConnectivitySnapshot.CELL;
+            setDefault(transport, !caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED),
+                    caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED),
+                    caps.getLinkDownstreamBandwidthKbps(), caps.getLinkUpstreamBandwidthKbps());
+        }
+
+        @Override
+        public void onLost(@NonNull Network net) {
+            setDefault(ConnectivitySnapshot.NONE, false, false, 0, 0);
+        }
+    };
+
+    private final ConnectivityManager.NetworkCallback wifiCallback = new TransportCallback(wifiNetworks);
+    private final ConnectivityManager.NetworkCallback cellCallback = new TransportCallback(cellNetworks);
+
+    private class TransportCallback extends ConnectivityManager.NetworkCallback {
+        private final Set<Network> networks;
+
+        TransportCallback(Set<Network> networks) {
+            this.networks = networks;
+        }
+
+        @Override
+        public void onAvailable(@NonNull Network net) {
+            synchronized (ConnectivityTracker.this) {
+                networks.add(net);
+                setAvailable();
+            }
+        }
+
+        @Override
+        public void onLost(@NonNull Network net) {
+            synchronized (ConnectivityTracker.this) {
+                networks.remove(net);
+                setAvailable();
+            }
+        }
+    }
+
+    public ConnectivityTracker(MainService pService) {
+        parentService = pService;
+        connectivityManager = (ConnectivityManager) pService.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    public void start() {
+        connectivityManager.registerDefaultNetworkCallback(defaultCallback);
+        connectivityManager.registerNetworkCallback(new NetworkRequest.Builder()
+                .addTransportType(NetworkCapabilities.TRANSPORT_WIFI)
+                .build(), wifiCallback);
+        connectivityManager.registerNetworkCallback(new NetworkRequest.Builder()
+                .addTransportType(NetworkCapabilities.TRANSPORT_CELLULAR)
+                .build(), cellCallback);
+    }
+
+    public void stop() {
+        connectivityManager.unregisterNetworkCallback(defaultCallback);
+        connectivityManager.unregisterNetworkCallback(wifiCallback);
+        connectivityManager.unregisterNetworkCallback(cellCallback);
+
+        int count;
+        synchronized (this) {
+            count = transitions.size() + droppedTransitions;
+        }
+        parentService.sendStatus("Connectivity: " + count + " transitions, now " + snapshot.describe());
+        writeTransitions();
+    }
+
+    //Current state, a field read
+    public ConnectivitySnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    //Last transition at or before elapsedMs, null if there is none
+    public synchronized ConnectivitySnapshot getTransitionAt(long elapsedMs) {
+        for (int i = transitions.size() - 1; i >= 0; i--) {
+            if (transitions.get(i).getElapsedMs() <= elapsedMs)
+                return transitions.get(i);
+        }
+        return null;
+    }
+
+    private synchronized void setDefault(int transport, boolean metered, boolean validated, int downKbps, int upKbps) {
+        update(snapshot.withDefault(SystemClock.elapsedRealtime(), System.currentTimeMillis(), transport, metered,
+                validated, downKbps, upKbps));
+    }
+
+    private synchronized void setAvailable() {
+        update(snapshot.withAvailable(SystemClock.elapsedRealtime(), System.currentTimeMillis(),
+                !wifiNetworks.isEmpty(), !cellNetworks.isEmpty()));
+    }
+
+    private synchronized void update(ConnectivitySnapshot next) {
+        ConnectivitySnapshot previous = snapshot;
+        if (!next.isTransitionFrom(previous)) {
+            //only the bandwidth estimates changed, the transition keeps its time
+            snapshot = next.withTime(previous.getElapsedMs(), previous.getWallMs());
+            return;
+        }
+
+        snapshot = next;
+        if (transitions.size() < MAX_TRANSITIONS)
+            transitions.add(next);
+        else
+            droppedTransitions++;
+        transitionCounter.increment();
+        TraceRecorder.instant(TRACE_TRANSITION);
+        Log.d(TAG, "Connectivity: " + next.describe());
+
+        if (next.getTransport() != previous.getTransport()) {
+            PowerStateTracker powerStateTracker = MainService.getPowerStateTracker();
+            if (powerStateTracker != null)
+                powerStateTracker.setNetwork(next.getTransport());
+
+            //connectivity is back, failed uploads can be retried
+            TestScheduler testScheduler = MainService.getTestScheduler();
+            if (previous.getTransport() == ConnectivitySnapshot.NONE && testScheduler != null)
+                testScheduler.retryDataConnTest();
+        }
+    }
+
+    private synchronized void writeTransitions() {
+        File file = new File(parentService.getExternalFilesDir(null), CONNECTIVITY_FILENAME);
+        try (Writer writer = new FileWriter(file)) {
+            writer.write("elapsed_ms,wall_ms,transport,metered,validated,down_kbps,up_kbps,wifi_up,cell_up\n");
+            for (ConnectivitySnapshot s : transitions) {
+                writer.write(String.format(Locale.US, "%d,%d,%s,%b,%b,%d,%d,%b,%b\n", s.getElapsedMs(), s.getWallMs(),
+                        ConnectivitySnapshot.transportName(s.getTransport()), s.isMetered(), s.isValidated(),
+                        s.getDownKbps(), s.getUpKbps(), s.isWifiAvailable(), s.isCellAvailable()));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write connectivity transitions", e);
+        }
+    }
+}
@@ -26,6 +26,9 @@ import android.util.Log;
 public class DataConnAlarm extends BroadcastReceiver {
     private static final String TAG = "verifi.DataConnAlarm";
     public static final String DATA_CONN_ALARM_ACTION = "data_conn_alarm_action";
+    private static final String EXTRA_ALARM_TIME = "alarm_time";
+    private static final int TRACE_ALARM = TraceRecorder.register("data.alarm");
+    private static final int TRACE_DELIVERY = TraceRecorder.register("data.alarm_delivery");
     private AlarmManager dataConnAlarmManager;
     private PendingIntent dataConnPendingIntent;
 
@@ -39,34 +42,52 @@ public class DataConnAlarm extends BroadcastReceiver {
 
     @Override
     public void onReceive(Context context, Intent intent) {
-        final String action = intent.getAction();
-        Log.d(TAG, "Data Connection Alarm is triggered at Current time: " + System.currentTimeMillis());
-
-        if (action.equals(DATA_CONN_ALARM_ACTION)) {
-            //need to start Data Conn Test on background thread
-            if (MainService.getTestScheduler() != null)
-                MainService.getTestScheduler().startDataConnTest();
-            else
-                Log.e(TAG, "Failed to start Data Connection Test. Null TestScheduler reference");
-
-            //set Alarm again for the next interval
-            startDataConnAlarm(context);
+        WakeupCpuProfiler.beginWakeup();
+        TraceRecorder.begin(TRACE_ALARM);
+        try {
+            final String action = intent.getAction();
+            Log.d(TAG, "Data Connection Alarm is triggered at Current time: " + System.currentTimeMillis());
+
+            if (action.equals(DATA_CONN_ALARM_ACTION)) {
+                PowerStateTracker powerStateTracker = MainService.getPowerStateTracker();
+                long alarmTime = intent.getLongExtra(EXTRA_ALARM_TIME, 0);
+                if (alarmTime > 0) {
+                    long delayMs = System.currentTimeMillis() - alarmTime;
+                    TraceRecorder.recordPast(TRACE_DELIVERY, Math.max(delayMs, 0) * 1000);
+                    if (powerStateTracker != null)
+                        powerStateTracker.addAlarmDelay(EnergyAttributor.DATA_CONN, delayMs);
+                }
+
+                //need to start Data Conn Test on background thread
+                if (MainService.getTestScheduler() != null)
+                    MainService.getTestScheduler().startDataConnTest();
+                else
+                    Log.e(TAG, "Failed to start Data Connection Test. Null TestScheduler reference");
+
+                //set Alarm again for the next interval
+                startDataConnAlarm(context);
+            }
+        } finally {
+            TraceRecorder.end(TRACE_ALARM);
+            WakeupCpuProfiler.endWakeup(EnergyAttributor.DATA_CONN, WakeupCpuProfiler.ALARM);
         }
     }
 
     public void startDataConnAlarm(Context context) {
-        Intent intent = new Intent(context, DataConnAlarm.class).setAction(DATA_CONN_ALARM_ACTION);
+        long currentTime = System.currentTimeMillis();
+        long futureTime =  TestPreference.getInstance().getDataConnInterval() * 1000L;
+
+        long alarmTime =  currentTime + futureTime;
+
+        //the requested time is passed along to measure the alarm delivery delay
+        Intent intent = new Intent(context, DataConnAlarm.class).setAction(DATA_CONN_ALARM_ACTION)
+                .putExtra(EXTRA_ALARM_TIME, alarmTime);
 
         dataConnPendingIntent = PendingIntent.getBroadcast(
                 context, 5128, intent, PendingIntent.FLAG_UPDATE_CURRENT);
 
         dataConnAlarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
 
-        long currentTime = System.currentTimeMillis();
-        long futureTime =  TestPreference.getInstance().getDataConnInterval() * 1000L;
-
-        long alarmTime =  currentTime + futureTime;
-
         dataConnAlarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, alarmTime, dataConnPendingIntent);
 
         Log.d(TAG, "Current time: " + currentTime + " set Data Connection Alarm to: " + alarmTime);
@@ -17,32 +17,41 @@ package com.mason.verifi;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.AssetFileDescriptor;
-import android.content.res.AssetManager;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
-import android.os.Environment;
-import android.os.PowerManager;
+import android.net.Network;
+import android.os.SystemClock;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
+
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileDescriptor;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.channels.FileChannel;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Locale;
 import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
 
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.MediaType;
 import okhttp3.MultipartBody;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 
 //This class starts data connection test either via Cellular or Wifi
+//The upload goes over the default network, or with networkBinding over a network of the chosen transport
+//held by NetworkBinder. The DUAL binding uploads over Wi-Fi and then cellular in the same wakeup
+//The throughput mode runs ThroughputRunner streams and the download mode a DownloadRunner over each
+//transport instead of the upload
 public class DataConnTest {
     private static final String TAG = "verifi.DataConnTest";
 
@@ -50,57 +59,189 @@ public class DataConnTest {
     private static final String URL_TEST_ADDRESS = "https://webhook.site/ce16c084-c276-4ab8-9843-a18dd79b0a31";
 
     private static final String DC_TEST_FILENAME = "verifi_dc_test.png";
+    private static final String SYNTHETIC_FILENAME = "verifi_payload.bin";
+    private static final String QUEUE_FILENAME = "verifi_upload_queue.bin";
+    private static final String RETRY_FILENAME = "verifi_retry_queue.bin";
+    private static final String RETRY_LOG_FILENAME = "verifi_retry_queue.log";
+    private static final String THROUGHPUT_FILENAME = "verifi_throughput.csv";
+    private static final String DOWNLOAD_FILENAME = "verifi_download.csv";
+    private static final long MAX_QUEUE_BYTES = 64 * 1024 * 1024L;
+
+    //uploads between two percentile status lines
+    private static final int PERCENTILE_INTERVAL = 10;
 
     private final Context mContext;
     private boolean isConnected = false;
-    private final DataConnType dataConnType;
+    private final TestPreference testPref;
+    private DataConnType dataConnType;
+    private int uploadCount = 0;
+    private PayloadQueue queue;
+    private UploadSession session;
+    private RetryQueue retryQueue;
+    private boolean running = false;
+
+    //throughput run or download in progress on its own thread, its client and the number of runs so far
+    private ThroughputRunner throughput;
+    private DownloadRunner download;
+    private OkHttpClient transferClient;
+    private int transferRuns = 0;
+
+    //delivered payloads, both modes
+    private int deliveredPayloads = 0;
+    private int deliverySessions = 0;
+    private long totalLatencyMs = 0;
+    private double totalMah = 0;
 
+    //radio sessions and charge per transport, compared in the DUAL binding
+    private final int[] transportSessions = new int[DataConnType.values().length];
+    private final double[] transportMah = new double[DataConnType.values().length];
+
+    private final MetricsRegistry.Counter passCounter = MetricsRegistry.getInstance().counter("data.upload_pass");
+    private final MetricsRegistry.Counter failCounter = MetricsRegistry.getInstance().counter("data.upload_fail");
+    private final MetricsRegistry.Counter errorCounter = MetricsRegistry.getInstance().counter("data.upload_error");
+    private final MetricsRegistry.Counter noNetworkCounter = MetricsRegistry.getInstance().counter("data.no_network");
+    private final MetricsRegistry.Histogram uploadHistogram = MetricsRegistry.getInstance().histogram("data.upload_ms");
+    private final MetricsRegistry.Counter newConnectionCounter = MetricsRegistry.getInstance().counter("data.connection_new");
+    private final MetricsRegistry.Counter reusedConnectionCounter = MetricsRegistry.getInstance().counter("data.connection_reused");
+    private final MetricsRegistry.Counter cancelCounter = MetricsRegistry.getInstance().counter("data.upload_cancelled");
+    private final MetricsRegistry.Counter busyCounter = MetricsRegistry.getInstance().counter("data.upload_busy");
+    private final MetricsRegistry.Counter droppedCounter = MetricsRegistry.getInstance().counter("data.payload_dropped");
+    private final MetricsRegistry.Histogram payloadLatencyHistogram = MetricsRegistry.getInstance().histogram("data.payload_latency_ms");
+    private final MetricsRegistry.Histogram payloadEnergyHistogram = MetricsRegistry.getInstance().histogram("data.payload_energy_uah");
+    private final MetricsRegistry.Counter retryQueuedCounter = MetricsRegistry.getInstance().counter("data.retry_queued");
+    private final MetricsRegistry.Counter retryDeliveredCounter = MetricsRegistry.getInstance().counter("data.retry_delivered");
+    private final MetricsRegistry.Histogram retryAttemptsHistogram = MetricsRegistry.getInstance().histogram("data.retry_attempts");
+    private final MetricsRegistry.Histogram deliveryDelayHistogram = MetricsRegistry.getInstance().histogram("data.delivery_delay_ms");
+    private final MetricsRegistry.Histogram deliveryEnergyHistogram = MetricsRegistry.getInstance().histogram("data.delivery_energy_uah");
+    private final MetricsRegistry.Histogram wifiEnergyHistogram = MetricsRegistry.getInstance().histogram("data.wifi.energy_uah");
+    private final MetricsRegistry.Histogram cellEnergyHistogram = MetricsRegistry.getInstance().histogram("data.cell.energy_uah");
+    private final MetricsRegistry.Counter throughputErrorCounter = MetricsRegistry.getInstance().counter("data.throughput_errors");
+    private final MetricsRegistry.Histogram wifiGoodputHistogram = MetricsRegistry.getInstance().histogram("data.wifi.goodput_kbps");
+    private final MetricsRegistry.Histogram cellGoodputHistogram = MetricsRegistry.getInstance().histogram("data.cell.goodput_kbps");
+    private final MetricsRegistry.Histogram wifiEnergyPerMbHistogram = MetricsRegistry.getInstance().histogram("data.wifi.energy_per_mb_uah");
+    private final MetricsRegistry.Histogram cellEnergyPerMbHistogram = MetricsRegistry.getInstance().histogram("data.cell.energy_per_mb_uah");
+    private final MetricsRegistry.Counter downloadFailCounter = MetricsRegistry.getInstance().counter("data.download_fail");
+    private final MetricsRegistry.Counter downloadResumeCounter = MetricsRegistry.getInstance().counter("data.download_resumes");
+    private final MetricsRegistry.Histogram wifiFirstByteHistogram = MetricsRegistry.getInstance().histogram("data.wifi.download_first_byte_ms");
+    private final MetricsRegistry.Histogram cellFirstByteHistogram = MetricsRegistry.getInstance().histogram("data.cell.download_first_byte_ms");
+    private final MetricsRegistry.Histogram wifiDownloadHistogram = MetricsRegistry.getInstance().histogram("data.wifi.download_kbps");
+    private final MetricsRegistry.Histogram cellDownloadHistogram = MetricsRegistry.getInstance().histogram("data.cell.download_kbps");
+    private final MetricsRegistry.Histogram wifiDownloadEnergyHistogram = MetricsRegistry.getInstance().histogram("data.wifi.download_energy_per_mb_uah");
+    private final MetricsRegistry.Histogram cellDownloadEnergyHistogram = MetricsRegistry.getInstance().histogram("data.cell.download_energy_per_mb_uah");
+
+    private static final int TRACE_START = TraceRecorder.register("data.start");
+    private static final int TRACE_CONNECTIVITY = TraceRecorder.register("data.connectivity_check");
+    private static final int TRACE_BUILD = TraceRecorder.register("data.build_request");
+    private static final int TRACE_UPLOAD = TraceRecorder.register("data.upload");
+    private static final int TRACE_THROUGHPUT = TraceRecorder.register("data.throughput");
+    private static final int TRACE_DOWNLOAD = TraceRecorder.register("data.download");
 
     public DataConnTest(Context context) {
-        TestPreference testPref = TestPreference.getInstance();
+        testPref = TestPreference.getInstance();
         mContext = context;
         dataConnType = testPref.getDataConnType();
+    }
 
-        File sdcard = Environment.getExternalStorageDirectory();
-        File file = new File(sdcard, DC_TEST_FILENAME);
+    public void startDataConnTest() {
+        running = true;
+        TraceRecorder.begin(TRACE_START);
+        try {
+            runDataConnTest();
+        } finally {
+            TraceRecorder.end(TRACE_START);
+        }
+    }
 
-        //check if test file is in /sdcard
-        //if not then copy it from APK's /assets to /sdcard
-        if (!file.exists()) {
-            AssetManager assetMgr = null;
-            AssetFileDescriptor assetFd;
+    private void runDataConnTest() {
+        isConnected = false;
+        dataConnType = testPref.getDataConnType();
 
-            try {
-                assetMgr = mContext.getAssets();
-                assetFd = assetMgr.openFd(DC_TEST_FILENAME);
+        //harness baseline: keep the alarm and status path but do not use the network
+        if (testPref.getRunMode() == RunMode.BASELINE) {
+            Date df = new Date();
+            String ts = new SimpleDateFormat("MM-dd HH:mm:ss", Locale.US).format(df);
+            sendStatus(ts + " - Data connection baseline (no-op) test");
+            return;
+        }
 
-                // Create new file to copy into.
-                if (file.createNewFile() && assetFd != null) {
-                    copyFileDescriptorToFile(assetFd.getFileDescriptor(), assetFd.getStartOffset(), assetFd.getLength(), file);
-                    sendStatus("Copied Data Connection test file to sdcard folder");
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-                sendStatus("Got IOException. Failed to copy from assets to sdcard folder");
-            }
+        //batched mode: queue the payload and only go on the network when the batch is due
+        //the DUAL binding, the throughput and the download mode compare transports, they are not batched
+        boolean dual = testPref.getNetworkBinding() == NetworkBinding.DUAL;
+        boolean throughputMode = testPref.getThroughputStreams() > 0;
+        boolean downloadMode = !throughputMode && testPref.getDownloadSize() > 0;
+        boolean batched = !dual && !throughputMode && !downloadMode && testPref.getUploadBatchSize() > 1;
+        if (batched && !queuePayload())
+            return;
+
+        //a slow upload can outlast the test interval, there is one radio session at a time
+        //in batched mode the payload stays queued behind the batch in flight and goes with the next one
+        if (isBusy()) {
+            busyCounter.increment();
+            sendStatus("Previous upload still in progress, upload skipped");
+            return;
         }
 
-    }
+        //one transport after the other, so each radio session has its own energy
+        if (dual || throughputMode || downloadMode) {
+            TraceRecorder.begin(TRACE_CONNECTIVITY);
+            boolean first = hasConnection(dual ? DataConnType.WIFI : dataConnType);
+            boolean second = dual && hasConnection(DataConnType.CELL);
+            TraceRecorder.end(TRACE_CONNECTIVITY);
 
-    public void startDataConnTest() {
-        isConnected = false;
+            isConnected = first || second;
+            if (!isConnected) {
+                noNetworkCounter.increment();
+                return;
+            }
+            DataConnType type = first ? (dual ? DataConnType.WIFI : dataConnType) : DataConnType.CELL;
+            DataConnType next = first && second ? DataConnType.CELL : null;
+            if (throughputMode)
+                startThroughput(type, next);
+            else if (downloadMode)
+                startDownload(type, next);
+            else
+                UploadFileToServer(type, next);
+            return;
+        }
 
-        //check if Wifi or Cellular Connectivity is enabled
-        if (dataConnType == DataConnType.CELL) {
-            if (hasCellularConnection())
-                isConnected = true;
+        isConnected = checkConnectivity();
+        if (isConnected) {
+            if (batched)
+                sendBatch();
+            else
+                UploadFileToServer(dataConnType, null);
         } else {
-            if (hasWifiConnection())
-                isConnected = true;
+            noNetworkCounter.increment();
+            //delivery guarantee: the payload of this wakeup is kept until the network is back
+            if (!batched && isRetryEnabled())
+                queueRetry(null, System.currentTimeMillis(), 0);
         }
+    }
 
-        if (isConnected) {
-            UploadFileToServer();
+    private boolean isBusy() {
+        return session != null || throughput != null || download != null;
+    }
+
+    //the DUAL binding compares transports, its failed uploads are not retried
+    private boolean isRetryEnabled() {
+        return testPref.isDeliveryGuarantee() && testPref.getNetworkBinding() != NetworkBinding.DUAL;
+    }
+
+    //Network held by NetworkBinder for the transport, null for the default network
+    private Network boundNetwork(DataConnType type) {
+        NetworkBinder networkBinder = MainService.getNetworkBinder();
+        if (testPref.getNetworkBinding() == NetworkBinding.DEFAULT || networkBinder == null)
+            return null;
+        return networkBinder.getNetwork(type);
+    }
+
+    //check if Wifi or Cellular Connectivity is enabled
+    private boolean checkConnectivity() {
+        TraceRecorder.begin(TRACE_CONNECTIVITY);
+        try {
+            return hasConnection(dataConnType);
+        } finally {
+            TraceRecorder.end(TRACE_CONNECTIVITY);
         }
     }
 
@@ -108,124 +249,781 @@ public class DataConnTest {
         if (isConnected) {
             isConnected = false;
         }
+        running = false;
+
+        //abort the uploads in flight, their completion events are ignored
+        if (session != null) {
+            UploadSession s = session;
+            for (Call call : s.calls)
+                call.cancel();
+            s.calls.clear();
+            finishSession(s);
+        }
+        if (throughput != null) {
+            throughput.cancel();
+            finishTransfer(TRACE_THROUGHPUT);
+        }
+        if (download != null) {
+            download.cancel();
+            finishTransfer(TRACE_DOWNLOAD);
+        }
+        sendPercentiles();
+
+        if (testPref.getNetworkBinding() == NetworkBinding.DUAL && deliverySessions > 0) {
+            StringBuilder sb = new StringBuilder("Energy per upload:");
+            for (DataConnType type : DataConnType.values()) {
+                int n = transportSessions[type.ordinal()];
+                if (n > 0)
+                    sb.append(String.format(Locale.US, " %s %.4f mAh (%d uploads)", type, transportMah[type.ordinal()] / n, n));
+            }
+            sendStatus(sb.toString());
+        }
+
+        if (deliveredPayloads > 0)
+            sendStatus(String.format(Locale.US,
+                    "Upload payloads: %d delivered in %d radio sessions (batch size %d), avg latency %.1f s, %.4f mAh per payload",
+                    deliveredPayloads, deliverySessions, testPref.getUploadBatchSize(),
+                    totalLatencyMs / 1000.0 / deliveredPayloads, totalMah / deliveredPayloads));
+
+        //queued payloads stay on disk for the next run
+        if (queue != null) {
+            queue.close();
+            queue = null;
+        }
+        if (retryQueue != null) {
+            if (retryQueue.size() > 0)
+                sendStatus("Retry queue: " + retryQueue.size() + " payloads not delivered yet");
+            retryQueue.close();
+            retryQueue = null;
+        }
     }
 
-    private void copyFileDescriptorToFile(FileDescriptor src, long start, long length, File dst) throws IOException {
-        FileChannel srcChannel = new FileInputStream(src).getChannel();
-        FileChannel dstChannel = new FileOutputStream(dst).getChannel();
+    //Send the failed uploads that are due. Called after a successful upload, and by TestScheduler when
+    //connectivity is back, which makes every payload due
+    public void retryUploads(boolean connectivityRegained) {
+        if (!running || !isRetryEnabled() || isBusy())
+            return;
+        RetryQueue retries = openRetryQueue();
+        if (retries == null || retries.size() == 0)
+            return;
+
+        long now = System.currentTimeMillis();
+        if (connectivityRegained) {
+            retries.resetBackoff(now);
+            dataConnType = testPref.getDataConnType();
+            if (!checkConnectivity())
+                return;
+        }
+
+        int due = 0;
+        int[] index = new int[retries.size()];
+        for (int i = 0; i < retries.size(); i++) {
+            if (retries.isDue(i, now))
+                index[due++] = i;
+        }
+        UploadClient uploadClient = MainService.getUploadClient();
+        if (due == 0 || uploadClient == null)
+            return;
+
+        sendStatus("Retrying " + due + " of " + retries.size() + " undelivered payloads");
+        send(startSession(uploadClient, null, Arrays.copyOf(index, due), dataConnType, null), 0);
+    }
+
+    private RetryQueue openRetryQueue() {
+        if (retryQueue == null) {
+            File dir = mContext.getExternalFilesDir(null);
+            try {
+                retryQueue = new RetryQueue(new File(dir, RETRY_FILENAME), new File(dir, RETRY_LOG_FILENAME),
+                        testPref.getUploadQueueSize(), MAX_QUEUE_BYTES, testPref.getRetryBaseDelay() * 1000L,
+                        testPref.getRetryMaxDelay() * 1000L, new Random());
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to open retry queue", e);
+            }
+        }
+        return retryQueue;
+    }
+
+    //Keep a payload whose first attempt failed. A null payload is a new one that could not be sent
+    private void queueRetry(Payload payload, long firstAttemptMs, double mah) {
+        RetryQueue retries = openRetryQueue();
+        if (retries == null)
+            return;
+
         try {
-            srcChannel.transferTo(start, length, dstChannel);
+            boolean queued;
+            if (payload != null) {
+                queued = retries.add(firstAttemptMs, payload.body, mah);
+            } else {
+                try (Payload p = openPayload()) {
+                    queued = retries.add(firstAttemptMs, p.body, mah);
+                }
+            }
+            if (queued) {
+                retryQueuedCounter.increment();
+                sendStatus("Upload kept for retry, " + retries.size() + " payloads waiting");
+            } else {
+                droppedCounter.increment();
+                sendStatus("Retry queue is full, payload dropped");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to queue payload for retry", e);
+            sendStatus("Got IOException. Failed to queue payload for retry");
+        }
+    }
+
+    //p50/p95/p99 of the upload phases so far, one line per network type that had uploads
+    private void sendPercentiles() {
+        for (DataConnType type : DataConnType.values()) {
+            String percentiles = UploadEventListener.formatPercentiles(type);
+            if (percentiles != null)
+                sendStatus(percentiles);
+        }
+    }
+
+    //This function establish HTTP connection and send request to upload a file over type
+    //The upload runs on the OkHttp threads, its end is handled on this thread by onUploadDone
+    //In the DUAL binding the upload over next starts when this one is done
+    private void UploadFileToServer(DataConnType type, DataConnType next) {
+        UploadClient uploadClient = MainService.getUploadClient();
+        if (uploadClient == null) {
+            sendStatus("File upload failed. Test is not running");
+            return;
+        }
+
+        //build post request using the shared client, or a cold one for a new connection
+        TraceRecorder.begin(TRACE_BUILD);
+        Payload payload;
+        try {
+            payload = openPayload();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open test file asset", e);
+            sendStatus("File upload failed. Cannot open test file in APK assets");
+            return;
         } finally {
-            if (srcChannel != null)
-                srcChannel.close();
-            if (dstChannel != null)
-                dstChannel.close();
+            TraceRecorder.end(TRACE_BUILD);
         }
+
+        send(startSession(uploadClient, payload, null, type, next), 0);
     }
 
-    //This function establish HTTP connection and send request to upload a file
-    private void UploadFileToServer() {
-        PowerManager.WakeLock wakeLock;
+    //Start a throughput run over type on its own thread, it ends in onThroughputDone
+    //In the DUAL binding the run over next starts when this one is done
+    private void startThroughput(DataConnType type, DataConnType next) {
+        UploadClient uploadClient = MainService.getUploadClient();
+        if (uploadClient == null) {
+            sendStatus("Throughput test failed. Test is not running");
+            return;
+        }
 
-        PowerManager powerManager = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
-        wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,"Verifi::MyTag");
+        String url = testPref.getThroughputUrl().isEmpty() ? URL_TEST_ADDRESS : testPref.getThroughputUrl();
+        OkHttpClient client = uploadClient.get(testPref.getConnectionMode(), boundNetwork(type));
+        ThroughputRunner runner;
+        try {
+            runner = new ThroughputRunner(client, url, testPref.getThroughputDirection(),
+                    testPref.getThroughputStreams(), testPref.getThroughputDuration() * 1000L,
+                    testPref.getThroughputBytes() * 1000000L);
+        } catch (IllegalArgumentException e) {
+            uploadClient.release(client);
+            sendStatus("Throughput test failed. " + e.getMessage());
+            return;
+        }
+
+        beginSession(type);
+        throughput = runner;
+        transferClient = client;
+        TraceRecorder.beginAsync(TRACE_THROUGHPUT, ++transferRuns);
+        new Thread(() -> {
+            ThroughputRunner.Result result = null;
+            try {
+                result = runner.run();
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Throughput run interrupted", e);
+            }
+            postThroughputDone(runner, result, type, next);
+        }, "verifi-throughput").start();
+    }
 
-        //stay awake for at most 5 min
-        wakeLock.acquire(5*60*1000L /*5 minutes*/);
+    private void postThroughputDone(ThroughputRunner runner, ThroughputRunner.Result result, DataConnType type,
+                                    DataConnType next) {
+        TestScheduler testScheduler = MainService.getTestScheduler();
+        if (testScheduler != null)
+            testScheduler.postRunnable(() -> onThroughputDone(runner, result, type, next));
+    }
+
+    private void onThroughputDone(ThroughputRunner runner, ThroughputRunner.Result result, DataConnType type,
+                                  DataConnType next) {
+        //the run was ended by stopDataConnTest
+        if (throughput != runner)
+            return;
 
-        File sdcard = Environment.getExternalStorageDirectory();
-        File file = new File(sdcard, DC_TEST_FILENAME);
+        double mah = finishTransfer(TRACE_THROUGHPUT);
+        if (result != null)
+            reportThroughput(result, type, mah);
+        if (next != null && running)
+            startThroughput(next, null);
+    }
 
-        //check if test file is in /sdcard
-        //if not then copy it from APK's /assets to /sdcard
-        if (file.exists()) {
-            //build post request using OkHttpClient
-            OkHttpClient client = new OkHttpClient();
+    //End the radio session of the throughput run or download, returns its charge in mAh
+    private double finishTransfer(int trace) {
+        UploadClient uploadClient = MainService.getUploadClient();
+        if (uploadClient != null)
+            uploadClient.release(transferClient);
+        throughput = null;
+        download = null;
+        transferClient = null;
+        TraceRecorder.endAsync(trace, transferRuns);
+        return endSession();
+    }
 
-            RequestBody requestBody = new MultipartBody.Builder()
-                    .addFormDataPart("new", "This is a test image")
-                    .addFormDataPart("image", DC_TEST_FILENAME,
-                            RequestBody.create(file, MediaType.parse("image/png")))
-                    .setType(MultipartBody.FORM)
-                    .build();
+    //Start a download over type on its own thread, it ends in onDownloadDone
+    //In the DUAL binding the download over next starts when this one is done
+    private void startDownload(DataConnType type, DataConnType next) {
+        UploadClient uploadClient = MainService.getUploadClient();
+        if (uploadClient == null) {
+            sendStatus("Download failed. Test is not running");
+            return;
+        }
 
-            Request postRequest = new Request.Builder()
-                    .url(URL_TEST_ADDRESS)
-                    .post(requestBody)
-                    .build();
+        String url = testPref.getDownloadUrl().replace("{size}", String.valueOf(testPref.getDownloadSize() * 1024L));
+        OkHttpClient client = uploadClient.get(testPref.getConnectionMode(), boundNetwork(type));
+        DownloadRunner runner = new DownloadRunner(client, url, testPref.isDownloadChecksum(), testPref.getDownloadResumes());
 
-            //send Post request
-            try {
-                Log.d(TAG, "Post HTTPS Request");
-                Response response = client.newCall(postRequest).execute();
+        beginSession(type);
+        download = runner;
+        transferClient = client;
+        TraceRecorder.beginAsync(TRACE_DOWNLOAD, ++transferRuns);
+        new Thread(() -> {
+            DownloadRunner.Result result = runner.run();
+            TestScheduler testScheduler = MainService.getTestScheduler();
+            if (testScheduler != null)
+                testScheduler.postRunnable(() -> onDownloadDone(runner, result, type, next));
+        }, "verifi-download").start();
+    }
+
+    private void onDownloadDone(DownloadRunner runner, DownloadRunner.Result result, DataConnType type,
+                                DataConnType next) {
+        //the download was ended by stopDataConnTest
+        if (download != runner)
+            return;
+
+        double mah = finishTransfer(TRACE_DOWNLOAD);
+        reportDownload(result, type, mah);
+        if (next != null && running)
+            startDownload(next, null);
+    }
+
+    private void reportDownload(DownloadRunner.Result result, DataConnType type, double mah) {
+        Date df = new Date();
+        String ts = new SimpleDateFormat("MM-dd HH:mm:ss", Locale.US).format(df);
+        sendStatus(ts + " - Download " + type + ": " + result.format());
+        sendStatus("Goodput per second (Mbps): " + result.formatSamples());
+        downloadResumeCounter.add(result.getResumes());
+        if (!result.isComplete())
+            downloadFailCounter.increment();
 
-                Log.d(TAG, "HTTPS Response: " + Objects.requireNonNull(response.body()));
+        boolean cell = type == DataConnType.CELL;
+        if (result.getFirstByteMs() >= 0)
+            (cell ? cellFirstByteHistogram : wifiFirstByteHistogram).record(result.getFirstByteMs());
+        for (int i = 0; i < result.getSampleCount(); i++)
+            (cell ? cellDownloadHistogram : wifiDownloadHistogram).record(Math.round(result.getSampleKbps(i)));
 
-                Date df = new Date();
-                String ts = new SimpleDateFormat("MM-dd HH:mm:ss", Locale.US).format(df);
+        //the energy of the bytes of restarted attempts is part of the cost of the object
+        double mb = result.getBytes() / 1e6;
+        if (result.isComplete() && !Double.isNaN(mah) && mb > 0) {
+            (cell ? cellDownloadEnergyHistogram : wifiDownloadEnergyHistogram).record(Math.round(mah * 1000 / mb));
+            sendStatus(String.format(Locale.US, "Download energy %.4f mAh, %.4f mAh per MB", mah, mah / mb));
+        }
+        writeDownload(result, type);
+    }
+
+    //Bytes of every second of the download, appended to verifi_download.csv
+    private void writeDownload(DownloadRunner.Result result, DataConnType type) {
+        File file = new File(mContext.getExternalFilesDir(null), DOWNLOAD_FILENAME);
+        boolean header = !file.exists();
+        long runWallMs = System.currentTimeMillis() - result.getElapsedMs();
+        try (Writer writer = new FileWriter(file, true)) {
+            if (header)
+                writer.write("run_wall_ms,transport,first_byte_ms,complete,sample,sample_ms,bytes\n");
+            for (int i = 0; i < result.getSampleCount(); i++) {
+                writer.write(String.format(Locale.US, "%d,%s,%d,%b,%d,%d,%d\n", runWallMs, type,
+                        result.getFirstByteMs(), result.isComplete(), i, result.getSampleMs(i), result.getSampleBytes(i)));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write download samples", e);
+        }
+    }
 
-                if (response.isSuccessful()) {
-                    sendStatus(ts + " - HTTPS file upload test pass");
+    private void reportThroughput(ThroughputRunner.Result result, DataConnType type, double mah) {
+        Date df = new Date();
+        String ts = new SimpleDateFormat("MM-dd HH:mm:ss", Locale.US).format(df);
+        sendStatus(ts + " - Throughput " + type + " " + testPref.getThroughputDirection() + ": " + result.format());
+        sendStatus("Goodput per second (Mbps): " + result.formatSamples());
+        throughputErrorCounter.add(result.getErrors());
+
+        //the samples while the streams drain after the end of the run are left out
+        MetricsRegistry.Histogram goodput = type == DataConnType.CELL ? cellGoodputHistogram : wifiGoodputHistogram;
+        long sampleEndMs = 0;
+        for (int i = 0; i < result.getSampleCount(); i++) {
+            sampleEndMs += result.getSampleMs(i);
+            if (sampleEndMs <= result.getActiveMs())
+                goodput.record(Math.round(result.getSampleKbps(i)));
+        }
+
+        double mb = result.getTotalBytes() / 1e6;
+        if (!Double.isNaN(mah) && mb > 0) {
+            (type == DataConnType.CELL ? cellEnergyPerMbHistogram : wifiEnergyPerMbHistogram).record(Math.round(mah * 1000 / mb));
+            sendStatus(String.format(Locale.US, "Throughput energy %.4f mAh, %.4f mAh per MB", mah, mah / mb));
+        }
+        writeThroughput(result, type);
+    }
+
+    //Bytes of every stream and second, appended to verifi_throughput.csv
+    private void writeThroughput(ThroughputRunner.Result result, DataConnType type) {
+        File file = new File(mContext.getExternalFilesDir(null), THROUGHPUT_FILENAME);
+        boolean header = !file.exists();
+        long runWallMs = System.currentTimeMillis() - result.getActiveMs();
+        try (Writer writer = new FileWriter(file, true)) {
+            if (header)
+                writer.write("run_wall_ms,transport,direction,sample,sample_ms,stream,bytes\n");
+            for (int i = 0; i < result.getSampleCount(); i++) {
+                for (int j = 0; j < result.getStreams(); j++) {
+                    writer.write(String.format(Locale.US, "%d,%s,%s,%d,%d,%d,%d\n", runWallMs, type,
+                            testPref.getThroughputDirection(), i, result.getSampleMs(i), j, result.getSampleBytes(i, j)));
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write throughput samples", e);
+        }
+    }
+
+    //Add the payload of this wakeup to the batch queue. Returns true if the batch is due
+    private boolean queuePayload() {
+        try {
+            if (queue == null)
+                queue = new PayloadQueue(new File(mContext.getExternalFilesDir(null), QUEUE_FILENAME),
+                        testPref.getUploadQueueSize(), MAX_QUEUE_BYTES);
+
+            try (Payload payload = openPayload()) {
+                if (!queue.add(System.currentTimeMillis(), payload.body)) {
+                    droppedCounter.increment();
+                    sendStatus("Upload queue is full, payload dropped");
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to queue payload", e);
+            sendStatus("Got IOException. Failed to queue payload");
+            return false;
+        }
+
+        //the age is checked on data connection wakeups only, the batch goes out on the first one after it
+        long ageMs = queue.size() > 0 ? System.currentTimeMillis() - queue.getOldestWallMs() : 0;
+        boolean due = queue.size() >= testPref.getUploadBatchSize()
+                || (queue.size() > 0 && ageMs >= testPref.getUploadBatchMaxAge() * 1000L);
+        if (!due) {
+            Date df = new Date();
+            String ts = new SimpleDateFormat("MM-dd HH:mm:ss", Locale.US).format(df);
+            sendStatus(String.format(Locale.US, "%s - Queued payload %d/%d, oldest %.0f s", ts, queue.size(),
+                    testPref.getUploadBatchSize(), ageMs / 1000.0));
+        }
+        return due;
+    }
+
+    //Send the queued payloads in one radio session over one connection
+    //The first upload opens the connection. On HTTP/2 the others are then sent at the same time as streams
+    //of that connection, on HTTP/1.1 one after the other over the kept-alive connection
+    private void sendBatch() {
+        UploadClient uploadClient = MainService.getUploadClient();
+        if (uploadClient == null) {
+            sendStatus("File upload failed. Test is not running");
+            return;
+        }
+
+        send(startSession(uploadClient, null, null, dataConnType, null), 0);
+    }
+
+    //One payload, the retries at retryIndex or else the batch queue, over type
+    private UploadSession startSession(UploadClient uploadClient, Payload payload, int[] retryIndex,
+                                       DataConnType type, DataConnType next) {
+        beginSession(type);
+        ConnectionMode connectionMode = testPref.getConnectionMode();
+        int payloads = payload != null ? 1 : retryIndex != null ? retryIndex.length : queue.size();
+        OkHttpClient client = uploadClient.get(connectionMode, boundNetwork(type));
+        session = new UploadSession(uploadClient, client, connectionMode, type, next, payload, retryIndex, payloads);
+        TraceRecorder.beginAsync(TRACE_UPLOAD, session.id);
+        return session;
+    }
+
+    //Start the upload of payload i of the session, it ends in onUploadDone
+    private void send(UploadSession s, int i) {
+        s.started++;
+        RequestBody body;
+        String filename;
+        try {
+            if (s.payload != null) {
+                body = s.payload.body;
+                filename = s.payload.filename;
+            } else if (s.retryIndex != null) {
+                body = retryQueue.getBody(s.retryIndex[i], MediaType.parse("application/octet-stream"));
+                filename = SYNTHETIC_FILENAME;
+            } else {
+                body = queue.getBody(i, MediaType.parse("application/octet-stream"));
+                filename = SYNTHETIC_FILENAME;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read queued payload", e);
+            sendStatus("Got IOException. Failed to read queued payload");
+            if (s.calls.isEmpty())
+                finishSession(s);
+            return;
+        }
+
+        UploadEventListener listener = new UploadEventListener(s.type);
+        Call call = s.client.newCall(buildRequest(filename, body, listener));
+        s.calls.add(call);
+
+        Log.d(TAG, "Post HTTPS Request");
+        call.enqueue(new Callback() {
+            @Override
+            public void onResponse(@NonNull Call call, @NonNull Response response) {
+                boolean success = onUploadResponse(response, listener, s.connectionMode);
+                postUploadDone(s, call, i, success, listener);
+            }
+
+            @Override
+            public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                if (call.isCanceled()) {
+                    cancelCounter.increment();
+                    sendStatus("Upload cancelled");
                 } else {
-                    sendStatus(ts + " - HTTPS file upload test fail");
+                    onUploadError(e, s.startWallMs);
                 }
+                postUploadDone(s, call, i, false, listener);
+            }
+        });
+    }
+
+    //Completion event of a call, handled on the TestScheduler thread like the rest of the test
+    private void postUploadDone(UploadSession s, Call call, int i, boolean success, UploadEventListener listener) {
+        TestScheduler testScheduler = MainService.getTestScheduler();
+        if (testScheduler != null)
+            testScheduler.postRunnable(() -> onUploadDone(s, call, i, success, listener));
+    }
+
+    private void onUploadDone(UploadSession s, Call call, int i, boolean success, UploadEventListener listener) {
+        //the session was ended by stopDataConnTest
+        if (!s.calls.remove(call))
+            return;
+        s.sent[i] = success;
+
+        //no connection, the rest stays queued for the next wakeup
+        boolean connected = listener.getProtocol() != null;
+        if (i == 0 && listener.getProtocol() == Protocol.HTTP_2) {
+            while (s.started < s.sent.length)
+                send(s, s.started);
+        } else if (connected && s.started < s.sent.length) {
+            send(s, s.started);
+        }
+
+        if (s.calls.isEmpty()) {
+            finishSession(s);
+            if (s.next != null && running)
+                UploadFileToServer(s.next, null);
+            //the network works, a good time for the failed uploads
+            else if (s.retryIndex == null && s.delivered > 0)
+                retryUploads(false);
+        }
+    }
+
+    //End the radio session and record what was delivered
+    private void finishSession(UploadSession s) {
+        if (s.finished)
+            return;
+        s.finished = true;
+        s.uploadClient.release(s.client);
+        double mah = endSession();
+        if (!Double.isNaN(mah)) {
+            transportSessions[s.type.ordinal()]++;
+            transportMah[s.type.ordinal()] += mah;
+            (s.type == DataConnType.CELL ? cellEnergyHistogram : wifiEnergyHistogram).record(Math.round(mah * 1000));
+        }
+        if (s.payload != null) {
+            if (!s.sent[0] && isRetryEnabled())
+                queueRetry(s.payload, s.startWallMs, mah);
+            s.payload.close();
+        }
+        TraceRecorder.endAsync(TRACE_UPLOAD, s.id);
+        if (session == s)
+            session = null;
+
+        long now = System.currentTimeMillis();
+        int delivered = 0;
+        long latencyMs = 0;
+        for (int i = 0; i < s.sent.length; i++) {
+            if (s.sent[i]) {
+                delivered++;
+                //a single upload is queued when it starts, a retried one at its first attempt
+                if (s.payload != null)
+                    latencyMs += now - s.startWallMs;
+                else if (s.retryIndex != null)
+                    latencyMs += now - retryQueue.getFirstAttemptMs(s.retryIndex[i]);
+                else
+                    latencyMs += now - queue.getWallMs(i);
+            }
+        }
+        s.delivered = delivered;
+
+        if (s.retryIndex != null)
+            finishRetries(s, now, mah);
 
-                response.close();
+        if (s.payload == null && s.retryIndex == null) {
+            try {
+                queue.remove(s.sent);
             } catch (IOException e) {
-                e.printStackTrace();
-                sendStatus("Got IOException. Cannot find test file in sdcard folder");
-            } catch (IllegalStateException e) {
-                e.printStackTrace();
-                sendStatus("Got IllegalStateException");
+                //the sent payloads go out again with the next batch
+                Log.e(TAG, "Failed to remove sent payloads from queue", e);
             }
+            sendStatus(String.format(Locale.US, "Batch sent %d of %d payloads, %.4f mAh per payload", delivered,
+                    s.sent.length, delivered > 0 && !Double.isNaN(mah) ? mah / delivered : Double.NaN));
+        }
+
+        if (delivered > 0)
+            addDelivered(delivered, latencyMs / delivered, mah);
+        countUploads(s.started);
+    }
+
+    //Record the attempts of a retry session, the charge of the session is split between its uploads
+    private void finishRetries(UploadSession s, long now, double mah) {
+        double share = s.started > 0 && !Double.isNaN(mah) ? mah / s.started : 0;
+        try {
+            //from the end, a delivery moves the later payloads down
+            for (int i = s.started - 1; i >= 0; i--) {
+                int index = s.retryIndex[i];
+                if (!s.sent[i]) {
+                    retryQueue.recordFailure(index, now, share);
+                    continue;
+                }
+
+                int attempts = retryQueue.getAttempts(index) + 1;
+                long delayMs = now - retryQueue.getFirstAttemptMs(index);
+                double totalMah = retryQueue.getMah(index) + share;
+                retryQueue.recordDelivery(index, share);
+
+                retryDeliveredCounter.increment();
+                retryAttemptsHistogram.record(attempts);
+                deliveryDelayHistogram.record(delayMs);
+                deliveryEnergyHistogram.record(Math.round(totalMah * 1000));
+                sendStatus(String.format(Locale.US, "Delivered payload after %d attempts, %.1f s late, %.4f mAh in total",
+                        attempts, delayMs / 1000.0, totalMah));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to record retries", e);
+        }
+    }
+
+    //Called on the thread of the call. Returns true if the server accepted the upload
+    private boolean onUploadResponse(Response response, UploadEventListener listener, ConnectionMode connectionMode) {
+        Log.d(TAG, "HTTPS Response: " + Objects.requireNonNull(response.body()));
+
+        Date df = new Date();
+        String ts = new SimpleDateFormat("MM-dd HH:mm:ss", Locale.US).format(df);
+
+        //which connection the upload actually used, a warm upload connects too if the pool was empty
+        if (listener.isNewConnection())
+            newConnectionCounter.increment();
+        else
+            reusedConnectionCounter.increment();
+        String connection = " (" + connectionMode + ", " + (listener.isNewConnection() ? "new" : "reused")
+                + " " + listener.getProtocol() + " connection)";
+
+        //the call ends when the response is closed, the phase times are known from then on
+        boolean success = response.isSuccessful();
+        response.close();
+        if (listener.isCompleted())
+            uploadHistogram.record(listener.getPhaseMs(UploadEventListener.TOTAL));
+
+        if (success) {
+            passCounter.increment();
+            sendStatus(ts + " - HTTPS file upload test pass" + connection);
         } else {
-            sendStatus("File upload failed. Cannot find test file in sdcard folder");
+            failCounter.increment();
+            sendStatus(ts + " - HTTPS file upload test fail" + connection);
         }
+        if (listener.isCompleted())
+            sendStatus(ts + " - " + listener.format());
+        return success;
+    }
 
+    private void onUploadError(IOException e, long startWallMs) {
+        errorCounter.increment();
+        e.printStackTrace();
+        sendStatus("Got IOException. File upload failed");
 
-        wakeLock.release();
+        //a network change during the upload is the likely cause
+        ConnectivityTracker connectivityTracker = MainService.getConnectivityTracker();
+        ConnectivitySnapshot snapshot = connectivityTracker != null ? connectivityTracker.getSnapshot() : null;
+        if (snapshot != null && snapshot.getWallMs() >= startWallMs) {
+            sendStatus(String.format(Locale.US, "Network changed %.1f s into the upload: %s",
+                    (snapshot.getWallMs() - startWallMs) / 1000.0, snapshot.describe()));
+        }
     }
 
-    // Check if cellular connection is enabled and active
-    boolean hasCellularConnection() {
-        ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+    //Stay awake, measure the energy and mark the radio session over type until endSession
+    private void beginSession(DataConnType type) {
+        WakeLockManager wakeLockManager = MainService.getWakeLockManager();
+        TestEnergyMeter testEnergyMeter = MainService.getTestEnergyMeter();
+        RadioActivityMonitor radioActivityMonitor = MainService.getRadioActivityMonitor();
 
-        NetworkInfo mobileNetwork = cm.getNetworkInfo(cm.getActiveNetwork());
+        //stay awake only until the upload is done
+        wakeLockManager.acquire(EnergyAttributor.DATA_CONN);
+        if (testEnergyMeter != null)
+            testEnergyMeter.begin(EnergyAttributor.DATA_CONN);
+        //the radio tail after the upload is reported by the monitor once the radio is dormant
+        if (radioActivityMonitor != null)
+            radioActivityMonitor.beginUpload(type == DataConnType.CELL);
+    }
 
-        Date df = new Date();
-        String ts = new SimpleDateFormat("MM-dd HH:mm:ss", Locale.US).format(df.getTime());
+    //Returns the charge of the session in mAh, NaN if it was not measured
+    private double endSession() {
+        WakeLockManager wakeLockManager = MainService.getWakeLockManager();
+        TestEnergyMeter testEnergyMeter = MainService.getTestEnergyMeter();
+        RadioActivityMonitor radioActivityMonitor = MainService.getRadioActivityMonitor();
 
-        if (mobileNetwork != null && mobileNetwork.isConnected() &&
-                mobileNetwork.getTypeName().equalsIgnoreCase("MOBILE")) {
+        if (radioActivityMonitor != null)
+            radioActivityMonitor.endUpload();
+        //the radio stays up for its tail, a good time to send the collected results
+        ResultCollector resultCollector = MainService.getResultCollector();
+        if (resultCollector != null)
+            resultCollector.onRadioUp();
+        double mah = testEnergyMeter != null ? testEnergyMeter.end(EnergyAttributor.DATA_CONN) : Double.NaN;
+        wakeLockManager.release(EnergyAttributor.DATA_CONN);
+        return mah;
+    }
 
-            NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
-            if (activeNetwork != null && activeNetwork.isConnected()) {
-                sendStatus(ts + " - Connected to Cellular Network");
-                return true;
-            }
+    //Payload of one upload, from the APK assets or generated
+    private Payload openPayload() throws IOException {
+        if (testPref.getPayloadType() == PayloadType.SYNTHETIC) {
+            return new Payload(SYNTHETIC_FILENAME, PayloadBody.synthetic(testPref.getPayloadSize() * 1024L,
+                    testPref.getPayloadEntropy(), SystemClock.elapsedRealtime(), MediaType.parse("application/octet-stream")),
+                    null);
         }
 
-        sendStatus(ts + " - NOT connected to Cellular Network");
-        return false;
+        //png assets are stored uncompressed in the APK, so openFd works on them
+        AssetFileDescriptor assetFd = mContext.getAssets().openFd(DC_TEST_FILENAME);
+        return new Payload(DC_TEST_FILENAME, PayloadBody.fromFile(assetFd.getFileDescriptor(), assetFd.getStartOffset(),
+                assetFd.getLength(), MediaType.parse("image/png")), assetFd);
+    }
+
+    private Request buildRequest(String filename, RequestBody payload, UploadEventListener listener) {
+        //the payload is streamed while the request is written, nothing is copied to storage
+        RequestBody requestBody = new MultipartBody.Builder()
+                .addFormDataPart("new", "This is a test image")
+                .addFormDataPart("image", filename, payload)
+                .setType(MultipartBody.FORM)
+                .build();
+
+        return new Request.Builder()
+                .url(URL_TEST_ADDRESS)
+                .post(requestBody)
+                .tag(UploadEventListener.class, listener)
+                .build();
+    }
+
+    //Per payload latency (queued to accepted) and energy, the same for the batched and unbatched mode
+    private void addDelivered(int payloads, long avgLatencyMs, double mah) {
+        deliveredPayloads += payloads;
+        deliverySessions++;
+        for (int i = 0; i < payloads; i++)
+            payloadLatencyHistogram.record(avgLatencyMs);
+        totalLatencyMs += avgLatencyMs * payloads;
+        if (!Double.isNaN(mah)) {
+            totalMah += mah;
+            payloadEnergyHistogram.record(Math.round(mah * 1000 / payloads));
+        }
+    }
+
+    private void countUploads(int uploads) {
+        int before = uploadCount / PERCENTILE_INTERVAL;
+        uploadCount += uploads;
+        if (uploadCount / PERCENTILE_INTERVAL != before)
+            sendPercentiles();
+    }
+
+    // One radio session: a single upload or a batch of queued payloads
+    // It is only changed on the TestScheduler thread
+    private static class UploadSession {
+        private static int count = 0;
+
+        final int id = ++count;
+        final UploadClient uploadClient;
+        final OkHttpClient client;
+        final ConnectionMode connectionMode;
+        final DataConnType type;
+        final DataConnType next; //transport of the second upload of the DUAL binding, null if there is none
+        final Payload payload; //single upload, null for a batch
+        final int[] retryIndex; //retry queue index of each upload of a retry session
+        final boolean[] sent;
+        final long startWallMs = System.currentTimeMillis();
+        final Set<Call> calls = new HashSet<>();
+        int started = 0;
+        int delivered = 0;
+        boolean finished = false;
+
+        UploadSession(UploadClient uploadClient, OkHttpClient client, ConnectionMode connectionMode, DataConnType type,
+                      DataConnType next, Payload payload, int[] retryIndex, int payloads) {
+            this.uploadClient = uploadClient;
+            this.client = client;
+            this.connectionMode = connectionMode;
+            this.type = type;
+            this.next = next;
+            this.payload = payload;
+            this.retryIndex = retryIndex;
+            this.sent = new boolean[payloads];
+        }
     }
 
-    // Check if Wifi connection is enabled
-    boolean hasWifiConnection() {
-        ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+    // Payload body and the asset it streams from, if any
+    private static class Payload implements Closeable {
+        final String filename;
+        final RequestBody body;
+        private final AssetFileDescriptor assetFd;
+
+        Payload(String filename, RequestBody body, AssetFileDescriptor assetFd) {
+            this.filename = filename;
+            this.body = body;
+            this.assetFd = assetFd;
+        }
+
+        @Override
+        public void close() {
+            if (assetFd == null)
+                return;
+            try {
+                assetFd.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to close test file asset", e);
+            }
+        }
+    }
 
-        NetworkInfo wifiNetwork = cm.getNetworkInfo(cm.getActiveNetwork());
+    // Check if the default network uses the transport under test, from the state cached by ConnectivityTracker
+    // With a network binding the bound network of the transport must be up instead
+    boolean hasConnection(DataConnType type) {
+        ConnectivityTracker connectivityTracker = MainService.getConnectivityTracker();
+        ConnectivitySnapshot snapshot = connectivityTracker != null ? connectivityTracker.getSnapshot()
+                : ConnectivitySnapshot.DISCONNECTED;
 
         Date df = new Date();
         String ts = new SimpleDateFormat("MM-dd HH:mm:ss", Locale.US).format(df.getTime());
+        String name = type == DataConnType.CELL ? "Cellular" : "Wifi";
 
-        if (wifiNetwork != null && wifiNetwork.isConnected() &&
-                wifiNetwork.getTypeName().equalsIgnoreCase("WIFI")) {
-            //Log.d(TAG, "Connected to Wifi Network");
-            sendStatus(ts + " - Connected to Wifi Network");
+        boolean bound = testPref.getNetworkBinding() != NetworkBinding.DEFAULT;
+        if (bound ? boundNetwork(type) != null : snapshot.isConnected(type)) {
+            sendStatus(ts + " - Connected to " + name + " Network (" + (bound ? "bound, default " : "")
+                    + snapshot.describe() + ")");
             return true;
         }
 
-        sendStatus(ts + " - NOT connected to Wifi Network");
+        sendStatus(ts + " - NOT connected to " + name + " Network (" + snapshot.describe() + ")");
         return false;
     }
 
@@ -0,0 +1,309 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+
+// This class downloads one object for the download mode of the data connection test
+// The body is read into one reused buffer and dropped, optionally after updating a CRC32 of it, so the
+// memory used does not depend on the object size. The time to the response headers and to the first byte,
+// and the bytes of every second are recorded
+// An interrupted transfer is resumed with a Range request from the first missing byte, with If-Range so a
+// changed object is sent again in full. A server without range support answers 200 and the download
+// starts over, the bytes of the lost attempt are counted as transferred but not as downloaded
+// The object is requested without content encoding, so the bytes counted are the bytes on the air
+// It has no Android dependency so it can be checked in JVM unit tests against a local server
+public class DownloadRunner {
+    static final long SAMPLE_MS = 1000;
+
+    private final OkHttpClient client;
+    private final String url;
+    private final boolean checksum;
+    private final int maxResumes;
+
+    private final byte[] buffer = new byte[PayloadBody.BUFFER_SIZE];
+    private Call call;
+    private volatile boolean cancelled = false;
+
+    public DownloadRunner(OkHttpClient client, String url, boolean checksum, int maxResumes) {
+        //the time limit of an upload does not fit a large download, the read timeout still catches a dead link
+        this.client = client.newBuilder()
+                .callTimeout(0, TimeUnit.MILLISECONDS)
+                .build();
+        this.url = url;
+        this.checksum = checksum;
+        this.maxResumes = maxResumes;
+    }
+
+    //Download the object, blocks the calling thread
+    public Result run() {
+        Result result = new Result();
+        CRC32 crc = checksum ? new CRC32() : null;
+        long startNs = System.nanoTime();
+        long sampleNs = startNs;
+        long sampleBytes = 0;
+        long total = -1;
+        String validator = null;
+        int attempt = 0;
+
+        while (true) {
+            //without it OkHttp asks for gzip and inflates the body, the bytes counted would not be the bytes sent,
+            //and the ETag of a gzip variant would not match on resume
+            Request.Builder builder = new Request.Builder().url(url).header("Accept-Encoding", "identity");
+            if (result.bytes > 0) {
+                builder.header("Range", "bytes=" + result.bytes + "-");
+                if (validator != null)
+                    builder.header("If-Range", validator);
+            }
+            try {
+                Response response = execute(builder.build());
+                try {
+                    ResponseBody body = response.body();
+                    if (body == null) {
+                        result.error = "HTTP " + response.code() + " without a body";
+                        break;
+                    }
+                    if (response.code() == 206 && result.bytes > 0
+                            && parseRangeStart(response.header("Content-Range")) == result.bytes) {
+                        total = parseRangeTotal(response.header("Content-Range"));
+                    } else if (response.code() == 200) {
+                        //a first attempt, or the server sends the whole object again
+                        if (result.bytes > 0) {
+                            result.restarts++;
+                            result.bytes = 0;
+                            if (crc != null)
+                                crc.reset();
+                        }
+                        total = body.contentLength();
+                    } else {
+                        result.error = "HTTP " + response.code();
+                        break;
+                    }
+                    if (result.headersMs < 0)
+                        result.headersMs = (System.nanoTime() - startNs) / 1000000;
+                    validator = getValidator(response);
+
+                    BufferedSource source = body.source();
+                    int n;
+                    while ((n = source.read(buffer)) >= 0) {
+                        long nowNs = System.nanoTime();
+                        if (result.firstByteMs < 0 && n > 0)
+                            result.firstByteMs = (nowNs - startNs) / 1000000;
+                        if (crc != null)
+                            crc.update(buffer, 0, n);
+                        result.bytes += n;
+                        result.transferredBytes += n;
+                        sampleBytes += n;
+                        if (nowNs - sampleNs >= SAMPLE_MS * 1000000) {
+                            result.addSample((nowNs - sampleNs) / 1000000, sampleBytes);
+                            sampleNs = nowNs;
+                            sampleBytes = 0;
+                        }
+                    }
+                    if (total >= 0 && result.bytes != total)
+                        throw new IOException("Download ended at " + result.bytes + " of " + total + " bytes");
+                    result.complete = true;
+                    break;
+                } finally {
+                    response.close();
+                }
+            } catch (IOException e) {
+                if (cancelled || attempt >= maxResumes) {
+                    result.error = cancelled ? "cancelled" : e.toString();
+                    break;
+                }
+                attempt++;
+                result.resumes++;
+            }
+        }
+
+        long endNs = System.nanoTime();
+        if (sampleBytes > 0 || result.getSampleCount() == 0)
+            result.addSample((endNs - sampleNs) / 1000000, sampleBytes);
+        result.elapsedMs = Math.max((endNs - startNs) / 1000000, 1);
+        result.totalBytes = total;
+        result.crc = crc != null ? crc.getValue() : -1;
+        return result;
+    }
+
+    private Response execute(Request request) throws IOException {
+        Call c = client.newCall(request);
+        synchronized (this) {
+            if (cancelled)
+                throw new IOException("Canceled");
+            call = c;
+        }
+        return c.execute();
+    }
+
+    //Stop the download, run() returns an incomplete result
+    public synchronized void cancel() {
+        cancelled = true;
+        if (call != null)
+            call.cancel();
+    }
+
+    //A strong ETag, or else Last-Modified. A weak ETag cannot be used for If-Range
+    static String getValidator(Response response) {
+        String etag = response.header("ETag");
+        if (etag != null && !etag.startsWith("W/"))
+            return etag;
+        return response.header("Last-Modified");
+    }
+
+    //first byte of "bytes 100-999/1000", -1 if it cannot be parsed
+    static long parseRangeStart(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes "))
+            return -1;
+        int dash = contentRange.indexOf('-');
+        try {
+            return dash > 6 ? Long.parseLong(contentRange.substring(6, dash).trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    //object length of "bytes 100-999/1000", -1 if it is unknown ("*") or cannot be parsed
+    static long parseRangeTotal(String contentRange) {
+        int slash = contentRange != null ? contentRange.indexOf('/') : -1;
+        try {
+            return slash > 0 ? Long.parseLong(contentRange.substring(slash + 1).trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Outcome of one download
+    public static class Result {
+        private long bytes = 0;
+        private long transferredBytes = 0;
+        private long totalBytes = -1;
+        private long headersMs = -1;
+        private long firstByteMs = -1;
+        private long elapsedMs;
+        private int resumes = 0;
+        private int restarts = 0;
+        private boolean complete = false;
+        private String error;
+        private long crc = -1;
+        private final List<long[]> samples = new ArrayList<>();
+
+        private void addSample(long ms, long sampleBytes) {
+            samples.add(new long[]{ms, sampleBytes});
+        }
+
+        //bytes of the object that were received
+        public long getBytes() {
+            return bytes;
+        }
+
+        //bytes received including the attempts that were started over
+        public long getTransferredBytes() {
+            return transferredBytes;
+        }
+
+        //object length from the server, -1 if it was not sent
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        //time to the response headers and to the first body byte, -1 if there were none
+        public long getHeadersMs() {
+            return headersMs;
+        }
+
+        public long getFirstByteMs() {
+            return firstByteMs;
+        }
+
+        public long getElapsedMs() {
+            return elapsedMs;
+        }
+
+        public int getResumes() {
+            return resumes;
+        }
+
+        public int getRestarts() {
+            return restarts;
+        }
+
+        public boolean isComplete() {
+            return complete;
+        }
+
+        //why the download is incomplete, null if it is complete
+        public String getError() {
+            return error;
+        }
+
+        //CRC32 of the object, -1 if it was not computed
+        public long getCrc() {
+            return crc;
+        }
+
+        public int getSampleCount() {
+            return samples.size();
+        }
+
+        public long getSampleMs(int sample) {
+            return samples.get(sample)[0];
+        }
+
+        public long getSampleBytes(int sample) {
+            return samples.get(sample)[1];
+        }
+
+        public double getSampleKbps(int sample) {
+            long ms = getSampleMs(sample);
+            return ms > 0 ? getSampleBytes(sample) * 8.0 / ms : 0;
+        }
+
+        public double getGoodputKbps() {
+            return bytes * 8.0 / elapsedMs;
+        }
+
+        //e.g. "10.49 MB in 3.2 s, 26.21 Mbps, first byte 180 ms (headers 150 ms), 1 resumes, 0 restarts, crc 1a2b3c4d"
+        public String format() {
+            String s = String.format(Locale.US, "%.2f MB in %.1f s, %.2f Mbps, first byte %d ms (headers %d ms), %d resumes, %d restarts",
+                    bytes / 1e6, elapsedMs / 1000.0, getGoodputKbps() / 1000, firstByteMs, headersMs, resumes, restarts);
+            if (crc >= 0)
+                s += String.format(Locale.US, ", crc %08x", crc);
+            if (!complete)
+                s += ", incomplete: " + error;
+            return s;
+        }
+
+        //goodput of every sample in Mbps, e.g. "38.1 42.0 41.7"
+        public String formatSamples() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < samples.size(); i++)
+                sb.append(String.format(Locale.US, i == 0 ? "%.1f" : " %.1f", getSampleKbps(i) / 1000));
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+// This class attributes the charge drawn from the battery to the test that was running
+// Current samples are integrated (trapezoid) between samples, and the charge above the idle baseline
+// while tests are active is split evenly between the active tests
+// Every sample is taken at a wakeup, so the current it reads is that of an awake CPU. The idle baseline
+// is therefore the charge counter drop over the intervals with no test active, which includes the time
+// the device was suspended. Without a charge counter the current of the idle samples is used, which
+// overstates the baseline
+// Samples taken while plugged in are skipped, the current then comes from the charger
+// Active tests are sampled every second, a much longer interval while a test is active means the device
+// suspended. Its current is not known, so only the charge counter drop above the baseline is charged, if any
+// Charge is kept per test execution and cumulative per test type
+// It has no Android dependency so it can be checked in JVM unit tests
+public class EnergyAttributor {
+
+    static final int GPS = 0;
+    static final int SENSOR = 1;
+    static final int DATA_CONN = 2;
+    static final int TEST_COUNT = 3;
+
+    static final String[] TEST_NAMES = {"GPS", "Sensor", "Data connection"};
+
+    static final double BASELINE_SMOOTHING = 0.1; //EWMA weight of the newest idle sample
+    //idle time summed up before the baseline is updated from the charge counter, it counts in mAh steps on some gauges
+    static final long BASELINE_MIN_IDLE_MS = 10 * 60 * 1000L;
+    //longest interval with a test active that is integrated from the current samples
+    static final long MAX_ACTIVE_GAP_MS = 30 * 1000L;
+
+    private final int[] active = new int[TEST_COUNT];       //nesting count of each test
+    private final double[] executionUah = new double[TEST_COUNT];
+    private final long[] executionStartMs = new long[TEST_COUNT];
+    private final double[] totalUah = new double[TEST_COUNT];
+    private final int[] executions = new int[TEST_COUNT];
+    private long lastDurationMs;
+
+    private long lastSampleMs = -1;
+    private double lastCurrentUa;
+    private long lastChargeUah = -1;
+    private double baselineUa = Double.NaN;
+    private boolean counterBaseline = false; //the baseline comes from the charge counter
+
+    //idle intervals not yet used for the baseline
+    private long idleUah;
+    private long idleMs;
+
+    //Add a current sample. The interval since the previous sample is charged to the tests active during it
+    //currentUa is the discharge current, its sign is ignored. chargeUah is the charge counter, 0 or less
+    //when it is not supported
+    public void addSample(long elapsedMs, double currentUa, long chargeUah, boolean plugged) {
+        if (plugged) {
+            //the interval across plugging in or out is not used either
+            lastSampleMs = -1;
+            lastChargeUah = -1;
+            idleUah = 0;
+            idleMs = 0;
+            return;
+        }
+        currentUa = Math.abs(currentUa);
+
+        int activeCount = 0;
+        for (int test = 0; test < TEST_COUNT; test++) {
+            if (active[test] > 0)
+                activeCount++;
+        }
+
+        boolean interval = lastSampleMs >= 0 && elapsedMs > lastSampleMs;
+        if (activeCount == 0) {
+            if (interval && chargeUah > 0 && lastChargeUah > 0) {
+                idleUah += lastChargeUah - chargeUah;
+                idleMs += elapsedMs - lastSampleMs;
+                if (idleMs >= BASELINE_MIN_IDLE_MS) {
+                    double idleUa = Math.max(idleUah, 0) * 3600000.0 / idleMs;
+                    //the first charge counter value replaces the estimate from the wakeup current
+                    updateBaseline(idleUa, !counterBaseline);
+                    counterBaseline = true;
+                    idleUah = 0;
+                    idleMs = 0;
+                }
+            } else if (!counterBaseline) {
+                updateBaseline(currentUa, false);
+            }
+        } else if (interval && !Double.isNaN(baselineUa)) {
+            long intervalMs = elapsedMs - lastSampleMs;
+            double excessUa;
+            if (intervalMs <= MAX_ACTIVE_GAP_MS)
+                excessUa = (lastCurrentUa + currentUa) / 2 - baselineUa;
+            else if (chargeUah > 0 && lastChargeUah > 0)
+                excessUa = (lastChargeUah - chargeUah) * 3600000.0 / intervalMs - baselineUa;
+            else
+                excessUa = 0;
+            if (excessUa > 0) {
+                double uah = excessUa * intervalMs / 3600000.0 / activeCount;
+                for (int test = 0; test < TEST_COUNT; test++) {
+                    if (active[test] > 0)
+                        executionUah[test] += uah;
+                }
+            }
+        }
+
+        lastSampleMs = elapsedMs;
+        lastCurrentUa = currentUa;
+        lastChargeUah = chargeUah;
+    }
+
+    private void updateBaseline(double idleUa, boolean replace) {
+        baselineUa = Double.isNaN(baselineUa) || replace ? idleUa
+                : baselineUa + BASELINE_SMOOTHING * (idleUa - baselineUa);
+    }
+
+    //Start an execution of a test. Nested begins of the same test are part of one execution
+    public void begin(int test, long elapsedMs) {
+        if (active[test]++ == 0) {
+            executionUah[test] = 0;
+            executionStartMs[test] = elapsedMs;
+        }
+    }
+
+    //End an execution of a test
+    //Returns the charge of the execution in mAh, or NaN if the execution is still open
+    public double end(int test, long elapsedMs) {
+        if (active[test] == 0 || --active[test] > 0)
+            return Double.NaN;
+
+        totalUah[test] += executionUah[test];
+        executions[test]++;
+        lastDurationMs = elapsedMs - executionStartMs[test];
+        return executionUah[test] / 1000.0;
+    }
+
+    public boolean isActive(int test) {
+        return active[test] > 0;
+    }
+
+    public boolean isAnyActive() {
+        for (int test = 0; test < TEST_COUNT; test++) {
+            if (active[test] > 0)
+                return true;
+        }
+        return false;
+    }
+
+    //duration of the execution that was ended last
+    public long getLastDurationMs() {
+        return lastDurationMs;
+    }
+
+    public double getTotalMah(int test) {
+        return totalUah[test] / 1000.0;
+    }
+
+    public int getExecutions(int test) {
+        return executions[test];
+    }
+
+    public double getAverageMah(int test) {
+        return executions[test] > 0 ? totalUah[test] / 1000.0 / executions[test] : Double.NaN;
+    }
+
+    public double getBaselineMa() {
+        return baselineUa / 1000.0;
+    }
+}
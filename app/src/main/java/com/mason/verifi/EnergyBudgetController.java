@@ -0,0 +1,131 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+// This class is the feedback controller of the energy budget run mode
+// It compares the measured battery drain rate with the rate needed to last until the target lifetime
+// and stretches or shrinks the test intervals to close the gap
+// Intervals are scaled multiplicatively: interval *= (measured / required) ^ (gain / priority)
+// so a priority 1 test absorbs the full correction and higher priorities are adjusted less
+// It has no Android dependency so it can be simulated in JVM unit tests
+public class EnergyBudgetController {
+
+    static final int GPS = 0;
+    static final int SENSOR = 1;
+    static final int DATA_CONN = 2;
+    static final int TEST_COUNT = 3;
+
+    static final double MAX_GAIN = 1.0;          //above 1 the controller overshoots
+    static final double MAX_STEP_RATIO = 1.5;    //an interval never changes more than 1.5x per step
+    static final double DEADBAND = 0.05;         //ignore drain errors below 5%
+    static final double RATE_SMOOTHING = 0.5;    //EWMA weight of the newest drain rate sample
+    static final double MIN_REMAINING_HOURS = 0.25;
+
+    private final double targetHours;
+    private final double gain;
+
+    private final boolean[] enabled = new boolean[TEST_COUNT];
+    private final int[] priority = new int[TEST_COUNT];
+    private final int[] minInterval = new int[TEST_COUNT];
+    private final int[] maxInterval = new int[TEST_COUNT];
+    private final double[] interval = new double[TEST_COUNT];
+
+    private double startHours = Double.NaN;
+    private double lastHours;
+    private double lastLevel;
+    private double smoothedRate = Double.NaN;
+    private double lastRequiredRate = Double.NaN;
+
+    //targetHours: total battery life wanted from the start of the run
+    //gain: fraction of the measured error corrected per step, clamped to (0, MAX_GAIN]
+    public EnergyBudgetController(double targetHours, double gain) {
+        this.targetHours = targetHours;
+        this.gain = Math.max(0.01, Math.min(gain, MAX_GAIN));
+    }
+
+    //Register an enabled test. Priority 1 is adjusted the most, higher numbers are adjusted less
+    public void addTest(int test, int intervalSec, int minIntervalSec, int maxIntervalSec, int testPriority) {
+        enabled[test] = true;
+        priority[test] = Math.max(testPriority, 1);
+        minInterval[test] = minIntervalSec;
+        maxInterval[test] = Math.max(maxIntervalSec, minIntervalSec);
+        interval[test] = clamp(intervalSec, minInterval[test], maxInterval[test]);
+    }
+
+    public void start(double timeHours, double levelPct) {
+        startHours = timeHours;
+        lastHours = timeHours;
+        lastLevel = levelPct;
+        smoothedRate = Double.NaN;
+    }
+
+    //Feed a new battery level. Returns true when at least one interval was changed
+    public boolean step(double timeHours, double levelPct) {
+        double dt = timeHours - lastHours;
+        if (Double.isNaN(startHours) || dt <= 0)
+            return false;
+
+        double rate = (lastLevel - levelPct) / dt;
+        lastHours = timeHours;
+        lastLevel = levelPct;
+
+        //a rising level means the device is charging, drain cannot be measured
+        if (rate < 0)
+            return false;
+
+        smoothedRate = Double.isNaN(smoothedRate) ? rate
+                : RATE_SMOOTHING * rate + (1 - RATE_SMOOTHING) * smoothedRate;
+
+        double remainingHours = Math.max(targetHours - (timeHours - startHours), MIN_REMAINING_HOURS);
+        lastRequiredRate = levelPct / remainingHours;
+        if (lastRequiredRate <= 0 || smoothedRate <= 0)
+            return false;
+
+        double error = Math.log(smoothedRate / lastRequiredRate);
+        if (Math.abs(error) < Math.log(1 + DEADBAND))
+            return false;
+
+        double maxStep = Math.log(MAX_STEP_RATIO);
+        double correction = clamp(gain * error, -maxStep, maxStep);
+
+        boolean changed = false;
+        for (int i = 0; i < TEST_COUNT; i++) {
+            if (!enabled[i])
+                continue;
+            double next = clamp(interval[i] * Math.exp(correction / priority[i]), minInterval[i], maxInterval[i]);
+            if (Math.round(next) != Math.round(interval[i]))
+                changed = true;
+            interval[i] = next;
+        }
+        return changed;
+    }
+
+    public boolean isEnabled(int test) {
+        return enabled[test];
+    }
+    public int getInterval(int test) {
+        return (int) Math.round(interval[test]);
+    }
+    public double getDrainRate() {
+        return smoothedRate;
+    }
+    public double getRequiredRate() {
+        return lastRequiredRate;
+    }
+
+    private static double clamp(double v, double min, double max) {
+        return Math.max(min, Math.min(v, max));
+    }
+}
@@ -0,0 +1,288 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+// This class holds the parameter grid of an experiment matrix run and the measured result of each cell
+// The grid file has one "key=value1,value2,..." line per swept parameter, for example:
+//   gps=IZATSDK,LOCMGR
+//   gpsInterval=60,180,600
+//   cellDuration=3600
+//   warmup=600
+// Parameters that are not listed keep their current TestPreference value
+public class ExperimentMatrix {
+
+    //Swept test parameters
+    static final String GPS = "gps";
+    static final String GPS_INTERVAL = "gpsInterval";
+    static final String SENSOR = "sensor";
+    static final String SENSOR_INTERVAL = "sensorInterval";
+    static final String DATA_CONN = "dataConn";
+    static final String DATA_CONN_INTERVAL = "dataConnInterval";
+    static final String CONNECTION = "connection";
+    static final String UPLOAD_BATCH = "uploadBatch";
+    static final String OFF = "OFF";
+
+    //Run settings
+    static final String CELL_DURATION = "cellDuration";
+    static final String WARMUP = "warmup";
+    static final String SEED = "seed";
+
+    private final Map<String, String[]> grid = new LinkedHashMap<>();
+    private final List<Cell> cells = new ArrayList<>();
+
+    private int cellDurationSec = 3600; //1 hour measured per cell
+    private int warmupSec = 600;        //10 min discarded at the start of each cell
+    private long seed = System.currentTimeMillis();
+
+    // One combination of parameter values and its measurement
+    public static class Cell {
+        final Map<String, String> params;
+        boolean measured = false;
+        long measuredMs;
+        int startLevel;
+        int endLevel;
+        long chargeUsedUah; //negative when the charge counter is not supported
+
+        Cell(Map<String, String> params) {
+            this.params = params;
+        }
+
+        public Map<String, String> getParams() {
+            return params;
+        }
+
+        //battery drain in percent per hour
+        public double getDrainPctPerHour() {
+            if (measuredMs <= 0)
+                return 0;
+            return (startLevel - endLevel) * 3600000.0 / measuredMs;
+        }
+
+        //average discharge current in mA from the charge counter
+        public double getAverageCurrentMa() {
+            if (measuredMs <= 0 || chargeUsedUah < 0)
+                return Double.NaN;
+            return chargeUsedUah * 3600.0 / measuredMs;
+        }
+
+        public String describe() {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, String> e : params.entrySet()) {
+                if (sb.length() > 0)
+                    sb.append(' ');
+                sb.append(e.getKey()).append('=').append(e.getValue());
+            }
+            return sb.toString();
+        }
+    }
+
+    public static ExperimentMatrix parse(Reader reader) throws IOException {
+        ExperimentMatrix matrix = new ExperimentMatrix();
+        BufferedReader in = new BufferedReader(reader);
+        String line;
+        int lineNo = 0;
+
+        while ((line = in.readLine()) != null) {
+            lineNo++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+
+            int eq = line.indexOf('=');
+            if (eq <= 0)
+                throw new IOException("Line " + lineNo + ": expected key=value");
+
+            String key = line.substring(0, eq).trim();
+            String value = line.substring(eq + 1).trim();
+
+            try {
+                switch (key) {
+                    case CELL_DURATION:
+                        matrix.cellDurationSec = Integer.parseInt(value);
+                        break;
+                    case WARMUP:
+                        matrix.warmupSec = Integer.parseInt(value);
+                        break;
+                    case SEED:
+                        matrix.seed = Long.parseLong(value);
+                        break;
+                    case GPS:
+                    case GPS_INTERVAL:
+                    case SENSOR:
+                    case SENSOR_INTERVAL:
+                    case DATA_CONN:
+                    case DATA_CONN_INTERVAL:
+                    case CONNECTION:
+                    case UPLOAD_BATCH:
+                        String[] values = value.split(",");
+                        for (int i = 0; i < values.length; i++) {
+                            values[i] = values[i].trim().toUpperCase(Locale.US);
+                            validate(key, values[i]);
+                        }
+                        matrix.grid.put(key, values);
+                        break;
+                    default:
+                        throw new IOException("Line " + lineNo + ": unknown parameter " + key);
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Line " + lineNo + ": " + e.getMessage());
+            }
+        }
+
+        matrix.buildCells();
+        return matrix;
+    }
+
+    private static void validate(String key, String value) {
+        if (value.equals(OFF) && !key.endsWith("Interval") && !key.equals(UPLOAD_BATCH))
+            return;
+
+        switch (key) {
+            case GPS:
+                GPSType.valueOf(value);
+                break;
+            case SENSOR:
+                SensorType.valueOf(value);
+                break;
+            case DATA_CONN:
+                DataConnType.valueOf(value);
+                break;
+            case CONNECTION:
+                ConnectionMode.valueOf(value);
+                break;
+            default:
+                if (Integer.parseInt(value) <= 0)
+                    throw new IllegalArgumentException(key + " must be positive");
+                break;
+        }
+    }
+
+    //cartesian product of the grid
+    private void buildCells() {
+        List<Map<String, String>> combos = new ArrayList<>();
+        combos.add(new LinkedHashMap<>());
+
+        for (Map.Entry<String, String[]> e : grid.entrySet()) {
+            List<Map<String, String>> next = new ArrayList<>();
+            for (Map<String, String> combo : combos) {
+                for (String value : e.getValue()) {
+                    Map<String, String> c = new LinkedHashMap<>(combo);
+                    c.put(e.getKey(), value);
+                    next.add(c);
+                }
+            }
+            combos = next;
+        }
+
+        cells.clear();
+        for (Map<String, String> combo : combos) {
+            cells.add(new Cell(combo));
+        }
+    }
+
+    //Randomize the run order so battery level and time of day don't line up with one parameter
+    public void shuffle() {
+        Collections.shuffle(cells, new Random(seed));
+    }
+
+    public List<Cell> getCells() {
+        return cells;
+    }
+    public int getCellDurationSec() {
+        return cellDurationSec;
+    }
+    public int getWarmupSec() {
+        return warmupSec;
+    }
+    public long getSeed() {
+        return seed;
+    }
+
+    //Apply the parameters of a cell to the test preference
+    public static void apply(Cell cell, TestPreference testPref) {
+        for (Map.Entry<String, String> e : cell.params.entrySet()) {
+            String value = e.getValue();
+            switch (e.getKey()) {
+                case GPS:
+                    testPref.setEnableGPS(!value.equals(OFF));
+                    if (testPref.isEnableGPS())
+                        testPref.setGpsType(GPSType.valueOf(value));
+                    break;
+                case GPS_INTERVAL:
+                    testPref.setGpsInterval(Integer.parseInt(value));
+                    break;
+                case SENSOR:
+                    testPref.setEnableSensor(!value.equals(OFF));
+                    if (testPref.isEnableSensor())
+                        testPref.setSensorType(SensorType.valueOf(value));
+                    break;
+                case SENSOR_INTERVAL:
+                    testPref.setSensorInterval(Integer.parseInt(value));
+                    break;
+                case DATA_CONN:
+                    testPref.setEnableDataConn(!value.equals(OFF));
+                    if (testPref.isEnableDataConn())
+                        testPref.setDataConnType(DataConnType.valueOf(value));
+                    break;
+                case DATA_CONN_INTERVAL:
+                    testPref.setDataConnInterval(Integer.parseInt(value));
+                    break;
+                case CONNECTION:
+                    testPref.setConnectionMode(ConnectionMode.valueOf(value));
+                    break;
+                case UPLOAD_BATCH:
+                    testPref.setUploadBatchSize(Integer.parseInt(value));
+                    break;
+            }
+        }
+    }
+
+    //Write the comparison table as CSV, one row per cell in run order
+    public void writeTable(Writer out) throws IOException {
+        out.write("run");
+        for (String key : grid.keySet()) {
+            out.write("," + key);
+        }
+        out.write(",measured_min,start_pct,end_pct,drain_pct_per_hour,avg_current_ma\n");
+
+        for (int i = 0; i < cells.size(); i++) {
+            Cell cell = cells.get(i);
+            out.write(String.valueOf(i + 1));
+            for (String key : grid.keySet()) {
+                out.write("," + cell.params.get(key));
+            }
+            if (cell.measured) {
+                out.write(String.format(Locale.US, ",%.1f,%d,%d,%.3f,%.1f\n",
+                        cell.measuredMs / 60000.0, cell.startLevel, cell.endLevel,
+                        cell.getDrainPctPerHour(), cell.getAverageCurrentMa()));
+            } else {
+                out.write(",,,,,\n");
+            }
+        }
+        out.flush();
+    }
+}
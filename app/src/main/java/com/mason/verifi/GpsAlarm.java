@@ -0,0 +1,92 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+// This class creates one-shot timer using Alarm service
+// to deliver the next fix of a replayed GPS track or of the GPS harness baseline, so they keep their pace
+// while the device sleeps
+public class GpsAlarm extends BroadcastReceiver {
+    private static final String TAG = "verifi.GpsAlarm";
+    public static final String GPS_ALARM_ACTION = "gps_alarm_action";
+    private static final String EXTRA_ALARM_TIME = "alarm_time";
+    private static final int TRACE_ALARM = TraceRecorder.register("gps.alarm");
+    private static final int TRACE_DELIVERY = TraceRecorder.register("gps.alarm_delivery");
+    private AlarmManager gpsAlarmManager;
+    private PendingIntent gpsPendingIntent;
+
+    // this constructor is called by the alarm manager
+    public GpsAlarm() {
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        WakeupCpuProfiler.beginWakeup();
+        TraceRecorder.begin(TRACE_ALARM);
+        try {
+            final String action = intent.getAction();
+            Log.d(TAG, "GPS Alarm is triggered at Current time: " + System.currentTimeMillis());
+
+            if (action.equals(GPS_ALARM_ACTION)) {
+                PowerStateTracker powerStateTracker = MainService.getPowerStateTracker();
+                long alarmTime = intent.getLongExtra(EXTRA_ALARM_TIME, 0);
+                if (alarmTime > 0) {
+                    long delayMs = System.currentTimeMillis() - alarmTime;
+                    TraceRecorder.recordPast(TRACE_DELIVERY, Math.max(delayMs, 0) * 1000);
+                    if (powerStateTracker != null)
+                        powerStateTracker.addAlarmDelay(EnergyAttributor.GPS, delayMs);
+                }
+
+                //the fix is delivered on background thread, GpsTest sets the alarm for the next one
+                if (MainService.getTestScheduler() != null)
+                    MainService.getTestScheduler().stepGPSTest();
+                else
+                    Log.e(TAG, "Failed to step GPS Test. Null TestScheduler reference");
+            }
+        } finally {
+            TraceRecorder.end(TRACE_ALARM);
+            WakeupCpuProfiler.endWakeup(EnergyAttributor.GPS, WakeupCpuProfiler.ALARM);
+        }
+    }
+
+    public void startGpsAlarm(Context context, long delayMs) {
+        long currentTime = System.currentTimeMillis();
+        long alarmTime =  currentTime + delayMs;
+
+        //the requested time is passed along to measure the alarm delivery delay
+        Intent intent = new Intent(context, GpsAlarm.class).setAction(GPS_ALARM_ACTION)
+                .putExtra(EXTRA_ALARM_TIME, alarmTime);
+
+        gpsPendingIntent = PendingIntent.getBroadcast(
+                context, 5132, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+
+        gpsAlarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+
+        gpsAlarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, alarmTime, gpsPendingIntent);
+
+        Log.d(TAG, "Current time: " + currentTime + " set GPS Alarm to: " + alarmTime);
+    }
+
+    public void stopGpsAlarm() {
+        if (gpsAlarmManager != null)
+            gpsAlarmManager.cancel(gpsPendingIntent);
+    }
+}
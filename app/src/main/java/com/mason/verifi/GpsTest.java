@@ -30,12 +30,16 @@ import androidx.core.app.ActivityCompat;
 import com.qti.location.sdk.IZatFlpService;
 import com.qti.location.sdk.IZatManager;
 
+import java.io.File;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 
 // This class starts GPS test
 // It is using either Android Location Manager or Qualcomm iZat Fused Location Provider
+// or replays a recorded track (GPX or binary) from the app files folder through the same fix processing
+// The replayed and baseline fixes are paced by GpsAlarm so they go on while the device sleeps
 public class GpsTest {
     private static final String TAG = "verifi.GpsTest";
 
@@ -46,6 +50,7 @@ public class GpsTest {
     private GPSType gpsTestType;
     private int gpsTestInterval;
     private boolean gpsTestStarted = false;
+    private boolean gpsBaseline = false;
 
     //for Izat SDK
     private IZatManager mIzatMgr = null;
@@ -57,6 +62,23 @@ public class GpsTest {
     private LocMgrListener locMgrListener = null;
     private LocationManager locMgr = null;
 
+    //for track replay
+    private GpsTrackReplayer replayer = null;
+    private final GpsAlarm gpsAlarm = new GpsAlarm();
+
+    private final MetricsRegistry.Counter fixCounter = MetricsRegistry.getInstance().counter("gps.fixes");
+    private final MetricsRegistry.Gauge accuracyGauge = MetricsRegistry.getInstance().gauge("gps.accuracy_m");
+    private final MetricsRegistry.Histogram fixAgeHistogram = MetricsRegistry.getInstance().histogram("gps.fix_age_ms");
+
+    private static final int TRACE_START = TraceRecorder.register("gps.start");
+    private static final int TRACE_STOP = TraceRecorder.register("gps.stop");
+    private static final int TRACE_SESSION = TraceRecorder.register("gps.session");
+    private static final int TRACE_FIX = TraceRecorder.register("gps.fix");
+    private static final int TRACE_FLP_BATCH = TraceRecorder.register("gps.flp_batch");
+    private static final int TRACE_LOCATION = TraceRecorder.register("gps.location_changed");
+    private static final int TRACE_REPLAY = TraceRecorder.register("gps.replay_fix");
+    private static final int TRACE_BASELINE = TraceRecorder.register("gps.baseline_fix");
+
 
     public GpsTest(MainService pService) {
         testPref = TestPreference.getInstance();
@@ -65,26 +87,42 @@ public class GpsTest {
 
     public void startGpsTest() {
         if (!gpsTestStarted) {
+            TraceRecorder.begin(TRACE_START);
             gpsTestType = testPref.getGpsType();
             gpsTestInterval = testPref.getGpsInterval() * 1000;  //convert to mSec
 
-            if (gpsTestType == GPSType.IZATSDK) {
+            gpsBaseline = testPref.getRunMode() == RunMode.BASELINE;
+
+            if (gpsBaseline) {
+                startBaseline();
+            } else if (gpsTestType == GPSType.IZATSDK) {
                 startIzatSDK();
+            } else if (gpsTestType == GPSType.REPLAY) {
+                startReplay();
             } else {
                 startLocMgr();
             }
             gpsTestStarted = true;
+            TraceRecorder.end(TRACE_START);
+            TraceRecorder.beginAsync(TRACE_SESSION, 0);
         }
     }
 
     public void stopGpsTest() {
         if (gpsTestStarted) {
-            if (gpsTestType == GPSType.IZATSDK) {
+            TraceRecorder.endAsync(TRACE_SESSION, 0);
+            TraceRecorder.begin(TRACE_STOP);
+            if (gpsBaseline) {
+                stopBaseline();
+            } else if (gpsTestType == GPSType.IZATSDK) {
                 stopIzatSDK();
+            } else if (gpsTestType == GPSType.REPLAY) {
+                stopReplay();
             } else {
                 stopLocMgr();
             }
             gpsTestStarted = false;
+            TraceRecorder.end(TRACE_STOP);
         }
     }
 
@@ -159,44 +197,168 @@ public class GpsTest {
         }
     }
 
-    public class FlpLocationCallback implements IZatFlpService.IFlpLocationCallback {
-        @Override
-        public void onLocationAvailable(Location[] locations) {
-            if (locations != null && locations.length > 0) {
+    private void startReplay() {
+        File file = new File(parentService.getExternalFilesDir(null), testPref.getGpsReplayFile());
 
-                Log.i(TAG, locations.length + " FLP locations received");
+        GpsTrack track;
+        try {
+            track = GpsTrack.load(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to start GPS Test - cannot load replay track " + file, e);
+            parentService.sendStatus("GPS replay failed. Cannot load " + file.getName() + " from app files folder");
+            return;
+        }
 
-                for (Location loc : locations) {
-                    Log.i("FLP", "Location received from FLP: " + loc.toString());
+        if (track.size() == 0) {
+            parentService.sendStatus("GPS replay failed. No timestamped fixes in " + file.getName());
+            return;
+        }
 
-                    String longitudeStr = String.format(Locale.US,"%.03f", loc.getLongitude());
-                    String latitudeStr = String.format(Locale.US,"%.03f", loc.getLatitude());
-                    String hAccStr = String.format(Locale.US,"%.01f", loc.getAccuracy());
-                    //String vAccStr = String.format(Locale.US, "%.01f", loc.getVerticalAccuracyMeters());
+        replayer = new GpsTrackReplayer(track, this::processFix, testPref.getGpsReplaySpeed(), gpsTestInterval);
+        replayer.reset(System.currentTimeMillis());
 
-                    Date df = new java.util.Date(loc.getTime());
-                    String ts = new SimpleDateFormat("MM-dd HH:mm:ss", Locale.US).format(df);
+        //replay runs on the TestScheduler thread, same as the other tests
+        MainService.getTestScheduler().stepGPSTest();
 
-                    parentService.sendStatus(ts + " - " + latitudeStr + " - " + longitudeStr + " - " + hAccStr);
-                }
+        Log.i(TAG, "Start GPS Test replaying " + track.size() + " fixes from " + file.getName()
+                + " at " + testPref.getGpsReplaySpeed() + "x");
+    }
+
+    private void stopReplay() {
+        Log.d(TAG, "Stop GPS Test replay");
+        if (replayer != null) {
+            gpsAlarm.stopGpsAlarm();
+            replayer = null;
+        }
+    }
+
+    //Called on the TestScheduler thread when GpsAlarm goes off, with the GPS wakelock held
+    public void stepGpsTest() {
+        if (gpsBaseline)
+            baselineFix();
+        else
+            replayNextFix();
+    }
+
+    private void replayNextFix() {
+        if (replayer == null)
+            return;
+
+        WakeupCpuProfiler.beginWakeup();
+        TraceRecorder.begin(TRACE_REPLAY);
+        try {
+            if (replayer.deliverNext()) {
+                gpsAlarm.startGpsAlarm(parentService, replayer.nextDelayMs());
+            } else {
+                parentService.sendStatus("GPS replay finished");
+                replayer = null;
             }
+        } finally {
+            TraceRecorder.end(TRACE_REPLAY);
+            WakeupCpuProfiler.endWakeup(EnergyAttributor.GPS, WakeupCpuProfiler.LOCATION);
         }
     }
 
-    public class LocMgrListener implements LocationListener {
-        @Override
-        public void onLocationChanged(Location location) {
-            Log.i(TAG, "Location Mgr Update: " + location.toString());
+    //Harness baseline: no location request, an empty fix goes through the reporting path every interval
+    //It is woken by the same kind of alarm as the other tests so the baseline pays for the wakeup too
+    private void startBaseline() {
+        gpsAlarm.startGpsAlarm(parentService, gpsTestInterval);
+        Log.i(TAG, "Start GPS baseline (no-op) test");
+    }
+
+    private void stopBaseline() {
+        gpsAlarm.stopGpsAlarm();
+        Log.d(TAG, "Stop GPS baseline (no-op) test");
+    }
 
-            String longitudeStr = String.format(Locale.US,"%.03f", location.getLongitude());
-            String latitudeStr = String.format(Locale.US,"%.03f", location.getLatitude());
-            String hAccStr = String.format(Locale.US,"%.01f", location.getAccuracy());
-            //String vAccStr = String.format(Locale.US, "%.01f", location.getVerticalAccuracyMeters());
+    private void baselineFix() {
+        //an alarm that went off while the test was stopping
+        if (!gpsTestStarted)
+            return;
+
+        WakeupCpuProfiler.beginWakeup();
+        TraceRecorder.begin(TRACE_BASELINE);
+        try {
+            processFix(System.currentTimeMillis(), 0, 0, 0);
+        } finally {
+            //set the next alarm even if this fix failed, like the periodic test alarms
+            gpsAlarm.startGpsAlarm(parentService, gpsTestInterval);
+            TraceRecorder.end(TRACE_BASELINE);
+            WakeupCpuProfiler.endWakeup(EnergyAttributor.GPS, WakeupCpuProfiler.LOCATION);
+        }
+    }
 
-            Date df = new java.util.Date(location.getTime());
+    //Common processing for every fix whether it comes from FLP, Location Manager or a replayed track
+    void processFix(long timeMs, double latitude, double longitude, float accuracy) {
+        WakeLockManager wakeLockManager = MainService.getWakeLockManager();
+        wakeLockManager.acquire(EnergyAttributor.GPS);
+        TraceRecorder.begin(TRACE_FIX);
+        try {
+            //piggyback battery sampling on the location wakeup
+            BatterySampler batterySampler = MainService.getBatterySampler();
+            if (batterySampler != null)
+                batterySampler.maybeSample();
+
+            fixCounter.increment();
+            accuracyGauge.set(accuracy);
+            //time from the fix to its delivery, FLP batches deliver old fixes
+            fixAgeHistogram.record(System.currentTimeMillis() - timeMs);
+
+            //the fix and the processing after it are one GPS execution for energy attribution
+            TestEnergyMeter testEnergyMeter = MainService.getTestEnergyMeter();
+            if (testEnergyMeter != null)
+                testEnergyMeter.gpsFix();
+
+            String longitudeStr = String.format(Locale.US,"%.03f", longitude);
+            String latitudeStr = String.format(Locale.US,"%.03f", latitude);
+            String hAccStr = String.format(Locale.US,"%.01f", accuracy);
+
+            Date df = new java.util.Date(timeMs);
             String ts = new SimpleDateFormat("MM-dd HH:mm:ss", Locale.US).format(df);
 
             parentService.sendStatus(ts + " - " + latitudeStr + " - " + longitudeStr + " - " + hAccStr);
+        } finally {
+            TraceRecorder.end(TRACE_FIX);
+            wakeLockManager.release(EnergyAttributor.GPS);
+        }
+    }
+
+    public class FlpLocationCallback implements IZatFlpService.IFlpLocationCallback {
+        @Override
+        public void onLocationAvailable(Location[] locations) {
+            WakeupCpuProfiler.beginWakeup();
+            TraceRecorder.begin(TRACE_FLP_BATCH);
+            try {
+                if (locations != null && locations.length > 0) {
+
+                    Log.i(TAG, locations.length + " FLP locations received");
+
+                    for (Location loc : locations) {
+                        Log.i("FLP", "Location received from FLP: " + loc.toString());
+
+                        processFix(loc.getTime(), loc.getLatitude(), loc.getLongitude(), loc.getAccuracy());
+                    }
+                }
+            } finally {
+                TraceRecorder.end(TRACE_FLP_BATCH);
+                WakeupCpuProfiler.endWakeup(EnergyAttributor.GPS, WakeupCpuProfiler.LOCATION);
+            }
+        }
+    }
+
+    public class LocMgrListener implements LocationListener {
+        @Override
+        public void onLocationChanged(Location location) {
+            WakeupCpuProfiler.beginWakeup();
+            TraceRecorder.begin(TRACE_LOCATION);
+            try {
+                Log.i(TAG, "Location Mgr Update: " + location.toString());
+
+                processFix(location.getTime(), location.getLatitude(), location.getLongitude(), location.getAccuracy());
+            } finally {
+                TraceRecorder.end(TRACE_LOCATION);
+                WakeupCpuProfiler.endWakeup(EnergyAttributor.GPS, WakeupCpuProfiler.LOCATION);
+            }
         }
 
         @Override
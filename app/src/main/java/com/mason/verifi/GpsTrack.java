@@ -0,0 +1,265 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+// This class holds a recorded GPS track used by the GPS replay test
+// A track is loaded from a GPX file or from the compact binary format written by writeBinary()
+// It has no Android dependency so it can also be used by the JVM unit tests
+public class GpsTrack {
+
+    //Compact binary format: magic, version, fix count, then one record per fix
+    //record = time (long, epoch ms), latitude (double), longitude (double), accuracy (float, meters)
+    static final int BINARY_MAGIC = 0x5654524B; //"VTRK"
+    static final short BINARY_VERSION = 1;
+
+    //GPX only carries HDOP, so accuracy is estimated as HDOP * typical GPS range error (m)
+    private static final float GPX_UERE_METERS = 5.0f;
+    private static final float GPX_DEFAULT_ACCURACY = 5.0f;
+
+    private long[] timeMs;
+    private double[] latitude;
+    private double[] longitude;
+    private float[] accuracy;
+    private int size = 0;
+
+    public GpsTrack(int capacity) {
+        capacity = Math.max(capacity, 16);
+        timeMs = new long[capacity];
+        latitude = new double[capacity];
+        longitude = new double[capacity];
+        accuracy = new float[capacity];
+    }
+
+    public void addFix(long time, double lat, double lon, float acc) {
+        if (size == timeMs.length) {
+            int capacity = size * 2;
+            timeMs = Arrays.copyOf(timeMs, capacity);
+            latitude = Arrays.copyOf(latitude, capacity);
+            longitude = Arrays.copyOf(longitude, capacity);
+            accuracy = Arrays.copyOf(accuracy, capacity);
+        }
+        timeMs[size] = time;
+        latitude[size] = lat;
+        longitude[size] = lon;
+        accuracy[size] = acc;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+    public long getTime(int i) {
+        return timeMs[i];
+    }
+    public double getLatitude(int i) {
+        return latitude[i];
+    }
+    public double getLongitude(int i) {
+        return longitude[i];
+    }
+    public float getAccuracy(int i) {
+        return accuracy[i];
+    }
+
+    //Load a track file. Files ending with .gpx are parsed as GPX, anything else as binary
+    public static GpsTrack load(File file) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            if (file.getName().toLowerCase().endsWith(".gpx"))
+                return parseGpx(in);
+            else
+                return readBinary(in);
+        }
+    }
+
+    //Parse <trkpt> (and <rtept>/<wpt>) points of a GPX document. Points without <time> are skipped
+    public static GpsTrack parseGpx(InputStream in) throws IOException {
+        final GpsTrack track = new GpsTrack(256);
+
+        DefaultHandler handler = new DefaultHandler() {
+            private boolean inPoint = false;
+            private double lat;
+            private double lon;
+            private long time;
+            private float acc;
+            private final StringBuilder text = new StringBuilder();
+
+            @Override
+            public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                String name = elementName(localName, qName);
+                text.setLength(0);
+
+                if (name.equals("trkpt") || name.equals("rtept") || name.equals("wpt")) {
+                    inPoint = true;
+                    time = -1;
+                    acc = GPX_DEFAULT_ACCURACY;
+                    try {
+                        lat = Double.parseDouble(attributes.getValue("lat"));
+                        lon = Double.parseDouble(attributes.getValue("lon"));
+                    } catch (NullPointerException | NumberFormatException e) {
+                        inPoint = false;
+                    }
+                }
+            }
+
+            @Override
+            public void characters(char[] ch, int start, int length) {
+                if (inPoint)
+                    text.append(ch, start, length);
+            }
+
+            @Override
+            public void endElement(String uri, String localName, String qName) throws SAXException {
+                if (!inPoint)
+                    return;
+
+                String name = elementName(localName, qName);
+                switch (name) {
+                    case "time":
+                        try {
+                            time = OffsetDateTime.parse(text.toString().trim()).toInstant().toEpochMilli();
+                        } catch (DateTimeParseException e) {
+                            throw new SAXException("Invalid GPX time: " + text);
+                        }
+                        break;
+
+                    case "hdop":
+                        try {
+                            acc = Float.parseFloat(text.toString().trim()) * GPX_UERE_METERS;
+                        } catch (NumberFormatException e) {
+                            acc = GPX_DEFAULT_ACCURACY;
+                        }
+                        break;
+
+                    case "trkpt":
+                    case "rtept":
+                    case "wpt":
+                        if (time >= 0)
+                            track.addFix(time, lat, lon, acc);
+                        inPoint = false;
+                        break;
+                }
+                text.setLength(0);
+            }
+        };
+
+        try {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.newSAXParser().parse(in, handler);
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("Failed to parse GPX track", e);
+        }
+
+        track.sortByTime();
+        return track;
+    }
+
+    public static GpsTrack readBinary(InputStream in) throws IOException {
+        DataInputStream din = new DataInputStream(in);
+
+        if (din.readInt() != BINARY_MAGIC)
+            throw new IOException("Not a Verifi binary GPS track");
+
+        short version = din.readShort();
+        if (version != BINARY_VERSION)
+            throw new IOException("Unsupported binary GPS track version: " + version);
+
+        int count = din.readInt();
+        if (count < 0)
+            throw new IOException("Invalid binary GPS track fix count: " + count);
+
+        GpsTrack track = new GpsTrack(count);
+        for (int i = 0; i < count; i++) {
+            long time = din.readLong();
+            double lat = din.readDouble();
+            double lon = din.readDouble();
+            float acc = din.readFloat();
+            track.addFix(time, lat, lon, acc);
+        }
+        track.sortByTime();
+        return track;
+    }
+
+    public void writeBinary(OutputStream out) throws IOException {
+        DataOutputStream dout = new DataOutputStream(out);
+        dout.writeInt(BINARY_MAGIC);
+        dout.writeShort(BINARY_VERSION);
+        dout.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            dout.writeLong(timeMs[i]);
+            dout.writeDouble(latitude[i]);
+            dout.writeDouble(longitude[i]);
+            dout.writeFloat(accuracy[i]);
+        }
+        dout.flush();
+    }
+
+    //Replay needs fixes in time order. Tracks are normally already sorted so check before sorting
+    private void sortByTime() {
+        boolean sorted = true;
+        for (int i = 1; i < size && sorted; i++) {
+            sorted = timeMs[i - 1] <= timeMs[i];
+        }
+        if (sorted)
+            return;
+
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(timeMs[a], timeMs[b]));
+
+        long[] t = new long[timeMs.length];
+        double[] la = new double[timeMs.length];
+        double[] lo = new double[timeMs.length];
+        float[] ac = new float[timeMs.length];
+        for (int i = 0; i < size; i++) {
+            t[i] = timeMs[order[i]];
+            la[i] = latitude[order[i]];
+            lo[i] = longitude[order[i]];
+            ac[i] = accuracy[order[i]];
+        }
+        timeMs = t;
+        latitude = la;
+        longitude = lo;
+        accuracy = ac;
+    }
+
+    private static String elementName(String localName, String qName) {
+        if (localName != null && !localName.isEmpty())
+            return localName;
+        int colon = qName.indexOf(':');
+        return colon >= 0 ? qName.substring(colon + 1) : qName;
+    }
+}
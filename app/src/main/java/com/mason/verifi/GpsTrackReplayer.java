@@ -0,0 +1,89 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+// This class steps through a GpsTrack and delivers its fixes to a FixListener
+// The caller schedules each step using nextDelayMs(), e.g. on the TestScheduler thread,
+// so the same replay logic runs on the device and in JVM unit tests
+public class GpsTrackReplayer {
+
+    // Receives replayed fixes. GpsTest routes these into the same path as real location callbacks
+    public interface FixListener {
+        void onFix(long timeMs, double latitude, double longitude, float accuracy);
+    }
+
+    private final GpsTrack track;
+    private final FixListener listener;
+    private final int speed;
+    private final long minIntervalMs;
+
+    private int index = 0;
+    private long lastDeliveredTrackTime = Long.MIN_VALUE;
+    private long baseTimeMs = 0;
+
+    //speed: 1 = real time, N = N times faster
+    //minIntervalMs: fixes closer than this (in track time) are dropped, same as the LocationManager minTime
+    public GpsTrackReplayer(GpsTrack track, FixListener listener, int speed, long minIntervalMs) {
+        this.track = track;
+        this.listener = listener;
+        this.speed = Math.max(speed, 1);
+        this.minIntervalMs = Math.max(minIntervalMs, 0);
+    }
+
+    //Restart from the first fix. Replayed fixes are time-shifted so the first one is stamped baseTimeMs
+    public void reset(long baseTimeMs) {
+        this.baseTimeMs = baseTimeMs;
+        index = 0;
+        lastDeliveredTrackTime = Long.MIN_VALUE;
+        skipDecimated();
+    }
+
+    public boolean hasNext() {
+        return index < track.size();
+    }
+
+    //Delay before the next fix should be delivered, already scaled by the replay speed
+    public long nextDelayMs() {
+        if (!hasNext())
+            return -1;
+        if (lastDeliveredTrackTime == Long.MIN_VALUE)
+            return 0;
+        return (track.getTime(index) - lastDeliveredTrackTime) / speed;
+    }
+
+    //Deliver the next fix to the listener and advance. Returns false when the track is finished
+    public boolean deliverNext() {
+        if (!hasNext())
+            return false;
+
+        long trackTime = track.getTime(index);
+        long replayTime = baseTimeMs + (trackTime - track.getTime(0)) / speed;
+
+        listener.onFix(replayTime, track.getLatitude(index), track.getLongitude(index), track.getAccuracy(index));
+
+        lastDeliveredTrackTime = trackTime;
+        index++;
+        skipDecimated();
+        return hasNext();
+    }
+
+    private void skipDecimated() {
+        if (lastDeliveredTrackTime == Long.MIN_VALUE)
+            return;
+        while (index < track.size() && track.getTime(index) - lastDeliveredTrackTime < minIntervalMs) {
+            index++;
+        }
+    }
+}
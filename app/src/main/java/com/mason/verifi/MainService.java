@@ -19,21 +19,44 @@ import android.content.Intent;
 import android.os.IBinder;
 import android.util.Log;
 
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Locale;
 
 // This class will instantiate TestScheduler and start/stop each test feature (GPS, Sensor, Data connection)
 // It also provides sendStatus function to send status messages to Status Fragment
+// In MATRIX run mode the tests are started and stopped by MatrixRunner instead
+// In BUDGET run mode BudgetTuner adjusts the test intervals while the tests run
+// In BASELINE run mode the tests run with no-op bodies to measure the harness overhead
 // It is started in ConfigureFragment and stopped in StatusFragment
 public class MainService extends Service {
     private static final String TAG = "verifi.MainService";
+    //time the test messages still queued at stop get to run before the wakelocks are released
+    private static final long SCHEDULER_STOP_TIMEOUT_MS = 5000;
     public static TestScheduler testScheduler;
+    private static MatrixRunner matrixRunner;
+    private static BudgetTuner budgetTuner;
+    private static BatterySampler batterySampler;
+    private static TestEnergyMeter testEnergyMeter;
+    private static WakeLockManager wakeLockManager;
+    private static PowerStateTracker powerStateTracker;
+    private static ConnectivityTracker connectivityTracker;
+    private static WakeupCpuProfiler wakeupCpuProfiler;
+    private static RadioActivityMonitor radioActivityMonitor;
+    private static ResultCollector resultCollector;
+    private static UploadClient uploadClient;
+    private static NetworkBinder networkBinder;
     private TestPreference testPref;
     public static final String SENDSTATUS = "SENDSTATUS";
 
     private DataConnAlarm dataConnAlarm;
     private SensorAlarm sensorAlarm;
+    private BatteryLifeMonitor batteryLifeMonitor;
+    private RunRecorder runRecorder;
 
     //add new test alarm class object here
 
@@ -41,6 +64,9 @@ public class MainService extends Service {
     public void onCreate() {
         super.onCreate();
 
+        //Wakelocks of all tests, TestScheduler and the tests use it
+        wakeLockManager = new WakeLockManager(this);
+
         //Create Test Scheduler object
         testScheduler = new TestScheduler("VerifiTestScheduler", this);
         testScheduler.start();
@@ -74,7 +100,172 @@ public class MainService extends Service {
         String ts = new SimpleDateFormat("MM-dd HH:mm:ss", Locale.US).format(df);
         sendStatus(ts + " - Start Test");
 
+        //Live metrics start from zero for every run
+        MetricsRegistry.getInstance().reset();
+
+        //Trace the test stages, written to verifi_trace.json at stop
+        TraceRecorder.start();
+
+        //One HTTP client for every upload of the run
+        uploadClient = new UploadClient();
+
+        //Spool the run data for the fleet collector, if one is set
+        if (!testPref.getCollectorUrl().isEmpty()) {
+            try {
+                resultCollector = new ResultCollector(this, testPref.getCollectorUrl());
+                resultCollector.start();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to start result collector", e);
+                sendStatus("Result collector failed to start: " + e.getMessage());
+            }
+        }
+
+        //Sample the battery on test wakeups for the whole run
+        batterySampler = new BatterySampler(this);
+        batterySampler.start();
+
+        //Measure the CPU time of every test wakeup
+        wakeupCpuProfiler = new WakeupCpuProfiler(this);
+        wakeupCpuProfiler.start();
+
+        //Record Doze, screen, charging and network state for the whole run
+        powerStateTracker = new PowerStateTracker(this);
+        powerStateTracker.start();
+
+        //Cache the connectivity state for the tests and record its transitions
+        connectivityTracker = new ConnectivityTracker(this);
+        connectivityTracker.start();
+
+        //Split every upload into radio ramp-up, transfer and tail time
+        radioActivityMonitor = new RadioActivityMonitor(this);
+        radioActivityMonitor.start();
+
+        //Measure the energy of each test execution
+        testEnergyMeter = new TestEnergyMeter(this);
+        testEnergyMeter.start();
+
+        //Record drain and CPU time of the whole run for the run summary
+        runRecorder = new RunRecorder(this);
+        runRecorder.start();
+
         //Start Test based on TestPreference settings
+        if (testPref.getRunMode() == RunMode.MATRIX) {
+            //The matrix runner applies each cell's settings and starts/stops the tests itself
+            matrixRunner = new MatrixRunner(this);
+            matrixRunner.start();
+        } else {
+            startTests();
+        }
+
+        if (testPref.getRunMode() == RunMode.BUDGET) {
+            //The budget tuner adjusts the test intervals while the tests are running
+            budgetTuner = new BudgetTuner(this);
+            budgetTuner.start();
+        }
+
+        //Report projected battery life as the battery level drops
+        batteryLifeMonitor = new BatteryLifeMonitor(this);
+        batteryLifeMonitor.start();
+
+        Log.d(TAG, "MainService started...");
+
+        //If service is killed while starting, it restarts.
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (matrixRunner != null) {
+            matrixRunner.stop();
+            matrixRunner = null;
+        }
+
+        if (budgetTuner != null) {
+            budgetTuner.stop();
+            budgetTuner = null;
+        }
+
+        if (batteryLifeMonitor != null) {
+            batteryLifeMonitor.stop();
+            batteryLifeMonitor = null;
+        }
+
+        //Stop all started tests
+        stopTests();
+
+        //the STOP messages posted by stopTests run first, they still measure, trace and report the last session
+        //and release their own wakelocks
+        if(testScheduler != null){
+            testScheduler.quitSafely();
+            //testScheduler.interrupt();
+
+            try {
+                testScheduler.join(SCHEDULER_STOP_TIMEOUT_MS);
+            }
+            catch (InterruptedException e){
+                Log.e(TAG,"HandlerThread interrupted");
+            }
+        }
+
+        //decide on the collector's last flush while the power and radio trackers still run
+        boolean lastFlush = resultCollector != null && resultCollector.canFlushNow();
+
+        if (runRecorder != null) {
+            runRecorder.finish();
+            runRecorder = null;
+        }
+
+        if (testEnergyMeter != null) {
+            testEnergyMeter.stop();
+            testEnergyMeter = null;
+        }
+
+        if (connectivityTracker != null) {
+            connectivityTracker.stop();
+            connectivityTracker = null;
+        }
+
+        if (powerStateTracker != null) {
+            powerStateTracker.stop();
+            powerStateTracker = null;
+        }
+
+        if (radioActivityMonitor != null) {
+            radioActivityMonitor.stop();
+            radioActivityMonitor = null;
+        }
+
+        if (wakeupCpuProfiler != null) {
+            wakeupCpuProfiler.stop();
+            wakeupCpuProfiler = null;
+        }
+
+        if (batterySampler != null) {
+            batterySampler.stop();
+            batterySampler = null;
+        }
+
+        TraceRecorder.stop(this);
+
+        //the collector sends its last batches over the upload client, it is stopped first and waited for
+        if (resultCollector != null) {
+            resultCollector.stop(lastFlush);
+            resultCollector = null;
+        }
+
+        if (uploadClient != null) {
+            uploadClient.close();
+            uploadClient = null;
+        }
+
+        wakeLockManager.releaseAll();
+
+        Log.d(TAG, "MainService stopped...");
+    }
+
+    //Start the enabled tests using the current TestPreference settings
+    public void startTests() {
         if (testPref.isEnableGPS()) {
             testScheduler.startGPSTest();
             sendStatus("Type: " + testPref.getGpsType() + " Interval: " + testPref.getGpsInterval() + " sec");
@@ -89,43 +280,55 @@ public class MainService extends Service {
         if (testPref.isEnableDataConn()) {
             //Create Data connection Alarm. Its alarm receiver will start Data Conn Test
             dataConnAlarm = new DataConnAlarm(getApplicationContext());
-            sendStatus("Type: " + testPref.getDataConnType() + " Interval: " + testPref.getDataConnInterval() + " sec");
+            sendStatus("Type: " + testPref.getDataConnType() + " Interval: " + testPref.getDataConnInterval() + " sec"
+                    + " Connection: " + testPref.getConnectionMode() + " Network: " + testPref.getNetworkBinding());
+
+            //Hold the transports the uploads are bound to, whatever the default network is
+            if (testPref.getNetworkBinding() != NetworkBinding.DEFAULT) {
+                networkBinder = new NetworkBinder(this);
+                if (testPref.getNetworkBinding() == NetworkBinding.DUAL)
+                    networkBinder.start(DataConnType.WIFI, DataConnType.CELL);
+                else
+                    networkBinder.start(testPref.getDataConnType());
+            }
         }
 
         //add new test start or alarm creation here
-
-        Log.d(TAG, "MainService started...");
-
-        //If service is killed while starting, it restarts.
-        return START_STICKY;
     }
 
-    @Override
-    public void onDestroy() {
-        super.onDestroy();
-        //Stop Test based on TestPreference settings
-        if (testPref.isEnableGPS()) {
-            testScheduler.stopGPSTest();
-        }
+    //Stop every test that was started by startTests
+    public void stopTests() {
+        //GpsTest ignores the stop request if it is not running
+        testScheduler.stopGPSTest();
 
-        if (testPref.isEnableSensor()) {
+        if (sensorAlarm != null) {
             testScheduler.stopSensorTest();
             sensorAlarm.stopSensorAlarm();
+            sensorAlarm = null;
         }
 
-        if (testPref.isEnableDataConn()) {
+        if (dataConnAlarm != null) {
             testScheduler.stopDataConnTest();
             dataConnAlarm.stopDataConnAlarm();
+            dataConnAlarm = null;
         }
 
-        if(testScheduler != null){
-            testScheduler.quitSafely();
-            //testScheduler.interrupt();
+        if (networkBinder != null) {
+            networkBinder.stop();
+            networkBinder = null;
         }
 
         //add new test termination here
+    }
 
-        Log.d(TAG, "MainService stopped...");
+    //Print the live metrics for adb shell dumpsys activity service com.mason.verifi/.MainService
+    //Add --json for machine-readable output
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        boolean json = args != null && Arrays.asList(args).contains("--json");
+        if (!json)
+            writer.println("Verifi run mode " + testPref.getRunMode());
+        MetricsRegistry.getInstance().dump(writer, json);
     }
 
     //make this thread-safe using synchronized
@@ -140,4 +343,52 @@ public class MainService extends Service {
         return testScheduler;
     }
 
+    public static MatrixRunner getMatrixRunner() {
+        return matrixRunner;
+    }
+
+    public static BudgetTuner getBudgetTuner() {
+        return budgetTuner;
+    }
+
+    public static BatterySampler getBatterySampler() {
+        return batterySampler;
+    }
+
+    public static TestEnergyMeter getTestEnergyMeter() {
+        return testEnergyMeter;
+    }
+
+    public static WakeLockManager getWakeLockManager() {
+        return wakeLockManager;
+    }
+
+    public static PowerStateTracker getPowerStateTracker() {
+        return powerStateTracker;
+    }
+
+    public static ConnectivityTracker getConnectivityTracker() {
+        return connectivityTracker;
+    }
+
+    public static WakeupCpuProfiler getWakeupCpuProfiler() {
+        return wakeupCpuProfiler;
+    }
+
+    public static RadioActivityMonitor getRadioActivityMonitor() {
+        return radioActivityMonitor;
+    }
+
+    public static ResultCollector getResultCollector() {
+        return resultCollector;
+    }
+
+    public static UploadClient getUploadClient() {
+        return uploadClient;
+    }
+
+    public static NetworkBinder getNetworkBinder() {
+        return networkBinder;
+    }
+
 }
\ No newline at end of file
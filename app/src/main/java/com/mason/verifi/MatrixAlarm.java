@@ -0,0 +1,69 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+// This class creates one-shot timer using Alarm service
+// to move the experiment matrix run to its next phase (end of warm-up or end of cell)
+public class MatrixAlarm extends BroadcastReceiver {
+    private static final String TAG = "verifi.MatrixAlarm";
+    public static final String MATRIX_ALARM_ACTION = "matrix_alarm_action";
+    private AlarmManager matrixAlarmManager;
+    private PendingIntent matrixPendingIntent;
+
+    // this constructor is called by the alarm manager
+    public MatrixAlarm() {
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final String action = intent.getAction();
+        Log.d(TAG, "Matrix Alarm is triggered at Current time: " + System.currentTimeMillis());
+
+        if (action.equals(MATRIX_ALARM_ACTION)) {
+            if (MainService.getMatrixRunner() != null)
+                MainService.getMatrixRunner().onAlarm();
+            else
+                Log.e(TAG, "Failed to advance Experiment Matrix. Null MatrixRunner reference");
+        }
+    }
+
+    public void startMatrixAlarm(Context context, int delaySec) {
+        Intent intent = new Intent(context, MatrixAlarm.class).setAction(MATRIX_ALARM_ACTION);
+
+        matrixPendingIntent = PendingIntent.getBroadcast(
+                context, 5130, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+
+        matrixAlarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+
+        long currentTime = System.currentTimeMillis();
+        long alarmTime =  currentTime + delaySec * 1000L;
+
+        matrixAlarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, alarmTime, matrixPendingIntent);
+
+        Log.d(TAG, "Current time: " + currentTime + " set Matrix Alarm to: " + alarmTime);
+    }
+
+    public void stopMatrixAlarm() {
+        if (matrixAlarmManager != null)
+            matrixAlarmManager.cancel(matrixPendingIntent);
+    }
+}
@@ -0,0 +1,150 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import android.os.BatteryManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Locale;
+
+// This class runs every cell of an experiment matrix back to back
+// Each cell applies its parameters to TestPreference, restarts the tests, discards the warm-up period
+// and measures battery drain for the cell duration. The comparison table is rewritten after every cell
+// It is instantiated by MainService when the run mode is MATRIX and driven by MatrixAlarm
+public class MatrixRunner {
+    private static final String TAG = "verifi.MatrixRunner";
+    private static final String MATRIX_RESULT_FILENAME = "verifi_matrix_results.csv";
+
+    private final MainService parentService;
+    private final TestPreference testPref;
+    private final MatrixAlarm matrixAlarm;
+
+    private ExperimentMatrix matrix;
+    private int cellIndex = 0;
+    private boolean measuring = false;
+
+    private long measureStartMs;
+    private int startLevel;
+    private int startCharge;
+
+    public MatrixRunner(MainService pService) {
+        parentService = pService;
+        testPref = TestPreference.getInstance();
+        matrixAlarm = new MatrixAlarm();
+    }
+
+    //Load the grid file from the app files folder and start the first cell
+    public boolean start() {
+        File file = new File(parentService.getExternalFilesDir(null), testPref.getMatrixFile());
+
+        try (Reader reader = new FileReader(file)) {
+            matrix = ExperimentMatrix.parse(reader);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load experiment matrix " + file, e);
+            parentService.sendStatus("Experiment matrix failed. " + e.getMessage());
+            return false;
+        }
+
+        matrix.shuffle();
+        parentService.sendStatus("Experiment matrix: " + matrix.getCells().size() + " cells x "
+                + matrix.getCellDurationSec() + " sec, warm-up " + matrix.getWarmupSec()
+                + " sec, seed " + matrix.getSeed());
+
+        startCell(0);
+        return true;
+    }
+
+    public void stop() {
+        matrixAlarm.stopMatrixAlarm();
+    }
+
+    //Called by MatrixAlarm at the end of the warm-up and at the end of each cell
+    public void onAlarm() {
+        if (matrix == null || cellIndex >= matrix.getCells().size())
+            return;
+
+        if (!measuring)
+            beginMeasurement();
+        else
+            endCell();
+    }
+
+    private void startCell(int index) {
+        cellIndex = index;
+        measuring = false;
+
+        ExperimentMatrix.Cell cell = matrix.getCells().get(cellIndex);
+        ExperimentMatrix.apply(cell, testPref);
+
+        parentService.sendStatus("Cell " + (cellIndex + 1) + "/" + matrix.getCells().size() + ": " + cell.describe());
+        parentService.startTests();
+
+        if (matrix.getWarmupSec() > 0)
+            matrixAlarm.startMatrixAlarm(parentService, matrix.getWarmupSec());
+        else
+            beginMeasurement();
+    }
+
+    private void beginMeasurement() {
+        measuring = true;
+        measureStartMs = SystemClock.elapsedRealtime();
+        startLevel = BatterySampler.getBatteryProperty(parentService, BatteryManager.BATTERY_PROPERTY_CAPACITY);
+        startCharge = BatterySampler.getBatteryProperty(parentService, BatteryManager.BATTERY_PROPERTY_CHARGE_COUNTER);
+
+        matrixAlarm.startMatrixAlarm(parentService, matrix.getCellDurationSec());
+    }
+
+    private void endCell() {
+        ExperimentMatrix.Cell cell = matrix.getCells().get(cellIndex);
+        int endCharge = BatterySampler.getBatteryProperty(parentService, BatteryManager.BATTERY_PROPERTY_CHARGE_COUNTER);
+
+        cell.measured = true;
+        cell.measuredMs = SystemClock.elapsedRealtime() - measureStartMs;
+        cell.startLevel = startLevel;
+        cell.endLevel = BatterySampler.getBatteryProperty(parentService, BatteryManager.BATTERY_PROPERTY_CAPACITY);
+        cell.chargeUsedUah = (startCharge > 0 && endCharge > 0) ? startCharge - endCharge : -1;
+
+        parentService.stopTests();
+        parentService.sendStatus(String.format(Locale.US, "Cell %d drain: %.2f %%/h",
+                cellIndex + 1, cell.getDrainPctPerHour()));
+
+        writeResults();
+
+        if (cellIndex + 1 < matrix.getCells().size()) {
+            startCell(cellIndex + 1);
+        } else {
+            cellIndex++;
+            parentService.sendStatus("Experiment matrix finished. Results in " + MATRIX_RESULT_FILENAME);
+        }
+    }
+
+    //rewrite the whole table so partial results survive if the battery runs out
+    private void writeResults() {
+        File file = new File(parentService.getExternalFilesDir(null), MATRIX_RESULT_FILENAME);
+        try (Writer writer = new FileWriter(file)) {
+            matrix.writeTable(writer);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write experiment matrix results", e);
+            parentService.sendStatus("Got IOException. Failed to write " + MATRIX_RESULT_FILENAME);
+        }
+    }
+}
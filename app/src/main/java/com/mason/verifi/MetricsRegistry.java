@@ -0,0 +1,251 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// This class keeps the live metrics of the run: counters, gauges and latency histograms
+// Metrics are registered once, when the class using them is created, and kept in a field
+// Recording a value is lock-free and does not allocate, so it can be done on every test event
+// Histograms have a fixed number of log buckets (8 per power of 2, at most 12.5% error)
+// MainService prints a snapshot from its dump(), see README for the adb command
+// It is a singleton class and has no Android dependency
+public class MetricsRegistry {
+
+    private static final MetricsRegistry single_instance = new MetricsRegistry();
+
+    private final List<Counter> counters = new ArrayList<>();
+    private final List<Gauge> gauges = new ArrayList<>();
+    private final List<Histogram> histograms = new ArrayList<>();
+
+    public static MetricsRegistry getInstance() {
+        return single_instance;
+    }
+
+    //Register a counter, or get the one registered with the same name
+    public synchronized Counter counter(String name) {
+        for (Counter c : counters) {
+            if (c.name.equals(name))
+                return c;
+        }
+        Counter c = new Counter(name);
+        counters.add(c);
+        return c;
+    }
+
+    public synchronized Gauge gauge(String name) {
+        for (Gauge g : gauges) {
+            if (g.name.equals(name))
+                return g;
+        }
+        Gauge g = new Gauge(name);
+        gauges.add(g);
+        return g;
+    }
+
+    //name should end with the unit of the recorded values, e.g. _ms
+    public synchronized Histogram histogram(String name) {
+        for (Histogram h : histograms) {
+            if (h.name.equals(name))
+                return h;
+        }
+        Histogram h = new Histogram(name);
+        histograms.add(h);
+        return h;
+    }
+
+    //Clear every value, used at the start of a run
+    public synchronized void reset() {
+        for (Counter c : counters)
+            c.value.set(0);
+        for (Gauge g : gauges)
+            g.bits.set(Double.doubleToRawLongBits(Double.NaN));
+        for (Histogram h : histograms)
+            h.reset();
+    }
+
+    //Print a snapshot, as text or as one JSON object
+    public synchronized void dump(PrintWriter writer, boolean json) {
+        if (json) {
+            writer.print("{\"counters\":{");
+            for (int i = 0; i < counters.size(); i++)
+                writer.print((i > 0 ? "," : "") + "\"" + counters.get(i).name + "\":" + counters.get(i).get());
+
+            writer.print("},\"gauges\":{");
+            for (int i = 0; i < gauges.size(); i++) {
+                double v = gauges.get(i).get();
+                writer.print((i > 0 ? "," : "") + "\"" + gauges.get(i).name + "\":" + (Double.isNaN(v) ? "null" : String.valueOf(v)));
+            }
+
+            writer.print("},\"histograms\":{");
+            for (int i = 0; i < histograms.size(); i++) {
+                Histogram h = histograms.get(i);
+                double mean = h.getMean();
+                writer.print(String.format(Locale.US, "%s\"%s\":{\"count\":%d,\"mean\":%s,\"max\":%d,\"p50\":%d,\"p95\":%d,\"p99\":%d}",
+                        i > 0 ? "," : "", h.name, h.getCount(),
+                        Double.isNaN(mean) ? "null" : String.format(Locale.US, "%.3f", mean), h.getMax(),
+                        h.getPercentile(50), h.getPercentile(95), h.getPercentile(99)));
+            }
+            writer.println("}}");
+            return;
+        }
+
+        writer.println("Counters:");
+        for (Counter c : counters)
+            writer.println("  " + c.name + " = " + c.get());
+
+        writer.println("Gauges:");
+        for (Gauge g : gauges)
+            writer.println(String.format(Locale.US, "  %s = %.3f", g.name, g.get()));
+
+        writer.println("Histograms:");
+        for (Histogram h : histograms)
+            writer.println("  " + h.name + " " + h.format());
+    }
+
+    public static final class Counter {
+        final String name;
+        private final AtomicLong value = new AtomicLong();
+
+        Counter(String name) {
+            this.name = name;
+        }
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    public static final class Gauge {
+        final String name;
+        private final AtomicLong bits = new AtomicLong(Double.doubleToRawLongBits(Double.NaN));
+
+        Gauge(String name) {
+            this.name = name;
+        }
+
+        public void set(double v) {
+            bits.set(Double.doubleToRawLongBits(v));
+        }
+
+        public double get() {
+            return Double.longBitsToDouble(bits.get());
+        }
+    }
+
+    public static final class Histogram {
+        static final int SUB_BITS = 3;
+        static final int SUB_BUCKETS = 1 << SUB_BITS;
+        static final int BUCKET_COUNT = (64 - SUB_BITS) * SUB_BUCKETS;
+
+        final String name;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram(String name) {
+            this.name = name;
+        }
+
+        //values below 0 are recorded as 0
+        public void record(long value) {
+            if (value < 0)
+                value = 0;
+            buckets.incrementAndGet(bucketOf(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+
+            long m;
+            while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+                //retry
+            }
+        }
+
+        //values below SUB_BUCKETS have their own bucket, above that each power of 2 has SUB_BUCKETS buckets
+        static int bucketOf(long value) {
+            if (value < SUB_BUCKETS)
+                return (int) value;
+            int exp = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        static long lowerBound(int bucket) {
+            if (bucket < SUB_BUCKETS)
+                return bucket;
+            int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            long sub = bucket % SUB_BUCKETS;
+            return (SUB_BUCKETS + sub) << (exp - SUB_BITS);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public double getMean() {
+            long n = count.get();
+            return n > 0 ? (double) sum.get() / n : Double.NaN;
+        }
+
+        //Upper bound of the bucket holding the percentile, at most the max value; 0 if empty
+        public long getPercentile(double percentile) {
+            long n = count.get();
+            if (n == 0)
+                return 0;
+
+            long rank = (long) Math.ceil(percentile / 100.0 * n);
+            long seen = 0;
+            for (int b = 0; b < BUCKET_COUNT; b++) {
+                seen += buckets.get(b);
+                if (seen >= Math.max(rank, 1)) {
+                    long upper = b + 1 < BUCKET_COUNT ? lowerBound(b + 1) - 1 : Long.MAX_VALUE;
+                    return Math.min(upper, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        public String format() {
+            return String.format(Locale.US, "count %d mean %.1f p50 %d p95 %d p99 %d max %d",
+                    getCount(), getMean(), getPercentile(50), getPercentile(95), getPercentile(99), getMax());
+        }
+
+        void reset() {
+            for (int b = 0; b < BUCKET_COUNT; b++)
+                buckets.set(b, 0);
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+    }
+}
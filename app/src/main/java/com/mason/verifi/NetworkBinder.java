@@ -0,0 +1,110 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+// This class holds a network request for each transport the data connection test is bound to, so uploads
+// go over cellular or Wi-Fi whatever the default network is and no radio has to be turned off
+// requestNetwork brings the transport up, e.g. cellular data while Wi-Fi is connected, and keeps it up
+// until the request is released. DataConnTest gets the Network and UploadClient uses its socket factory
+// and DNS. The requests are held while the data connection test runs, not per wakeup, since bringing
+// a transport up takes longer than an upload
+// It is instantiated by MainService
+public class NetworkBinder {
+    private static final String TAG = "verifi.NetworkBinder";
+
+    private final MainService parentService;
+    private final ConnectivityManager connectivityManager;
+    private final TransportCallback[] callbacks = new TransportCallback[DataConnType.values().length];
+
+    private class TransportCallback extends ConnectivityManager.NetworkCallback {
+        private final DataConnType type;
+        private Network network;
+
+        TransportCallback(DataConnType type) {
+            this.type = type;
+        }
+
+        @Override
+        public void onAvailable(@NonNull Network net) {
+            synchronized (NetworkBinder.this) {
+                network = net;
+            }
+            Log.d(TAG, "Bound " + type + " network available");
+        }
+
+        @Override
+        public void onLost(@NonNull Network net) {
+            synchronized (NetworkBinder.this) {
+                if (net.equals(network))
+                    network = null;
+            }
+            UploadClient uploadClient = MainService.getUploadClient();
+            if (uploadClient != null)
+                uploadClient.forget(net);
+            Log.d(TAG, "Bound " + type + " network lost");
+        }
+
+        @Override
+        public void onUnavailable() {
+            parentService.sendStatus("No " + type + " network could be brought up for the data connection test");
+        }
+    }
+
+    public NetworkBinder(MainService pService) {
+        parentService = pService;
+        connectivityManager = (ConnectivityManager) pService.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    //Request a network of each given transport
+    public synchronized void start(DataConnType... types) {
+        for (DataConnType type : types) {
+            if (callbacks[type.ordinal()] != null)
+                continue;
+            NetworkRequest request = new NetworkRequest.Builder()
+                    .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                    .addTransportType(type == DataConnType.CELL ? NetworkCapabilities.TRANSPORT_CELLULAR
+                            : NetworkCapabilities.TRANSPORT_WIFI)
+                    .build();
+            TransportCallback callback = new TransportCallback(type);
+            callbacks[type.ordinal()] = callback;
+            connectivityManager.requestNetwork(request, callback);
+        }
+    }
+
+    //Release the requests, the system tears down a transport nothing else needs
+    public synchronized void stop() {
+        for (int i = 0; i < callbacks.length; i++) {
+            if (callbacks[i] == null)
+                continue;
+            connectivityManager.unregisterNetworkCallback(callbacks[i]);
+            callbacks[i] = null;
+        }
+    }
+
+    //Network of the transport, null if it is not requested or not up
+    public synchronized Network getNetwork(DataConnType type) {
+        TransportCallback callback = callbacks[type.ordinal()];
+        return callback != null ? callback.network : null;
+    }
+}
@@ -0,0 +1,133 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+// This class is an upload body that is streamed to the connection instead of being staged in a file
+// The bytes come either from a range of a file descriptor, e.g. an asset of the APK, or from a synthetic
+// generator of a given size and entropy. Both go through one buffer of the body, so the memory used does
+// not depend on the payload size
+// The body can be written more than once, OkHttp does that when it retries a request on a new connection
+// It has no Android dependency so it can be checked in JVM unit tests
+public class PayloadBody extends RequestBody {
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private final MediaType contentType;
+    private final long length;
+
+    //file range, channel is null for a synthetic body
+    private final FileChannel channel;
+    private final long offset;
+
+    //synthetic, share of each buffer that is random, the rest is zeros
+    private final int entropyPct;
+    private final long seed;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private PayloadBody(MediaType contentType, long length, FileChannel channel, long offset, int entropyPct, long seed) {
+        this.contentType = contentType;
+        this.length = length;
+        this.channel = channel;
+        this.offset = offset;
+        this.entropyPct = entropyPct;
+        this.seed = seed;
+    }
+
+    //Body of length bytes of fd from offset. The caller keeps fd open until the call is over and closes it
+    //Positional reads are used so the position of fd does not matter
+    public static PayloadBody fromFile(FileDescriptor fd, long offset, long length, MediaType contentType) {
+        //not closed, closing it would close fd
+        FileChannel channel = new FileInputStream(fd).getChannel();
+        return new PayloadBody(contentType, length, channel, offset, 0, 0);
+    }
+
+    //Body of length generated bytes. entropyPct 100 is random data that does not compress, 0 is all zeros
+    //The same seed gives the same bytes
+    public static PayloadBody synthetic(long length, int entropyPct, long seed, MediaType contentType) {
+        if (length < 0 || entropyPct < 0 || entropyPct > 100)
+            throw new IllegalArgumentException("Invalid synthetic payload: " + length + " bytes, " + entropyPct + "% entropy");
+        return new PayloadBody(contentType, length, null, 0, entropyPct, seed);
+    }
+
+    @Nullable
+    @Override
+    public MediaType contentType() {
+        return contentType;
+    }
+
+    @Override
+    public long contentLength() {
+        return length;
+    }
+
+    @Override
+    public void writeTo(@NonNull BufferedSink sink) throws IOException {
+        if (channel != null)
+            writeFile(sink);
+        else
+            writeSynthetic(sink);
+    }
+
+    private void writeFile(BufferedSink sink) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        long written = 0;
+        while (written < length) {
+            byteBuffer.clear();
+            byteBuffer.limit((int) Math.min(BUFFER_SIZE, length - written));
+            int n = channel.read(byteBuffer, offset + written);
+            if (n < 0)
+                throw new IOException("Payload file ended after " + written + " of " + length + " bytes");
+            sink.write(buffer, 0, n);
+            written += n;
+        }
+    }
+
+    private void writeSynthetic(BufferedSink sink) throws IOException {
+        //xorshift64, restarted on every write so a retry sends the same bytes
+        long state = seed != 0 ? seed : 0x9E3779B97F4A7C15L;
+        long written = 0;
+        while (written < length) {
+            int n = (int) Math.min(BUFFER_SIZE, length - written);
+            int random = (int) ((long) n * entropyPct / 100);
+            for (int i = 0; i < random; i += 8) {
+                state ^= state << 13;
+                state ^= state >>> 7;
+                state ^= state << 17;
+                long r = state;
+                for (int j = i; j < Math.min(i + 8, random); j++) {
+                    buffer[j] = (byte) r;
+                    r >>>= 8;
+                }
+            }
+            Arrays.fill(buffer, random, n, (byte) 0);
+            sink.write(buffer, 0, n);
+            written += n;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.Okio;
+
+// This class is a bounded queue of upload payloads on disk, used by the batched upload mode
+// Every payload is one record in the queue file: enqueue wall time (8 bytes), length (8 bytes), bytes
+// The queue survives a restart, a record cut short by a crash is dropped when the file is opened
+// Sent payloads are removed by copying the rest to a new file, which is small since the queue is bounded
+// A full queue refuses new payloads
+// It has no Android dependency so it can be checked in JVM unit tests
+public class PayloadQueue {
+    private static final int HEADER_SIZE = 16;
+
+    private final File file;
+    private final int maxPayloads;
+    private final long maxBytes;
+
+    private long[] wallMs = new long[16];
+    private long[] offset = new long[16];
+    private long[] length = new long[16];
+    private int size = 0;
+    private long end = 0;
+
+    private RandomAccessFile reader;
+
+    public PayloadQueue(File file, int maxPayloads, long maxBytes) throws IOException {
+        this.file = file;
+        this.maxPayloads = maxPayloads;
+        this.maxBytes = maxBytes;
+        load();
+    }
+
+    private void load() throws IOException {
+        if (!file.exists())
+            return;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long fileLength = raf.length();
+            long pos = 0;
+            while (pos + HEADER_SIZE <= fileLength) {
+                raf.seek(pos);
+                long time = raf.readLong();
+                long len = raf.readLong();
+                if (len < 0 || pos + HEADER_SIZE + len > fileLength)
+                    break;
+                append(time, pos + HEADER_SIZE, len);
+                pos += HEADER_SIZE + len;
+            }
+            //torn last record
+            if (pos < fileLength)
+                raf.setLength(pos);
+            end = pos;
+        }
+    }
+
+    private void append(long time, long payloadOffset, long payloadLength) {
+        if (size == wallMs.length) {
+            wallMs = Arrays.copyOf(wallMs, size * 2);
+            offset = Arrays.copyOf(offset, size * 2);
+            length = Arrays.copyOf(length, size * 2);
+        }
+        wallMs[size] = time;
+        offset[size] = payloadOffset;
+        length[size] = payloadLength;
+        size++;
+    }
+
+    //Append the bytes of body. Returns false if the queue is full
+    public synchronized boolean add(long time, RequestBody body) throws IOException {
+        long len = body.contentLength();
+        if (len < 0)
+            throw new IOException("Payload length is unknown");
+        if (size >= maxPayloads || getBytes() + len > maxBytes)
+            return false;
+
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            FileChannel channel = out.getChannel();
+            //drop what a failed add left behind
+            if (channel.size() != end)
+                channel.truncate(end);
+            BufferedSink sink = Okio.buffer(Okio.sink(out));
+            sink.writeLong(time);
+            sink.writeLong(len);
+            body.writeTo(sink);
+            sink.flush();
+            long written = channel.size() - end - HEADER_SIZE;
+            if (written != len) {
+                channel.truncate(end);
+                throw new IOException("Payload wrote " + written + " of " + len + " bytes");
+            }
+        }
+        append(time, end + HEADER_SIZE, len);
+        end += HEADER_SIZE + len;
+        return true;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    //bytes of the queued payloads
+    public synchronized long getBytes() {
+        return end - (long) size * HEADER_SIZE;
+    }
+
+    public synchronized long getWallMs(int i) {
+        return wallMs[i];
+    }
+
+    //wall time the oldest payload was queued, -1 if the queue is empty
+    public synchronized long getOldestWallMs() {
+        return size > 0 ? wallMs[0] : -1;
+    }
+
+    //Body that streams payload i from the queue file. It is valid until the next remove() or close()
+    public synchronized RequestBody getBody(int i, MediaType contentType) throws IOException {
+        if (reader == null)
+            reader = new RandomAccessFile(file, "r");
+        return PayloadBody.fromFile(reader.getFD(), offset[i], length[i], contentType);
+    }
+
+    //Remove the payloads marked as sent, the others keep their order
+    //sent covers the payloads that were in the queue when the batch was sent, the ones added since are kept
+    public synchronized void remove(boolean[] sent) throws IOException {
+        closeReader();
+
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (!isSent(sent, i))
+                kept++;
+        }
+        if (kept == size)
+            return;
+
+        if (kept == 0) {
+            if (file.exists() && !file.delete())
+                throw new IOException("Failed to delete " + file);
+            size = 0;
+            end = 0;
+            return;
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        long[] newOffset = new long[size];
+        long pos = 0;
+        try (FileChannel src = new RandomAccessFile(file, "r").getChannel();
+             FileChannel dst = new FileOutputStream(tmp).getChannel()) {
+            for (int i = 0; i < size; i++) {
+                if (isSent(sent, i))
+                    continue;
+                long start = offset[i] - HEADER_SIZE;
+                long count = HEADER_SIZE + length[i];
+                long copied = 0;
+                while (copied < count)
+                    copied += src.transferTo(start + copied, count - copied, dst);
+                newOffset[i] = pos + HEADER_SIZE;
+                pos += count;
+            }
+            dst.force(false);
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("Failed to replace " + file);
+
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            if (isSent(sent, i))
+                continue;
+            wallMs[j] = wallMs[i];
+            offset[j] = newOffset[i];
+            length[j] = length[i];
+            j++;
+        }
+        size = kept;
+        end = pos;
+    }
+
+    private static boolean isSent(boolean[] sent, int i) {
+        return i < sent.length && sent[i];
+    }
+
+    public synchronized void close() {
+        closeReader();
+    }
+
+    private void closeReader() {
+        if (reader == null)
+            return;
+        try {
+            reader.close();
+        } catch (IOException e) {
+            //read only, nothing is lost
+        }
+        reader = null;
+    }
+}
@@ -0,0 +1,165 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import java.util.Arrays;
+import java.util.Locale;
+
+// This class keeps the device power state timeline of a run and splits the run results by power state
+// A power state is a bit mask of Doze, screen on, charging and the connected network
+// Only transitions are stored, as a start time and a state byte per interval
+// Time and battery charge are added up per state when the state changes, test alarm delays and
+// execution times are added up per test and state
+// It has no Android dependency so it can be checked in JVM unit tests
+public class PowerStateTimeline {
+
+    static final int DOZE = 1;
+    static final int SCREEN_ON = 2;
+    static final int CHARGING = 4;
+    static final int WIFI = 8;
+    static final int CELL = 16;
+    static final int STATE_COUNT = 32;
+
+    private long[] startMs;
+    private byte[] states;
+    private int size = 0;
+
+    private int state = -1;
+    private long stateStartMs;
+    private long stateStartChargeUah;
+
+    private final long[] timeMs = new long[STATE_COUNT];
+    private final long[] chargeUah = new long[STATE_COUNT];
+
+    private final long[][] alarmDelayMs = new long[EnergyAttributor.TEST_COUNT][STATE_COUNT];
+    private final int[][] alarms = new int[EnergyAttributor.TEST_COUNT][STATE_COUNT];
+    private final long[][] executionMs = new long[EnergyAttributor.TEST_COUNT][STATE_COUNT];
+    private final int[][] executions = new int[EnergyAttributor.TEST_COUNT][STATE_COUNT];
+
+    public PowerStateTimeline(int initialCapacity) {
+        startMs = new long[Math.max(initialCapacity, 1)];
+        states = new byte[Math.max(initialCapacity, 1)];
+    }
+
+    //Set the current state. Time and charge since the last change are added to the previous state
+    //chargeUah is the battery charge counter, negative if it is not supported
+    public void update(long elapsedMs, int newState, long chargeNowUah) {
+        if (newState == state)
+            return;
+
+        close(elapsedMs, chargeNowUah);
+
+        if (size == startMs.length) {
+            startMs = Arrays.copyOf(startMs, size * 2);
+            states = Arrays.copyOf(states, size * 2);
+        }
+        startMs[size] = elapsedMs;
+        states[size] = (byte) newState;
+        size++;
+
+        state = newState;
+    }
+
+    //Add the time and charge of the current state up to now, e.g. before reading the totals
+    public void close(long elapsedMs, long chargeNowUah) {
+        if (state >= 0) {
+            timeMs[state] += elapsedMs - stateStartMs;
+            //the charge counter goes up while charging, only count discharge
+            if (stateStartChargeUah >= 0 && chargeNowUah >= 0 && stateStartChargeUah > chargeNowUah)
+                chargeUah[state] += stateStartChargeUah - chargeNowUah;
+        }
+        stateStartMs = elapsedMs;
+        stateStartChargeUah = chargeNowUah;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public void addAlarmDelay(int test, long delayMs) {
+        if (state < 0)
+            return;
+        alarmDelayMs[test][state] += Math.max(delayMs, 0);
+        alarms[test][state]++;
+    }
+
+    //executions are counted in the state they started in
+    public void addExecution(int test, int startState, long durationMs) {
+        if (startState < 0)
+            return;
+        executionMs[test][startState] += durationMs;
+        executions[test][startState]++;
+    }
+
+    public int getTransitions() {
+        return size;
+    }
+
+    public long getTransitionMs(int index) {
+        return startMs[index];
+    }
+
+    public int getTransitionState(int index) {
+        return states[index];
+    }
+
+    public long getTimeMs(int powerState) {
+        return timeMs[powerState];
+    }
+
+    public double getCurrentMa(int powerState) {
+        return timeMs[powerState] > 0 ? chargeUah[powerState] / 1000.0 / (timeMs[powerState] / 3600000.0) : Double.NaN;
+    }
+
+    public double getAverageAlarmDelayMs(int test, int powerState) {
+        return alarms[test][powerState] > 0 ? (double) alarmDelayMs[test][powerState] / alarms[test][powerState] : Double.NaN;
+    }
+
+    public double getAverageExecutionMs(int test, int powerState) {
+        return executions[test][powerState] > 0 ? (double) executionMs[test][powerState] / executions[test][powerState] : Double.NaN;
+    }
+
+    //One line per power state seen: time, drain current and per test alarm delay and execution time
+    public String formatSummary() {
+        StringBuilder sb = new StringBuilder();
+        for (int s = 0; s < STATE_COUNT; s++) {
+            if (timeMs[s] == 0)
+                continue;
+
+            sb.append(String.format(Locale.US, "[%s] %.2f h, %.1f mA", describe(s), timeMs[s] / 3600000.0, getCurrentMa(s)));
+            for (int test = 0; test < EnergyAttributor.TEST_COUNT; test++) {
+                if (alarms[test][s] > 0)
+                    sb.append(String.format(Locale.US, ", %s alarm delay %.1f s", EnergyAttributor.TEST_NAMES[test],
+                            getAverageAlarmDelayMs(test, s) / 1000.0));
+                if (executions[test][s] > 0)
+                    sb.append(String.format(Locale.US, ", %s run %.1f s", EnergyAttributor.TEST_NAMES[test],
+                            getAverageExecutionMs(test, s) / 1000.0));
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    public static String describe(int powerState) {
+        if (powerState < 0)
+            return "unknown";
+        return ((powerState & DOZE) != 0 ? "doze" : "active")
+                + ((powerState & SCREEN_ON) != 0 ? " screen on" : " screen off")
+                + ((powerState & CHARGING) != 0 ? " charging" : "")
+                + ((powerState & WIFI) != 0 ? " wifi" : "")
+                + ((powerState & CELL) != 0 ? " cell" : "")
+                + ((powerState & (WIFI | CELL)) == 0 ? " no network" : "");
+    }
+}
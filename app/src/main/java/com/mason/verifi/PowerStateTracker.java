@@ -0,0 +1,161 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+// This class records the device power state while the test is running: Doze, screen, charging and
+// the connected network
+// It only listens to the state change broadcasts and gets the default network from ConnectivityTracker, so it
+// adds no wakeup
+// The state is kept in PowerStateTimeline. Tests tag their events with getState() and the run ends with
+// the drain, alarm delay and test run time split by power state
+// A Doze maintenance window shows up as a short active interval between two doze intervals
+// It is instantiated by MainService
+public class PowerStateTracker extends BroadcastReceiver {
+    private static final String TAG = "verifi.PowerStateTracker";
+    private static final String POWER_STATE_FILENAME = "verifi_power_state.csv";
+
+    private final MainService parentService;
+    private final PowerManager powerManager;
+    private final PowerStateTimeline timeline = new PowerStateTimeline(256);
+
+    private boolean charging;
+    private int network;
+
+    public PowerStateTracker(MainService pService) {
+        parentService = pService;
+        powerManager = (PowerManager) pService.getSystemService(Context.POWER_SERVICE);
+    }
+
+    public void start() {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(PowerManager.ACTION_DEVICE_IDLE_MODE_CHANGED);
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        filter.addAction(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        parentService.registerReceiver(this, filter);
+
+        Intent battery = parentService.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        charging = battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+
+        update();
+    }
+
+    public void stop() {
+        parentService.unregisterReceiver(this);
+
+        String summary;
+        synchronized (this) {
+            timeline.close(SystemClock.elapsedRealtime(), getChargeUah());
+            summary = timeline.formatSummary();
+        }
+
+        for (String line : summary.split("\n")) {
+            if (!line.isEmpty())
+                parentService.sendStatus("Power state " + line);
+        }
+        writeTimeline();
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String action = intent.getAction();
+        if (Intent.ACTION_POWER_CONNECTED.equals(action))
+            charging = true;
+        else if (Intent.ACTION_POWER_DISCONNECTED.equals(action))
+            charging = false;
+
+        update();
+
+        ResultCollector resultCollector = MainService.getResultCollector();
+        if (resultCollector != null && charging)
+            resultCollector.maybeFlush();
+    }
+
+    //Current power state for tagging test events
+    public synchronized int getState() {
+        return timeline.getState();
+    }
+
+    //Called by the test alarms with the time from the requested alarm time to delivery
+    public synchronized void addAlarmDelay(int test, long delayMs) {
+        timeline.addAlarmDelay(test, delayMs);
+    }
+
+    //Called by TestEnergyMeter at the end of a test execution, with the state it started in
+    public synchronized void addExecution(int test, int startState, long durationMs) {
+        timeline.addExecution(test, startState, durationMs);
+    }
+
+    //Called by ConnectivityTracker with the ConnectivitySnapshot transport of the new default network
+    public void setNetwork(int transport) {
+        if (transport == ConnectivitySnapshot.WIFI)
+            network = PowerStateTimeline.WIFI;
+        else if (transport == ConnectivitySnapshot.CELL)
+            network = PowerStateTimeline.CELL;
+        else
+            network = 0;
+        update();
+    }
+
+    private synchronized void update() {
+        int state = network;
+        if (powerManager.isDeviceIdleMode())
+            state |= PowerStateTimeline.DOZE;
+        if (powerManager.isInteractive())
+            state |= PowerStateTimeline.SCREEN_ON;
+        if (charging)
+            state |= PowerStateTimeline.CHARGING;
+
+        if (state != timeline.getState()) {
+            Log.d(TAG, "Power state: " + PowerStateTimeline.describe(state));
+            timeline.update(SystemClock.elapsedRealtime(), state, getChargeUah());
+        }
+    }
+
+    private long getChargeUah() {
+        int charge = BatterySampler.getBatteryProperty(parentService, BatteryManager.BATTERY_PROPERTY_CHARGE_COUNTER);
+        return charge > 0 ? charge : -1;
+    }
+
+    private synchronized void writeTimeline() {
+        File file = new File(parentService.getExternalFilesDir(null), POWER_STATE_FILENAME);
+        try (Writer writer = new FileWriter(file)) {
+            writer.write("elapsed_ms,state,description\n");
+            for (int i = 0; i < timeline.getTransitions(); i++) {
+                int state = timeline.getTransitionState(i);
+                writer.write(String.format(Locale.US, "%d,%d,%s\n", timeline.getTransitionMs(i), state,
+                        PowerStateTimeline.describe(state)));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write power state timeline", e);
+        }
+    }
+}
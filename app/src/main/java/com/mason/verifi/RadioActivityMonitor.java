@@ -0,0 +1,189 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.os.SystemClock;
+import android.telephony.PhoneStateListener;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+// This class tracks the radio around each data connection upload
+// It listens to the TelephonyManager data activity and data connection state and to the Wi-Fi link,
+// and DataConnTest marks the start and end of each upload. RadioTailTracker splits every upload into
+// ramp-up, transfer and tail time, an upload is reported once its tail is over
+// The listener is registered on the main thread, no permission is needed for these two events
+// It is instantiated by MainService
+public class RadioActivityMonitor extends PhoneStateListener {
+    private static final String TAG = "verifi.RadioActivityMonitor";
+    private static final String RADIO_FILENAME = "verifi_radio.csv";
+
+    private final MainService parentService;
+    private final TelephonyManager telephonyManager;
+    private final ConnectivityManager connectivityManager;
+    private final WifiManager wifiManager;
+    private final RadioTailTracker tracker = new RadioTailTracker(64);
+
+    private int networkType = TelephonyManager.NETWORK_TYPE_UNKNOWN;
+    private boolean wifiLinkUp = false;
+    private int reported = 0;
+
+    private final MetricsRegistry.Histogram rampHistogram = MetricsRegistry.getInstance().histogram("radio.ramp_ms");
+    private final MetricsRegistry.Histogram transferHistogram = MetricsRegistry.getInstance().histogram("radio.transfer_ms");
+    private final MetricsRegistry.Histogram tailHistogram = MetricsRegistry.getInstance().histogram("radio.tail_ms");
+
+    private static final int TRACE_TAIL = TraceRecorder.register("radio.tail");
+
+    private final ConnectivityManager.NetworkCallback wifiCallback = new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onAvailable(@NonNull Network network) {
+            setWifiLink(true);
+        }
+
+        @Override
+        public void onLost(@NonNull Network network) {
+            setWifiLink(false);
+        }
+    };
+
+    public RadioActivityMonitor(MainService pService) {
+        parentService = pService;
+        telephonyManager = (TelephonyManager) pService.getSystemService(Context.TELEPHONY_SERVICE);
+        connectivityManager = (ConnectivityManager) pService.getSystemService(Context.CONNECTIVITY_SERVICE);
+        wifiManager = (WifiManager) pService.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+    }
+
+    public void start() {
+        if (telephonyManager != null)
+            telephonyManager.listen(this, PhoneStateListener.LISTEN_DATA_ACTIVITY | PhoneStateListener.LISTEN_DATA_CONNECTION_STATE);
+
+        NetworkRequest wifiRequest = new NetworkRequest.Builder()
+                .addTransportType(NetworkCapabilities.TRANSPORT_WIFI)
+                .build();
+        connectivityManager.registerNetworkCallback(wifiRequest, wifiCallback);
+    }
+
+    public void stop() {
+        if (telephonyManager != null)
+            telephonyManager.listen(this, PhoneStateListener.LISTEN_NONE);
+        connectivityManager.unregisterNetworkCallback(wifiCallback);
+
+        String summary;
+        synchronized (this) {
+            tracker.close(SystemClock.elapsedRealtime());
+            report();
+            summary = tracker.formatSummary();
+        }
+        parentService.sendStatus("Radio: " + summary);
+        writeUploads();
+    }
+
+    @Override
+    public void onDataActivity(int direction) {
+        synchronized (this) {
+            if (tracker.onActivity(SystemClock.elapsedRealtime(), direction))
+                report();
+        }
+
+        //other traffic woke the radio up, results can go along with it
+        ResultCollector resultCollector = MainService.getResultCollector();
+        if (resultCollector != null && direction != TelephonyManager.DATA_ACTIVITY_DORMANT)
+            resultCollector.maybeFlush();
+    }
+
+    public synchronized boolean isRadioActive() {
+        return tracker.isActive();
+    }
+
+    @Override
+    public void onDataConnectionStateChanged(int state, int type) {
+        synchronized (this) {
+            networkType = type;
+            if (tracker.onConnectionState(SystemClock.elapsedRealtime(), state == TelephonyManager.DATA_CONNECTED))
+                report();
+        }
+    }
+
+    private synchronized void setWifiLink(boolean up) {
+        wifiLinkUp = up;
+        Log.d(TAG, "Wi-Fi link " + (up ? "up" : "down"));
+    }
+
+    //Called by DataConnTest before the request is built
+    public synchronized void beginUpload(boolean cell) {
+        int link = networkType;
+        if (!cell) {
+            WifiInfo info = wifiManager != null ? wifiManager.getConnectionInfo() : null;
+            link = wifiLinkUp && info != null ? info.getLinkSpeed() : 0;
+        }
+
+        if (tracker.beginUpload(SystemClock.elapsedRealtime(), cell, link))
+            report();
+    }
+
+    //Called by DataConnTest when the response is received or the request failed
+    public synchronized void endUpload() {
+        if (tracker.endUpload(SystemClock.elapsedRealtime()))
+            report();
+        else if (tracker.isInTail())
+            //ended in report() when the tail is complete
+            TraceRecorder.beginAsync(TRACE_TAIL, tracker.getUploads());
+    }
+
+    //Report the uploads completed since the last call
+    private void report() {
+        for (; reported < tracker.getUploads(); reported++) {
+            int i = reported;
+            if (tracker.isCell(i)) {
+                rampHistogram.record(tracker.getRampMs(i));
+                tailHistogram.record(tracker.getTailMs(i));
+                TraceRecorder.endAsync(TRACE_TAIL, i);
+            }
+            transferHistogram.record(tracker.getTransferMs(i));
+            parentService.sendStatus("Radio: " + tracker.format(i));
+        }
+    }
+
+    private synchronized void writeUploads() {
+        File file = new File(parentService.getExternalFilesDir(null), RADIO_FILENAME);
+        try (Writer writer = new FileWriter(file)) {
+            writer.write("elapsed_ms,transport,link,warm,interval_sec,ramp_ms,transfer_ms,tail_ms,tail_end\n");
+            for (int i = 0; i < tracker.getUploads(); i++) {
+                long interval = tracker.getIntervalMs(i);
+                writer.write(String.format(Locale.US, "%d,%s,%d,%d,%s,%d,%d,%d,%s\n",
+                        tracker.getStartMs(i), tracker.isCell(i) ? "cell" : "wifi", tracker.getLink(i),
+                        tracker.isWarm(i) ? 1 : 0, interval >= 0 ? String.format(Locale.US, "%.1f", interval / 1000.0) : "",
+                        tracker.getRampMs(i), tracker.getTransferMs(i), tracker.getTailMs(i),
+                        RadioTailTracker.END_NAMES[tracker.getTailEnd(i)]));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write radio activity", e);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import java.util.Arrays;
+import java.util.Locale;
+
+// This class splits each upload into radio ramp-up, transfer and tail time
+// It gets the cellular data activity reports (same values as TelephonyManager.DATA_ACTIVITY_*) and the
+// start and end of every upload:
+//   ramp-up  - upload start to the first data activity, the radio is being promoted to connected mode
+//   transfer - first data activity to the end of the upload
+//   tail     - end of the upload until the radio reports dormant
+// A tail is cut short by the next upload, by the data connection going down or by MAX_TAIL_MS
+// The modem only reports activity of the cellular link, so Wi-Fi uploads have their whole time as
+// transfer and no ramp-up or tail
+// The time the cellular radio is out of dormant is added up as well, with or without an upload
+// It has no Android dependency so it can be checked in JVM unit tests
+public class RadioTailTracker {
+
+    static final int ACTIVITY_NONE = 0;
+    static final int ACTIVITY_IN = 1;
+    static final int ACTIVITY_OUT = 2;
+    static final int ACTIVITY_INOUT = 3;
+    static final int ACTIVITY_DORMANT = 4;
+
+    static final int END_DORMANT = 0;
+    static final int END_NEXT_UPLOAD = 1;
+    static final int END_DISCONNECT = 2;
+    static final int END_TIMEOUT = 3;
+    static final int END_STOP = 4;
+    static final int END_NONE = 5;
+    static final String[] END_NAMES = {"dormant", "next_upload", "disconnect", "timeout", "stop", "none"};
+
+    //longest tail expected from the RRC inactivity timers, a longer one means a missed dormant report
+    static final long MAX_TAIL_MS = 60000;
+
+    private static final int IDLE = 0;
+    private static final int RAMP = 1;
+    private static final int TRANSFER = 2;
+    private static final int TAIL = 3;
+
+    //completed uploads
+    private long[] startMs;
+    private boolean[] cell;
+    private boolean[] warm;
+    private int[] link;
+    private long[] rampMs;
+    private long[] transferMs;
+    private long[] tailMs;
+    private byte[] tailEnd;
+    private int size = 0;
+
+    //upload in progress
+    private int phase = IDLE;
+    private long uploadStartMs;
+    private long firstActivityMs;
+    private long transferEndMs;
+    private boolean uploadCell;
+    private boolean uploadWarm;
+    private int uploadLink;
+
+    private int activity = -1;
+    private boolean connected = true;
+    private long activeStartMs = -1;
+    private long activeMs = 0;
+
+    public RadioTailTracker(int initialCapacity) {
+        int capacity = Math.max(initialCapacity, 1);
+        startMs = new long[capacity];
+        cell = new boolean[capacity];
+        warm = new boolean[capacity];
+        link = new int[capacity];
+        rampMs = new long[capacity];
+        transferMs = new long[capacity];
+        tailMs = new long[capacity];
+        tailEnd = new byte[capacity];
+    }
+
+    //Cellular data activity report. Returns true if it completed an upload
+    public boolean onActivity(long elapsedMs, int newActivity) {
+        boolean completed = checkTimeout(elapsedMs);
+        activity = newActivity;
+        updateActive(elapsedMs);
+
+        if (!uploadCell)
+            return completed;
+
+        if (phase == RAMP && newActivity >= ACTIVITY_IN && newActivity <= ACTIVITY_INOUT) {
+            firstActivityMs = elapsedMs;
+            phase = TRANSFER;
+        } else if (phase == TAIL && newActivity == ACTIVITY_DORMANT) {
+            complete(elapsedMs, END_DORMANT);
+            completed = true;
+        }
+        return completed;
+    }
+
+    //Cellular data connection state. Returns true if it completed an upload
+    public boolean onConnectionState(long elapsedMs, boolean isConnected) {
+        boolean completed = checkTimeout(elapsedMs);
+        connected = isConnected;
+        updateActive(elapsedMs);
+
+        if (!isConnected && uploadCell && phase == TAIL) {
+            complete(elapsedMs, END_DISCONNECT);
+            completed = true;
+        }
+        return completed;
+    }
+
+    //Start of an upload. link is the cellular network type or the Wi-Fi link speed in Mbps
+    //Returns true if it completed the previous upload
+    public boolean beginUpload(long elapsedMs, boolean isCell, int linkInfo) {
+        //a missed dormant report must not turn the whole test interval into a tail
+        boolean completed = checkTimeout(elapsedMs);
+        if (phase == TAIL) {
+            complete(elapsedMs, END_NEXT_UPLOAD);
+            completed = true;
+        } else if (phase != IDLE) {
+            //the previous upload never ended, drop it
+            phase = IDLE;
+        }
+
+        phase = RAMP;
+        uploadStartMs = elapsedMs;
+        firstActivityMs = -1;
+        uploadCell = isCell;
+        uploadLink = linkInfo;
+        //the radio is still in connected mode from earlier traffic, no promotion is needed
+        uploadWarm = isCell && isActive();
+        return completed;
+    }
+
+    //End of an upload. Returns true if the upload is complete, i.e. it was not on cellular
+    public boolean endUpload(long elapsedMs) {
+        if (phase != RAMP && phase != TRANSFER)
+            return false;
+
+        transferEndMs = elapsedMs;
+        if (!uploadCell) {
+            firstActivityMs = uploadStartMs;
+            complete(elapsedMs, END_NONE);
+            return true;
+        }
+
+        //no activity was reported during the upload
+        if (firstActivityMs < 0)
+            firstActivityMs = elapsedMs;
+        phase = TAIL;
+        return false;
+    }
+
+    //End the last tail and the active time, e.g. when the test is stopped. Returns true if it completed an upload
+    public boolean close(long elapsedMs) {
+        boolean completed = false;
+        if (phase == TAIL) {
+            complete(elapsedMs, END_STOP);
+            completed = true;
+        }
+        phase = IDLE;
+
+        if (activeStartMs >= 0) {
+            activeMs += elapsedMs - activeStartMs;
+            activeStartMs = elapsedMs;
+        }
+        return completed;
+    }
+
+    private boolean checkTimeout(long elapsedMs) {
+        if (phase == TAIL && elapsedMs - transferEndMs > MAX_TAIL_MS) {
+            complete(transferEndMs + MAX_TAIL_MS, END_TIMEOUT);
+            return true;
+        }
+        return false;
+    }
+
+    //a cellular upload has ended and its tail is being timed
+    public boolean isInTail() {
+        return phase == TAIL;
+    }
+
+    //the cellular radio is connected and not dormant
+    public boolean isActive() {
+        return connected && activity >= ACTIVITY_NONE && activity < ACTIVITY_DORMANT;
+    }
+
+    private void updateActive(long elapsedMs) {
+        if (isActive()) {
+            if (activeStartMs < 0)
+                activeStartMs = elapsedMs;
+        } else if (activeStartMs >= 0) {
+            activeMs += elapsedMs - activeStartMs;
+            activeStartMs = -1;
+        }
+    }
+
+    private void complete(long tailEndMs, int end) {
+        if (size == startMs.length) {
+            int capacity = size * 2;
+            startMs = Arrays.copyOf(startMs, capacity);
+            cell = Arrays.copyOf(cell, capacity);
+            warm = Arrays.copyOf(warm, capacity);
+            link = Arrays.copyOf(link, capacity);
+            rampMs = Arrays.copyOf(rampMs, capacity);
+            transferMs = Arrays.copyOf(transferMs, capacity);
+            tailMs = Arrays.copyOf(tailMs, capacity);
+            tailEnd = Arrays.copyOf(tailEnd, capacity);
+        }
+
+        startMs[size] = uploadStartMs;
+        cell[size] = uploadCell;
+        warm[size] = uploadWarm;
+        link[size] = uploadLink;
+        rampMs[size] = firstActivityMs - uploadStartMs;
+        transferMs[size] = transferEndMs - firstActivityMs;
+        tailMs[size] = end == END_NONE ? 0 : Math.min(tailEndMs, transferEndMs + MAX_TAIL_MS) - transferEndMs;
+        tailEnd[size] = (byte) end;
+        size++;
+
+        phase = IDLE;
+    }
+
+    public int getUploads() {
+        return size;
+    }
+
+    public long getStartMs(int i) {
+        return startMs[i];
+    }
+
+    public boolean isCell(int i) {
+        return cell[i];
+    }
+
+    public boolean isWarm(int i) {
+        return warm[i];
+    }
+
+    public int getLink(int i) {
+        return link[i];
+    }
+
+    public long getRampMs(int i) {
+        return rampMs[i];
+    }
+
+    public long getTransferMs(int i) {
+        return transferMs[i];
+    }
+
+    public long getTailMs(int i) {
+        return tailMs[i];
+    }
+
+    public int getTailEnd(int i) {
+        return tailEnd[i];
+    }
+
+    //time between the start of this upload and the previous one, -1 for the first upload
+    public long getIntervalMs(int i) {
+        return i > 0 ? startMs[i] - startMs[i - 1] : -1;
+    }
+
+    //time the cellular radio was out of dormant, up to the last report or close()
+    public long getActiveMs() {
+        return activeMs;
+    }
+
+    public String format(int i) {
+        if (!cell[i])
+            return String.format(Locale.US, "Wi-Fi %d ms", transferMs[i]);
+        return String.format(Locale.US, "Cell%s ramp-up %d ms, transfer %d ms, tail %d ms (%s)",
+                warm[i] ? " warm" : "", rampMs[i], transferMs[i], tailMs[i], END_NAMES[tailEnd[i]]);
+    }
+
+    public String formatSummary() {
+        int cellUploads = 0;
+        long ramp = 0;
+        long transfer = 0;
+        long tail = 0;
+        for (int i = 0; i < size; i++) {
+            if (!cell[i])
+                continue;
+            cellUploads++;
+            ramp += rampMs[i];
+            transfer += transferMs[i];
+            tail += tailMs[i];
+        }
+
+        if (cellUploads == 0)
+            return String.format(Locale.US, "%d uploads, none on cellular", size);
+
+        return String.format(Locale.US,
+                "%d cellular uploads, avg ramp-up %.0f ms, transfer %.0f ms, tail %.0f ms; radio active %.1f s, %.0f%% of it tail",
+                cellUploads, (double) ramp / cellUploads, (double) transfer / cellUploads, (double) tail / cellUploads,
+                activeMs / 1000.0, activeMs > 0 ? 100.0 * tail / activeMs : 0);
+    }
+}
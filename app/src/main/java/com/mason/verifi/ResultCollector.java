@@ -0,0 +1,174 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.provider.Settings;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+// This class collects the run data of the device on a collector server, see ResultUploader
+// Status messages, battery samples and metrics snapshots are spooled during the run
+// Batches are only sent when it costs the test no extra radio wakeup or battery: right after a data
+// connection upload, while the cellular radio reports traffic, or while charging
+// Sending runs on its own thread and is not held awake by a wakelock
+// It is only created when a collector URL is set in TestPreference
+// It is instantiated by MainService
+public class ResultCollector extends BroadcastReceiver {
+    private static final String TAG = "verifi.ResultCollector";
+
+    //a radio wakeup lasts seconds, one flush per wakeup is enough
+    private static final long MIN_FLUSH_INTERVAL_MS = 60 * 1000L;
+    //time the last flush gets at stop, the shared client is closed after it
+    private static final long STOP_TIMEOUT_MS = 10 * 1000L;
+
+    private final MainService parentService;
+    private final ResultUploader uploader;
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final Runnable flushTask = this::flush;
+
+    private long lastFlushMs = -MIN_FLUSH_INTERVAL_MS;
+    private boolean flushPending = false;
+
+    private final MetricsRegistry.Counter batchCounter = MetricsRegistry.getInstance().counter("collector.batches");
+    private final MetricsRegistry.Counter failCounter = MetricsRegistry.getInstance().counter("collector.failures");
+
+    public ResultCollector(MainService pService, String url) throws IOException {
+        parentService = pService;
+        String deviceId = Settings.Secure.getString(pService.getContentResolver(), Settings.Secure.ANDROID_ID);
+        //shares the connection pool and threads of the upload client, its calls are not traced as uploads
+        uploader = new ResultUploader(pService.getExternalFilesDir(null), deviceId, url,
+                MainService.getUploadClient().getShared());
+
+        thread = new HandlerThread("ResultCollector", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    public void start() {
+        parentService.registerReceiver(this, new IntentFilter(MainService.SENDSTATUS));
+    }
+
+    //Spool the last metrics and send what is left if flush is set, then stop the thread
+    //MainService decides on the last flush with canFlushNow() before it stops the trackers
+    //Waits for the thread so the flush is done before MainService closes the shared UploadClient
+    public void stop(boolean flush) {
+        parentService.unregisterReceiver(this);
+        //a flush spools the last metrics itself
+        if (!requestLastFlush(flush))
+            addMetrics();
+        handler.post(uploader::close);
+        thread.quitSafely();
+
+        try {
+            thread.join(STOP_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted while waiting for the last flush");
+        }
+        if (thread.isAlive())
+            Log.w(TAG, "Last flush did not finish in " + STOP_TIMEOUT_MS + " ms, it is cancelled");
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String status = intent.getStringExtra("status");
+        if (status != null)
+            uploader.addEvent(System.currentTimeMillis(), status);
+    }
+
+    //Called by BatterySampler for every sample
+    public void addBatterySample(long wallMs, int currentNowUa, int chargeUah, int levelPct, int voltageMv,
+                                 int temperature, int plugged) {
+        uploader.addBatterySample(wallMs, currentNowUa, chargeUah, levelPct, voltageMv, temperature, plugged);
+    }
+
+    private void addMetrics() {
+        StringWriter json = new StringWriter();
+        MetricsRegistry.getInstance().dump(new PrintWriter(json), true);
+        uploader.addMetrics(System.currentTimeMillis(), json.toString().trim());
+    }
+
+    //Called by DataConnTest after an upload, the radio is up for its tail anyway
+    public void onRadioUp() {
+        requestFlush();
+    }
+
+    //Called on test wakeups, network activity and power changes. Sends only if the radio is up or charging
+    public void maybeFlush() {
+        if (canFlushNow())
+            requestFlush();
+    }
+
+    //the cellular radio is up or the device is charging
+    public boolean canFlushNow() {
+        PowerStateTracker powerStateTracker = MainService.getPowerStateTracker();
+        RadioActivityMonitor radioActivityMonitor = MainService.getRadioActivityMonitor();
+
+        boolean charging = powerStateTracker != null && (powerStateTracker.getState() & PowerStateTimeline.CHARGING) != 0;
+        boolean radioUp = radioActivityMonitor != null && radioActivityMonitor.isRadioActive();
+        return charging || radioUp;
+    }
+
+    private synchronized void requestFlush() {
+        long now = SystemClock.elapsedRealtime();
+        if (flushPending || now - lastFlushMs < MIN_FLUSH_INTERVAL_MS)
+            return;
+
+        flushPending = true;
+        lastFlushMs = now;
+        handler.post(flushTask);
+    }
+
+    //Post the last flush if flush is set, it does not wait for MIN_FLUSH_INTERVAL_MS
+    //Returns true if a flush is going to run, posted now or before
+    private synchronized boolean requestLastFlush(boolean flush) {
+        if (flush && !flushPending) {
+            flushPending = true;
+            lastFlushMs = SystemClock.elapsedRealtime();
+            handler.post(flushTask);
+        }
+        return flushPending;
+    }
+
+    //Runs on the collector thread
+    private void flush() {
+        synchronized (this) {
+            flushPending = false;
+        }
+
+        addMetrics();
+        try {
+            int batches = uploader.flush();
+            batchCounter.add(batches);
+            if (batches > 0)
+                Log.d(TAG, "Sent " + batches + " batches, collector has " + uploader.getCommittedOffset() + " bytes");
+        } catch (IOException e) {
+            //the collector is not reachable, the data stays in the spool until the next chance
+            failCounter.increment();
+            Log.w(TAG, "Failed to send results: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+// This class ships recorded run data to a collector in compressed batches
+// Records (status events, battery samples, metrics snapshots) are appended to a spool file. The spool is
+// one byte stream per device, identified by a stream id, and a batch is a gzip of the next bytes from
+// the committed offset, posted with the stream id and its offset
+// The collector appends a batch at its offset, skips the bytes it already has and answers with the
+// offset it expects next. That offset is committed and saved, so a lost answer only resends bytes the
+// collector drops, and an upload interrupted by a restart resumes where the collector is
+// When everything is committed the spool file is emptied and its base offset moved up
+// Record: type byte, wall time varint, payload length varint, payload
+// When to send is decided by ResultCollector, flush() blocks and must not run on a test thread
+// It has no Android dependency so it can be checked in JVM unit tests against a local server
+public class ResultUploader {
+    static final int RECORD_EVENT = 1;
+    static final int RECORD_BATTERY = 2;
+    static final int RECORD_METRICS = 3;
+
+    static final String HEADER_DEVICE = "X-Verifi-Device";
+    static final String HEADER_STREAM = "X-Verifi-Stream";
+    static final String HEADER_OFFSET = "X-Verifi-Offset";
+
+    static final int MAX_BATCH_BYTES = 64 * 1024;
+
+    private static final String SPOOL_FILENAME = "verifi_results.spool";
+    private static final String STATE_FILENAME = "verifi_results.state";
+    private static final MediaType BATCH_TYPE = MediaType.parse("application/octet-stream");
+
+    private final File spoolFile;
+    private final File stateFile;
+    private final String deviceId;
+    private final String url;
+    private final OkHttpClient client;
+
+    private String streamId;
+    private long baseOffset;      //stream offset of the first byte of the spool file
+    private long committedOffset; //stream offset the collector has up to
+    private long endOffset;       //stream offset after the last appended record
+    private OutputStream spool;
+
+    private final byte[] batch = new byte[MAX_BATCH_BYTES];
+    private final ByteArrayOutputStream compressed = new ByteArrayOutputStream(MAX_BATCH_BYTES / 4);
+    private final byte[] header = new byte[21];
+
+    private int batches = 0;
+    private long sentBytes = 0;
+    private long compressedBytes = 0;
+
+    public ResultUploader(File dir, String deviceId, String url, OkHttpClient client) throws IOException {
+        spoolFile = new File(dir, SPOOL_FILENAME);
+        stateFile = new File(dir, STATE_FILENAME);
+        this.deviceId = deviceId;
+        this.url = url;
+        this.client = client;
+
+        loadState();
+        endOffset = baseOffset + spoolFile.length();
+        if (committedOffset > endOffset || committedOffset < baseOffset)
+            committedOffset = baseOffset;
+        spool = new BufferedOutputStream(new FileOutputStream(spoolFile, true), 8192);
+    }
+
+    public void addEvent(long wallMs, String text) {
+        append(RECORD_EVENT, wallMs, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void addBatterySample(long wallMs, int currentNowUa, int chargeUah, int levelPct, int voltageMv,
+                                 int temperature, int plugged) {
+        byte[] payload = new byte[32];
+        int n = 0;
+        n = putVarint(payload, n, SysfsSampler.zigzag(currentNowUa));
+        n = putVarint(payload, n, SysfsSampler.zigzag(chargeUah));
+        n = putVarint(payload, n, levelPct);
+        n = putVarint(payload, n, voltageMv);
+        n = putVarint(payload, n, SysfsSampler.zigzag(temperature));
+        n = putVarint(payload, n, plugged);
+        append(RECORD_BATTERY, wallMs, payload, n);
+    }
+
+    public void addMetrics(long wallMs, String json) {
+        append(RECORD_METRICS, wallMs, json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void append(int type, long wallMs, byte[] payload) {
+        append(type, wallMs, payload, payload.length);
+    }
+
+    private synchronized void append(int type, long wallMs, byte[] payload, int length) {
+        if (spool == null)
+            return;
+
+        int n = 0;
+        header[n++] = (byte) type;
+        n = putVarint(header, n, wallMs);
+        n = putVarint(header, n, length);
+
+        try {
+            spool.write(header, 0, n);
+            spool.write(payload, 0, length);
+            endOffset += n + length;
+        } catch (IOException e) {
+            //the record is lost, the collector gets the stream without it
+            spool = null;
+        }
+    }
+
+    //Send batches until the collector has everything appended so far, called from one thread only
+    //Returns the number of batches sent, throws if the collector cannot be reached or refuses a batch
+    public int flush() throws IOException {
+        int sent = 0;
+        while (true) {
+            long offset;
+            int length;
+            synchronized (this) {
+                if (spool != null)
+                    spool.flush();
+                if (committedOffset >= endOffset) {
+                    compact();
+                    return sent;
+                }
+                offset = committedOffset;
+                length = (int) Math.min(MAX_BATCH_BYTES, endOffset - offset);
+                try (RandomAccessFile file = new RandomAccessFile(spoolFile, "r")) {
+                    file.seek(offset - baseOffset);
+                    file.readFully(batch, 0, length);
+                }
+            }
+
+            compressed.reset();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                gzip.write(batch, 0, length);
+            }
+
+            long next = post(offset, compressed.toByteArray());
+            sent++;
+
+            synchronized (this) {
+                batches++;
+                sentBytes += length;
+                compressedBytes += compressed.size();
+
+                if (next == offset)
+                    throw new IOException("Collector did not take the batch at " + offset);
+                if (next < baseOffset)
+                    throw new IOException("Collector needs offset " + next + ", spool starts at " + baseOffset);
+                //the collector may be behind (it lost data) but never past what was appended
+                committedOffset = Math.min(next, endOffset);
+                saveState();
+            }
+        }
+    }
+
+    //Post one batch, returns the offset the collector expects next
+    private long post(long offset, byte[] body) throws IOException {
+        Request request = new Request.Builder()
+                .url(url)
+                .header(HEADER_DEVICE, deviceId)
+                .header(HEADER_STREAM, streamId)
+                .header(HEADER_OFFSET, Long.toString(offset))
+                .header("Content-Encoding", "gzip")
+                .post(RequestBody.create(body, BATCH_TYPE))
+                .build();
+
+        try (Response response = client.newCall(request).execute()) {
+            ResponseBody responseBody = response.body();
+            if (!response.isSuccessful() || responseBody == null)
+                throw new IOException("Collector answered " + response.code());
+            try {
+                return Long.parseLong(responseBody.string().trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Collector answer is not an offset", e);
+            }
+        }
+    }
+
+    //Empty the spool file once the collector has all of it
+    private void compact() throws IOException {
+        if (committedOffset == baseOffset || committedOffset != endOffset)
+            return;
+
+        if (spool != null)
+            spool.close();
+        spool = new BufferedOutputStream(new FileOutputStream(spoolFile, false), 8192);
+        baseOffset = endOffset;
+        saveState();
+    }
+
+    public synchronized void close() {
+        try {
+            if (spool != null)
+                spool.close();
+        } catch (IOException e) {
+            //records not written yet are lost
+        }
+        spool = null;
+    }
+
+    private void loadState() throws IOException {
+        streamId = null;
+        try {
+            String[] lines = new String(Files.readAllBytes(stateFile.toPath()), StandardCharsets.UTF_8).split("\n");
+            if (lines.length >= 3) {
+                streamId = lines[0].trim();
+                baseOffset = Long.parseLong(lines[1].trim());
+                committedOffset = Long.parseLong(lines[2].trim());
+            }
+        } catch (IOException | NumberFormatException e) {
+            streamId = null;
+        }
+
+        //no state or a spool without state: start a new stream
+        if (streamId == null || streamId.isEmpty()) {
+            streamId = UUID.randomUUID().toString();
+            baseOffset = 0;
+            committedOffset = 0;
+            if (spoolFile.exists() && !spoolFile.delete())
+                throw new IOException("Failed to delete " + spoolFile);
+            saveState();
+        }
+    }
+
+    //written to a temporary file first so a crash leaves the old or the new state
+    private void saveState() throws IOException {
+        File temp = new File(stateFile.getPath() + ".tmp");
+        try (Writer writer = new FileWriter(temp)) {
+            writer.write(streamId + "\n" + baseOffset + "\n" + committedOffset + "\n");
+        }
+        if (!temp.renameTo(stateFile))
+            throw new IOException("Failed to save " + stateFile);
+    }
+
+    private static int putVarint(byte[] buf, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+
+    public synchronized String getStreamId() {
+        return streamId;
+    }
+
+    public synchronized long getCommittedOffset() {
+        return committedOffset;
+    }
+
+    public synchronized long getEndOffset() {
+        return endOffset;
+    }
+
+    public synchronized int getBatches() {
+        return batches;
+    }
+
+    public synchronized long getSentBytes() {
+        return sentBytes;
+    }
+
+    public synchronized long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    //One decoded record, used by the collector side and the tests
+    public static final class Record {
+        public final int type;
+        public final long wallMs;
+        public final byte[] payload;
+
+        Record(int type, long wallMs, byte[] payload) {
+            this.type = type;
+            this.wallMs = wallMs;
+            this.payload = payload;
+        }
+
+        public String getText() {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+    }
+
+    //Read the next record of a stream, null at the end of the stream
+    public static Record readRecord(InputStream in) throws IOException {
+        int type = in.read();
+        if (type < 0)
+            return null;
+
+        long wallMs = SysfsSampler.getVarint(in);
+        int length = (int) SysfsSampler.getVarint(in);
+        byte[] payload = new byte[length];
+        int n = 0;
+        while (n < length) {
+            int r = in.read(payload, n, length - n);
+            if (r < 0)
+                throw new EOFException();
+            n += r;
+        }
+        return new Record(type, wallMs, payload);
+    }
+}
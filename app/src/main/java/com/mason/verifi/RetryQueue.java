@@ -0,0 +1,252 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+
+// This class keeps the failed uploads of the delivery guarantee mode until they are delivered
+// The payloads are kept in a PayloadQueue, with the time of their first attempt as id. Every attempt is
+// appended to a journal (id, next attempt time, attempts, charge so far, delivered), the last record of an
+// id is its state. The journal is rewritten once it holds much more than the queued payloads
+// A failed attempt waits an exponential backoff from baseDelayMs up to maxDelayMs, with jitter: a random
+// time in the second half of the delay, so retries of many devices do not line up
+// It has no Android dependency so it can be checked in JVM unit tests
+public class RetryQueue {
+    private static final int PENDING = 0;
+    private static final int DELIVERED = 1;
+
+    private final PayloadQueue queue;
+    private final File logFile;
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final Random random;
+
+    //state of each queued payload, same index as the queue
+    private long[] nextAttemptMs = new long[16];
+    private int[] attempts = new int[16];
+    private double[] mah = new double[16];
+    private long lastId = 0;
+    private int logRecords = 0;
+
+    public RetryQueue(File queueFile, File logFile, int maxPayloads, long maxBytes, long baseDelayMs, long maxDelayMs,
+                      Random random) throws IOException {
+        this.queue = new PayloadQueue(queueFile, maxPayloads, maxBytes);
+        this.logFile = logFile;
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.random = random;
+        load();
+    }
+
+    private void load() throws IOException {
+        Map<Long, long[]> last = new HashMap<>();
+        Map<Long, Double> lastMah = new HashMap<>();
+        if (logFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)))) {
+                while (true) {
+                    long id = in.readLong();
+                    long next = in.readLong();
+                    int count = in.readInt();
+                    double charge = in.readDouble();
+                    int state = in.readInt();
+                    last.put(id, new long[]{next, count, state});
+                    lastMah.put(id, charge);
+                    logRecords++;
+                }
+            } catch (EOFException e) {
+                //end of the journal, a torn last record is ignored
+            }
+        }
+
+        boolean[] delivered = new boolean[queue.size()];
+        boolean anyDelivered = false;
+        ensureCapacity(queue.size());
+        for (int i = 0; i < queue.size(); i++) {
+            long id = queue.getWallMs(i);
+            lastId = Math.max(lastId, id);
+            long[] state = last.get(id);
+            if (state == null) {
+                //stopped between the payload and its journal record
+                nextAttemptMs[i] = id;
+                attempts[i] = 1;
+                mah[i] = 0;
+            } else {
+                nextAttemptMs[i] = state[0];
+                attempts[i] = (int) state[1];
+                mah[i] = lastMah.get(id);
+                delivered[i] = state[2] == DELIVERED;
+                anyDelivered |= delivered[i];
+            }
+        }
+
+        //stopped between the delivery record and the removal of the payload
+        if (anyDelivered)
+            removeDelivered(delivered);
+        rewriteLog();
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= nextAttemptMs.length)
+            return;
+        int newCapacity = Math.max(capacity, nextAttemptMs.length * 2);
+        nextAttemptMs = Arrays.copyOf(nextAttemptMs, newCapacity);
+        attempts = Arrays.copyOf(attempts, newCapacity);
+        mah = Arrays.copyOf(mah, newCapacity);
+    }
+
+    //Queue a payload after its first failed attempt at firstAttemptMs (wall time) that cost chargeMah
+    //Returns false if the queue is full
+    public synchronized boolean add(long firstAttemptMs, RequestBody body, double chargeMah) throws IOException {
+        //the id must be unique
+        long id = Math.max(firstAttemptMs, lastId + 1);
+        if (!queue.add(id, body))
+            return false;
+        lastId = id;
+
+        int i = queue.size() - 1;
+        ensureCapacity(i + 1);
+        attempts[i] = 1;
+        mah[i] = chargeMah;
+        nextAttemptMs[i] = id + backoffMs(1);
+        appendLog(i, PENDING);
+        return true;
+    }
+
+    //Wait after the given number of failed attempts
+    long backoffMs(int failedAttempts) {
+        long delay = baseDelayMs;
+        for (int n = 1; n < failedAttempts && delay < maxDelayMs; n++)
+            delay *= 2;
+        delay = Math.min(delay, maxDelayMs);
+        return delay / 2 + (long) (random.nextDouble() * (delay - delay / 2));
+    }
+
+    public synchronized int size() {
+        return queue.size();
+    }
+
+    public synchronized long getFirstAttemptMs(int i) {
+        return queue.getWallMs(i);
+    }
+
+    public synchronized long getNextAttemptMs(int i) {
+        return nextAttemptMs[i];
+    }
+
+    public synchronized int getAttempts(int i) {
+        return attempts[i];
+    }
+
+    //charge of all attempts so far
+    public synchronized double getMah(int i) {
+        return mah[i];
+    }
+
+    public synchronized boolean isDue(int i, long nowMs) {
+        return nextAttemptMs[i] <= nowMs;
+    }
+
+    //Connectivity is back, every payload can be tried right away. Not kept in the journal
+    public synchronized void resetBackoff(long nowMs) {
+        for (int i = 0; i < queue.size(); i++)
+            nextAttemptMs[i] = Math.min(nextAttemptMs[i], nowMs);
+    }
+
+    //Body that streams payload i. It is valid until the next delivery or close()
+    public synchronized RequestBody getBody(int i, MediaType contentType) throws IOException {
+        return queue.getBody(i, contentType);
+    }
+
+    //Another attempt failed at wall time nowMs, the payload waits a longer backoff
+    public synchronized void recordFailure(int i, long nowMs, double chargeMah) throws IOException {
+        attempts[i]++;
+        mah[i] += chargeMah;
+        nextAttemptMs[i] = nowMs + backoffMs(attempts[i]);
+        appendLog(i, PENDING);
+    }
+
+    //Payload i was delivered, it is removed so the indexes of the later payloads go down by one
+    public synchronized void recordDelivery(int i, double chargeMah) throws IOException {
+        attempts[i]++;
+        mah[i] += chargeMah;
+        appendLog(i, DELIVERED);
+
+        boolean[] delivered = new boolean[queue.size()];
+        delivered[i] = true;
+        removeDelivered(delivered);
+
+        if (logRecords > 2 * queue.size() + 64)
+            rewriteLog();
+    }
+
+    private void removeDelivered(boolean[] delivered) throws IOException {
+        queue.remove(delivered);
+        int j = 0;
+        for (int i = 0; i < delivered.length; i++) {
+            if (delivered[i])
+                continue;
+            nextAttemptMs[j] = nextAttemptMs[i];
+            attempts[j] = attempts[i];
+            mah[j] = mah[i];
+            j++;
+        }
+    }
+
+    private void appendLog(int i, int state) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true)))) {
+            writeRecord(out, i, state);
+        }
+        logRecords++;
+    }
+
+    private void writeRecord(DataOutputStream out, int i, int state) throws IOException {
+        out.writeLong(queue.getWallMs(i));
+        out.writeLong(nextAttemptMs[i]);
+        out.writeInt(attempts[i]);
+        out.writeDouble(mah[i]);
+        out.writeInt(state);
+    }
+
+    //one record per queued payload
+    private void rewriteLog() throws IOException {
+        File tmp = new File(logFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            for (int i = 0; i < queue.size(); i++)
+                writeRecord(out, i, PENDING);
+        }
+        if (!tmp.renameTo(logFile))
+            throw new IOException("Failed to replace " + logFile);
+        logRecords = queue.size();
+    }
+
+    public synchronized void close() {
+        queue.close();
+    }
+}
@@ -0,0 +1,122 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.BatteryManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+// This class records the battery drain and CPU time of a whole run and reports the run summary
+// In BASELINE run mode the result is stored as the harness overhead
+// In the other run modes the stored baseline is subtracted so the summary shows the cost of the tests only
+// It is instantiated by MainService
+public class RunRecorder {
+    private static final String TAG = "verifi.RunRecorder";
+    private static final String BASELINE_PREFS = "verifi_baseline";
+    private static final String RUN_SUMMARY_FILENAME = "verifi_run_summary.csv";
+
+    private final MainService parentService;
+    private final TestPreference testPref;
+
+    private long startTimeMs;
+    private long startCpuMs;
+    private long startWakeLockMs;
+    private int startLevel;
+    private int startCharge;
+
+    public RunRecorder(MainService pService) {
+        parentService = pService;
+        testPref = TestPreference.getInstance();
+    }
+
+    public void start() {
+        startTimeMs = SystemClock.elapsedRealtime();
+        startCpuMs = Process.getElapsedCpuTime();
+        startWakeLockMs = MainService.getWakeLockManager().getTotalHoldMs();
+        startLevel = BatterySampler.getBatteryProperty(parentService, BatteryManager.BATTERY_PROPERTY_CAPACITY);
+        startCharge = BatterySampler.getBatteryProperty(parentService, BatteryManager.BATTERY_PROPERTY_CHARGE_COUNTER);
+    }
+
+    public void finish() {
+        int endCharge = BatterySampler.getBatteryProperty(parentService, BatteryManager.BATTERY_PROPERTY_CHARGE_COUNTER);
+        RunSummary summary = new RunSummary(
+                SystemClock.elapsedRealtime() - startTimeMs,
+                startLevel,
+                BatterySampler.getBatteryProperty(parentService, BatteryManager.BATTERY_PROPERTY_CAPACITY),
+                (startCharge > 0 && endCharge > 0) ? startCharge - endCharge : -1,
+                Process.getElapsedCpuTime() - startCpuMs,
+                MainService.getWakeLockManager().getTotalHoldMs() - startWakeLockMs);
+
+        parentService.sendStatus("Run summary: " + summary.format());
+        parentService.sendStatus("Wakelocks: " + MainService.getWakeLockManager().format());
+
+        SharedPreferences prefs = parentService.getSharedPreferences(BASELINE_PREFS, Context.MODE_PRIVATE);
+        String net = "";
+
+        if (testPref.getRunMode() == RunMode.BASELINE) {
+            prefs.edit()
+                    .putFloat("drainPctPerHour", (float) summary.getDrainPctPerHour())
+                    .putFloat("currentMa", (float) summary.getAverageCurrentMa())
+                    .putFloat("cpuMsPerHour", (float) summary.getCpuMsPerHour())
+                    .putString("config", describeConfig())
+                    .apply();
+            parentService.sendStatus("Harness baseline saved");
+        } else if (prefs.contains("drainPctPerHour")) {
+            net = summary.formatNetOf(prefs.getFloat("drainPctPerHour", 0),
+                    prefs.getFloat("currentMa", 0),
+                    prefs.getFloat("cpuMsPerHour", 0));
+            parentService.sendStatus("Net of harness baseline: " + net);
+
+            //the overhead depends on how often the harness wakes up
+            if (!describeConfig().equals(prefs.getString("config", "")))
+                parentService.sendStatus("Warning: baseline was recorded with different tests or intervals");
+        }
+
+        writeSummary(summary, net);
+    }
+
+    //enabled tests and intervals, the part of the configuration that drives harness wakeups
+    private String describeConfig() {
+        return (testPref.isEnableGPS() ? "GPS " + testPref.getGpsInterval() : "GPS OFF") + " "
+                + (testPref.isEnableSensor() ? "Sensor " + testPref.getSensorInterval() : "Sensor OFF") + " "
+                + (testPref.isEnableDataConn() ? "Data " + testPref.getDataConnInterval() : "Data OFF");
+    }
+
+    private void writeSummary(RunSummary summary, String net) {
+        File file = new File(parentService.getExternalFilesDir(null), RUN_SUMMARY_FILENAME);
+        boolean header = !file.exists();
+        String ts = new SimpleDateFormat("MM-dd HH:mm:ss", Locale.US).format(new Date());
+
+        try (Writer writer = new FileWriter(file, true)) {
+            if (header)
+                writer.write("end_time,run_mode,config,summary,net_of_baseline\n");
+            writer.write(ts + "," + testPref.getRunMode() + "," + describeConfig() + ","
+                    + summary.format().replace(',', ';') + "," + net.replace(',', ';') + "\n");
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write run summary", e);
+        }
+    }
+}
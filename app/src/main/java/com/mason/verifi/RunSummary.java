@@ -0,0 +1,74 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import java.util.Locale;
+
+// This class keeps the measured totals of one run: duration, battery drain, process CPU time and wakelock time
+// and converts them to rates so runs of different length can be compared
+// A baseline run (no-op test bodies) gives the harness overhead that is subtracted from real runs
+public class RunSummary {
+
+    public final long durationMs;
+    public final int startLevel;
+    public final int endLevel;
+    public final long chargeUsedUah; //negative when the charge counter is not supported
+    public final long cpuMs;
+    public final long wakeLockMs;
+
+    public RunSummary(long durationMs, int startLevel, int endLevel, long chargeUsedUah, long cpuMs, long wakeLockMs) {
+        this.durationMs = durationMs;
+        this.startLevel = startLevel;
+        this.endLevel = endLevel;
+        this.chargeUsedUah = chargeUsedUah;
+        this.cpuMs = cpuMs;
+        this.wakeLockMs = wakeLockMs;
+    }
+
+    private double hours() {
+        return durationMs / 3600000.0;
+    }
+
+    public double getDrainPctPerHour() {
+        return durationMs > 0 ? (startLevel - endLevel) / hours() : 0;
+    }
+
+    public double getAverageCurrentMa() {
+        return (durationMs > 0 && chargeUsedUah >= 0) ? chargeUsedUah / 1000.0 / hours() : Double.NaN;
+    }
+
+    //process CPU time in ms per hour of run time
+    public double getCpuMsPerHour() {
+        return durationMs > 0 ? cpuMs / hours() : 0;
+    }
+
+    //wakelock hold time of all tests in sec per hour of run time
+    public double getWakeLockSecPerHour() {
+        return durationMs > 0 ? wakeLockMs / 1000.0 / hours() : 0;
+    }
+
+    public String format() {
+        return String.format(Locale.US, "%.1f h, drain %.2f %%/h, %.1f mA, CPU %.0f ms/h, wakelock %.1f s/h",
+                hours(), getDrainPctPerHour(), getAverageCurrentMa(), getCpuMsPerHour(), getWakeLockSecPerHour());
+    }
+
+    //rates of this run with the baseline rates removed
+    public String formatNetOf(double baselineDrainPctPerHour, double baselineCurrentMa, double baselineCpuMsPerHour) {
+        return String.format(Locale.US, "drain %.2f %%/h, %.1f mA, CPU %.0f ms/h",
+                getDrainPctPerHour() - baselineDrainPctPerHour,
+                getAverageCurrentMa() - baselineCurrentMa,
+                getCpuMsPerHour() - baselineCpuMsPerHour);
+    }
+}
@@ -25,6 +25,9 @@ import android.util.Log;
 public class SensorAlarm extends BroadcastReceiver {
     private static final String TAG = "verifi.SensorAlarm";
     public static final String SENSOR_ALARM_ACTION = "sensor_alarm_action";
+    private static final String EXTRA_ALARM_TIME = "alarm_time";
+    private static final int TRACE_ALARM = TraceRecorder.register("sensor.alarm");
+    private static final int TRACE_DELIVERY = TraceRecorder.register("sensor.alarm_delivery");
     private AlarmManager sensorAlarmManager;
     private PendingIntent sensorPendingIntent;
 
@@ -39,35 +42,53 @@ public class SensorAlarm extends BroadcastReceiver {
 
     @Override
     public void onReceive(Context context, Intent intent) {
-        final String action = intent.getAction();
-        Log.d(TAG, "Sensor Alarm is triggered at Current time: " + System.currentTimeMillis());
-
-        if (action.equals(SENSOR_ALARM_ACTION)) {
-            //need to start Sensor Test on background thread
-            if (MainService.getTestScheduler() != null)
-                MainService.getTestScheduler().startSensorTest();
-            else
-                Log.e(TAG, "Failed to start Sensor Test. Null TestScheduler reference");
-
-            //set Alarm again for the next interval
-            startSensorAlarm(context);
+        WakeupCpuProfiler.beginWakeup();
+        TraceRecorder.begin(TRACE_ALARM);
+        try {
+            final String action = intent.getAction();
+            Log.d(TAG, "Sensor Alarm is triggered at Current time: " + System.currentTimeMillis());
+
+            if (action.equals(SENSOR_ALARM_ACTION)) {
+                PowerStateTracker powerStateTracker = MainService.getPowerStateTracker();
+                long alarmTime = intent.getLongExtra(EXTRA_ALARM_TIME, 0);
+                if (alarmTime > 0) {
+                    long delayMs = System.currentTimeMillis() - alarmTime;
+                    TraceRecorder.recordPast(TRACE_DELIVERY, Math.max(delayMs, 0) * 1000);
+                    if (powerStateTracker != null)
+                        powerStateTracker.addAlarmDelay(EnergyAttributor.SENSOR, delayMs);
+                }
+
+                //need to start Sensor Test on background thread
+                if (MainService.getTestScheduler() != null)
+                    MainService.getTestScheduler().startSensorTest();
+                else
+                    Log.e(TAG, "Failed to start Sensor Test. Null TestScheduler reference");
+
+                //set Alarm again for the next interval
+                startSensorAlarm(context);
+            }
+        } finally {
+            TraceRecorder.end(TRACE_ALARM);
+            WakeupCpuProfiler.endWakeup(EnergyAttributor.SENSOR, WakeupCpuProfiler.ALARM);
         }
     }
 
     public void startSensorAlarm(Context context)
     {
-        Intent intent = new Intent(context, SensorAlarm.class).setAction(SENSOR_ALARM_ACTION);
+        long currentTime = System.currentTimeMillis();
+        long futureTime =  TestPreference.getInstance().getSensorInterval() * 1000L;
+
+        long alarmTime =  currentTime + futureTime;
+
+        //the requested time is passed along to measure the alarm delivery delay
+        Intent intent = new Intent(context, SensorAlarm.class).setAction(SENSOR_ALARM_ACTION)
+                .putExtra(EXTRA_ALARM_TIME, alarmTime);
 
         sensorPendingIntent = PendingIntent.getBroadcast(
                 context, 5129, intent, PendingIntent.FLAG_UPDATE_CURRENT);
 
         sensorAlarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
 
-        long currentTime = System.currentTimeMillis();
-        long futureTime =  TestPreference.getInstance().getSensorInterval() * 1000L;
-
-        long alarmTime =  currentTime + futureTime;
-
         sensorAlarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, alarmTime, sensorPendingIntent);
 
         Log.d(TAG, "Current time: " + currentTime + " set Sensor Alarm to: " + alarmTime);
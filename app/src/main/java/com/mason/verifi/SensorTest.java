@@ -20,6 +20,8 @@ import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.text.SimpleDateFormat;
@@ -53,7 +55,8 @@ public class SensorTest {
     private boolean isOffBodyEnhancedStarted = false;
     private boolean isEcgStarted = false;
 
-    private final SensorType sensorType;
+    private final TestPreference testPref;
+    private SensorType sensorType;
 
     private final SensorManager sensorManager;
     private final Sensor heartRateSensor;
@@ -68,9 +71,24 @@ public class SensorTest {
 
     private int heartRateCounter = 0;
     private int ecgCounter = 0;
+    private boolean isExecuting = false; //a sensor session is being measured by TestEnergyMeter, TestScheduler thread only
+
+    private final MetricsRegistry.Counter sessionCounter = MetricsRegistry.getInstance().counter("sensor.sessions");
+    private final MetricsRegistry.Counter eventCounter = MetricsRegistry.getInstance().counter("sensor.events");
+    private final MetricsRegistry.Histogram firstEventHistogram = MetricsRegistry.getInstance().histogram("sensor.first_event_ms");
+    //the first event is taken on the sensor callback thread, guarded by this like sendStatus
+    private long sessionStartMs;
+    private boolean firstEvent;
+
+    private static final int TRACE_START = TraceRecorder.register("sensor.start");
+    private static final int TRACE_STOP = TraceRecorder.register("sensor.stop");
+    private static final int TRACE_SESSION = TraceRecorder.register("sensor.session");
+    private static final int TRACE_FIRST_EVENT = TraceRecorder.register("sensor.first_event");
+    private static final int TRACE_EVENT = TraceRecorder.register("sensor.event");
+    private int sessionId = 0;
 
     public SensorTest(Context context) {
-        TestPreference testPref = TestPreference.getInstance();
+        testPref = TestPreference.getInstance();
         mContext = context;
         sensorType = testPref.getSensorType();
 
@@ -99,6 +117,7 @@ public class SensorTest {
             String ts = new SimpleDateFormat("MM-dd HH:mm:ss", Locale.US).format(df);
 
             if (sensorEvent.sensor.getType() == Sensor.TYPE_LOW_LATENCY_OFFBODY_DETECT) {
+                    recordEvent();
                     //Log.d(TAG, "OBD Sensor - Value: " + sensorEvent.values[0] + " Accuracy: " + sensorEvent.accuracy);
                     sendStatus(ts + " - OBD value: " + sensorEvent.values[0] + " Acc: " + sensorEvent.accuracy);
                     stopOffBodySensorTest();
@@ -115,6 +134,7 @@ public class SensorTest {
         public void onSensorChanged(SensorEvent sensorEvent) {
 
             if (sensorEvent.sensor.getType() == Sensor.TYPE_HEART_RATE) {
+                recordEvent();
                 if (heartRateCounter > 0) {
                     heartRateCounter--;
                     //Log.d(TAG, "HR Sensor - Value: " + sensorEvent.values[0] + " Accuracy: " + sensorEvent.accuracy);
@@ -143,6 +163,7 @@ public class SensorTest {
     private final SensorEventListener ecgSensorDataTestListener = new SensorEventListener() {
         @Override
         public void onSensorChanged(SensorEvent event) {
+            recordEvent();
             ecgManager.dispatch(event);
         }
 
@@ -291,6 +312,45 @@ public class SensorTest {
     };
 
     public void startSensorTest() {
+        TraceRecorder.begin(TRACE_START);
+        try {
+            runSensorTest();
+        } finally {
+            TraceRecorder.end(TRACE_START);
+        }
+    }
+
+    private void runSensorTest() {
+        //sensor type can change between runs of the experiment matrix
+        sensorType = testPref.getSensorType();
+
+        //harness baseline: keep the alarm and status path but do not use the sensor
+        if (testPref.getRunMode() == RunMode.BASELINE) {
+            Date df = new Date();
+            String ts = new SimpleDateFormat("MM-dd HH:mm:ss", Locale.US).format(df);
+            sendStatus(ts + " - Sensor baseline (no-op) test");
+            return;
+        }
+
+        if (!isExecuting) {
+            sessionCounter.increment();
+            synchronized (this) {
+                sessionStartMs = SystemClock.elapsedRealtime();
+                firstEvent = true;
+                sessionId++;
+            }
+            TraceRecorder.beginAsync(TRACE_SESSION, sessionId);
+            TraceRecorder.beginAsync(TRACE_FIRST_EVENT, sessionId);
+
+            //keep the CPU awake while the sensor session is running
+            MainService.getWakeLockManager().acquire(EnergyAttributor.SENSOR);
+
+            TestEnergyMeter testEnergyMeter = MainService.getTestEnergyMeter();
+            if (testEnergyMeter != null)
+                testEnergyMeter.begin(EnergyAttributor.SENSOR);
+            isExecuting = true;
+        }
+
         switch(sensorType) {
             case OFFBODY:
                 startOffBodySensorTest();
@@ -312,9 +372,13 @@ public class SensorTest {
                 startEcgSensorTest();
                 break;
         }
+
+        //nothing was started, e.g. the sensor is not available
+        endExecution();
     }
 
     public void stopSensorTest() {
+        TraceRecorder.begin(TRACE_STOP);
         switch(sensorType) {
             case OFFBODY:
                 stopOffBodySensorTest();
@@ -336,6 +400,7 @@ public class SensorTest {
                 stopEcgSensorTest();
                 break;
         }
+        TraceRecorder.end(TRACE_STOP);
     }
 
     private void startHRSensorTest() {
@@ -353,6 +418,7 @@ public class SensorTest {
             Log.d(TAG, "Stop Heart Rate Sensor");
             isHRStarted = false;
         }
+        endExecution();
     }
 
     private void startOffBodySensorTest() {
@@ -367,6 +433,7 @@ public class SensorTest {
             sensorManager.unregisterListener(offBodySensorTestListener);
             isOffBodyStarted = false;
         }
+        endExecution();
     }
 
     private void startOffBodyEnhancedSensorTest() {
@@ -402,6 +469,51 @@ public class SensorTest {
 
             isEcgStarted = false;
         }
+        endExecution();
+    }
+
+    //Count a sensor event and the time from the start of the session to its first event
+    private void recordEvent() {
+        eventCounter.increment();
+        TraceRecorder.instant(TRACE_EVENT);
+        int firstSessionId = takeFirstEvent();
+        if (firstSessionId != 0) {
+            firstEventHistogram.record(SystemClock.elapsedRealtime() - sessionStartMs);
+            TraceRecorder.endAsync(TRACE_FIRST_EVENT, firstSessionId);
+        }
+    }
+
+    //Clear the first event flag of the session and return its id, or 0 if the first event was already taken
+    private synchronized int takeFirstEvent() {
+        if (!firstEvent)
+            return 0;
+        firstEvent = false;
+        return sessionId;
+    }
+
+    //End the energy measurement and the wakelock of the session once every started sensor is stopped
+    //Off-body enhanced is not counted since it does not use a sensor yet
+    //Sensor callbacks stop the sensors on their own thread, the session is ended on the TestScheduler thread
+    //like it was started. The session wakelock keeps the CPU awake until then
+    private void endExecution() {
+        TestScheduler testScheduler = MainService.getTestScheduler();
+        if (testScheduler != null && Looper.myLooper() != testScheduler.getLooper()) {
+            testScheduler.postRunnable(this::endExecution);
+            return;
+        }
+
+        if (isExecuting && !isHRStarted && !isOffBodyStarted && !isEcgStarted) {
+            isExecuting = false;
+            int firstSessionId = takeFirstEvent();
+            if (firstSessionId != 0)
+                TraceRecorder.endAsync(TRACE_FIRST_EVENT, firstSessionId);
+            TraceRecorder.endAsync(TRACE_SESSION, sessionId);
+            TestEnergyMeter testEnergyMeter = MainService.getTestEnergyMeter();
+            if (testEnergyMeter != null)
+                testEnergyMeter.end(EnergyAttributor.SENSOR);
+
+            MainService.getWakeLockManager().release(EnergyAttributor.SENSOR);
+        }
     }
 
     private synchronized void sendStatus(String message){
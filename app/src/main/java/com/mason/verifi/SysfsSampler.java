@@ -0,0 +1,480 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// This class samples kernel statistics from sysfs and procfs: thermal zone temperatures,
+// cpufreq time_in_state, cpuidle state time and the cpu line of /proc/stat
+// Every node is opened once and read again from offset 0 through its FileChannel into one preallocated
+// buffer. Numbers are parsed from the bytes directly, so a sample creates no String or other object
+// Each sample is stored as the change of every value since the previous sample, as zigzag varints,
+// which is 1-2 bytes per value for counters that move slowly
+// Node paths are relative to a root folder so it can be run against a fake sysfs tree in JVM unit tests
+// It has no Android dependency
+public class SysfsSampler {
+
+    static final int KIND_VALUE = 0;          //file holds one number, e.g. thermal_zone temp
+    static final int KIND_TIME_IN_STATE = 1;  //"freq time" lines, the times are kept
+    static final int KIND_PROC_STAT = 2;      //first line of /proc/stat: user nice system idle iowait irq softirq
+
+    private static final int PROC_STAT_FIELDS = 7;
+    private static final int READ_BUFFER_SIZE = 4096;
+    private static final int RECORD_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_VARINT_SIZE = 10;
+
+    private final File root;
+
+    //one entry per node
+    private final List<FileChannel> channels = new ArrayList<>();
+    private final List<String> nodePaths = new ArrayList<>();
+    private int[] nodeKind = new int[0];
+    private int[] nodeFirstSlot = new int[0];
+    private int[] nodeSlotCount = new int[0];
+
+    //one entry per value
+    private final List<String> slotNames = new ArrayList<>();
+    private long[] values = new long[0];
+    private long[] previous = new long[0];
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final ByteBuffer recordBuffer = ByteBuffer.allocate(RECORD_BUFFER_SIZE);
+    private FileChannel out;
+
+    private long lastSampleMs;
+    private int samples;
+    private int records; //records written to the file
+    private int readErrors;
+
+    private int procStatSlot = -1;
+
+    public SysfsSampler(File root) {
+        this.root = root;
+    }
+
+    //Add the standard nodes that exist under the root folder
+    public void addDefaultNodes() {
+        File[] zones = listSorted(new File(root, "sys/class/thermal"), "thermal_zone");
+        for (File zone : zones) {
+            String type = readText(new File(zone, "type"));
+            addNode(KIND_VALUE, relative(new File(zone, "temp")),
+                    type.isEmpty() ? zone.getName() : zone.getName() + "_" + type);
+        }
+
+        //per policy stats exist on newer kernels, per cpu stats on older ones
+        File[] policies = listSorted(new File(root, "sys/devices/system/cpu/cpufreq"), "policy");
+        if (policies.length > 0) {
+            for (File policy : policies)
+                addNode(KIND_TIME_IN_STATE, relative(new File(policy, "stats/time_in_state")), policy.getName());
+        } else {
+            for (File cpu : listCpus())
+                addNode(KIND_TIME_IN_STATE, relative(new File(cpu, "cpufreq/stats/time_in_state")), cpu.getName());
+        }
+
+        for (File cpu : listCpus()) {
+            for (File state : listSorted(new File(cpu, "cpuidle"), "state")) {
+                String name = readText(new File(state, "name"));
+                addNode(KIND_VALUE, relative(new File(state, "time")),
+                        cpu.getName() + "_idle_" + (name.isEmpty() ? state.getName() : name));
+            }
+        }
+
+        addNode(KIND_PROC_STAT, "proc/stat", "cpu");
+    }
+
+    //Add a node to sample. Nodes that cannot be opened or parsed are skipped
+    //Returns false if the node was skipped
+    public boolean addNode(int kind, String path, String name) {
+        File file = new File(root, path);
+        if (!file.canRead())
+            return false;
+
+        //readable by mode is not enough, the open or the read can still fail e.g. with EIO or an SELinux denial
+        FileChannel channel = null;
+        try {
+            channel = new FileInputStream(file).getChannel();
+            readBuffer.clear();
+            channel.read(readBuffer, 0);
+            readBuffer.flip();
+        } catch (IOException e) {
+            closeQuietly(channel);
+            return false;
+        }
+
+        List<String> names = new ArrayList<>();
+        if (kind == KIND_TIME_IN_STATE) {
+            //the frequencies are the slot names, one slot per line
+            long[] numbers = new long[READ_BUFFER_SIZE / 2];
+            int count = parseNumbers(readBuffer, numbers, numbers.length, false);
+            for (int i = 0; i + 1 < count; i += 2)
+                names.add(name + "_" + numbers[i] + "khz");
+        } else if (kind == KIND_PROC_STAT) {
+            String[] fields = {"user", "nice", "system", "idle", "iowait", "irq", "softirq"};
+            for (String field : fields)
+                names.add(name + "_" + field);
+        } else {
+            names.add(name);
+        }
+
+        if (names.isEmpty()) {
+            closeQuietly(channel);
+            return false;
+        }
+
+        int node = channels.size();
+        channels.add(channel);
+        nodePaths.add(path);
+        nodeKind = Arrays.copyOf(nodeKind, node + 1);
+        nodeFirstSlot = Arrays.copyOf(nodeFirstSlot, node + 1);
+        nodeSlotCount = Arrays.copyOf(nodeSlotCount, node + 1);
+        nodeKind[node] = kind;
+        nodeFirstSlot[node] = slotNames.size();
+        nodeSlotCount[node] = names.size();
+
+        if (kind == KIND_PROC_STAT)
+            procStatSlot = slotNames.size();
+
+        slotNames.addAll(names);
+        values = Arrays.copyOf(values, slotNames.size());
+        previous = Arrays.copyOf(previous, slotNames.size());
+        return true;
+    }
+
+    //Start writing samples to a binary file. The slot names are written to a text file next to it
+    public void open(File file, File namesFile) throws IOException {
+        try (Writer writer = new FileWriter(namesFile)) {
+            for (int slot = 0; slot < slotNames.size(); slot++)
+                writer.write(slot + "," + slotNames.get(slot) + "\n");
+        }
+        out = new FileOutputStream(file, false).getChannel();
+        recordBuffer.clear();
+        records = 0;
+    }
+
+    public void close() throws IOException {
+        flush();
+        if (out != null)
+            out.close();
+        out = null;
+
+        //a sample after close counts read errors only
+        for (FileChannel channel : channels)
+            channel.close();
+    }
+
+    //Read every node and store the changes since the previous sample
+    public void sample(long elapsedMs) throws IOException {
+        System.arraycopy(values, 0, previous, 0, values.length);
+
+        for (int node = 0; node < nodeKind.length; node++) {
+            readBuffer.clear();
+            try {
+                channels.get(node).read(readBuffer, 0);
+            } catch (IOException e) {
+                //e.g. a cpu went offline, keep its last values
+                readErrors++;
+                continue;
+            }
+            readBuffer.flip();
+
+            int first = nodeFirstSlot[node];
+            int count = nodeSlotCount[node];
+            switch (nodeKind[node]) {
+                case KIND_TIME_IN_STATE:
+                    parsePairs(readBuffer, values, first, count);
+                    break;
+                case KIND_PROC_STAT:
+                    parseFirstLine(readBuffer, values, first, count);
+                    break;
+                default:
+                    parseNumbers(readBuffer, values, first, 1, true);
+                    break;
+            }
+        }
+
+        if (out != null) {
+            if (recordBuffer.remaining() < (values.length + 1) * MAX_VARINT_SIZE)
+                flush();
+            //the first record holds the full values
+            boolean full = records++ == 0;
+            putVarint(recordBuffer, zigzag(full ? elapsedMs : elapsedMs - lastSampleMs));
+            for (int slot = 0; slot < values.length; slot++)
+                putVarint(recordBuffer, zigzag(full ? values[slot] : values[slot] - previous[slot]));
+        }
+
+        lastSampleMs = elapsedMs;
+        samples++;
+    }
+
+    private void flush() throws IOException {
+        if (out == null)
+            return;
+        recordBuffer.flip();
+        while (recordBuffer.hasRemaining())
+            out.write(recordBuffer);
+        recordBuffer.clear();
+    }
+
+    public int getSlotCount() {
+        return values.length;
+    }
+
+    public String getSlotName(int slot) {
+        return slotNames.get(slot);
+    }
+
+    public long getValue(int slot) {
+        return values[slot];
+    }
+
+    public int getSamples() {
+        return samples;
+    }
+
+    public int getReadErrors() {
+        return readErrors;
+    }
+
+    //highest thermal zone temperature of the last sample in degree C, or NaN if there is no zone
+    //most zones report millidegrees, some drivers report degrees
+    public double getMaxTemperature() {
+        double max = Double.NaN;
+        for (int node = 0; node < nodeKind.length; node++) {
+            if (nodeKind[node] == KIND_VALUE && nodePaths.get(node).endsWith("/temp")) {
+                long value = values[nodeFirstSlot[node]];
+                double celsius = Math.abs(value) >= 1000 ? value / 1000.0 : value;
+                if (Double.isNaN(max) || celsius > max)
+                    max = celsius;
+            }
+        }
+        return max;
+    }
+
+    //CPU ticks since boot from /proc/stat, all states and all but idle and iowait
+    //The busy percentage of a period is the change of busy ticks over the change of total ticks
+    public long getCpuTotalTicks() {
+        long total = 0;
+        if (procStatSlot >= 0) {
+            for (int i = 0; i < PROC_STAT_FIELDS; i++)
+                total += values[procStatSlot + i];
+        }
+        return total;
+    }
+
+    public long getCpuBusyTicks() {
+        if (procStatSlot < 0)
+            return 0;
+        return getCpuTotalTicks() - values[procStatSlot + 3] - values[procStatSlot + 4];
+    }
+
+    //Parse up to max decimal numbers from the buffer into dst starting at offset
+    //Returns the number of numbers parsed
+    static int parseNumbers(ByteBuffer buffer, long[] dst, int offset, int max, boolean signed) {
+        int count = 0;
+        int limit = buffer.limit();
+        int i = buffer.position();
+        while (i < limit && count < max) {
+            byte b = buffer.get(i);
+            boolean negative = signed && b == '-' && i + 1 < limit && isDigit(buffer.get(i + 1));
+            if (!negative && !isDigit(b)) {
+                i++;
+                continue;
+            }
+            if (negative)
+                i++;
+
+            long value = 0;
+            while (i < limit && isDigit(buffer.get(i))) {
+                value = value * 10 + (buffer.get(i) - '0');
+                i++;
+            }
+            dst[offset + count++] = negative ? -value : value;
+        }
+        return count;
+    }
+
+    private static int parseNumbers(ByteBuffer buffer, long[] dst, int max, boolean signed) {
+        return parseNumbers(buffer, dst, 0, max, signed);
+    }
+
+    //time_in_state: keep the second number of each line
+    private static void parsePairs(ByteBuffer buffer, long[] dst, int offset, int max) {
+        int count = 0;
+        int limit = buffer.limit();
+        int i = buffer.position();
+        while (i < limit && count < max) {
+            //skip the frequency
+            while (i < limit && buffer.get(i) != ' ' && buffer.get(i) != '\n')
+                i++;
+            while (i < limit && !isDigit(buffer.get(i)) && buffer.get(i) != '\n')
+                i++;
+
+            long value = 0;
+            while (i < limit && isDigit(buffer.get(i))) {
+                value = value * 10 + (buffer.get(i) - '0');
+                i++;
+            }
+            dst[offset + count++] = value;
+
+            while (i < limit && buffer.get(i) != '\n')
+                i++;
+            i++;
+        }
+    }
+
+    //first line of /proc/stat: "cpu  user nice system ..."
+    private static void parseFirstLine(ByteBuffer buffer, long[] dst, int offset, int max) {
+        int limit = buffer.position();
+        while (limit < buffer.limit() && buffer.get(limit) != '\n')
+            limit++;
+
+        int saved = buffer.limit();
+        buffer.limit(limit);
+        parseNumbers(buffer, dst, offset, max, false);
+        buffer.limit(saved);
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static void putVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long getVarint(InputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.read();
+            if (b < 0)
+                throw new EOFException();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    //Convert a binary sample file to CSV with the slot names as header
+    public void exportCsv(File file, File csv) throws IOException {
+        long[] row = new long[slotNames.size()];
+        long timeMs = 0;
+
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file));
+             Writer writer = new FileWriter(csv)) {
+            writer.write("elapsed_ms");
+            for (String name : slotNames)
+                writer.write("," + name);
+            writer.write("\n");
+
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                long delta;
+                try {
+                    delta = getVarint(in);
+                } catch (EOFException e) {
+                    break;
+                }
+
+                timeMs += unzigzag(delta);
+                for (int slot = 0; slot < row.length; slot++)
+                    row[slot] += unzigzag(getVarint(in));
+
+                sb.setLength(0);
+                sb.append(timeMs);
+                for (long value : row)
+                    sb.append(',').append(value);
+                writer.write(sb.append('\n').toString());
+            }
+        }
+    }
+
+    private String relative(File file) {
+        return root.toURI().relativize(file.toURI()).getPath();
+    }
+
+    private File[] listCpus() {
+        File[] cpus = new File(root, "sys/devices/system/cpu").listFiles(
+                f -> f.getName().matches("cpu[0-9]+"));
+        return sortByNumber(cpus);
+    }
+
+    private static File[] listSorted(File dir, String prefix) {
+        File[] files = dir.listFiles(f -> f.getName().startsWith(prefix));
+        return sortByNumber(files);
+    }
+
+    //cpu10 after cpu9
+    private static File[] sortByNumber(File[] files) {
+        if (files == null)
+            return new File[0];
+        Arrays.sort(files, (a, b) -> Integer.compare(numberOf(a), numberOf(b)));
+        return files;
+    }
+
+    private static int numberOf(File file) {
+        String digits = file.getName().replaceAll("[^0-9]", "");
+        return digits.isEmpty() ? -1 : Integer.parseInt(digits);
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            //nothing was read from it
+        }
+    }
+
+    private static String readText(File file) {
+        if (!file.canRead())
+            return "";
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[256];
+            int n = in.read(data);
+            return n > 0 ? new String(data, 0, n, StandardCharsets.US_ASCII).trim() : "";
+        } catch (IOException e) {
+            return "";
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+// This class measures the energy of every test execution (HR session, upload, GPS fix batch)
+// Tests call begin() and end() around each execution. While any test is active the battery is sampled
+// every second on the TestScheduler thread, otherwise the BatterySampler keeps its normal interval
+// The samples are fed to EnergyAttributor which charges the current above the idle baseline to the active tests
+// The baseline is the charge counter drop between tests, not the current at a test wakeup such as the sample
+// taken in begin(), which would count the awake CPU as idle
+// The GPS window after a fix holds the GPS wakelock, so the device does not suspend with the execution open
+// Thermal, cpufreq and cpuidle stats are sampled by SysfsSampler at the same times, so only while tests are active
+// It is instantiated by MainService
+public class TestEnergyMeter {
+    private static final String TAG = "verifi.TestEnergyMeter";
+    private static final String TEST_ENERGY_FILENAME = "verifi_test_energy.csv";
+    private static final String SYSFS_SAMPLE_FILENAME = "verifi_sysfs.bin";
+    private static final String SYSFS_SLOTS_FILENAME = "verifi_sysfs_slots.txt";
+    private static final String SYSFS_EXPORT_FILENAME = "verifi_sysfs.csv";
+
+    private static final long FAST_SAMPLE_INTERVAL_MS = 1000;
+
+    //a GPS fix is an instant, its execution is the window after the fix is delivered
+    static final long GPS_FIX_WINDOW_MS = 10000;
+
+    private final MainService parentService;
+    private final TestPreference testPref;
+    private final EnergyAttributor attributor = new EnergyAttributor();
+    private SysfsSampler sysfsSampler;
+
+    //power state at the start of the current execution of each test
+    private final int[] startPowerState = new int[EnergyAttributor.TEST_COUNT];
+
+    //CPU ticks at the start of the current execution of each test
+    private final long[] startCpuBusyTicks = new long[EnergyAttributor.TEST_COUNT];
+    private final long[] startCpuTotalTicks = new long[EnergyAttributor.TEST_COUNT];
+
+    private boolean fastSampling = false;
+    private final Runnable fastSample = this::fastSample;
+    private final Runnable endGpsWindow = this::endGpsWindow;
+    private boolean gpsWindowOpen = false;
+
+    public TestEnergyMeter(MainService pService) {
+        parentService = pService;
+        testPref = TestPreference.getInstance();
+    }
+
+    public void start() {
+        writeLog("time,test,duration_sec,charge_mah,baseline_ma,max_temp_c,cpu_busy_pct,power_state", false);
+
+        if (testPref.isSysfsSampling()) {
+            File dir = parentService.getExternalFilesDir(null);
+            try {
+                sysfsSampler = new SysfsSampler(new File("/"));
+                sysfsSampler.addDefaultNodes();
+                sysfsSampler.open(new File(dir, SYSFS_SAMPLE_FILENAME), new File(dir, SYSFS_SLOTS_FILENAME));
+                Log.i(TAG, "Sampling " + sysfsSampler.getSlotCount() + " sysfs values");
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to start sysfs sampling", e);
+                sysfsSampler = null;
+            }
+        }
+    }
+
+    public void stop() {
+        MainService.getTestScheduler().removeRunnable(fastSample);
+        MainService.getTestScheduler().removeRunnable(endGpsWindow);
+        endGpsWindow();
+
+        if (sysfsSampler != null) {
+            synchronized (sysfsSampler) {
+                File dir = parentService.getExternalFilesDir(null);
+                try {
+                    sysfsSampler.close();
+                    sysfsSampler.exportCsv(new File(dir, SYSFS_SAMPLE_FILENAME), new File(dir, SYSFS_EXPORT_FILENAME));
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to export sysfs samples", e);
+                }
+                if (sysfsSampler.getReadErrors() > 0)
+                    Log.w(TAG, sysfsSampler.getReadErrors() + " sysfs reads failed");
+            }
+        }
+
+        synchronized (this) {
+            for (int test = 0; test < EnergyAttributor.TEST_COUNT; test++) {
+                if (attributor.getExecutions(test) > 0)
+                    parentService.sendStatus(String.format(Locale.US, "%s energy: %.3f mAh total, %.4f mAh per run over %d runs",
+                            EnergyAttributor.TEST_NAMES[test], attributor.getTotalMah(test),
+                            attributor.getAverageMah(test), attributor.getExecutions(test)));
+            }
+        }
+    }
+
+    //Called by BatterySampler for every sample
+    public synchronized void onSample(long elapsedMs, int currentNowUa, int chargeUah, boolean plugged) {
+        attributor.addSample(elapsedMs, currentNowUa, chargeUah, plugged);
+    }
+
+    //Start an execution of a test and switch to fast sampling
+    public void begin(int test) {
+        //close the sample interval before the test so it is not charged to it
+        sample();
+
+        boolean startFast;
+        synchronized (this) {
+            if (!attributor.isActive(test)) {
+                PowerStateTracker powerStateTracker = MainService.getPowerStateTracker();
+                startPowerState[test] = powerStateTracker != null ? powerStateTracker.getState() : -1;
+
+                if (sysfsSampler != null) {
+                    startCpuBusyTicks[test] = sysfsSampler.getCpuBusyTicks();
+                    startCpuTotalTicks[test] = sysfsSampler.getCpuTotalTicks();
+                }
+            }
+            attributor.begin(test, SystemClock.elapsedRealtime());
+            startFast = !fastSampling;
+            fastSampling = true;
+        }
+
+        if (startFast) {
+            BatterySampler batterySampler = MainService.getBatterySampler();
+            if (batterySampler != null)
+                batterySampler.setSampleInterval(FAST_SAMPLE_INTERVAL_MS);
+            MainService.getTestScheduler().postDelayedRunnable(fastSample, FAST_SAMPLE_INTERVAL_MS);
+        }
+    }
+
+    //End an execution of a test, report its energy and go back to the normal sample interval if no test is active
+    //Returns the charge of the execution in mAh, NaN if it was not measured
+    public double end(int test) {
+        sample();
+
+        double mah;
+        long durationMs;
+        double baselineMa;
+        double totalMah;
+        int powerState;
+        double maxTemp = Double.NaN;
+        double cpuBusyPct = Double.NaN;
+        boolean stopFast = false;
+        synchronized (this) {
+            if (!attributor.isActive(test))
+                return Double.NaN;
+
+            mah = attributor.end(test, SystemClock.elapsedRealtime());
+            durationMs = attributor.getLastDurationMs();
+            baselineMa = attributor.getBaselineMa();
+            totalMah = attributor.getTotalMah(test);
+            powerState = startPowerState[test];
+
+            if (sysfsSampler != null) {
+                maxTemp = sysfsSampler.getMaxTemperature();
+                long total = sysfsSampler.getCpuTotalTicks() - startCpuTotalTicks[test];
+                if (total > 0)
+                    cpuBusyPct = (sysfsSampler.getCpuBusyTicks() - startCpuBusyTicks[test]) * 100.0 / total;
+            }
+
+            if (fastSampling && !attributor.isAnyActive()) {
+                fastSampling = false;
+                stopFast = true;
+            }
+        }
+
+        if (stopFast) {
+            MainService.getTestScheduler().removeRunnable(fastSample);
+            BatterySampler batterySampler = MainService.getBatterySampler();
+            if (batterySampler != null)
+                batterySampler.setSampleInterval(testPref.getBatterySampleInterval() * 1000L);
+        }
+
+        if (Double.isNaN(mah))
+            return mah;
+
+        PowerStateTracker powerStateTracker = MainService.getPowerStateTracker();
+        if (powerStateTracker != null)
+            powerStateTracker.addExecution(test, powerState, durationMs);
+
+        String ts = new SimpleDateFormat("MM-dd HH:mm:ss", Locale.US).format(new Date());
+        String msg = String.format(Locale.US, "%s energy %.4f mAh in %.1f s (total %.3f mAh) [%s]",
+                EnergyAttributor.TEST_NAMES[test], mah, durationMs / 1000.0, totalMah,
+                PowerStateTimeline.describe(powerState));
+        Log.i(TAG, msg);
+        parentService.sendStatus(ts + " - " + msg);
+
+        writeLog(String.format(Locale.US, "%s,%s,%.1f,%.5f,%.1f,%.1f,%.1f,%s", ts, EnergyAttributor.TEST_NAMES[test],
+                durationMs / 1000.0, mah, baselineMa, maxTemp, cpuBusyPct, PowerStateTimeline.describe(powerState)), true);
+        return mah;
+    }
+
+    //Start a GPS execution, or extend the open one, that ends GPS_FIX_WINDOW_MS after the last fix
+    //so all fixes of an FLP batch are one execution
+    //The GPS wakelock is held until the window ends, the fix processing releases its own hold before that
+    public void gpsFix() {
+        boolean open;
+        synchronized (this) {
+            open = gpsWindowOpen;
+            gpsWindowOpen = true;
+        }
+
+        if (!open) {
+            MainService.getWakeLockManager().acquire(EnergyAttributor.GPS);
+            begin(EnergyAttributor.GPS);
+        }
+
+        MainService.getTestScheduler().removeRunnable(endGpsWindow);
+        MainService.getTestScheduler().postDelayedRunnable(endGpsWindow, GPS_FIX_WINDOW_MS);
+    }
+
+    private void endGpsWindow() {
+        synchronized (this) {
+            if (!gpsWindowOpen)
+                return;
+            gpsWindowOpen = false;
+        }
+
+        end(EnergyAttributor.GPS);
+        MainService.getWakeLockManager().release(EnergyAttributor.GPS);
+    }
+
+    private void fastSample() {
+        sample();
+
+        synchronized (this) {
+            if (!fastSampling)
+                return;
+        }
+        MainService.getTestScheduler().postDelayedRunnable(fastSample, FAST_SAMPLE_INTERVAL_MS);
+    }
+
+    //BatterySampler calls back onSample, so this is never called while holding the lock
+    private void sample() {
+        BatterySampler batterySampler = MainService.getBatterySampler();
+        if (batterySampler != null)
+            batterySampler.sample();
+
+        if (sysfsSampler != null) {
+            synchronized (sysfsSampler) {
+                try {
+                    sysfsSampler.sample(SystemClock.elapsedRealtime());
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to write sysfs samples", e);
+                }
+            }
+        }
+    }
+
+    private void writeLog(String line, boolean append) {
+        File file = new File(parentService.getExternalFilesDir(null), TEST_ENERGY_FILENAME);
+        try (Writer writer = new FileWriter(file, append)) {
+            writer.write(line + "\n");
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write test energy log", e);
+        }
+    }
+}
@@ -14,9 +14,14 @@ package com.mason.verifi;
  */
 
 
-enum GPSType {IZATSDK, LOCMGR}
+enum GPSType {IZATSDK, LOCMGR, REPLAY}
 enum SensorType {OFFBODY, OFFBODYENHANCED, HEARTRATE, OFFBODYANDHEARTRATE, ECG}
 enum DataConnType {WIFI, CELL}
+enum ConnectionMode {COLD, WARM}
+enum NetworkBinding {DEFAULT, BOUND, DUAL}
+enum ThroughputDirection {UPLOAD, DOWNLOAD}
+enum PayloadType {ASSET, SYNTHETIC}
+enum RunMode {NORMAL, MATRIX, BUDGET, BASELINE}
 //add new test variation here
 
 //This class keeps the test preference settings
@@ -28,6 +33,30 @@ public class TestPreference {
     private GPSType gpsType;
     private SensorType sensorType;
     private DataConnType dataConnType;
+    private ConnectionMode connectionMode;
+    private NetworkBinding networkBinding;
+    private PayloadType payloadType;
+    private int payloadSize;
+    private int payloadEntropy;
+    private int uploadBatchSize;
+    private int uploadBatchMaxAge;
+    private int uploadQueueSize;
+    private int connectTimeout;
+    private int readTimeout;
+    private int writeTimeout;
+    private int callTimeout;
+    private boolean deliveryGuarantee;
+    private int retryBaseDelay;
+    private int retryMaxDelay;
+    private int throughputStreams;
+    private ThroughputDirection throughputDirection;
+    private int throughputDuration;
+    private int throughputBytes;
+    private String throughputUrl;
+    private int downloadSize;
+    private String downloadUrl;
+    private boolean downloadChecksum;
+    private int downloadResumes;
 
     private boolean enableGPS;
     private boolean enableSensor;
@@ -37,10 +66,32 @@ public class TestPreference {
     private int sensorInterval;
     private int dataConnInterval;
 
+    private String gpsReplayFile;
+    private int gpsReplaySpeed;
+
+    private RunMode runMode;
+    private String matrixFile;
+
+    private int budgetTargetHours;
+    private int budgetStepInterval;
+    private int gpsPriority;
+    private int sensorPriority;
+    private int dataConnPriority;
+
+    private boolean earlyStop;
+    private int earlyStopTolerance;
+
+    private int batterySampleInterval;
+    private boolean sysfsSampling;
+
+    private String collectorUrl;
+
     private TestPreference() {
         enableGPS = true;
         gpsType = GPSType.IZATSDK;
         gpsInterval = 180; //3 min (3*60) in sec
+        gpsReplayFile = "verifi_gps_track.gpx"; //GPX or binary track in the app files folder
+        gpsReplaySpeed = 1; //real time
 
         enableSensor = true;
         sensorType = SensorType.OFFBODY;
@@ -49,6 +100,47 @@ public class TestPreference {
         enableDataConn = true;
         dataConnType = DataConnType.CELL;
         dataConnInterval = 900; //15 min (15*60) in sec
+        connectionMode = ConnectionMode.WARM; //reuse pooled connections; COLD = new connection and TLS handshake per upload
+        networkBinding = NetworkBinding.DEFAULT; //upload over the default network; BOUND = over dataConnType; DUAL = Wi-Fi then cellular
+        payloadType = PayloadType.ASSET; //verifi_dc_test.png from the APK; SYNTHETIC = generated payload
+        payloadSize = 64; //synthetic payload size in KB, up to hundreds of MB
+        payloadEntropy = 100; //percent of the synthetic payload that is random, the rest compresses to nothing
+        uploadBatchSize = 1; //payloads sent together in one radio session; 1 = upload every payload right away
+        uploadBatchMaxAge = 3600; //1 hour, a batch is sent early when its oldest payload is this old
+        uploadQueueSize = 100; //payloads kept on disk for the next batch, new ones are dropped when it is full
+        connectTimeout = 15; //sec, TCP connect and TLS handshake of an upload
+        readTimeout = 30; //sec without a byte from the server
+        writeTimeout = 30; //sec without a byte accepted by the server
+        callTimeout = 120; //sec for the whole upload, 0 = no limit
+        deliveryGuarantee = false; //keep failed uploads on disk and retry them until they are delivered
+        retryBaseDelay = 60; //sec before the first retry, doubled after every failed attempt
+        retryMaxDelay = 3600; //sec, longest wait between two retries
+        throughputStreams = 0; //parallel streams of the throughput mode, 0 = off (one upload per wakeup)
+        throughputDirection = ThroughputDirection.UPLOAD;
+        throughputDuration = 10; //sec per throughput run, 0 = until throughputBytes are sent
+        throughputBytes = 0; //MB per throughput run for all streams, 0 = until throughputDuration is over
+        throughputUrl = ""; //empty = the upload test address; a download needs a URL of a large file
+        downloadSize = 0; //KB per download, 0 = off (one upload per wakeup)
+        downloadUrl = "https://speed.cloudflare.com/__down?bytes={size}"; //{size} is replaced with the size in bytes
+        downloadChecksum = true; //CRC32 of the downloaded bytes, false = the bytes are only counted
+        downloadResumes = 3; //Range requests to resume an interrupted download
+
+        runMode = RunMode.NORMAL;
+        matrixFile = "verifi_matrix.txt"; //parameter grid in the app files folder
+
+        budgetTargetHours = 36;
+        budgetStepInterval = 900; //15 min between interval adjustments
+        gpsPriority = 1; //1 = adjusted the most, higher values are adjusted less
+        sensorPriority = 1;
+        dataConnPriority = 1;
+
+        earlyStop = false;
+        earlyStopTolerance = 5; //stop when the 95% confidence interval is within +/- 5% of the projected life
+
+        batterySampleInterval = 60; //1 min, samples are only taken when a test wakes up the device
+        sysfsSampling = true; //thermal, cpufreq and cpuidle stats, sampled with the battery while a test is active
+
+        collectorUrl = ""; //fleet result collector, e.g. "http://192.168.1.10:8080/collect"; empty = off
 
         //initialize new test parameters here
 
@@ -79,6 +171,18 @@ public class TestPreference {
     public int getGpsInterval() {
         return gpsInterval;
     }
+    public void setGpsReplayFile(String gpsReplayFile) {
+        this.gpsReplayFile = gpsReplayFile;
+    }
+    public String getGpsReplayFile() {
+        return gpsReplayFile;
+    }
+    public void setGpsReplaySpeed(int gpsReplaySpeed) {
+        this.gpsReplaySpeed = gpsReplaySpeed;
+    }
+    public int getGpsReplaySpeed() {
+        return gpsReplaySpeed;
+    }
 
 
     public void setEnableSensor(boolean enableSensor) {
@@ -117,6 +221,228 @@ public class TestPreference {
     public int getDataConnInterval() {
         return dataConnInterval;
     }
+    public void setConnectionMode(ConnectionMode connectionMode) {
+        this.connectionMode = connectionMode;
+    }
+    public ConnectionMode getConnectionMode() {
+        return connectionMode;
+    }
+    public void setNetworkBinding(NetworkBinding networkBinding) {
+        this.networkBinding = networkBinding;
+    }
+    public NetworkBinding getNetworkBinding() {
+        return networkBinding;
+    }
+    public void setPayloadType(PayloadType payloadType) {
+        this.payloadType = payloadType;
+    }
+    public PayloadType getPayloadType() {
+        return payloadType;
+    }
+    public void setPayloadSize(int payloadSize) {
+        this.payloadSize = payloadSize;
+    }
+    public int getPayloadSize() {
+        return payloadSize;
+    }
+    public void setPayloadEntropy(int payloadEntropy) {
+        this.payloadEntropy = payloadEntropy;
+    }
+    public int getPayloadEntropy() {
+        return payloadEntropy;
+    }
+    public void setUploadBatchSize(int uploadBatchSize) {
+        this.uploadBatchSize = uploadBatchSize;
+    }
+    public int getUploadBatchSize() {
+        return uploadBatchSize;
+    }
+    public void setUploadBatchMaxAge(int uploadBatchMaxAge) {
+        this.uploadBatchMaxAge = uploadBatchMaxAge;
+    }
+    public int getUploadBatchMaxAge() {
+        return uploadBatchMaxAge;
+    }
+    public void setUploadQueueSize(int uploadQueueSize) {
+        this.uploadQueueSize = uploadQueueSize;
+    }
+    public int getUploadQueueSize() {
+        return uploadQueueSize;
+    }
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+    public void setWriteTimeout(int writeTimeout) {
+        this.writeTimeout = writeTimeout;
+    }
+    public int getWriteTimeout() {
+        return writeTimeout;
+    }
+    public void setCallTimeout(int callTimeout) {
+        this.callTimeout = callTimeout;
+    }
+    public int getCallTimeout() {
+        return callTimeout;
+    }
+    public void setDeliveryGuarantee(boolean deliveryGuarantee) {
+        this.deliveryGuarantee = deliveryGuarantee;
+    }
+    public boolean isDeliveryGuarantee() {
+        return deliveryGuarantee;
+    }
+    public void setRetryBaseDelay(int retryBaseDelay) {
+        this.retryBaseDelay = retryBaseDelay;
+    }
+    public int getRetryBaseDelay() {
+        return retryBaseDelay;
+    }
+    public void setRetryMaxDelay(int retryMaxDelay) {
+        this.retryMaxDelay = retryMaxDelay;
+    }
+    public int getRetryMaxDelay() {
+        return retryMaxDelay;
+    }
+    public void setThroughputStreams(int throughputStreams) {
+        this.throughputStreams = throughputStreams;
+    }
+    public int getThroughputStreams() {
+        return throughputStreams;
+    }
+    public void setThroughputDirection(ThroughputDirection throughputDirection) {
+        this.throughputDirection = throughputDirection;
+    }
+    public ThroughputDirection getThroughputDirection() {
+        return throughputDirection;
+    }
+    public void setThroughputDuration(int throughputDuration) {
+        this.throughputDuration = throughputDuration;
+    }
+    public int getThroughputDuration() {
+        return throughputDuration;
+    }
+    public void setThroughputBytes(int throughputBytes) {
+        this.throughputBytes = throughputBytes;
+    }
+    public int getThroughputBytes() {
+        return throughputBytes;
+    }
+    public void setThroughputUrl(String throughputUrl) {
+        this.throughputUrl = throughputUrl;
+    }
+    public String getThroughputUrl() {
+        return throughputUrl;
+    }
+    public void setDownloadSize(int downloadSize) {
+        this.downloadSize = downloadSize;
+    }
+    public int getDownloadSize() {
+        return downloadSize;
+    }
+    public void setDownloadUrl(String downloadUrl) {
+        this.downloadUrl = downloadUrl;
+    }
+    public String getDownloadUrl() {
+        return downloadUrl;
+    }
+    public void setDownloadChecksum(boolean downloadChecksum) {
+        this.downloadChecksum = downloadChecksum;
+    }
+    public boolean isDownloadChecksum() {
+        return downloadChecksum;
+    }
+    public void setDownloadResumes(int downloadResumes) {
+        this.downloadResumes = downloadResumes;
+    }
+    public int getDownloadResumes() {
+        return downloadResumes;
+    }
+
+    public void setRunMode(RunMode runMode) {
+        this.runMode = runMode;
+    }
+    public RunMode getRunMode() {
+        return runMode;
+    }
+    public void setMatrixFile(String matrixFile) {
+        this.matrixFile = matrixFile;
+    }
+    public String getMatrixFile() {
+        return matrixFile;
+    }
+
+    public void setBudgetTargetHours(int budgetTargetHours) {
+        this.budgetTargetHours = budgetTargetHours;
+    }
+    public int getBudgetTargetHours() {
+        return budgetTargetHours;
+    }
+    public void setBudgetStepInterval(int budgetStepInterval) {
+        this.budgetStepInterval = budgetStepInterval;
+    }
+    public int getBudgetStepInterval() {
+        return budgetStepInterval;
+    }
+    public void setGpsPriority(int gpsPriority) {
+        this.gpsPriority = gpsPriority;
+    }
+    public int getGpsPriority() {
+        return gpsPriority;
+    }
+    public void setSensorPriority(int sensorPriority) {
+        this.sensorPriority = sensorPriority;
+    }
+    public int getSensorPriority() {
+        return sensorPriority;
+    }
+    public void setDataConnPriority(int dataConnPriority) {
+        this.dataConnPriority = dataConnPriority;
+    }
+    public int getDataConnPriority() {
+        return dataConnPriority;
+    }
+
+    public void setEarlyStop(boolean earlyStop) {
+        this.earlyStop = earlyStop;
+    }
+    public boolean isEarlyStop() {
+        return earlyStop;
+    }
+    public void setEarlyStopTolerance(int earlyStopTolerance) {
+        this.earlyStopTolerance = earlyStopTolerance;
+    }
+    public int getEarlyStopTolerance() {
+        return earlyStopTolerance;
+    }
+
+    public void setBatterySampleInterval(int batterySampleInterval) {
+        this.batterySampleInterval = batterySampleInterval;
+    }
+    public int getBatterySampleInterval() {
+        return batterySampleInterval;
+    }
+
+    public void setSysfsSampling(boolean sysfsSampling) {
+        this.sysfsSampling = sysfsSampling;
+    }
+    public boolean isSysfsSampling() {
+        return sysfsSampling;
+    }
+
+    public void setCollectorUrl(String collectorUrl) {
+        this.collectorUrl = collectorUrl;
+    }
+    public String getCollectorUrl() {
+        return collectorUrl;
+    }
 
     //Add new test set and get functions here
 }
@@ -19,6 +19,7 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -29,6 +30,10 @@ import androidx.annotation.NonNull;
 public class TestScheduler extends HandlerThread {
     private static final String TAG = "verifi.TestScheduler";
     private CustomHandler mHandler;
+    private final WakeLockManager wakeLockManager;
+
+    private final MetricsRegistry.Counter messageCounter = MetricsRegistry.getInstance().counter("scheduler.messages");
+    private final MetricsRegistry.Histogram latencyHistogram = MetricsRegistry.getInstance().histogram("scheduler.latency_ms");
 
     final static int START_GPS = 1;
     final static int STOP_GPS = 2;
@@ -36,8 +41,20 @@ public class TestScheduler extends HandlerThread {
     final static int STOP_SENSOR = 4;
     final static int START_DATA_CONN = 5;
     final static int STOP_DATA_CONN = 6;
+    final static int RETRY_DATA_CONN = 7;
     //Add new test constants here
 
+    //trace section of each message, indexed by message - 1
+    private static final int[] TRACE_MESSAGES = {
+            TraceRecorder.register("scheduler.start_gps"),
+            TraceRecorder.register("scheduler.stop_gps"),
+            TraceRecorder.register("scheduler.start_sensor"),
+            TraceRecorder.register("scheduler.stop_sensor"),
+            TraceRecorder.register("scheduler.start_data_conn"),
+            TraceRecorder.register("scheduler.stop_data_conn"),
+            TraceRecorder.register("scheduler.retry_data_conn")};
+    private static final int TRACE_QUEUE = TraceRecorder.register("scheduler.queue");
+
 
     private final GpsTest gpsTest;
     private final DataConnTest dataConnTest;
@@ -66,6 +83,14 @@ public class TestScheduler extends HandlerThread {
     public void stopDataConnTest() {
         addMessage(TestScheduler.STOP_DATA_CONN);
     }
+    //connectivity is back, retry the failed uploads
+    public void retryDataConnTest() {
+        addMessage(TestScheduler.RETRY_DATA_CONN);
+    }
+    //GpsAlarm went off, deliver the next replayed or baseline fix
+    public void stepGPSTest() {
+        postWakeupRunnable(EnergyAttributor.GPS, gpsTest::stepGpsTest);
+    }
 
     //Add new test start and stop function here
 
@@ -74,6 +99,8 @@ public class TestScheduler extends HandlerThread {
     public TestScheduler(String name, MainService service) {
         super(name, Process.THREAD_PRIORITY_MORE_FAVORABLE);
 
+        wakeLockManager = MainService.getWakeLockManager();
+
         gpsTest = new GpsTest(service);
         dataConnTest = new DataConnTest(service.getApplicationContext());
         sensorTest = new SensorTest(service.getApplicationContext());
@@ -91,39 +118,89 @@ public class TestScheduler extends HandlerThread {
         @Override
         public void handleMessage(@NonNull Message msg) {
             super.handleMessage(msg);
-            switch (msg.what){
-                case START_GPS:
-                    gpsTest.startGpsTest();
-                    break;
-
-                case STOP_GPS:
-                    gpsTest.stopGpsTest();
-                    break;
-
-                case START_SENSOR:
-                    sensorTest.startSensorTest();
-                    break;
-
-                case STOP_SENSOR:
-                    sensorTest.stopSensorTest();
-                    break;
-
-                case START_DATA_CONN:
-                    dataConnTest.startDataConnTest();
-                    break;
-
-                case STOP_DATA_CONN:
-                    dataConnTest.stopDataConnTest();
-                    break;
-
-                //Add new test case statement here
-
-                default:
-                    break;
+            WakeupCpuProfiler.beginWakeup();
+
+            //time the message waited in the queue
+            long queuedMs = SystemClock.uptimeMillis() - msg.getWhen();
+            messageCounter.increment();
+            latencyHistogram.record(queuedMs);
+            TraceRecorder.recordPast(TRACE_QUEUE, queuedMs * 1000);
+
+            boolean traced = msg.what >= 1 && msg.what <= TRACE_MESSAGES.length;
+            if (traced)
+                TraceRecorder.begin(TRACE_MESSAGES[msg.what - 1]);
+
+            try {
+                //piggyback battery sampling on the test wakeup
+                BatterySampler batterySampler = MainService.getBatterySampler();
+                if (batterySampler != null)
+                    batterySampler.maybeSample();
+
+                //results are sent from here only while charging, the collector checks
+                ResultCollector resultCollector = MainService.getResultCollector();
+                if (resultCollector != null)
+                    resultCollector.maybeFlush();
+
+                switch (msg.what) {
+                    case START_GPS:
+                        gpsTest.startGpsTest();
+                        break;
+
+                    case STOP_GPS:
+                        gpsTest.stopGpsTest();
+                        break;
+
+                    case START_SENSOR:
+                        sensorTest.startSensorTest();
+                        break;
+
+                    case STOP_SENSOR:
+                        sensorTest.stopSensorTest();
+                        break;
+
+                    case START_DATA_CONN:
+                        dataConnTest.startDataConnTest();
+                        break;
+
+                    case STOP_DATA_CONN:
+                        dataConnTest.stopDataConnTest();
+                        break;
+
+                    case RETRY_DATA_CONN:
+                        dataConnTest.retryUploads(true);
+                        break;
+
+                    //Add new test case statement here
+
+                    default:
+                        break;
+                }
+            } finally {
+                if (traced)
+                    TraceRecorder.end(TRACE_MESSAGES[msg.what - 1]);
+                WakeupCpuProfiler.endWakeup(testOf(msg.what), WakeupCpuProfiler.MESSAGE);
+
+                //release the wakelock taken in addMessage
+                wakeLockManager.release(testOf(msg.what));
             }
         }
     }
 
+    //Test type of a message, used to pick the wakelock
+    private static int testOf(int message) {
+        switch (message) {
+            case START_SENSOR:
+            case STOP_SENSOR:
+                return EnergyAttributor.SENSOR;
+            case START_DATA_CONN:
+            case STOP_DATA_CONN:
+            case RETRY_DATA_CONN:
+                return EnergyAttributor.DATA_CONN;
+            default:
+                return EnergyAttributor.GPS;
+        }
+    }
+
 
     @Override
     public boolean quitSafely() {
@@ -142,7 +219,11 @@ public class TestScheduler extends HandlerThread {
     private void addMessage(int message){
         Log.d(TAG, "addMessage: " + message);
         if(mHandler != null) {
-            mHandler.sendEmptyMessage(message);
+            //the alarm that sent this message only keeps the CPU awake until its onReceive returns,
+            //so hold a wakelock until the message is handled
+            wakeLockManager.acquire(testOf(message));
+            if (!mHandler.sendEmptyMessage(message))
+                wakeLockManager.release(testOf(message));
         }
     }
 
@@ -154,9 +235,31 @@ public class TestScheduler extends HandlerThread {
         }
     }
 
+    //Used by alarm receivers, the wakelock of the test is held until the runnable has run
+    private void postWakeupRunnable(int test, Runnable runnable){
+        if(mHandler != null) {
+            wakeLockManager.acquire(test);
+            Runnable held = () -> {
+                try {
+                    runnable.run();
+                } finally {
+                    wakeLockManager.release(test);
+                }
+            };
+            if (!mHandler.post(held))
+                wakeLockManager.release(test);
+        }
+    }
+
     public void postDelayedRunnable(Runnable runnable, long delayMs){
         if(mHandler != null) {
             mHandler.postDelayed(runnable, delayMs);
         }
     }
+
+    public void removeRunnable(Runnable runnable){
+        if(mHandler != null) {
+            mHandler.removeCallbacks(runnable);
+        }
+    }
 }
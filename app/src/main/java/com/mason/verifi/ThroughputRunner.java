@@ -0,0 +1,365 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSink;
+import okio.BufferedSource;
+
+// This class runs the throughput mode of the data connection test: N streams upload to or download from
+// one URL at the same time, for a fixed duration or byte count, whichever comes first
+// Each stream is a synchronous call on its own thread over its own HTTP/1.1 connection, HTTP/2 would put
+// all of them on one connection. The bytes of each stream are counted as they are written to or read from
+// the connection and sampled every second, so the goodput of every stream and of the link is known over time
+// An upload stream sends one chunked body of random bytes until the run is over. A download stream reads
+// into one reused buffer and requests the URL again if the response ends before the run does
+// It has no Android dependency so it can be checked in JVM unit tests against a local server
+public class ThroughputRunner {
+    static final long SAMPLE_MS = 1000;
+    //time the streams get to finish after the run is over before their calls are cancelled
+    private static final long GRACE_MS = 5000;
+
+    private final OkHttpClient client;
+    private final String url;
+    private final ThroughputDirection direction;
+    private final int streams;
+    private final long durationMs;
+    private final long maxBytes;
+
+    private final byte[] data = new byte[PayloadBody.BUFFER_SIZE];
+    private final AtomicLong[] streamBytes;
+    private final AtomicLong reserved = new AtomicLong();
+    private final AtomicInteger errors = new AtomicInteger();
+    private final Call[] calls;
+    private volatile boolean stopped = false;
+
+    //durationMs or maxBytes can be 0 for no limit, not both
+    public ThroughputRunner(OkHttpClient client, String url, ThroughputDirection direction, int streams,
+                            long durationMs, long maxBytes) {
+        if (streams < 1 || durationMs < 0 || maxBytes < 0 || (durationMs == 0 && maxBytes == 0))
+            throw new IllegalArgumentException("Invalid throughput run: " + streams + " streams, " + durationMs
+                    + " ms, " + maxBytes + " bytes");
+        this.client = client.newBuilder()
+                .protocols(Collections.singletonList(Protocol.HTTP_1_1))
+                .callTimeout(0, TimeUnit.MILLISECONDS)
+                .build();
+        this.url = url;
+        this.direction = direction;
+        this.streams = streams;
+        this.durationMs = durationMs;
+        this.maxBytes = maxBytes;
+
+        this.streamBytes = new AtomicLong[streams];
+        for (int i = 0; i < streams; i++)
+            streamBytes[i] = new AtomicLong();
+        this.calls = new Call[streams];
+        //random so that a compressing link does not inflate the goodput
+        new Random().nextBytes(data);
+    }
+
+    //Run the streams until the run is over, sampling them every second. Blocks the calling thread
+    public Result run() throws InterruptedException {
+        long startNs = System.nanoTime();
+        Thread[] threads = new Thread[streams];
+        for (int i = 0; i < streams; i++) {
+            final int stream = i;
+            threads[i] = new Thread(() -> runStream(stream), "verifi-throughput-" + i);
+            threads[i].start();
+        }
+
+        List<long[]> samples = new ArrayList<>();
+        List<Long> sampleMs = new ArrayList<>();
+        long[] last = new long[streams];
+        long lastNs = startNs;
+        long stopNs = 0;
+        boolean done = false;
+        try {
+            while (!done) {
+                done = join(threads, lastNs + SAMPLE_MS * 1000000);
+                long nowNs = System.nanoTime();
+                if (durationMs > 0 && nowNs - startNs >= durationMs * 1000000)
+                    stop();
+                if (stopped && stopNs == 0)
+                    stopNs = nowNs;
+                if (stopNs != 0 && nowNs - stopNs >= GRACE_MS * 1000000)
+                    cancel();
+
+                long[] sample = new long[streams];
+                for (int i = 0; i < streams; i++) {
+                    long bytes = streamBytes[i].get();
+                    sample[i] = bytes - last[i];
+                    last[i] = bytes;
+                }
+                samples.add(sample);
+                sampleMs.add((nowNs - lastNs) / 1000000);
+                lastNs = nowNs;
+            }
+        } finally {
+            //interrupted, the streams must not outlive the run
+            stop();
+            cancel();
+        }
+
+        long activeNs = (stopNs != 0 ? Math.min(stopNs, lastNs) : lastNs) - startNs;
+        return new Result(last, samples, sampleMs, Math.max(activeNs / 1000000, 1), errors.get());
+    }
+
+    //Wait for the streams until deadlineNs. Returns true if all of them are over
+    private static boolean join(Thread[] threads, long deadlineNs) throws InterruptedException {
+        for (Thread thread : threads) {
+            long waitMs = (deadlineNs - System.nanoTime()) / 1000000;
+            if (waitMs <= 0)
+                break;
+            thread.join(waitMs);
+        }
+        for (Thread thread : threads) {
+            if (thread.isAlive())
+                return false;
+        }
+        return true;
+    }
+
+    //End the run, the streams finish their current buffer
+    public void stop() {
+        stopped = true;
+    }
+
+    //Cancel the calls of the streams, e.g. a download stalled on a dead link
+    public synchronized void cancel() {
+        stopped = true;
+        for (Call call : calls) {
+            if (call != null)
+                call.cancel();
+        }
+    }
+
+    private void runStream(int stream) {
+        try {
+            while (!stopped) {
+                Request.Builder builder = new Request.Builder().url(url);
+                if (direction == ThroughputDirection.UPLOAD)
+                    builder.post(new StreamBody(stream));
+                Call call = client.newCall(builder.build());
+                synchronized (this) {
+                    if (stopped)
+                        return;
+                    calls[stream] = call;
+                }
+
+                try (Response response = call.execute()) {
+                    ResponseBody body = response.body();
+                    if (!response.isSuccessful() || body == null) {
+                        errors.incrementAndGet();
+                        return;
+                    }
+                    //an empty download would spin
+                    if (direction == ThroughputDirection.DOWNLOAD && read(body.source(), stream) == 0)
+                        return;
+                }
+            }
+        } catch (IOException e) {
+            //a cancelled call ends the stream
+            if (!stopped)
+                errors.incrementAndGet();
+        }
+    }
+
+    //Read the response into the buffer until it ends or the run is over, returns the bytes read
+    private long read(BufferedSource source, int stream) throws IOException {
+        byte[] buffer = new byte[PayloadBody.BUFFER_SIZE];
+        long total = 0;
+        while (!stopped) {
+            int want = take(buffer.length);
+            if (want == 0)
+                break;
+            int n = source.read(buffer, 0, want);
+            if (n < 0) {
+                release(want);
+                break;
+            }
+            release(want - n);
+            add(stream, n);
+            total += n;
+        }
+        return total;
+    }
+
+    //Reserve up to want bytes of the byte budget, 0 if it is used up
+    private int take(int want) {
+        if (maxBytes == 0)
+            return want;
+        while (true) {
+            long used = reserved.get();
+            int n = (int) Math.min(want, maxBytes - used);
+            if (n <= 0) {
+                stop();
+                return 0;
+            }
+            if (reserved.compareAndSet(used, used + n))
+                return n;
+        }
+    }
+
+    private void release(int unused) {
+        if (maxBytes > 0 && unused > 0)
+            reserved.addAndGet(-unused);
+    }
+
+    private void add(int stream, int n) {
+        streamBytes[stream].addAndGet(n);
+    }
+
+    // Upload body of unknown length, written until the run is over
+    private class StreamBody extends RequestBody {
+        private final int stream;
+
+        StreamBody(int stream) {
+            this.stream = stream;
+        }
+
+        @Nullable
+        @Override
+        public MediaType contentType() {
+            return MediaType.parse("application/octet-stream");
+        }
+
+        @Override
+        public long contentLength() {
+            return -1;
+        }
+
+        @Override
+        public void writeTo(@NonNull BufferedSink sink) throws IOException {
+            while (!stopped) {
+                int n = take(data.length);
+                if (n == 0)
+                    break;
+                sink.write(data, 0, n);
+                add(stream, n);
+            }
+        }
+    }
+
+    // Bytes of each stream in total and per sample
+    public static class Result {
+        private final long[] streamBytes;
+        private final List<long[]> samples;
+        private final List<Long> sampleMs;
+        private final long activeMs;
+        private final int errors;
+
+        Result(long[] streamBytes, List<long[]> samples, List<Long> sampleMs, long activeMs, int errors) {
+            this.streamBytes = streamBytes;
+            this.samples = samples;
+            this.sampleMs = sampleMs;
+            this.activeMs = activeMs;
+            this.errors = errors;
+        }
+
+        public int getStreams() {
+            return streamBytes.length;
+        }
+
+        public long getStreamBytes(int stream) {
+            return streamBytes[stream];
+        }
+
+        public long getTotalBytes() {
+            long total = 0;
+            for (long bytes : streamBytes)
+                total += bytes;
+            return total;
+        }
+
+        //time from the start until the run was over or the last stream ended
+        public long getActiveMs() {
+            return activeMs;
+        }
+
+        public int getErrors() {
+            return errors;
+        }
+
+        public int getSampleCount() {
+            return samples.size();
+        }
+
+        public long getSampleMs(int sample) {
+            return sampleMs.get(sample);
+        }
+
+        public long getSampleBytes(int sample, int stream) {
+            return samples.get(sample)[stream];
+        }
+
+        //goodput of all streams in the sample
+        public double getSampleKbps(int sample) {
+            long bytes = 0;
+            for (long b : samples.get(sample))
+                bytes += b;
+            return kbps(bytes, sampleMs.get(sample));
+        }
+
+        public double getGoodputKbps() {
+            return kbps(getTotalBytes(), activeMs);
+        }
+
+        public double getStreamGoodputKbps(int stream) {
+            return kbps(streamBytes[stream], activeMs);
+        }
+
+        private static double kbps(long bytes, long ms) {
+            return ms > 0 ? bytes * 8.0 / ms : 0;
+        }
+
+        //e.g. "4 streams, 10.0 s, 52.30 MB, 41.84 Mbps (10.21 10.52 10.60 10.51), 0 errors"
+        public String format() {
+            StringBuilder sb = new StringBuilder(String.format(Locale.US, "%d streams, %.1f s, %.2f MB, %.2f Mbps (",
+                    getStreams(), activeMs / 1000.0, getTotalBytes() / 1e6, getGoodputKbps() / 1000));
+            for (int i = 0; i < getStreams(); i++)
+                sb.append(String.format(Locale.US, i == 0 ? "%.2f" : " %.2f", getStreamGoodputKbps(i) / 1000));
+            sb.append("), ").append(errors).append(" errors");
+            return sb.toString();
+        }
+
+        //aggregate goodput of every sample in Mbps, e.g. "38.1 42.0 41.7"
+        public String formatSamples() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < samples.size(); i++)
+                sb.append(String.format(Locale.US, i == 0 ? "%.1f" : " %.1f", getSampleKbps(i) / 1000));
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import java.io.IOException;
+import java.io.Writer;
+
+// This class keeps trace events in preallocated arrays and writes them in the Chrome trace event format
+// (JSON, opened with chrome://tracing or ui.perfetto.dev)
+// Event names are registered once and events refer to them by index, so recording does not allocate
+// When the buffer is full the oldest events are overwritten
+// It has no Android dependency
+public class TraceEventBuffer {
+
+    static final byte BEGIN = 'B';
+    static final byte END = 'E';
+    static final byte ASYNC_BEGIN = 'b';
+    static final byte ASYNC_END = 'e';
+    static final byte INSTANT = 'i';
+
+    private final long[] timeUs;
+    private final int[] threadId;
+    private final int[] nameId;
+    private final int[] asyncId;
+    private final byte[] phase;
+
+    private int head = 0;
+    private int count = 0;
+
+    public TraceEventBuffer(int capacity) {
+        timeUs = new long[capacity];
+        threadId = new int[capacity];
+        nameId = new int[capacity];
+        asyncId = new int[capacity];
+        phase = new byte[capacity];
+    }
+
+    public synchronized void record(long eventTimeUs, int tid, byte eventPhase, int name, int id) {
+        timeUs[head] = eventTimeUs;
+        threadId[head] = tid;
+        phase[head] = eventPhase;
+        nameId[head] = name;
+        asyncId[head] = id;
+
+        head = (head + 1) % timeUs.length;
+        if (count < timeUs.length)
+            count++;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized void clear() {
+        head = 0;
+        count = 0;
+    }
+
+    //Write the events, oldest first. names are the registered event names
+    public synchronized void writeJson(Writer writer, String[] names, int pid) throws IOException {
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+
+        int first = (head - count + timeUs.length) % timeUs.length;
+        for (int n = 0; n < count; n++) {
+            int i = (first + n) % timeUs.length;
+            String name = nameId[i] < names.length ? names[nameId[i]] : "unknown";
+
+            writer.write("{\"name\":\"" + name + "\",\"cat\":\"verifi\",\"ph\":\"" + (char) phase[i]
+                    + "\",\"ts\":" + timeUs[i] + ",\"pid\":" + pid + ",\"tid\":" + threadId[i]);
+            if (phase[i] == ASYNC_BEGIN || phase[i] == ASYNC_END)
+                writer.write(",\"id\":" + asyncId[i]);
+            if (phase[i] == INSTANT)
+                writer.write(",\"s\":\"t\"");
+            writer.write(n + 1 < count ? "},\n" : "}\n");
+        }
+
+        writer.write("]}\n");
+    }
+}
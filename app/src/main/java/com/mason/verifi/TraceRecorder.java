@@ -0,0 +1,134 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// This class traces the stages of each test
+// Every section goes to android.os.Trace, so it shows up in a systrace/Perfetto capture, and to a
+// TraceEventBuffer that is written to verifi_trace.json when the test is stopped, so a trace can be
+// viewed without a host side capture
+// begin()/end() must be called on the same thread. Stages that start and end on different threads
+// (alarm to scheduler, sensor registration to first event) use beginAsync()/endAsync() with an id
+// Waits that are only known once they are over (alarm delivery, scheduler queueing) are added with
+// recordPast(), to the built-in trace only
+// Section names are registered once as static final ints in the classes using them
+public class TraceRecorder {
+    private static final String TAG = "verifi.TraceRecorder";
+    private static final String TRACE_FILENAME = "verifi_trace.json";
+    private static final int BUFFER_SIZE = 32768;
+
+    private static final List<String> names = new ArrayList<>();
+    private static final TraceEventBuffer buffer = new TraceEventBuffer(BUFFER_SIZE);
+    private static final AtomicInteger pastId = new AtomicInteger();
+    private static volatile boolean recording = false;
+
+    private TraceRecorder() {
+    }
+
+    //Register a section name, returns its id
+    public static synchronized int register(String name) {
+        int id = names.indexOf(name);
+        if (id >= 0)
+            return id;
+        names.add(name);
+        return names.size() - 1;
+    }
+
+    private static synchronized String nameOf(int id) {
+        return names.get(id);
+    }
+
+    public static void start() {
+        buffer.clear();
+        recording = true;
+    }
+
+    //Stop recording and write the trace file
+    public static void stop(Context context) {
+        recording = false;
+
+        String[] nameArray;
+        synchronized (TraceRecorder.class) {
+            nameArray = names.toArray(new String[0]);
+        }
+
+        File file = new File(context.getExternalFilesDir(null), TRACE_FILENAME);
+        try (Writer writer = new FileWriter(file)) {
+            buffer.writeJson(writer, nameArray, Process.myPid());
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write trace", e);
+        }
+    }
+
+    public static void begin(int id) {
+        Trace.beginSection(nameOf(id));
+        if (recording)
+            buffer.record(nowUs(), Process.myTid(), TraceEventBuffer.BEGIN, id, 0);
+    }
+
+    public static void end(int id) {
+        Trace.endSection();
+        if (recording)
+            buffer.record(nowUs(), Process.myTid(), TraceEventBuffer.END, id, 0);
+    }
+
+    public static void beginAsync(int id, int cookie) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+            Trace.beginAsyncSection(nameOf(id), cookie);
+        if (recording)
+            buffer.record(nowUs(), Process.myTid(), TraceEventBuffer.ASYNC_BEGIN, id, cookie);
+    }
+
+    public static void endAsync(int id, int cookie) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+            Trace.endAsyncSection(nameOf(id), cookie);
+        if (recording)
+            buffer.record(nowUs(), Process.myTid(), TraceEventBuffer.ASYNC_END, id, cookie);
+    }
+
+    public static void instant(int id) {
+        if (recording)
+            buffer.record(nowUs(), Process.myTid(), TraceEventBuffer.INSTANT, id, 0);
+    }
+
+    //Add a section that ends now and started durationUs ago
+    public static void recordPast(int id, long durationUs) {
+        if (recording) {
+            long now = nowUs();
+            int cookie = pastId.incrementAndGet();
+            int tid = Process.myTid();
+            buffer.record(now - durationUs, tid, TraceEventBuffer.ASYNC_BEGIN, id, cookie);
+            buffer.record(now, tid, TraceEventBuffer.ASYNC_END, id, cookie);
+        }
+    }
+
+    private static long nowUs() {
+        return SystemClock.elapsedRealtimeNanos() / 1000;
+    }
+}
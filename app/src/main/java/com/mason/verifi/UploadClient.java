@@ -0,0 +1,200 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import android.net.Network;
+import android.util.Log;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dns;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+// This class provides the HTTP client of the run, shared by every upload
+// The shared client keeps its connections alive in one pool, negotiates HTTP/2 when the server supports it
+// and caches DNS answers, so a WARM upload reuses the connection of the previous one
+// A COLD upload gets a client with its own empty pool, a fresh TLS context (no session resumption) and
+// uncached DNS, so it pays the full lookup, connect and handshake. It still shares the dispatcher threads
+// Uploads are enqueued on the dispatcher threads with the timeouts of TestPreference, the calls still in
+// flight are cancelled when the service is destroyed
+// An upload bound to a Network gets a client that connects with the socket factory and resolves with the
+// DNS of that network. Each network has its own warm client, so a pooled connection never crosses transports
+// It is instantiated by MainService
+public class UploadClient {
+    private static final String TAG = "verifi.UploadClient";
+
+    //idle connections are kept longer than the shortest upload interval
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+    private static final long KEEP_ALIVE_MIN = 20;
+    private static final long DNS_TTL_MS = 10 * 60 * 1000L;
+
+    private final CachingDns dns = new CachingDns(DNS_TTL_MS, Dns.SYSTEM);
+    private final OkHttpClient shared;
+    private final Map<Network, OkHttpClient> bound = new HashMap<>();
+
+    public UploadClient() {
+        TestPreference testPref = TestPreference.getInstance();
+        shared = new OkHttpClient.Builder()
+                .connectTimeout(testPref.getConnectTimeout(), TimeUnit.SECONDS)
+                .readTimeout(testPref.getReadTimeout(), TimeUnit.SECONDS)
+                .writeTimeout(testPref.getWriteTimeout(), TimeUnit.SECONDS)
+                .callTimeout(testPref.getCallTimeout(), TimeUnit.SECONDS)
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MIN, TimeUnit.MINUTES))
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .dns(dns)
+                .eventListenerFactory(UploadEventListener.FACTORY)
+                .build();
+    }
+
+    public OkHttpClient getShared() {
+        return shared;
+    }
+
+    //Client for one upload or batch in the given mode. A COLD client must be released with release()
+    public OkHttpClient get(ConnectionMode mode) {
+        return get(mode, null);
+    }
+
+    //Client bound to network, or on the default network if it is null
+    public OkHttpClient get(ConnectionMode mode, Network network) {
+        if (mode == ConnectionMode.WARM)
+            return network != null ? getBound(network) : shared;
+
+        //the connection is kept for the uploads of one batch, release() closes it
+        OkHttpClient.Builder builder = shared.newBuilder()
+                .connectionPool(new ConnectionPool(1, 1, TimeUnit.MINUTES))
+                .dns(network != null ? new NetworkDns(network) : Dns.SYSTEM);
+        if (network != null)
+            builder.socketFactory(network.getSocketFactory());
+
+        try {
+            TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            factory.init((KeyStore) null);
+            TrustManager[] trustManagers = factory.getTrustManagers();
+            X509TrustManager trustManager = (X509TrustManager) trustManagers[0];
+
+            //a new context has an empty TLS session cache
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, new TrustManager[]{trustManager}, null);
+            builder.sslSocketFactory(context.getSocketFactory(), trustManager);
+        } catch (GeneralSecurityException | ClassCastException e) {
+            Log.e(TAG, "Failed to create TLS context, cold uploads may resume TLS sessions", e);
+        }
+        return builder.build();
+    }
+
+    private synchronized OkHttpClient getBound(Network network) {
+        OkHttpClient client = bound.get(network);
+        if (client == null) {
+            client = shared.newBuilder()
+                    .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MIN, TimeUnit.MINUTES))
+                    .dns(new CachingDns(DNS_TTL_MS, new NetworkDns(network)))
+                    .socketFactory(network.getSocketFactory())
+                    .build();
+            bound.put(network, client);
+        }
+        return client;
+    }
+
+    public void release(OkHttpClient client) {
+        if (client != shared && !isBound(client))
+            client.connectionPool().evictAll();
+    }
+
+    private synchronized boolean isBound(OkHttpClient client) {
+        return bound.containsValue(client);
+    }
+
+    //The network is gone, close the connections of its warm client
+    public synchronized void forget(Network network) {
+        OkHttpClient client = bound.remove(network);
+        if (client != null)
+            client.connectionPool().evictAll();
+    }
+
+    //Cancel the calls in flight and close the pooled connections, used when the service is destroyed
+    public synchronized void close() {
+        shared.dispatcher().cancelAll();
+        shared.connectionPool().evictAll();
+        for (OkHttpClient client : bound.values())
+            client.connectionPool().evictAll();
+        bound.clear();
+        dns.clear();
+    }
+
+    // DNS of one network, the default network may resolve the host differently
+    static class NetworkDns implements Dns {
+        private final Network network;
+
+        NetworkDns(Network network) {
+            this.network = network;
+        }
+
+        @Override
+        public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+            return Arrays.asList(network.getAllByName(hostname));
+        }
+    }
+
+    // DNS answers kept for a fixed time instead of the record TTL, which the platform resolver does not expose
+    static class CachingDns implements Dns {
+        private final long ttlMs;
+        private final Dns resolver;
+        private final Map<String, List<InetAddress>> addresses = new HashMap<>();
+        private final Map<String, Long> expiryMs = new HashMap<>();
+
+        CachingDns(long ttlMs, Dns resolver) {
+            this.ttlMs = ttlMs;
+            this.resolver = resolver;
+        }
+
+        @Override
+        public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                Long expiry = expiryMs.get(hostname);
+                if (expiry != null && expiry > now)
+                    return addresses.get(hostname);
+            }
+
+            List<InetAddress> result = resolver.lookup(hostname);
+            synchronized (this) {
+                addresses.put(hostname, result);
+                expiryMs.put(hostname, now + ttlMs);
+            }
+            return result;
+        }
+
+        synchronized void clear() {
+            addresses.clear();
+            expiryMs.clear();
+        }
+    }
+}
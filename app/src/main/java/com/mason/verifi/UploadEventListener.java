@@ -0,0 +1,314 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+// This class traces the phases of an upload call: DNS, connect, TLS, request and response
+// DataConnTest creates one per call and passes it as the request tag, FACTORY hands it to OkHttp. Calls
+// without one (e.g. the result collector) are not traced
+// The phases are async trace sections with the call number as id since a failed call skips the end of
+// the phase it failed in
+// It also records whether the call opened a new connection or reused a pooled one, and the time of each
+// phase and the bytes sent and received into histograms per network type (data.wifi.*, data.cell.*)
+// DNS, connect and TLS are only recorded for calls that opened a connection
+public class UploadEventListener extends EventListener {
+    private static final int TRACE_CALL = TraceRecorder.register("data.call");
+    private static final int TRACE_DNS = TraceRecorder.register("data.dns");
+    private static final int TRACE_CONNECT = TraceRecorder.register("data.connect");
+    private static final int TRACE_TLS = TraceRecorder.register("data.tls");
+    private static final int TRACE_REQUEST = TraceRecorder.register("data.request_body");
+    private static final int TRACE_RESPONSE_WAIT = TraceRecorder.register("data.ttfb");
+    private static final int TRACE_RESPONSE = TraceRecorder.register("data.response_body");
+
+    private static final AtomicInteger callCount = new AtomicInteger();
+
+    static final int DNS = 0;
+    static final int CONNECT = 1;
+    static final int TLS = 2;
+    static final int REQUEST_BODY = 3;
+    static final int TTFB = 4;
+    static final int TOTAL = 5;
+    static final int PHASE_COUNT = 6;
+    static final String[] PHASE_NAMES = {"dns", "connect", "tls", "request_body", "ttfb", "total"};
+
+    //per network type (DataConnType ordinal) and phase
+    private static final MetricsRegistry.Histogram[][] phaseHistograms =
+            new MetricsRegistry.Histogram[DataConnType.values().length][PHASE_COUNT];
+    private static final MetricsRegistry.Histogram[] sentHistograms = new MetricsRegistry.Histogram[DataConnType.values().length];
+    private static final MetricsRegistry.Histogram[] receivedHistograms = new MetricsRegistry.Histogram[DataConnType.values().length];
+
+    static {
+        MetricsRegistry registry = MetricsRegistry.getInstance();
+        for (DataConnType type : DataConnType.values()) {
+            String prefix = "data." + type.name().toLowerCase(Locale.US) + ".";
+            for (int phase = 0; phase < PHASE_COUNT; phase++)
+                phaseHistograms[type.ordinal()][phase] = registry.histogram(prefix + PHASE_NAMES[phase] + "_ms");
+            sentHistograms[type.ordinal()] = registry.histogram(prefix + "sent_bytes");
+            receivedHistograms[type.ordinal()] = registry.histogram(prefix + "received_bytes");
+        }
+    }
+
+    private final int callId = callCount.incrementAndGet();
+    private final DataConnType networkType;
+    private volatile boolean newConnection = false;
+    private volatile Protocol protocol = null;
+
+    //phase start and end times in ns, 0 if the phase did not happen
+    private long callStartNs;
+    private long dnsStartNs;
+    private long dnsEndNs;
+    private long connectStartNs;
+    private long connectEndNs;
+    private long tlsStartNs;
+    private long tlsEndNs;
+    private long requestEndNs;
+    private long bodyStartNs;
+    private long bodyEndNs;
+    private long responseStartNs;
+    private long sentBytes;
+    private long receivedBytes;
+    private final long[] phaseMs = new long[PHASE_COUNT];
+    private volatile boolean completed = false;
+
+    public UploadEventListener(DataConnType networkType) {
+        this.networkType = networkType;
+    }
+
+    public static final EventListener.Factory FACTORY = call -> {
+        UploadEventListener listener = call.request().tag(UploadEventListener.class);
+        return listener != null ? listener : EventListener.NONE;
+    };
+
+    //true if the call had to connect, false if it reused a pooled connection
+    public boolean isNewConnection() {
+        return newConnection;
+    }
+
+    //protocol of the connection, null if the call never got one
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    //true once callEnd or callFailed was received, the phase times are set from then on
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    //time of a phase of the call in ms, -1 if it did not happen
+    public long getPhaseMs(int phase) {
+        return phaseMs[phase];
+    }
+
+    public long getSentBytes() {
+        return sentBytes;
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    @Override
+    public void callStart(@NonNull Call call) {
+        callStartNs = System.nanoTime();
+        TraceRecorder.beginAsync(TRACE_CALL, callId);
+    }
+
+    @Override
+    public void dnsStart(@NonNull Call call, @NonNull String domainName) {
+        dnsStartNs = System.nanoTime();
+        TraceRecorder.beginAsync(TRACE_DNS, callId);
+    }
+
+    @Override
+    public void dnsEnd(@NonNull Call call, @NonNull String domainName, @NonNull List<InetAddress> inetAddressList) {
+        dnsEndNs = System.nanoTime();
+        TraceRecorder.endAsync(TRACE_DNS, callId);
+    }
+
+    @Override
+    public void connectStart(@NonNull Call call, @NonNull InetSocketAddress inetSocketAddress, @NonNull Proxy proxy) {
+        newConnection = true;
+        //a retry on the next address starts over
+        connectStartNs = System.nanoTime();
+        tlsStartNs = 0;
+        tlsEndNs = 0;
+        TraceRecorder.beginAsync(TRACE_CONNECT, callId);
+    }
+
+    @Override
+    public void secureConnectStart(@NonNull Call call) {
+        tlsStartNs = System.nanoTime();
+        TraceRecorder.beginAsync(TRACE_TLS, callId);
+    }
+
+    @Override
+    public void secureConnectEnd(@NonNull Call call, @Nullable Handshake handshake) {
+        tlsEndNs = System.nanoTime();
+        TraceRecorder.endAsync(TRACE_TLS, callId);
+    }
+
+    @Override
+    public void connectEnd(@NonNull Call call, @NonNull InetSocketAddress inetSocketAddress, @NonNull Proxy proxy,
+                           @Nullable Protocol protocol) {
+        connectEndNs = System.nanoTime();
+        TraceRecorder.endAsync(TRACE_CONNECT, callId);
+    }
+
+    @Override
+    public void connectFailed(@NonNull Call call, @NonNull InetSocketAddress inetSocketAddress, @NonNull Proxy proxy,
+                              @Nullable Protocol protocol, @NonNull IOException ioe) {
+        connectEndNs = 0;
+        TraceRecorder.endAsync(TRACE_CONNECT, callId);
+    }
+
+    @Override
+    public void connectionAcquired(@NonNull Call call, @NonNull Connection connection) {
+        protocol = connection.protocol();
+    }
+
+    @Override
+    public void requestHeadersEnd(@NonNull Call call, @NonNull Request request) {
+        requestEndNs = System.nanoTime();
+        sentBytes += request.headers().byteCount();
+    }
+
+    @Override
+    public void requestBodyStart(@NonNull Call call) {
+        bodyStartNs = System.nanoTime();
+        TraceRecorder.beginAsync(TRACE_REQUEST, callId);
+    }
+
+    @Override
+    public void requestBodyEnd(@NonNull Call call, long byteCount) {
+        bodyEndNs = System.nanoTime();
+        requestEndNs = bodyEndNs;
+        sentBytes += byteCount;
+        TraceRecorder.endAsync(TRACE_REQUEST, callId);
+        TraceRecorder.beginAsync(TRACE_RESPONSE_WAIT, callId);
+    }
+
+    @Override
+    public void responseHeadersStart(@NonNull Call call) {
+        responseStartNs = System.nanoTime();
+        TraceRecorder.endAsync(TRACE_RESPONSE_WAIT, callId);
+    }
+
+    @Override
+    public void responseHeadersEnd(@NonNull Call call, @NonNull Response response) {
+        receivedBytes += response.headers().byteCount();
+    }
+
+    @Override
+    public void responseBodyStart(@NonNull Call call) {
+        TraceRecorder.beginAsync(TRACE_RESPONSE, callId);
+    }
+
+    @Override
+    public void responseBodyEnd(@NonNull Call call, long byteCount) {
+        receivedBytes += byteCount;
+        TraceRecorder.endAsync(TRACE_RESPONSE, callId);
+    }
+
+    @Override
+    public void callEnd(@NonNull Call call) {
+        TraceRecorder.endAsync(TRACE_CALL, callId);
+        complete(true);
+    }
+
+    @Override
+    public void callFailed(@NonNull Call call, @NonNull IOException ioe) {
+        TraceRecorder.endAsync(TRACE_CALL, callId);
+        complete(false);
+    }
+
+    //Work out the phase times and add them to the histograms of the network type
+    private void complete(boolean success) {
+        long now = System.nanoTime();
+        phaseMs[DNS] = elapsedMs(dnsStartNs, dnsEndNs);
+        //TCP only, the TLS handshake is its own phase
+        phaseMs[CONNECT] = elapsedMs(connectStartNs, tlsStartNs > 0 ? tlsStartNs : connectEndNs);
+        phaseMs[TLS] = elapsedMs(tlsStartNs, tlsEndNs);
+        phaseMs[REQUEST_BODY] = elapsedMs(bodyStartNs, bodyEndNs);
+        phaseMs[TTFB] = elapsedMs(requestEndNs, responseStartNs);
+        phaseMs[TOTAL] = elapsedMs(callStartNs, now);
+        completed = true;
+
+        //a failed call only counts for the phases it finished
+        MetricsRegistry.Histogram[] histograms = phaseHistograms[networkType.ordinal()];
+        for (int phase = 0; phase < PHASE_COUNT; phase++) {
+            if (phaseMs[phase] >= 0 && (success || phase != TOTAL))
+                histograms[phase].record(phaseMs[phase]);
+        }
+        if (success) {
+            sentHistograms[networkType.ordinal()].record(sentBytes);
+            receivedHistograms[networkType.ordinal()].record(receivedBytes);
+        }
+    }
+
+    private static long elapsedMs(long startNs, long endNs) {
+        return startNs > 0 && endNs >= startNs ? (endNs - startNs) / 1000000 : -1;
+    }
+
+    public String format() {
+        StringBuilder sb = new StringBuilder();
+        for (int phase = 0; phase < PHASE_COUNT; phase++) {
+            if (phaseMs[phase] < 0)
+                continue;
+            if (sb.length() > 0)
+                sb.append(", ");
+            sb.append(PHASE_NAMES[phase]).append(' ').append(phaseMs[phase]);
+        }
+        return String.format(Locale.US, "%s ms, %.1f KB up, %.1f KB down", sb, sentBytes / 1024.0, receivedBytes / 1024.0);
+    }
+
+    //p50/p95/p99 of each phase of a network type, one line; null if it has no uploads yet
+    public static String formatPercentiles(DataConnType type) {
+        MetricsRegistry.Histogram[] histograms = phaseHistograms[type.ordinal()];
+        if (histograms[TOTAL].getCount() == 0)
+            return null;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(type).append(" p50/p95/p99 (").append(histograms[TOTAL].getCount()).append(" uploads):");
+        for (int phase = 0; phase < PHASE_COUNT; phase++) {
+            MetricsRegistry.Histogram h = histograms[phase];
+            if (h.getCount() == 0)
+                continue;
+            sb.append(String.format(Locale.US, " %s %d/%d/%d", PHASE_NAMES[phase],
+                    h.getPercentile(50), h.getPercentile(95), h.getPercentile(99)));
+        }
+        MetricsRegistry.Histogram sent = sentHistograms[type.ordinal()];
+        sb.append(String.format(Locale.US, " ms; sent %d/%d/%d B", sent.getPercentile(50), sent.getPercentile(95),
+                sent.getPercentile(99)));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,121 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import android.content.Context;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Locale;
+
+// This class manages the partial wakelocks of all tests
+// Each test type has its own wakelock tag (Verifi::GPS, Verifi::Sensor, Verifi::DataConn) so they can be
+// told apart in batterystats. acquire() and release() are reference counted per test and must be paired
+// with try/finally so the lock is held only while the test is actually working
+// A timeout is set on every hold as a safety net in case a release is missed
+// Hold count, total and longest hold time are kept per test for the run summary
+// It is instantiated by MainService
+public class WakeLockManager {
+    private static final String TAG = "verifi.WakeLockManager";
+    private static final String[] LOCK_TAGS = {"Verifi::GPS", "Verifi::Sensor", "Verifi::DataConn"};
+
+    //no test needs the CPU this long in one go, a longer hold means a missed release
+    static final long MAX_HOLD_MS = 10 * 60 * 1000L;
+
+    private final PowerManager.WakeLock[] wakeLocks = new PowerManager.WakeLock[EnergyAttributor.TEST_COUNT];
+    private final int[] refCount = new int[EnergyAttributor.TEST_COUNT];
+    private final long[] holdStartMs = new long[EnergyAttributor.TEST_COUNT];
+
+    private final int[] holds = new int[EnergyAttributor.TEST_COUNT];
+    private final long[] totalHoldMs = new long[EnergyAttributor.TEST_COUNT];
+    private final long[] maxHoldMs = new long[EnergyAttributor.TEST_COUNT];
+
+    private final MetricsRegistry.Histogram holdHistogram = MetricsRegistry.getInstance().histogram("wakelock.hold_ms");
+
+    public WakeLockManager(Context context) {
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+
+        for (int test = 0; test < EnergyAttributor.TEST_COUNT; test++) {
+            wakeLocks[test] = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, LOCK_TAGS[test]);
+            //counting is done here so the hold time can be measured
+            wakeLocks[test].setReferenceCounted(false);
+        }
+    }
+
+    public synchronized void acquire(int test) {
+        if (refCount[test]++ == 0) {
+            wakeLocks[test].acquire(MAX_HOLD_MS);
+            holdStartMs[test] = SystemClock.elapsedRealtime();
+        }
+    }
+
+    public synchronized void release(int test) {
+        if (refCount[test] == 0) {
+            Log.w(TAG, "Unbalanced release of " + LOCK_TAGS[test]);
+            return;
+        }
+
+        if (--refCount[test] == 0) {
+            if (wakeLocks[test].isHeld())
+                wakeLocks[test].release();
+            else
+                Log.w(TAG, LOCK_TAGS[test] + " was released by its timeout");
+
+            long heldMs = SystemClock.elapsedRealtime() - holdStartMs[test];
+            holds[test]++;
+            totalHoldMs[test] += heldMs;
+            maxHoldMs[test] = Math.max(maxHoldMs[test], heldMs);
+            holdHistogram.record(heldMs);
+        }
+    }
+
+    //Release every lock still held, used when the service is destroyed
+    public synchronized void releaseAll() {
+        for (int test = 0; test < EnergyAttributor.TEST_COUNT; test++) {
+            if (refCount[test] > 0) {
+                Log.w(TAG, LOCK_TAGS[test] + " still held at stop, count " + refCount[test]);
+                refCount[test] = 1;
+                release(test);
+            }
+        }
+    }
+
+    //total hold time of all tests, open holds included
+    public synchronized long getTotalHoldMs() {
+        long now = SystemClock.elapsedRealtime();
+        long total = 0;
+        for (int test = 0; test < EnergyAttributor.TEST_COUNT; test++) {
+            total += totalHoldMs[test];
+            if (refCount[test] > 0)
+                total += now - holdStartMs[test];
+        }
+        return total;
+    }
+
+    public synchronized String format() {
+        StringBuilder sb = new StringBuilder();
+        for (int test = 0; test < EnergyAttributor.TEST_COUNT; test++) {
+            if (holds[test] == 0)
+                continue;
+            if (sb.length() > 0)
+                sb.append(", ");
+            sb.append(String.format(Locale.US, "%s %.1f s (%d holds, avg %.0f ms, max %d ms)",
+                    EnergyAttributor.TEST_NAMES[test], totalHoldMs[test] / 1000.0, holds[test],
+                    (double) totalHoldMs[test] / holds[test], maxHoldMs[test]));
+        }
+        return sb.length() > 0 ? sb.toString() : "none";
+    }
+}
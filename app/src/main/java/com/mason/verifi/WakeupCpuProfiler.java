@@ -0,0 +1,153 @@
+package com.mason.verifi;
+/*
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+          http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import android.os.Debug;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+// This class measures the CPU time of every wakeup of the harness
+// A wakeup is an alarm onReceive, a TestScheduler message or a location callback. begin() and end() are
+// called around it on the thread that handles it and the thread CPU time and wall time are added to the
+// test type and trigger of the wakeup
+// The process CPU time of the whole run is kept as well, the difference is CPU used outside the measured
+// wakeups (OkHttp threads, sensor callbacks, binder threads)
+// It is instantiated by MainService
+public class WakeupCpuProfiler {
+    private static final String TAG = "verifi.WakeupCpuProfiler";
+    private static final String WAKEUP_CPU_FILENAME = "verifi_wakeup_cpu.csv";
+
+    static final int ALARM = 0;
+    static final int MESSAGE = 1;
+    static final int LOCATION = 2;
+    static final int TRIGGER_COUNT = 3;
+    static final String[] TRIGGER_NAMES = {"alarm", "message", "location"};
+
+    private static final int KEY_COUNT = EnergyAttributor.TEST_COUNT * TRIGGER_COUNT;
+
+    private final MainService parentService;
+
+    private final int[] wakeups = new int[KEY_COUNT];
+    private final long[] cpuNs = new long[KEY_COUNT];
+    private final long[] wallNs = new long[KEY_COUNT];
+    private final long[] maxCpuNs = new long[KEY_COUNT];
+
+    private final MetricsRegistry.Histogram cpuHistogram = MetricsRegistry.getInstance().histogram("wakeup.cpu_us");
+
+    //start times of the wakeup being handled on each thread
+    private final ThreadLocal<long[]> start = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[2];
+        }
+    };
+
+    private long startProcessCpuMs;
+
+    public WakeupCpuProfiler(MainService pService) {
+        parentService = pService;
+    }
+
+    public void start() {
+        startProcessCpuMs = Process.getElapsedCpuTime();
+    }
+
+    public void stop() {
+        long processCpuMs = Process.getElapsedCpuTime() - startProcessCpuMs;
+        long accountedNs = 0;
+
+        File file = new File(parentService.getExternalFilesDir(null), WAKEUP_CPU_FILENAME);
+        try (Writer writer = new FileWriter(file)) {
+            writer.write("test,trigger,wakeups,cpu_ms,wall_ms,avg_cpu_ms,max_cpu_ms\n");
+
+            synchronized (this) {
+                for (int test = 0; test < EnergyAttributor.TEST_COUNT; test++) {
+                    int testWakeups = 0;
+                    long testCpuNs = 0;
+                    long testWallNs = 0;
+
+                    for (int trigger = 0; trigger < TRIGGER_COUNT; trigger++) {
+                        int key = test * TRIGGER_COUNT + trigger;
+                        if (wakeups[key] == 0)
+                            continue;
+
+                        writer.write(String.format(Locale.US, "%s,%s,%d,%.1f,%.1f,%.3f,%.3f\n",
+                                EnergyAttributor.TEST_NAMES[test], TRIGGER_NAMES[trigger], wakeups[key],
+                                cpuNs[key] / 1e6, wallNs[key] / 1e6, cpuNs[key] / 1e6 / wakeups[key], maxCpuNs[key] / 1e6));
+
+                        testWakeups += wakeups[key];
+                        testCpuNs += cpuNs[key];
+                        testWallNs += wallNs[key];
+                    }
+
+                    if (testWakeups > 0)
+                        parentService.sendStatus(String.format(Locale.US, "%s wakeups: %d, CPU %.1f ms (%.2f ms each), wall %.1f ms",
+                                EnergyAttributor.TEST_NAMES[test], testWakeups, testCpuNs / 1e6,
+                                testCpuNs / 1e6 / testWakeups, testWallNs / 1e6));
+                    accountedNs += testCpuNs;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write wakeup CPU times", e);
+        }
+
+        parentService.sendStatus(String.format(Locale.US, "Process CPU %d ms, %.1f ms in test wakeups",
+                processCpuMs, accountedNs / 1e6));
+    }
+
+    //Called at the start of a wakeup, on the thread that handles it
+    public void begin() {
+        long[] s = start.get();
+        s[0] = Debug.threadCpuTimeNanos();
+        s[1] = SystemClock.elapsedRealtimeNanos();
+    }
+
+    //Called at the end of a wakeup, on the same thread as begin()
+    public void end(int test, int trigger) {
+        long[] s = start.get();
+        long cpu = Debug.threadCpuTimeNanos() - s[0];
+        long wall = SystemClock.elapsedRealtimeNanos() - s[1];
+        int key = test * TRIGGER_COUNT + trigger;
+        cpuHistogram.record(cpu / 1000);
+
+        synchronized (this) {
+            wakeups[key]++;
+            cpuNs[key] += cpu;
+            wallNs[key] += wall;
+            if (cpu > maxCpuNs[key])
+                maxCpuNs[key] = cpu;
+        }
+    }
+
+    //Shortcuts for the call sites, which run whether or not the service is started
+    public static void beginWakeup() {
+        WakeupCpuProfiler profiler = MainService.getWakeupCpuProfiler();
+        if (profiler != null)
+            profiler.begin();
+    }
+
+    public static void endWakeup(int test, int trigger) {
+        WakeupCpuProfiler profiler = MainService.getWakeupCpuProfiler();
+        if (profiler != null)
+            profiler.end(test, trigger);
+    }
+}
@@ -0,0 +1,109 @@
+package com.mason.verifi;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Validates the battery life estimator against full-discharge traces.
+ * Traces are generated like the device reports them: an integer battery level
+ * sampled each time it changes, with a load that varies over the run.
+ */
+public class BatteryLifeEstimatorTest {
+
+    private static final double TOLERANCE = 0.05;
+
+    //level change times of a full discharge from 100% to 0%
+    //drain varies by +/- swing over a 3 hour cycle, end factor > 1 makes the last 10% drop faster
+    private static double[] trace(double lifeHours, double swing, double endFactor, long seed) {
+        Random random = new Random(seed);
+        double[] changeTimes = new double[101];
+        double soc = 100;
+        double t = 0;
+        double dt = 1.0 / 60; //1 minute steps
+        int level = 100;
+        changeTimes[0] = 0;
+
+        while (level > 0) {
+            double rate = 100 / lifeHours * (1 + swing * Math.sin(2 * Math.PI * t / 3)) * (1 + 0.2 * random.nextGaussian());
+            if (soc < 10)
+                rate *= endFactor;
+            soc -= Math.max(rate, 0) * dt;
+            t += dt;
+            while (level > 0 && soc <= level - 1) {
+                level--;
+                changeTimes[100 - level] = t;
+            }
+        }
+        return changeTimes;
+    }
+
+    private static class Result {
+        double actualHours;
+        double convergedAtHours = Double.NaN;
+        double estimateHours;
+        double halfWidthHours;
+    }
+
+    private static Result replay(double[] changeTimes) {
+        BatteryLifeEstimator estimator = new BatteryLifeEstimator();
+        Result result = new Result();
+        result.actualHours = changeTimes[100];
+
+        for (int i = 0; i <= 100; i++) {
+            estimator.addSample(changeTimes[i], 100 - i);
+            if (estimator.isConverged(TOLERANCE)) {
+                result.convergedAtHours = changeTimes[i];
+                result.estimateHours = estimator.getLifeHours();
+                result.halfWidthHours = estimator.getHalfWidthHours();
+                break;
+            }
+        }
+        return result;
+    }
+
+    private static void assertEarlyAndAccurate(Result r) {
+        assertFalse("estimate never converged", Double.isNaN(r.convergedAtHours));
+        assertTrue("converged too late: " + r.convergedAtHours + " of " + r.actualHours,
+                r.convergedAtHours < 0.5 * r.actualHours);
+        assertEquals(r.actualHours, r.estimateHours, 2 * TOLERANCE * r.actualHours);
+        assertTrue(r.halfWidthHours <= TOLERANCE * r.estimateHours);
+    }
+
+    @Test
+    public void steadyLoad_convergesEarly() {
+        assertEarlyAndAccurate(replay(trace(36, 0, 1, 1)));
+    }
+
+    @Test
+    public void cyclicLoad_convergesEarly() {
+        assertEarlyAndAccurate(replay(trace(24, 0.3, 1, 2)));
+    }
+
+    @Test
+    public void fasterDropAtEnd_staysWithinTolerance() {
+        assertEarlyAndAccurate(replay(trace(48, 0.2, 1.5, 3)));
+    }
+
+    @Test
+    public void fewSamples_doNotConverge() {
+        BatteryLifeEstimator estimator = new BatteryLifeEstimator();
+        for (int i = 0; i < 4; i++) {
+            estimator.addSample(i * 0.4, 100 - i);
+        }
+        assertEquals(40.0, estimator.getLifeHours(), 1e-9);
+        assertFalse(estimator.isConverged(TOLERANCE));
+    }
+
+    @Test
+    public void charging_hasNoEstimate() {
+        BatteryLifeEstimator estimator = new BatteryLifeEstimator();
+        for (int i = 0; i < 20; i++) {
+            estimator.addSample(i, 50 + i);
+        }
+        assertTrue(Double.isNaN(estimator.getLifeHours()));
+        assertFalse(estimator.isConverged(TOLERANCE));
+    }
+}
@@ -0,0 +1,47 @@
+package com.mason.verifi;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the cached connectivity state: transport checks, availability and what counts as a transition.
+ */
+public class ConnectivitySnapshotTest {
+
+    @Test
+    public void defaultNetworkDecidesConnected() {
+        ConnectivitySnapshot wifi = ConnectivitySnapshot.DISCONNECTED
+                .withAvailable(1, 1001, true, true)
+                .withDefault(2, 1002, ConnectivitySnapshot.WIFI, false, true, 50000, 20000);
+
+        assertTrue(wifi.isConnected(DataConnType.WIFI));
+        assertFalse(wifi.isConnected(DataConnType.CELL));
+        //cell is up behind Wi-Fi, but uploads go to the default network
+        assertTrue(wifi.isAvailable(DataConnType.CELL));
+        assertEquals("wifi validated unmetered 50000/20000 kbps, cell up", wifi.describe());
+
+        ConnectivitySnapshot lost = wifi.withDefault(3, 1003, ConnectivitySnapshot.NONE, true, true, 1, 1);
+        assertFalse(lost.isConnected(DataConnType.WIFI));
+        assertFalse(lost.isValidated());
+        assertEquals(0, lost.getDownKbps());
+        assertTrue(lost.isWifiAvailable());
+        assertEquals(3, lost.getElapsedMs());
+        assertEquals(1003, lost.getWallMs());
+    }
+
+    @Test
+    public void bandwidthChangeIsNotATransition() {
+        ConnectivitySnapshot cell = ConnectivitySnapshot.DISCONNECTED
+                .withDefault(1, 1001, ConnectivitySnapshot.CELL, true, false, 10000, 5000);
+        assertTrue(cell.isTransitionFrom(ConnectivitySnapshot.DISCONNECTED));
+
+        ConnectivitySnapshot faster = cell.withDefault(2, 1002, ConnectivitySnapshot.CELL, true, false, 20000, 8000);
+        assertFalse(faster.isTransitionFrom(cell));
+        assertEquals(20000, faster.withTime(1, 1001).getDownKbps());
+        assertEquals(1, faster.withTime(1, 1001).getElapsedMs());
+
+        assertTrue(cell.withDefault(3, 1003, ConnectivitySnapshot.CELL, true, true, 10000, 5000).isTransitionFrom(cell));
+        assertTrue(cell.withAvailable(3, 1003, true, true).isTransitionFrom(cell));
+    }
+}
@@ -0,0 +1,166 @@
+package com.mason.verifi;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import okhttp3.OkHttpClient;
+
+import static org.junit.Assert.*;
+
+/**
+ * Downloads from a local stand-in server and checks the checksum, range resume of an interrupted transfer
+ * and the restart when the server does not support ranges.
+ */
+public class DownloadRunnerTest {
+
+    private static final int SIZE = 3 * 1000 * 1000;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private String url;
+    //the stand-in server leaves a short response open, the read timeout ends it like a stalled link
+    private final OkHttpClient client = new OkHttpClient.Builder().readTimeout(1, TimeUnit.SECONDS).build();
+    private final byte[] object = new byte[SIZE];
+
+    private boolean ranges = true;    //answer Range requests with 206
+    private int breakAfter = -1;      //stop sending after this many bytes of the next response
+    private final List<String> rangeHeaders = new ArrayList<>();
+    private final List<String> encodingHeaders = new ArrayList<>();
+
+    @Before
+    public void startServer() throws IOException {
+        for (int i = 0; i < SIZE; i++)
+            object[i] = (byte) (i * 7 + i / 1000);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/object", this::serve);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/object";
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        int start = 0;
+        synchronized (this) {
+            rangeHeaders.add(range);
+            encodingHeaders.add(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+        }
+        exchange.getResponseHeaders().set("ETag", "\"v1\"");
+        if (range != null && ranges) {
+            start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + (SIZE - 1) + "/" + SIZE);
+            exchange.sendResponseHeaders(206, SIZE - start);
+        } else {
+            exchange.sendResponseHeaders(200, SIZE);
+        }
+
+        int end = SIZE;
+        if (breakAfter >= 0) {
+            end = Math.min(SIZE, start + breakAfter);
+            breakAfter = -1;
+        }
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(object, start, end - start);
+            out.flush();
+            out.close();
+        } catch (IOException e) {
+            //insufficient bytes written, as intended
+        }
+        exchange.close();
+    }
+
+    private long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    @Test
+    public void downloadsAndChecksums() {
+        DownloadRunner.Result result = new DownloadRunner(client, url, true, 3).run();
+
+        assertTrue(result.isComplete());
+        assertNull(result.getError());
+        assertEquals(SIZE, result.getBytes());
+        assertEquals(SIZE, result.getTotalBytes());
+        assertEquals(crc(object), result.getCrc());
+        assertEquals(0, result.getResumes());
+        assertTrue(result.getHeadersMs() >= 0 && result.getFirstByteMs() >= result.getHeadersMs());
+
+        long sampled = 0;
+        for (int i = 0; i < result.getSampleCount(); i++)
+            sampled += result.getSampleBytes(i);
+        assertEquals(SIZE, sampled);
+    }
+
+    @Test
+    public void resumesWithRange() {
+        breakAfter = 1000000;
+        DownloadRunner.Result result = new DownloadRunner(client, url, true, 3).run();
+
+        assertTrue(result.isComplete());
+        assertEquals(1, result.getResumes());
+        assertEquals(0, result.getRestarts());
+        assertEquals(SIZE, result.getBytes());
+        assertEquals(SIZE, result.getTransferredBytes());
+        assertEquals(crc(object), result.getCrc());
+        assertEquals("bytes=1000000-", rangeHeaders.get(1));
+        //no compressed transfer on any attempt
+        assertEquals(2, encodingHeaders.size());
+        for (String encoding : encodingHeaders)
+            assertEquals("identity", encoding);
+    }
+
+    @Test
+    public void startsOverWithoutRangeSupport() {
+        ranges = false;
+        breakAfter = 1000000;
+        DownloadRunner.Result result = new DownloadRunner(client, url, true, 3).run();
+
+        assertTrue(result.isComplete());
+        assertEquals(1, result.getRestarts());
+        assertEquals(SIZE, result.getBytes());
+        assertEquals(SIZE + 1000000, result.getTransferredBytes());
+        assertEquals(crc(object), result.getCrc());
+    }
+
+    @Test
+    public void givesUpAfterMaxResumes() {
+        DownloadRunner.Result result = new DownloadRunner(client, "http://127.0.0.1:1/object", false, 1).run();
+
+        assertFalse(result.isComplete());
+        assertEquals(1, result.getResumes());
+        assertEquals(-1, result.getCrc());
+        assertNotNull(result.getError());
+    }
+
+    @Test
+    public void parsesContentRange() {
+        assertEquals(100, DownloadRunner.parseRangeStart("bytes 100-999/1000"));
+        assertEquals(1000, DownloadRunner.parseRangeTotal("bytes 100-999/1000"));
+        assertEquals(-1, DownloadRunner.parseRangeTotal("bytes 100-999/*"));
+        assertEquals(-1, DownloadRunner.parseRangeStart("items 1-2/3"));
+    }
+}
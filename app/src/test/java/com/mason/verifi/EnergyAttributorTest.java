@@ -0,0 +1,148 @@
+package com.mason.verifi;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the charge attribution of EnergyAttributor against hand computed traces
+ * sampled once per second: 10 mA idle, tests add a known current on top.
+ * Traces without a charge counter take the baseline from the idle samples.
+ */
+public class EnergyAttributorTest {
+
+    private static final double IDLE_UA = 10000;
+
+    //feed one sample per second from fromSec to toSec inclusive
+    private static void run(EnergyAttributor a, int fromSec, int toSec, double currentUa) {
+        for (int s = fromSec; s <= toSec; s++) {
+            a.addSample(s * 1000L, currentUa, -1, false);
+        }
+    }
+
+    @Test
+    public void singleExecutionGetsChargeAboveIdle() {
+        EnergyAttributor a = new EnergyAttributor();
+        run(a, 0, 60, -IDLE_UA); //discharge current is negative on some fuel gauges
+        assertEquals(10.0, a.getBaselineMa(), 1e-9);
+
+        a.begin(EnergyAttributor.DATA_CONN, 60000);
+        run(a, 61, 96, IDLE_UA + 100000); //100 mA above idle for 36 s
+        double mah = a.end(EnergyAttributor.DATA_CONN, 96000);
+
+        //the first second ramps up from idle (trapezoid), then 35 s at 100 mA
+        assertEquals((0.5 + 35) * 100 / 3600.0, mah, 1e-9);
+        assertEquals(36000, a.getLastDurationMs());
+        assertEquals(1, a.getExecutions(EnergyAttributor.DATA_CONN));
+        assertEquals(mah, a.getTotalMah(EnergyAttributor.DATA_CONN), 1e-12);
+    }
+
+    @Test
+    public void overlappingTestsSplitTheCharge() {
+        EnergyAttributor a = new EnergyAttributor();
+        run(a, 0, 10, IDLE_UA);
+
+        a.begin(EnergyAttributor.SENSOR, 10000);
+        a.begin(EnergyAttributor.GPS, 10000);
+        a.addSample(11000, IDLE_UA + 72000, -1, false);
+        a.addSample(12000, IDLE_UA + 72000, -1, false);
+        double gps = a.end(EnergyAttributor.GPS, 12000);
+        a.addSample(13000, IDLE_UA + 72000, -1, false);
+        double sensor = a.end(EnergyAttributor.SENSOR, 13000);
+
+        //ramp 36 mA + 72 mA for 1 s split in two, then the sensor alone for 1 s
+        assertEquals((36 + 72) / 2.0 / 3600, gps, 1e-9);
+        assertEquals((36 + 72) / 2.0 / 3600 + 72.0 / 3600, sensor, 1e-9);
+        assertFalse(a.isAnyActive());
+    }
+
+    @Test
+    public void nestedBeginIsOneExecution() {
+        EnergyAttributor a = new EnergyAttributor();
+        run(a, 0, 5, IDLE_UA);
+
+        a.begin(EnergyAttributor.SENSOR, 5000);
+        a.begin(EnergyAttributor.SENSOR, 5000);
+        run(a, 6, 10, IDLE_UA);
+        assertTrue(Double.isNaN(a.end(EnergyAttributor.SENSOR, 10000)));
+        assertTrue(a.isActive(EnergyAttributor.SENSOR));
+        assertEquals(0, a.end(EnergyAttributor.SENSOR, 10000), 1e-12);
+        assertEquals(1, a.getExecutions(EnergyAttributor.SENSOR));
+
+        //an unmatched end is ignored
+        assertTrue(Double.isNaN(a.end(EnergyAttributor.SENSOR, 11000)));
+        assertEquals(1, a.getExecutions(EnergyAttributor.SENSOR));
+    }
+
+    @Test
+    public void baselineFollowsIdleDriftButNotTests() {
+        EnergyAttributor a = new EnergyAttributor();
+        run(a, 0, 100, IDLE_UA);
+
+        a.begin(EnergyAttributor.DATA_CONN, 100000);
+        run(a, 101, 200, IDLE_UA * 20);
+        a.end(EnergyAttributor.DATA_CONN, 200000);
+        assertEquals(10.0, a.getBaselineMa(), 1e-9);
+
+        run(a, 201, 400, IDLE_UA * 2);
+        assertEquals(20.0, a.getBaselineMa(), 0.01);
+        assertEquals(1.0, a.getAverageMah(EnergyAttributor.DATA_CONN) / a.getTotalMah(EnergyAttributor.DATA_CONN), 1e-12);
+    }
+
+    @Test
+    public void baselineComesFromChargeCounter() {
+        EnergyAttributor a = new EnergyAttributor();
+        //a wakeup every 5 min reads 50 mA with the CPU awake, the counter drops 10 mA on average
+        long chargeUah = 1000000;
+        for (int m = 0; m <= 30; m += 5) {
+            a.addSample(m * 60000L, 50000, chargeUah, false);
+            chargeUah -= 10000 * 5 / 60;
+        }
+        assertEquals(10.0, a.getBaselineMa(), 0.01);
+
+        //the test is charged the current above the idle baseline, including the awake CPU
+        a.begin(EnergyAttributor.DATA_CONN, 1800000);
+        a.addSample(1801000, 50000, chargeUah, false);
+        a.addSample(1802000, 50000, chargeUah, false);
+        double mah = a.end(EnergyAttributor.DATA_CONN, 1802000);
+        assertEquals(2 * 40.0 / 3600, mah, 1e-4);
+    }
+
+    @Test
+    public void pluggedSamplesAreSkipped() {
+        EnergyAttributor a = new EnergyAttributor();
+        run(a, 0, 10, IDLE_UA);
+
+        a.begin(EnergyAttributor.SENSOR, 10000);
+        //charging current has the other sign, it is not drain
+        for (int s = 11; s <= 20; s++)
+            a.addSample(s * 1000L, -500000, -1, true);
+        run(a, 21, 22, IDLE_UA + 36000);
+        double mah = a.end(EnergyAttributor.SENSOR, 22000);
+
+        //only the interval between the two unplugged samples is charged
+        assertEquals(36.0 / 3600, mah, 1e-9);
+        assertEquals(10.0, a.getBaselineMa(), 1e-9);
+    }
+
+    @Test
+    public void suspendedGapIsNotIntegrated() {
+        EnergyAttributor a = new EnergyAttributor();
+        run(a, 0, 10, IDLE_UA);
+
+        //the device suspends for 6 min with the execution open, the counter drops 1 mAh at idle plus 0.1 mAh
+        a.begin(EnergyAttributor.GPS, 10000);
+        a.addSample(11000, IDLE_UA + 36000, 1000000, false);
+        a.addSample(371000, IDLE_UA + 36000, 998900, false);
+        a.addSample(372000, IDLE_UA + 36000, 998890, false);
+        double mah = a.end(EnergyAttributor.GPS, 372000);
+        assertEquals(18.0 / 3600 + 0.1 + 36.0 / 3600, mah, 1e-9);
+
+        //without a charge counter the gap is dropped
+        a.begin(EnergyAttributor.GPS, 372000);
+        a.addSample(373000, IDLE_UA + 36000, -1, false);
+        a.addSample(733000, IDLE_UA + 36000, -1, false);
+        mah = a.end(EnergyAttributor.GPS, 733000);
+        assertEquals(36.0 / 3600, mah, 1e-9);
+    }
+}
@@ -0,0 +1,129 @@
+package com.mason.verifi;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Simulates the energy budget controller against a synthetic drain model:
+ * a fixed idle drain plus a fixed battery cost per GPS fix, sensor session and upload.
+ */
+public class EnergyBudgetControllerTest {
+
+    private static final double IDLE_PCT_PER_HOUR = 0.8;
+    private static final double GPS_PCT_PER_FIX = 0.004;
+    private static final double SENSOR_PCT_PER_RUN = 0.01;
+    private static final double UPLOAD_PCT_PER_RUN = 0.05;
+
+    private static final double STEP_HOURS = 0.25;
+
+    private static double drainPerHour(EnergyBudgetController c) {
+        return IDLE_PCT_PER_HOUR
+                + GPS_PCT_PER_FIX * 3600.0 / c.getInterval(EnergyBudgetController.GPS)
+                + SENSOR_PCT_PER_RUN * 3600.0 / c.getInterval(EnergyBudgetController.SENSOR)
+                + UPLOAD_PCT_PER_RUN * 3600.0 / c.getInterval(EnergyBudgetController.DATA_CONN);
+    }
+
+    private static EnergyBudgetController newController(double targetHours) {
+        EnergyBudgetController c = new EnergyBudgetController(targetHours, 0.5);
+        c.addTest(EnergyBudgetController.GPS, 180, 10, 3600, 1);
+        c.addTest(EnergyBudgetController.SENSOR, 60, 10, 3600, 1);
+        c.addTest(EnergyBudgetController.DATA_CONN, 900, 60, 7200, 1);
+        return c;
+    }
+
+    //run until the battery is empty and return the simulated lifetime in hours
+    private static double simulate(EnergyBudgetController c, long seed) {
+        Random noise = new Random(seed);
+        double level = 100;
+        double time = 0;
+        c.start(time, level);
+
+        while (level > 0 && time < 500) {
+            int gps = c.getInterval(EnergyBudgetController.GPS);
+            int data = c.getInterval(EnergyBudgetController.DATA_CONN);
+
+            double drain = drainPerHour(c) * (1 + 0.1 * noise.nextGaussian());
+            level -= Math.max(drain, 0) * STEP_HOURS;
+            time += STEP_HOURS;
+            c.step(time, Math.max(level, 0));
+
+            //an interval never changes by more than the step bound
+            assertTrue(c.getInterval(EnergyBudgetController.GPS) <= Math.ceil(gps * EnergyBudgetController.MAX_STEP_RATIO));
+            assertTrue(c.getInterval(EnergyBudgetController.GPS) >= Math.floor(gps / EnergyBudgetController.MAX_STEP_RATIO));
+            assertTrue(c.getInterval(EnergyBudgetController.DATA_CONN) <= Math.ceil(data * EnergyBudgetController.MAX_STEP_RATIO));
+        }
+        return time;
+    }
+
+    @Test
+    public void model_withoutControl_lastsAbout60Hours() {
+        //sanity check of the synthetic model at the default intervals: 0.8 + 0.08 + 0.6 + 0.2 %/h
+        EnergyBudgetController c = newController(60);
+        assertEquals(100 / 1.68, 100 / drainPerHour(c), 0.5);
+    }
+
+    @Test
+    public void longerTarget_stretchesIntervals() {
+        EnergyBudgetController c = newController(96);
+        double lifetime = simulate(c, 1);
+
+        assertEquals(96, lifetime, 96 * 0.1);
+        assertTrue(c.getInterval(EnergyBudgetController.SENSOR) > 60);
+        assertTrue(c.getInterval(EnergyBudgetController.DATA_CONN) > 900);
+    }
+
+    @Test
+    public void shorterTarget_shrinksIntervals() {
+        EnergyBudgetController c = newController(36);
+        double lifetime = simulate(c, 2);
+
+        assertEquals(36, lifetime, 36 * 0.1);
+        assertTrue(c.getInterval(EnergyBudgetController.SENSOR) < 60);
+    }
+
+    @Test
+    public void unreachableTarget_staysWithinBounds() {
+        //idle drain alone cannot last 200 hours, intervals should stop at their maximum
+        EnergyBudgetController c = newController(200);
+        simulate(c, 3);
+
+        assertEquals(3600, c.getInterval(EnergyBudgetController.GPS));
+        assertEquals(3600, c.getInterval(EnergyBudgetController.SENSOR));
+        assertEquals(7200, c.getInterval(EnergyBudgetController.DATA_CONN));
+    }
+
+    @Test
+    public void higherPriority_isAdjustedLess() {
+        EnergyBudgetController c = new EnergyBudgetController(48, 0.5);
+        c.addTest(EnergyBudgetController.GPS, 180, 10, 3600, 3);
+        c.addTest(EnergyBudgetController.SENSOR, 180, 10, 3600, 1);
+        c.start(0, 100);
+        c.step(1, 97);
+
+        int gps = c.getInterval(EnergyBudgetController.GPS);
+        int sensor = c.getInterval(EnergyBudgetController.SENSOR);
+        assertTrue(gps > 180);
+        assertTrue(sensor > gps);
+    }
+
+    @Test
+    public void gain_isBounded() {
+        EnergyBudgetController c = new EnergyBudgetController(48, 10);
+        c.addTest(EnergyBudgetController.GPS, 100, 10, 100000, 1);
+        c.start(0, 100);
+        c.step(1, 50); //far above the required rate
+
+        assertEquals(150, c.getInterval(EnergyBudgetController.GPS));
+    }
+
+    @Test
+    public void charging_isIgnored() {
+        EnergyBudgetController c = newController(48);
+        c.start(0, 50);
+        assertFalse(c.step(1, 60));
+        assertEquals(180, c.getInterval(EnergyBudgetController.GPS));
+    }
+}
@@ -0,0 +1,141 @@
+package com.mason.verifi;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parses parameter grids and checks the cartesian product of the cells, the OFF handling,
+ * the errors of invalid grid files and the comparison table.
+ */
+public class ExperimentMatrixTest {
+
+    private static ExperimentMatrix parse(String grid) throws IOException {
+        return ExperimentMatrix.parse(new StringReader(grid));
+    }
+
+    private static void assertInvalid(String grid, String message) {
+        try {
+            parse(grid);
+            fail("Expected an error for " + grid);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    @Test
+    public void buildsCartesianProduct() throws IOException {
+        ExperimentMatrix matrix = parse("# comment\n"
+                + "gps=IZATSDK,LOCMGR\n"
+                + "\n"
+                + "gpsInterval=60,180,600\n"
+                + "connection=cold, warm\n"
+                + "cellDuration=1800\n"
+                + "warmup=300\n"
+                + "seed=42\n");
+
+        List<ExperimentMatrix.Cell> cells = matrix.getCells();
+        assertEquals(2 * 3 * 2, cells.size());
+        assertEquals(1800, matrix.getCellDurationSec());
+        assertEquals(300, matrix.getWarmupSec());
+        assertEquals(42, matrix.getSeed());
+
+        //every combination exactly once, values are trimmed and upper case
+        Set<String> combos = new HashSet<>();
+        for (ExperimentMatrix.Cell cell : cells) {
+            assertEquals(3, cell.getParams().size());
+            combos.add(cell.describe());
+        }
+        assertEquals(cells.size(), combos.size());
+        assertTrue(combos.contains("gps=LOCMGR gpsInterval=600 connection=WARM"));
+    }
+
+    @Test
+    public void shuffleIsRepeatableWithSeed() throws IOException {
+        String grid = "gpsInterval=10,20,30,40,50,60\nseed=7\n";
+        ExperimentMatrix a = parse(grid);
+        ExperimentMatrix b = parse(grid);
+        a.shuffle();
+        b.shuffle();
+        for (int i = 0; i < a.getCells().size(); i++)
+            assertEquals(a.getCells().get(i).describe(), b.getCells().get(i).describe());
+    }
+
+    @Test
+    public void emptyGridIsOneCell() throws IOException {
+        assertEquals(1, parse("cellDuration=60\n").getCells().size());
+    }
+
+    @Test
+    public void rejectsInvalidLines() {
+        assertInvalid("gps\n", "Line 1: expected key=value");
+        assertInvalid("\nfoo=1\n", "Line 2: unknown parameter foo");
+        assertInvalid("gps=NOPE\n", "Line 1");
+        assertInvalid("gpsInterval=0\n", "gpsInterval must be positive");
+        assertInvalid("sensorInterval=abc\n", "Line 1");
+        assertInvalid("cellDuration=long\n", "Line 1");
+    }
+
+    @Test
+    public void offOnlyDisablesTests() throws IOException {
+        assertEquals(2, parse("gps=OFF,LOCMGR\nsensor=off\ndataConn=OFF\n").getCells().size());
+        //intervals and the batch size have no OFF value
+        assertInvalid("gpsInterval=OFF\n", "Line 1");
+        assertInvalid("uploadBatch=OFF\n", "Line 1");
+    }
+
+    @Test
+    public void appliesCellToPreference() throws IOException {
+        TestPreference testPref = TestPreference.getInstance();
+        boolean enableGps = testPref.isEnableGPS();
+        GPSType gpsType = testPref.getGpsType();
+        boolean enableDataConn = testPref.isEnableDataConn();
+        DataConnType dataConnType = testPref.getDataConnType();
+        int dataConnInterval = testPref.getDataConnInterval();
+        try {
+            testPref.setGpsType(GPSType.IZATSDK);
+            ExperimentMatrix matrix = parse("gps=OFF\ndataConn=CELL\ndataConnInterval=120\n");
+            ExperimentMatrix.apply(matrix.getCells().get(0), testPref);
+
+            assertFalse(testPref.isEnableGPS());
+            //a disabled test keeps its type
+            assertEquals(GPSType.IZATSDK, testPref.getGpsType());
+            assertTrue(testPref.isEnableDataConn());
+            assertEquals(DataConnType.CELL, testPref.getDataConnType());
+            assertEquals(120, testPref.getDataConnInterval());
+        } finally {
+            testPref.setEnableGPS(enableGps);
+            testPref.setGpsType(gpsType);
+            testPref.setEnableDataConn(enableDataConn);
+            testPref.setDataConnType(dataConnType);
+            testPref.setDataConnInterval(dataConnInterval);
+        }
+    }
+
+    @Test
+    public void writesTableInRunOrder() throws IOException {
+        ExperimentMatrix matrix = parse("gps=IZATSDK,OFF\n");
+        ExperimentMatrix.Cell cell = matrix.getCells().get(0);
+        cell.measured = true;
+        cell.measuredMs = 3600000;
+        cell.startLevel = 90;
+        cell.endLevel = 88;
+        cell.chargeUsedUah = 50000;
+
+        StringWriter out = new StringWriter();
+        matrix.writeTable(out);
+        String[] lines = out.toString().split("\n");
+
+        assertEquals(3, lines.length);
+        assertEquals("run,gps,measured_min,start_pct,end_pct,drain_pct_per_hour,avg_current_ma", lines[0]);
+        assertEquals("1,IZATSDK,60.0,90,88,2.000,50.0", lines[1]);
+        assertEquals("2,OFF,,,,,", lines[2]);
+    }
+}
@@ -0,0 +1,110 @@
+package com.mason.verifi;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for GPS track loading and replay.
+ */
+public class GpsTrackTest {
+
+    private static final String GPX =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<gpx version=\"1.1\" creator=\"test\" xmlns=\"http://www.topografix.com/GPX/1/1\">\n" +
+            " <trk><trkseg>\n" +
+            "  <trkpt lat=\"37.4000\" lon=\"-122.1000\"><time>2022-05-01T10:00:00Z</time><hdop>1.2</hdop></trkpt>\n" +
+            "  <trkpt lat=\"37.4010\" lon=\"-122.1010\"><time>2022-05-01T10:00:30Z</time></trkpt>\n" +
+            "  <trkpt lat=\"37.4020\" lon=\"-122.1020\"><time>2022-05-01T10:01:00.500Z</time></trkpt>\n" +
+            "  <trkpt lat=\"37.4030\" lon=\"-122.1030\"></trkpt>\n" +
+            "  <trkpt lat=\"37.4040\" lon=\"-122.1040\"><time>2022-05-01T10:03:00Z</time></trkpt>\n" +
+            " </trkseg></trk>\n" +
+            "</gpx>\n";
+
+    private static GpsTrack parse(String gpx) throws IOException {
+        return GpsTrack.parseGpx(new ByteArrayInputStream(gpx.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void parseGpx_skipsPointsWithoutTime() throws IOException {
+        GpsTrack track = parse(GPX);
+
+        assertEquals(4, track.size());
+        assertEquals(37.4, track.getLatitude(0), 1e-9);
+        assertEquals(-122.1, track.getLongitude(0), 1e-9);
+        assertEquals(6.0f, track.getAccuracy(0), 1e-6f);
+        assertEquals(30_000L, track.getTime(1) - track.getTime(0));
+        assertEquals(60_500L, track.getTime(2) - track.getTime(0));
+        assertEquals(37.404, track.getLatitude(3), 1e-9);
+    }
+
+    @Test
+    public void binary_roundTrip() throws IOException {
+        GpsTrack track = parse(GPX);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        track.writeBinary(out);
+        GpsTrack copy = GpsTrack.readBinary(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals(track.size(), copy.size());
+        for (int i = 0; i < track.size(); i++) {
+            assertEquals(track.getTime(i), copy.getTime(i));
+            assertEquals(track.getLatitude(i), copy.getLatitude(i), 0.0);
+            assertEquals(track.getLongitude(i), copy.getLongitude(i), 0.0);
+            assertEquals(track.getAccuracy(i), copy.getAccuracy(i), 0.0f);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void readBinary_rejectsOtherFiles() throws IOException {
+        GpsTrack.readBinary(new ByteArrayInputStream(GPX.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void replay_scalesDelaysAndTimestamps() throws IOException {
+        GpsTrack track = parse(GPX);
+        final List<Long> times = new ArrayList<>();
+        GpsTrackReplayer replayer = new GpsTrackReplayer(track,
+                (timeMs, lat, lon, acc) -> times.add(timeMs), 10, 0);
+
+        replayer.reset(1_000_000L);
+        List<Long> delays = new ArrayList<>();
+        while (replayer.hasNext()) {
+            delays.add(replayer.nextDelayMs());
+            replayer.deliverNext();
+        }
+
+        assertEquals(4, times.size());
+        assertEquals(Long.valueOf(0), delays.get(0));
+        assertEquals(Long.valueOf(3_000), delays.get(1));
+        assertEquals(Long.valueOf(3_050), delays.get(2));
+        assertEquals(Long.valueOf(11_950), delays.get(3));
+        assertEquals(Long.valueOf(1_000_000L), times.get(0));
+        assertEquals(Long.valueOf(1_018_000L), times.get(3));
+    }
+
+    @Test
+    public void replay_dropsFixesInsideMinInterval() throws IOException {
+        GpsTrack track = parse(GPX);
+        final List<Double> lats = new ArrayList<>();
+        GpsTrackReplayer replayer = new GpsTrackReplayer(track,
+                (timeMs, lat, lon, acc) -> lats.add(lat), 1, 60_000);
+
+        replayer.reset(0);
+        while (replayer.hasNext()) {
+            replayer.deliverNext();
+        }
+
+        assertEquals(3, lats.size());
+        assertEquals(37.400, lats.get(0), 1e-9);
+        assertEquals(37.402, lats.get(1), 1e-9);
+        assertEquals(37.404, lats.get(2), 1e-9);
+    }
+}
@@ -0,0 +1,104 @@
+package com.mason.verifi;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the histogram bucket layout and percentiles and the dump formats of the metrics registry.
+ */
+public class MetricsRegistryTest {
+
+    @Test
+    public void bucketsCoverTheWholeRange() {
+        int last = -1;
+        for (long v = 0; v < 100000; v++) {
+            int b = MetricsRegistry.Histogram.bucketOf(v);
+            assertTrue(b == last || b == last + 1);
+            assertTrue(MetricsRegistry.Histogram.lowerBound(b) <= v);
+            assertTrue(MetricsRegistry.Histogram.lowerBound(b + 1) > v);
+            last = b;
+        }
+        assertEquals(MetricsRegistry.Histogram.BUCKET_COUNT - 1, MetricsRegistry.Histogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentilesAreWithinBucketError() {
+        MetricsRegistry.Histogram h = MetricsRegistry.getInstance().histogram("test.latency_ms");
+        for (long v = 1; v <= 1000; v++)
+            h.record(v);
+        h.record(-5); //recorded as 0
+
+        assertEquals(1001, h.getCount());
+        assertEquals(1000, h.getMax());
+        assertEquals(500, h.getPercentile(50), 500 * 0.125);
+        assertEquals(950, h.getPercentile(95), 950 * 0.125);
+        assertEquals(1000, h.getPercentile(100));
+        assertEquals(500500 / 1001.0, h.getMean(), 1e-9);
+    }
+
+    @Test
+    public void dumpAndReset() {
+        MetricsRegistry registry = MetricsRegistry.getInstance();
+        MetricsRegistry.Counter c = registry.counter("test.count");
+        assertSame(c, registry.counter("test.count"));
+        c.add(3);
+        registry.gauge("test.gauge").set(1.5);
+        registry.histogram("test.empty_ms");
+
+        StringWriter json = new StringWriter();
+        registry.dump(new PrintWriter(json), true);
+        assertTrue(json.toString().contains("\"test.count\":3"));
+        assertTrue(json.toString().contains("\"test.gauge\":1.5"));
+        //a histogram without samples has no mean
+        assertTrue(json.toString().contains("\"test.empty_ms\":{\"count\":0,\"mean\":null,"));
+        assertValidJson(json.toString());
+
+        registry.reset();
+        assertEquals(0, c.get());
+        assertTrue(Double.isNaN(registry.gauge("test.gauge").get()));
+
+        json = new StringWriter();
+        registry.dump(new PrintWriter(json), true);
+        assertValidJson(json.toString());
+
+        StringWriter text = new StringWriter();
+        registry.dump(new PrintWriter(text), false);
+        assertTrue(text.toString().contains("test.count = 0"));
+    }
+
+    //Parse the JSON dump: nested objects of numbers and null, names without escapes
+    private static void assertValidJson(String json) {
+        String s = json.trim();
+        assertEquals(s, s.length(), parseValue(s, 0));
+    }
+
+    private static int parseValue(String s, int i) {
+        if (s.charAt(i) == '{') {
+            i++;
+            if (s.charAt(i) == '}')
+                return i + 1;
+            while (true) {
+                assertEquals(s, '"', s.charAt(i));
+                i = s.indexOf('"', i + 1) + 1;
+                assertEquals(s, ':', s.charAt(i));
+                i = parseValue(s, i + 1);
+                if (s.charAt(i) == '}')
+                    return i + 1;
+                assertEquals(s, ',', s.charAt(i++));
+            }
+        }
+        if (s.startsWith("null", i))
+            return i + 4;
+
+        int start = i;
+        while (i < s.length() && "-+.eE0123456789".indexOf(s.charAt(i)) >= 0)
+            i++;
+        assertTrue(s, i > start);
+        Double.parseDouble(s.substring(start, i));
+        return i;
+    }
+}
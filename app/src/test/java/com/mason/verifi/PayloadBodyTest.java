@@ -0,0 +1,137 @@
+package com.mason.verifi;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Sink;
+import okio.Timeout;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that upload payloads stream the right bytes from a file range or the synthetic generator.
+ */
+public class PayloadBodyTest {
+
+    private static byte[] write(PayloadBody body) throws IOException {
+        Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        return buffer.readByteArray();
+    }
+
+    @Test
+    public void streamsFileRange() throws IOException {
+        byte[] data = new byte[200 * 1024];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) (i * 31);
+        File file = File.createTempFile("payload", ".bin");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+
+        try (FileInputStream in = new FileInputStream(file)) {
+            //an asset is a range inside the APK
+            PayloadBody body = PayloadBody.fromFile(in.getFD(), 1000, 150000, null);
+            assertEquals(150000, body.contentLength());
+
+            byte[] first = write(body);
+            assertEquals(150000, first.length);
+            for (int i = 0; i < first.length; i++)
+                assertEquals(data[1000 + i], first[i]);
+
+            //a retry sends the same bytes
+            assertArrayEquals(first, write(body));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void failsOnShortFile() throws IOException {
+        File file = File.createTempFile("payload", ".bin");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[100]);
+        }
+        try (FileInputStream in = new FileInputStream(file)) {
+            write(PayloadBody.fromFile(in.getFD(), 0, 200, null));
+        }
+    }
+
+    @Test
+    public void syntheticIsRepeatable() throws IOException {
+        PayloadBody body = PayloadBody.synthetic(100001, 100, 42, null);
+        byte[] first = write(body);
+        assertEquals(100001, first.length);
+        assertArrayEquals(first, write(body));
+        assertArrayEquals(first, write(PayloadBody.synthetic(100001, 100, 42, null)));
+        assertFalse(Arrays.equals(first, write(PayloadBody.synthetic(100001, 100, 43, null))));
+    }
+
+    @Test
+    public void entropyControlsCompression() throws IOException {
+        int size = 256 * 1024;
+        int zeros = compressedSize(write(PayloadBody.synthetic(size, 0, 1, null)));
+        int half = compressedSize(write(PayloadBody.synthetic(size, 50, 1, null)));
+        int random = compressedSize(write(PayloadBody.synthetic(size, 100, 1, null)));
+
+        assertTrue(zeros < size / 100);
+        assertTrue(half > size * 45 / 100 && half < size * 55 / 100);
+        assertTrue(random > size * 99 / 100);
+    }
+
+    @Test
+    public void largePayloadStreams() throws IOException {
+        //256 MB through a sink that drops everything, the body only holds its own buffer
+        long size = 256L * 1024 * 1024;
+        CountingSink counter = new CountingSink();
+        try (BufferedSink sink = Okio.buffer(counter)) {
+            PayloadBody.synthetic(size, 100, 7, null).writeTo(sink);
+        }
+        assertEquals(size, counter.count);
+    }
+
+    private static int compressedSize(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        while (!deflater.finished())
+            out.write(chunk, 0, deflater.deflate(chunk));
+        deflater.end();
+        return out.size();
+    }
+
+    private static class CountingSink implements Sink {
+        long count = 0;
+
+        @Override
+        public void write(Buffer source, long byteCount) throws IOException {
+            count += byteCount;
+            source.skip(byteCount);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public Timeout timeout() {
+            return Timeout.NONE;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
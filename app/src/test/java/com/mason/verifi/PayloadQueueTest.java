@@ -0,0 +1,143 @@
+package com.mason.verifi;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the bounded on-disk queue of the batched upload mode: limits, removal of sent payloads and restart.
+ */
+public class PayloadQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] read(PayloadQueue queue, int i) throws IOException {
+        Buffer buffer = new Buffer();
+        queue.getBody(i, null).writeTo(buffer);
+        return buffer.readByteArray();
+    }
+
+    private static byte[] payload(int size, int seed) throws IOException {
+        Buffer buffer = new Buffer();
+        PayloadBody.synthetic(size, 100, seed, null).writeTo(buffer);
+        return buffer.readByteArray();
+    }
+
+    @Test
+    public void keepsPayloadsInOrder() throws IOException {
+        PayloadQueue queue = new PayloadQueue(folder.newFile("queue.bin"), 10, 1 << 20);
+        for (int i = 0; i < 3; i++)
+            assertTrue(queue.add(1000 + i, PayloadBody.synthetic(1000 + i, 100, i + 1, null)));
+
+        assertEquals(3, queue.size());
+        assertEquals(3003, queue.getBytes());
+        assertEquals(1000, queue.getOldestWallMs());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(1000 + i, queue.getWallMs(i));
+            assertArrayEquals(payload(1000 + i, i + 1), read(queue, i));
+        }
+        queue.close();
+    }
+
+    @Test
+    public void refusesPayloadsOverTheLimits() throws IOException {
+        PayloadQueue queue = new PayloadQueue(folder.newFile("queue.bin"), 2, 1500);
+        assertTrue(queue.add(1, PayloadBody.synthetic(1000, 0, 1, null)));
+        //over the byte limit
+        assertFalse(queue.add(2, PayloadBody.synthetic(1000, 0, 1, null)));
+        assertTrue(queue.add(3, PayloadBody.synthetic(500, 0, 1, null)));
+        //over the payload limit
+        assertFalse(queue.add(4, PayloadBody.synthetic(1, 0, 1, null)));
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void removesSentPayloads() throws IOException {
+        File file = folder.newFile("queue.bin");
+        PayloadQueue queue = new PayloadQueue(file, 10, 1 << 20);
+        for (int i = 0; i < 4; i++)
+            queue.add(i, PayloadBody.synthetic(100 * (i + 1), 100, i + 1, null));
+
+        queue.remove(new boolean[]{true, false, true, false});
+        assertEquals(2, queue.size());
+        assertEquals(1, queue.getWallMs(0));
+        assertEquals(3, queue.getWallMs(1));
+        assertArrayEquals(payload(200, 2), read(queue, 0));
+        assertArrayEquals(payload(400, 4), read(queue, 1));
+
+        //a new payload goes after the kept ones
+        queue.add(9, PayloadBody.synthetic(50, 100, 9, null));
+        assertArrayEquals(payload(50, 9), read(queue, 2));
+
+        queue.remove(new boolean[]{true, true, true});
+        assertEquals(0, queue.size());
+        assertEquals(-1, queue.getOldestWallMs());
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void keepsPayloadsAddedWhileSending() throws IOException {
+        PayloadQueue queue = new PayloadQueue(folder.newFile("queue.bin"), 10, 1 << 20);
+        for (int i = 0; i < 2; i++)
+            queue.add(i, PayloadBody.synthetic(100, 100, i + 1, null));
+
+        //a batch of the two queued payloads is in flight when the next wakeups queue theirs
+        boolean[] sent = new boolean[queue.size()];
+        read(queue, 0);
+        read(queue, 1);
+        queue.add(2, PayloadBody.synthetic(300, 100, 3, null));
+        queue.add(3, PayloadBody.synthetic(400, 100, 4, null));
+        sent[0] = true;
+        sent[1] = true;
+
+        queue.remove(sent);
+        assertEquals(2, queue.size());
+        assertEquals(2, queue.getWallMs(0));
+        assertEquals(3, queue.getWallMs(1));
+        assertArrayEquals(payload(300, 3), read(queue, 0));
+        assertArrayEquals(payload(400, 4), read(queue, 1));
+        queue.close();
+    }
+
+    @Test
+    public void survivesRestartAndTornRecord() throws IOException {
+        File file = folder.newFile("queue.bin");
+        PayloadQueue queue = new PayloadQueue(file, 10, 1 << 20);
+        queue.add(10, PayloadBody.synthetic(300, 100, 1, null));
+        queue.add(20, PayloadBody.synthetic(400, 100, 2, null));
+        queue.close();
+        long complete = file.length();
+
+        //a crash in the middle of the next record
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[]{0, 0, 0, 0, 0, 0, 0, 30, 0, 0, 0, 0, 0, 0, 1, 0, 1, 2, 3});
+        }
+
+        queue = new PayloadQueue(file, 10, 1 << 20);
+        assertEquals(2, queue.size());
+        assertEquals(complete, file.length());
+        assertEquals(20, queue.getWallMs(1));
+        assertArrayEquals(payload(400, 2), read(queue, 1));
+
+        queue.add(30, PayloadBody.synthetic(10, 100, 3, null));
+        queue.close();
+        queue = new PayloadQueue(file, 10, 1 << 20);
+        assertEquals(3, queue.size());
+        assertArrayEquals(payload(10, 3), read(queue, 2));
+        queue.close();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            assertEquals(complete + 16 + 10, raf.length());
+        }
+    }
+}
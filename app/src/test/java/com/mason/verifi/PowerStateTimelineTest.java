@@ -0,0 +1,72 @@
+package com.mason.verifi;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that time, drain, alarm delays and test run times are split by power state.
+ */
+public class PowerStateTimelineTest {
+
+    private static final long HOUR = 3600000L;
+
+    @Test
+    public void splitsTimeAndDrainByState() {
+        PowerStateTimeline t = new PowerStateTimeline(1);
+        int active = PowerStateTimeline.CELL;
+        int doze = PowerStateTimeline.DOZE | PowerStateTimeline.CELL;
+
+        t.update(0, active, 3000000);
+        t.update(HOUR, doze, 2950000);                 //50 mA while active
+        t.update(HOUR, doze, 2950000);                 //no change, ignored
+        t.update(3 * HOUR, active, 2930000);           //10 mA in doze
+        t.update(3 * HOUR + 600000, doze, 2925000);    //maintenance window, 30 mA
+        t.close(5 * HOUR, 2905000);
+
+        assertEquals(4, t.getTransitions());
+        assertEquals(doze, t.getTransitionState(3));
+        assertEquals(HOUR + 600000, t.getTimeMs(active));
+        assertEquals(4 * HOUR - 600000, t.getTimeMs(doze));
+        assertEquals(55 / (HOUR + 600000.0) * HOUR, t.getCurrentMa(active), 1e-9);
+        assertEquals(40 / (4 * HOUR - 600000.0) * HOUR, t.getCurrentMa(doze), 1e-9);
+    }
+
+    @Test
+    public void chargingAndMissingCounterAreNotCounted() {
+        PowerStateTimeline t = new PowerStateTimeline(4);
+        int charging = PowerStateTimeline.CHARGING | PowerStateTimeline.SCREEN_ON;
+
+        t.update(0, charging, 1000000);
+        t.update(HOUR, 0, 2000000);
+        t.close(2 * HOUR, -1);
+
+        assertEquals(0, t.getCurrentMa(charging), 1e-12);
+        assertEquals(0, t.getCurrentMa(0), 1e-12);
+        assertEquals(HOUR, t.getTimeMs(0));
+    }
+
+    @Test
+    public void alarmDelaysAndRunsFollowTheState() {
+        PowerStateTimeline t = new PowerStateTimeline(4);
+        int doze = PowerStateTimeline.DOZE;
+
+        t.addAlarmDelay(EnergyAttributor.SENSOR, 1000); //before the first state, ignored
+        t.update(0, 0, -1);
+        t.addAlarmDelay(EnergyAttributor.SENSOR, 200);
+        t.update(1000, doze, -1);
+        t.addAlarmDelay(EnergyAttributor.SENSOR, 300000);
+        t.addAlarmDelay(EnergyAttributor.SENSOR, 500000);
+        t.addExecution(EnergyAttributor.DATA_CONN, doze, 4000);
+        t.addExecution(EnergyAttributor.DATA_CONN, 0, 1000);
+
+        assertEquals(200, t.getAverageAlarmDelayMs(EnergyAttributor.SENSOR, 0), 1e-9);
+        assertEquals(400000, t.getAverageAlarmDelayMs(EnergyAttributor.SENSOR, doze), 1e-9);
+        assertEquals(4000, t.getAverageExecutionMs(EnergyAttributor.DATA_CONN, doze), 1e-9);
+        assertTrue(Double.isNaN(t.getAverageExecutionMs(EnergyAttributor.GPS, doze)));
+
+        t.close(2000, -1);
+        assertTrue(t.formatSummary().contains("[doze screen off no network]"));
+        assertTrue(t.formatSummary().contains("Sensor alarm delay 400.0 s"));
+    }
+}
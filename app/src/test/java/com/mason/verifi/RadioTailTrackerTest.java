@@ -0,0 +1,125 @@
+package com.mason.verifi;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the split of uploads into radio ramp-up, transfer and tail time and the radio active time.
+ */
+public class RadioTailTrackerTest {
+
+    @Test
+    public void splitsCellularUpload() {
+        RadioTailTracker t = new RadioTailTracker(1);
+        t.onActivity(0, RadioTailTracker.ACTIVITY_DORMANT);
+
+        assertFalse(t.beginUpload(1000, true, 13));
+        assertFalse(t.onActivity(1400, RadioTailTracker.ACTIVITY_OUT));
+        assertFalse(t.onActivity(1600, RadioTailTracker.ACTIVITY_INOUT));
+        assertFalse(t.endUpload(2500));
+        assertTrue(t.isInTail());
+        assertFalse(t.onActivity(2600, RadioTailTracker.ACTIVITY_NONE));
+        assertTrue(t.onActivity(12500, RadioTailTracker.ACTIVITY_DORMANT));
+        assertFalse(t.isInTail());
+
+        assertEquals(1, t.getUploads());
+        assertTrue(t.isCell(0));
+        assertFalse(t.isWarm(0));
+        assertEquals(13, t.getLink(0));
+        assertEquals(400, t.getRampMs(0));
+        assertEquals(1100, t.getTransferMs(0));
+        assertEquals(10000, t.getTailMs(0));
+        assertEquals(RadioTailTracker.END_DORMANT, t.getTailEnd(0));
+        assertEquals(11100, t.getActiveMs());
+    }
+
+    @Test
+    public void nextUploadCutsTheTail() {
+        RadioTailTracker t = new RadioTailTracker(1);
+        t.onActivity(0, RadioTailTracker.ACTIVITY_DORMANT);
+
+        t.beginUpload(0, true, 13);
+        t.onActivity(500, RadioTailTracker.ACTIVITY_OUT);
+        t.endUpload(1000);
+
+        //the radio has not gone dormant yet, the second upload needs no promotion
+        assertTrue(t.beginUpload(4000, true, 13));
+        t.onActivity(4100, RadioTailTracker.ACTIVITY_INOUT);
+        t.endUpload(4600);
+        assertTrue(t.close(5000));
+
+        assertEquals(2, t.getUploads());
+        assertEquals(3000, t.getTailMs(0));
+        assertEquals(RadioTailTracker.END_NEXT_UPLOAD, t.getTailEnd(0));
+        assertFalse(t.isWarm(0));
+        assertTrue(t.isWarm(1));
+        assertEquals(4000, t.getIntervalMs(1));
+        assertEquals(RadioTailTracker.END_STOP, t.getTailEnd(1));
+        assertEquals(400, t.getTailMs(1));
+    }
+
+    @Test
+    public void endsTailOnDisconnectAndTimeout() {
+        RadioTailTracker t = new RadioTailTracker(4);
+
+        t.beginUpload(0, true, 20);
+        t.endUpload(1000);
+        assertTrue(t.onConnectionState(3000, false));
+        assertEquals(RadioTailTracker.END_DISCONNECT, t.getTailEnd(0));
+        assertEquals(1000, t.getRampMs(0));
+        assertEquals(0, t.getTransferMs(0));
+        assertEquals(2000, t.getTailMs(0));
+
+        t.onConnectionState(4000, true);
+        t.beginUpload(5000, true, 20);
+        t.onActivity(5200, RadioTailTracker.ACTIVITY_OUT);
+        t.endUpload(6000);
+        assertTrue(t.onActivity(6000 + RadioTailTracker.MAX_TAIL_MS + 1, RadioTailTracker.ACTIVITY_NONE));
+        assertEquals(RadioTailTracker.END_TIMEOUT, t.getTailEnd(1));
+        assertEquals(RadioTailTracker.MAX_TAIL_MS, t.getTailMs(1));
+    }
+
+    @Test
+    public void nextUploadAfterMissedDormantTimesOut() {
+        RadioTailTracker t = new RadioTailTracker(4);
+
+        //no dormant report and no other telephony event until the next upload minutes later
+        t.beginUpload(0, true, 20);
+        t.endUpload(1000);
+        assertTrue(t.beginUpload(1000 + 10 * 60000, true, 20));
+        assertEquals(RadioTailTracker.END_TIMEOUT, t.getTailEnd(0));
+        assertEquals(RadioTailTracker.MAX_TAIL_MS, t.getTailMs(0));
+
+        //a stop long after the upload is capped as well
+        t.endUpload(2000 + 10 * 60000);
+        assertTrue(t.close(2000 + 20 * 60000));
+        assertEquals(RadioTailTracker.END_STOP, t.getTailEnd(1));
+        assertEquals(RadioTailTracker.MAX_TAIL_MS, t.getTailMs(1));
+    }
+
+    @Test
+    public void endWithoutUploadIsNoTail() {
+        RadioTailTracker t = new RadioTailTracker(1);
+        assertFalse(t.endUpload(1000));
+        assertFalse(t.isInTail());
+        assertEquals(0, t.getUploads());
+    }
+
+    @Test
+    public void wifiUploadHasNoTail() {
+        RadioTailTracker t = new RadioTailTracker(1);
+
+        t.beginUpload(0, false, 433);
+        //cellular reports do not apply to a Wi-Fi upload
+        assertFalse(t.onActivity(100, RadioTailTracker.ACTIVITY_OUT));
+        assertTrue(t.endUpload(800));
+
+        assertFalse(t.isCell(0));
+        assertEquals(0, t.getRampMs(0));
+        assertEquals(800, t.getTransferMs(0));
+        assertEquals(0, t.getTailMs(0));
+        assertEquals(RadioTailTracker.END_NONE, t.getTailEnd(0));
+        assertEquals("1 uploads, none on cellular", t.formatSummary());
+    }
+}
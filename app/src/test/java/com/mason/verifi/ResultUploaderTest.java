@@ -0,0 +1,194 @@
+package com.mason.verifi;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import okhttp3.OkHttpClient;
+
+import static org.junit.Assert.*;
+
+/**
+ * Uploads spooled records to a local stand-in collector and checks resume and de-duplication.
+ */
+public class ResultUploaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private String url;
+    private final OkHttpClient client = new OkHttpClient();
+
+    //the stand-in collector: one byte stream per stream id
+    private final Map<String, ByteArrayOutputStream> streams = new HashMap<>();
+    private int posts = 0;
+    private int duplicateBytes = 0;
+    private boolean refuse = false;      //answer 503 without storing
+    private boolean dropAnswer = false;  //store the batch, then answer 500 as if the answer was lost
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/collect", this::collect);
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/collect";
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private synchronized void collect(HttpExchange exchange) throws IOException {
+        posts++;
+        if (refuse) {
+            answer(exchange, 503, "");
+            return;
+        }
+
+        String stream = exchange.getRequestHeaders().getFirst(ResultUploader.HEADER_STREAM);
+        long offset = Long.parseLong(exchange.getRequestHeaders().getFirst(ResultUploader.HEADER_OFFSET));
+        byte[] batch = readAll(new GZIPInputStream(exchange.getRequestBody()));
+
+        ByteArrayOutputStream data = streams.computeIfAbsent(stream, k -> new ByteArrayOutputStream());
+        long have = data.size();
+        if (offset <= have) {
+            int skip = (int) Math.min(have - offset, batch.length);
+            duplicateBytes += skip;
+            data.write(batch, skip, batch.length - skip);
+        }
+
+        if (dropAnswer) {
+            dropAnswer = false;
+            answer(exchange, 500, "");
+            return;
+        }
+        answer(exchange, 200, Long.toString(data.size()));
+    }
+
+    private static void answer(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(code, bytes.length > 0 ? bytes.length : -1);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0)
+            out.write(buf, 0, n);
+        return out.toByteArray();
+    }
+
+    private List<ResultUploader.Record> received(String stream) throws IOException {
+        InputStream in = new ByteArrayInputStream(streams.get(stream).toByteArray());
+        List<ResultUploader.Record> records = new ArrayList<>();
+        ResultUploader.Record r;
+        while ((r = ResultUploader.readRecord(in)) != null)
+            records.add(r);
+        return records;
+    }
+
+    @Test
+    public void uploadsRecordsInBatches() throws IOException {
+        ResultUploader uploader = new ResultUploader(folder.getRoot(), "a4100-1", url, client);
+        uploader.addEvent(1000, "09-01 10:00:00 - Start Test");
+        uploader.addBatterySample(2000, -150000, 3000000, 87, 3900, 251, 0);
+        uploader.addMetrics(3000, "{\"counters\":{}}");
+        //enough records for several batches
+        for (int i = 0; i < 5000; i++)
+            uploader.addEvent(4000 + i, "event " + i + " with some padding to fill the batch");
+
+        int batches = uploader.flush();
+        assertTrue(batches > 1);
+        assertEquals(uploader.getEndOffset(), uploader.getCommittedOffset());
+        assertTrue(uploader.getCompressedBytes() < uploader.getSentBytes());
+
+        List<ResultUploader.Record> records = received(uploader.getStreamId());
+        assertEquals(5003, records.size());
+        assertEquals(ResultUploader.RECORD_EVENT, records.get(0).type);
+        assertEquals("09-01 10:00:00 - Start Test", records.get(0).getText());
+        assertEquals(ResultUploader.RECORD_BATTERY, records.get(1).type);
+        assertEquals(2000, records.get(1).wallMs);
+        assertEquals(ResultUploader.RECORD_METRICS, records.get(2).type);
+        assertEquals("event 4999 with some padding to fill the batch", records.get(5002).getText());
+
+        //nothing new, nothing sent
+        assertEquals(0, uploader.flush());
+        uploader.close();
+    }
+
+    @Test
+    public void resumesAfterRestartWithoutDuplicates() throws IOException {
+        ResultUploader uploader = new ResultUploader(folder.getRoot(), "a4100-2", url, client);
+        uploader.addEvent(1000, "first");
+
+        refuse = true;
+        try {
+            uploader.flush();
+            fail("collector refused the batch");
+        } catch (IOException expected) {
+            //not committed, sent again later
+        }
+        assertEquals(0, uploader.getCommittedOffset());
+        uploader.close();
+
+        //the app is restarted: same stream, continues at the saved offset
+        refuse = false;
+        uploader = new ResultUploader(folder.getRoot(), "a4100-2", url, client);
+        String stream = uploader.getStreamId();
+        uploader.addEvent(2000, "second");
+        uploader.flush();
+
+        //the collector stores the next batch but its answer is lost, so the batch is sent again
+        uploader.addEvent(3000, "third");
+        dropAnswer = true;
+        try {
+            uploader.flush();
+            fail("answer was dropped");
+        } catch (IOException expected) {
+            //resent below
+        }
+        uploader.flush();
+        uploader.close();
+
+        //restarted once more after everything was committed, the spool was emptied
+        uploader = new ResultUploader(folder.getRoot(), "a4100-2", url, client);
+        assertEquals(stream, uploader.getStreamId());
+        int before = posts;
+        uploader.addEvent(4000, "fourth");
+        uploader.flush();
+        assertEquals(before + 1, posts);
+        uploader.close();
+
+        List<ResultUploader.Record> records = received(stream);
+        assertEquals(4, records.size());
+        assertEquals("first", records.get(0).getText());
+        assertEquals("second", records.get(1).getText());
+        assertEquals("third", records.get(2).getText());
+        assertEquals("fourth", records.get(3).getText());
+        assertTrue(duplicateBytes > 0);
+    }
+}
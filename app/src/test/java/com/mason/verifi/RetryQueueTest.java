@@ -0,0 +1,100 @@
+package com.mason.verifi;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the backoff of failed uploads and that their attempts and charge survive a restart.
+ */
+public class RetryQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private RetryQueue open() throws IOException {
+        File dir = folder.getRoot();
+        return new RetryQueue(new File(dir, "retry.bin"), new File(dir, "retry.log"), 10, 1 << 20,
+                1000, 60000, new Random(1));
+    }
+
+    @Test
+    public void backoffDoublesWithJitter() throws IOException {
+        RetryQueue queue = open();
+        long delay = 1000;
+        for (int attempts = 1; attempts <= 10; attempts++) {
+            for (int n = 0; n < 100; n++) {
+                long backoff = queue.backoffMs(attempts);
+                assertTrue(backoff >= delay / 2 && backoff <= delay);
+            }
+            delay = Math.min(delay * 2, 60000);
+        }
+        assertTrue(queue.backoffMs(1000) <= 60000);
+    }
+
+    @Test
+    public void tracksAttemptsUntilDelivery() throws IOException {
+        RetryQueue queue = open();
+        assertTrue(queue.add(10000, PayloadBody.synthetic(100, 100, 1, null), 0.5));
+        assertTrue(queue.add(10000, PayloadBody.synthetic(200, 100, 2, null), 0.25));
+
+        //ids are unique
+        assertEquals(10000, queue.getFirstAttemptMs(0));
+        assertEquals(10001, queue.getFirstAttemptMs(1));
+        assertEquals(1, queue.getAttempts(0));
+        assertFalse(queue.isDue(0, 10000));
+        assertTrue(queue.isDue(0, 11001));
+
+        queue.recordFailure(0, 20000, 0.25);
+        assertEquals(2, queue.getAttempts(0));
+        assertEquals(0.75, queue.getMah(0), 1e-9);
+        assertTrue(queue.getNextAttemptMs(0) >= 21000 && queue.getNextAttemptMs(0) <= 22000);
+
+        //connectivity is back
+        queue.resetBackoff(20500);
+        assertTrue(queue.isDue(0, 20500));
+        assertTrue(queue.isDue(1, 20500));
+
+        queue.recordDelivery(1, 0.125);
+        assertEquals(1, queue.size());
+        assertEquals(10000, queue.getFirstAttemptMs(0));
+
+        Buffer buffer = new Buffer();
+        queue.getBody(0, null).writeTo(buffer);
+        assertEquals(100, buffer.size());
+        queue.close();
+    }
+
+    @Test
+    public void survivesRestart() throws IOException {
+        RetryQueue queue = open();
+        for (int i = 0; i < 3; i++)
+            queue.add(1000 * (i + 1), PayloadBody.synthetic(50, 100, i + 1, null), 0.1);
+        queue.recordFailure(1, 5000, 0.2);
+        queue.recordFailure(1, 9000, 0.2);
+        long next = queue.getNextAttemptMs(1);
+        queue.recordDelivery(0, 0.1);
+        queue.close();
+
+        queue = open();
+        assertEquals(2, queue.size());
+        assertEquals(2000, queue.getFirstAttemptMs(0));
+        assertEquals(3, queue.getAttempts(0));
+        assertEquals(0.5, queue.getMah(0), 1e-9);
+        assertEquals(next, queue.getNextAttemptMs(0));
+        assertEquals(1, queue.getAttempts(1));
+
+        queue.add(500, PayloadBody.synthetic(10, 100, 9, null), 0.1);
+        //after the last id, not before the earlier payloads
+        assertEquals(3001, queue.getFirstAttemptMs(2));
+        queue.close();
+    }
+}
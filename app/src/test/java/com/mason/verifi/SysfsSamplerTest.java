@@ -0,0 +1,166 @@
+package com.mason.verifi;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the sysfs sampler against a fake sysfs/procfs tree with two cpus in one cpufreq policy,
+ * two cpuidle states per cpu and two thermal zones.
+ */
+public class SysfsSamplerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File root;
+
+    private void write(String path, String content) throws IOException {
+        File file = new File(root, path);
+        file.getParentFile().mkdirs();
+        try (Writer writer = new FileWriter(file)) {
+            writer.write(content);
+        }
+    }
+
+    private void writeTree(long ticks, long idleUs, int temp) throws IOException {
+        write("sys/class/thermal/thermal_zone0/type", "battery\n");
+        write("sys/class/thermal/thermal_zone0/temp", temp + "\n");
+        write("sys/class/thermal/thermal_zone1/type", "cpu-thermal\n");
+        write("sys/class/thermal/thermal_zone1/temp", "-2500\n");
+
+        write("sys/devices/system/cpu/cpufreq/policy0/stats/time_in_state",
+                "300000 " + ticks + "\n1094400 " + (ticks * 2) + "\n1401600 7\n");
+
+        for (int cpu = 0; cpu < 2; cpu++) {
+            write("sys/devices/system/cpu/cpu" + cpu + "/cpuidle/state0/name", "WFI\n");
+            write("sys/devices/system/cpu/cpu" + cpu + "/cpuidle/state0/time", idleUs + "\n");
+            write("sys/devices/system/cpu/cpu" + cpu + "/cpuidle/state1/name", "pc\n");
+            write("sys/devices/system/cpu/cpu" + cpu + "/cpuidle/state1/time", (idleUs * 10) + "\n");
+        }
+
+        write("proc/stat", "cpu  " + ticks + " 0 50 " + (ticks * 3) + " 10 0 5 0 0 0\n"
+                + "cpu0 1 2 3 4 5 6 7 0 0 0\nintr 123456 0 0 0\nctxt 999\n");
+    }
+
+    private SysfsSampler newSampler() throws IOException {
+        SysfsSampler sampler = new SysfsSampler(root);
+        sampler.addDefaultNodes();
+        return sampler;
+    }
+
+    @Test
+    public void discoversNodesAndParsesValues() throws IOException {
+        root = folder.newFolder("root");
+        writeTree(100, 2000, 41500);
+
+        SysfsSampler sampler = newSampler();
+        //2 zones + 3 frequencies + 2 cpus * 2 idle states + 7 /proc/stat fields
+        assertEquals(2 + 3 + 4 + 7, sampler.getSlotCount());
+        assertEquals("thermal_zone0_battery", sampler.getSlotName(0));
+        assertEquals("policy0_1094400khz", sampler.getSlotName(3));
+        assertEquals("cpu1_idle_pc", sampler.getSlotName(8));
+        assertEquals("cpu_idle", sampler.getSlotName(12));
+
+        sampler.sample(0);
+        assertEquals(41500, sampler.getValue(0));
+        assertEquals(-2500, sampler.getValue(1));
+        assertEquals(100, sampler.getValue(2));
+        assertEquals(200, sampler.getValue(3));
+        assertEquals(7, sampler.getValue(4));
+        assertEquals(20000, sampler.getValue(6));
+        assertEquals(300, sampler.getValue(12));
+        assertEquals(41.5, sampler.getMaxTemperature(), 1e-9);
+        assertEquals(100 + 50 + 300 + 10 + 5, sampler.getCpuTotalTicks());
+        assertEquals(100 + 50 + 5, sampler.getCpuBusyTicks());
+        sampler.close();
+    }
+
+    @Test
+    public void rereadsFromOffsetZeroAndExportsDeltas() throws IOException {
+        root = folder.newFolder("root");
+        writeTree(100, 2000, 41500);
+
+        SysfsSampler sampler = newSampler();
+        File bin = new File(folder.getRoot(), "sysfs.bin");
+        File names = new File(folder.getRoot(), "slots.txt");
+        sampler.open(bin, names);
+
+        sampler.sample(1000);
+        writeTree(160, 2500, 42000);
+        sampler.sample(2000);
+        writeTree(220, 3000, 41000);
+        sampler.sample(3000);
+
+        assertEquals(220, sampler.getValue(2));
+        assertEquals(41000, sampler.getValue(0));
+        assertEquals(0, sampler.getReadErrors());
+        sampler.close();
+
+        //small counter changes take one or two bytes each
+        assertTrue(bin.length() < 3 * 4 * sampler.getSlotCount());
+
+        File csv = new File(folder.getRoot(), "sysfs.csv");
+        sampler.exportCsv(bin, csv);
+        List<String> lines = Files.readAllLines(csv.toPath(), StandardCharsets.US_ASCII);
+        assertEquals(4, lines.size());
+        assertTrue(lines.get(0).startsWith("elapsed_ms,thermal_zone0_battery,thermal_zone1_cpu-thermal,policy0_300000khz"));
+        assertTrue(lines.get(1).startsWith("1000,41500,-2500,100,200,7,2000,20000,"));
+        assertTrue(lines.get(3).startsWith("3000,41000,-2500,220,440,7,3000,30000,"));
+        assertEquals(1 + sampler.getSlotCount(), lines.get(3).split(",").length);
+        assertEquals(sampler.getSlotCount(), Files.readAllLines(names.toPath()).size());
+    }
+
+    @Test
+    public void missingNodesAreSkipped() throws IOException {
+        root = folder.newFolder("root");
+        write("proc/stat", "cpu  1 2 3 4 5 6 7\n");
+
+        SysfsSampler sampler = newSampler();
+        assertEquals(7, sampler.getSlotCount());
+        assertFalse(sampler.addNode(SysfsSampler.KIND_VALUE, "sys/class/thermal/thermal_zone9/temp", "zone9"));
+        sampler.sample(0);
+        assertTrue(Double.isNaN(sampler.getMaxTemperature()));
+        sampler.close();
+    }
+
+    @Test
+    public void nodesThatFailToOpenAreSkipped() throws IOException {
+        root = folder.newFolder("root");
+        //readable by mode but the open fails
+        new File(root, "sys/class/thermal/thermal_zone0/temp").mkdirs();
+        write("sys/class/thermal/thermal_zone1/temp", "30000\n");
+        write("proc/stat", "cpu  1 2 3 4 5 6 7\n");
+
+        SysfsSampler sampler = newSampler();
+        assertEquals(8, sampler.getSlotCount());
+        sampler.sample(0);
+        assertEquals(30.0, sampler.getMaxTemperature(), 1e-9);
+        sampler.close();
+    }
+
+    @Test
+    public void varintRoundTrip() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        long[] values = {0, 1, -1, 63, -64, 300, Long.MAX_VALUE, Long.MIN_VALUE};
+        for (long v : values) {
+            buffer.clear();
+            SysfsSampler.putVarint(buffer, SysfsSampler.zigzag(v));
+            buffer.flip();
+            long read = SysfsSampler.getVarint(new ByteArrayInputStream(buffer.array(), 0, buffer.limit()));
+            assertEquals(v, SysfsSampler.unzigzag(read));
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.mason.verifi;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.OkHttpClient;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs parallel upload and download streams against a local stand-in server and checks the byte counts,
+ * the per second samples and that every stream gets its own connection.
+ */
+public class ThroughputRunnerTest {
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private String url;
+    private final OkHttpClient client = new OkHttpClient();
+
+    private final AtomicLong received = new AtomicLong();
+    private final Set<Integer> clientPorts = new HashSet<>();
+    private int downloadSize = 1 << 20;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/stream", this::stream);
+        server.createContext("/fail", exchange -> {
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+        });
+        //one thread per stream, the default executor serves one request at a time
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    //POST: count the body, GET: send downloadSize bytes
+    private void stream(HttpExchange exchange) throws IOException {
+        synchronized (clientPorts) {
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+        }
+        byte[] buffer = new byte[8192];
+        if ("POST".equals(exchange.getRequestMethod())) {
+            try (InputStream in = exchange.getRequestBody()) {
+                int n;
+                while ((n = in.read(buffer)) > 0)
+                    received.addAndGet(n);
+            }
+            exchange.sendResponseHeaders(200, -1);
+        } else {
+            exchange.sendResponseHeaders(200, downloadSize);
+            try (OutputStream out = exchange.getResponseBody()) {
+                for (int sent = 0; sent < downloadSize; sent += buffer.length)
+                    out.write(buffer, 0, Math.min(buffer.length, downloadSize - sent));
+            } catch (IOException e) {
+                //the client stopped reading at the end of the run
+            }
+        }
+        exchange.close();
+    }
+
+    @Test
+    public void uploadStopsAtByteCount() throws Exception {
+        long bytes = 3 * 1000 * 1000;
+        ThroughputRunner.Result result = new ThroughputRunner(client, url + "/stream", ThroughputDirection.UPLOAD,
+                3, 0, bytes).run();
+
+        assertEquals(bytes, result.getTotalBytes());
+        assertEquals(bytes, received.get());
+        assertEquals(0, result.getErrors());
+        assertEquals(bytes, result.getStreamBytes(0) + result.getStreamBytes(1) + result.getStreamBytes(2));
+        assertTrue(result.getGoodputKbps() > 0);
+    }
+
+    @Test
+    public void downloadRunsForDuration() throws Exception {
+        downloadSize = 256 * 1024;
+        ThroughputRunner.Result result = new ThroughputRunner(client, url + "/stream", ThroughputDirection.DOWNLOAD,
+                2, 2500, 0).run();
+
+        assertTrue(result.getActiveMs() >= 2500 && result.getActiveMs() < 4000);
+        //a short response is requested again until the run is over
+        assertTrue(result.getTotalBytes() > 2 * downloadSize);
+        assertTrue(result.getSampleCount() >= 3);
+
+        long total = 0;
+        for (int i = 0; i < result.getSampleCount(); i++) {
+            assertTrue(result.getSampleMs(i) <= 2 * ThroughputRunner.SAMPLE_MS);
+            for (int j = 0; j < result.getStreams(); j++)
+                total += result.getSampleBytes(i, j);
+        }
+        assertEquals(result.getTotalBytes(), total);
+        assertTrue(result.getStreamBytes(0) > 0 && result.getStreamBytes(1) > 0);
+        assertTrue(result.getSampleKbps(0) > 0);
+        //one connection per stream
+        assertTrue(clientPorts.size() >= 2);
+    }
+
+    @Test
+    public void failingServerEndsTheRun() throws Exception {
+        ThroughputRunner.Result result = new ThroughputRunner(client, url + "/fail", ThroughputDirection.DOWNLOAD,
+                2, 60000, 0).run();
+
+        assertEquals(2, result.getErrors());
+        assertEquals(0, result.getTotalBytes());
+        assertTrue(result.getActiveMs() < 60000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void needsALimit() {
+        new ThroughputRunner(client, url, ThroughputDirection.UPLOAD, 1, 0, 0);
+    }
+}
@@ -0,0 +1,52 @@
+package com.mason.verifi;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the Chrome trace event output and the overwrite of the oldest events when the buffer is full.
+ */
+public class TraceEventBufferTest {
+    private static final String[] NAMES = {"gps.fix", "data.dns"};
+
+    @Test
+    public void writesChromeTraceEvents() throws IOException {
+        TraceEventBuffer buffer = new TraceEventBuffer(8);
+        buffer.record(100, 7, TraceEventBuffer.BEGIN, 0, 0);
+        buffer.record(250, 7, TraceEventBuffer.END, 0, 0);
+        buffer.record(300, 9, TraceEventBuffer.ASYNC_BEGIN, 1, 42);
+        buffer.record(400, 9, TraceEventBuffer.INSTANT, 0, 0);
+
+        StringWriter writer = new StringWriter();
+        buffer.writeJson(writer, NAMES, 123);
+        String json = writer.toString();
+
+        assertTrue(json.startsWith("{\"displayTimeUnit\":\"ms\",\"traceEvents\":["));
+        assertTrue(json.contains("{\"name\":\"gps.fix\",\"cat\":\"verifi\",\"ph\":\"B\",\"ts\":100,\"pid\":123,\"tid\":7},"));
+        assertTrue(json.contains("\"name\":\"data.dns\",\"cat\":\"verifi\",\"ph\":\"b\",\"ts\":300,\"pid\":123,\"tid\":9,\"id\":42}"));
+        assertTrue(json.contains("\"ph\":\"i\",\"ts\":400,\"pid\":123,\"tid\":9,\"s\":\"t\"}\n]}"));
+    }
+
+    @Test
+    public void overwritesOldestEvents() throws IOException {
+        TraceEventBuffer buffer = new TraceEventBuffer(3);
+        for (int i = 1; i <= 5; i++)
+            buffer.record(i, 1, TraceEventBuffer.INSTANT, 0, 0);
+        assertEquals(3, buffer.size());
+
+        StringWriter writer = new StringWriter();
+        buffer.writeJson(writer, NAMES, 1);
+        String json = writer.toString();
+
+        assertFalse(json.contains("\"ts\":2,"));
+        assertTrue(json.indexOf("\"ts\":3,") < json.indexOf("\"ts\":4,"));
+        assertTrue(json.indexOf("\"ts\":4,") < json.indexOf("\"ts\":5,"));
+
+        buffer.clear();
+        assertEquals(0, buffer.size());
+    }
+}